@@ -28,7 +28,7 @@ import com.ly.ckibana.model.property.MetadataConfigProperty;
 import com.ly.ckibana.model.property.QueryProperty;
 import com.ly.ckibana.model.request.ProxyConfig;
 import com.ly.ckibana.model.request.RequestContext;
-import com.ly.ckibana.service.CkService;
+import com.ly.ckibana.service.CkConnectionRegistry;
 import com.ly.ckibana.service.EsClientUtil;
 import com.ly.ckibana.util.RestUtils;
 import com.ly.ckibana.util.Utils;
@@ -67,6 +67,9 @@ public class ProxyConfigLoader {
     @Getter
     private MetadataConfigProperty metadataConfigProperty;
 
+    @Resource
+    private CkConnectionRegistry ckConnectionRegistry;
+
     @Value("${spring.profiles.active:default}")
     @Getter
     private String activeProfileEnv;
@@ -210,7 +213,7 @@ public class ProxyConfigLoader {
             }
         }
         if (updateCkClient) {
-            proxyConfig.setCkDatasource(CkService.initDatasource(this.kibanaProperty.getProxy().getCk()));
+            ckConnectionRegistry.rebuild();
         }
     }
 
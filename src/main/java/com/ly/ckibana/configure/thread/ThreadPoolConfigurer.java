@@ -18,6 +18,10 @@ package com.ly.ckibana.configure.thread;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ly.ckibana.configure.config.ProxyConfigLoader;
 import com.ly.ckibana.model.property.ThreadPoolProperty;
+import com.ly.ckibana.service.BlackSqlService;
+import com.ly.ckibana.service.CkConnectionRegistry;
+import com.ly.ckibana.service.CkResultCacheService;
+import com.ly.ckibana.service.IndexPatternMetaService;
 import com.ly.ckibana.service.SqlMonitorService;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -47,18 +51,35 @@ public class ThreadPoolConfigurer implements Closeable {
     @Getter
     private ThreadPoolExecutor mSearchExecutor;
 
+    @Getter
+    private ThreadPoolExecutor mSearchParseExecutor;
+
     @Getter
     private ScheduledThreadPoolExecutor commonScheduledExecutor;
 
     @Getter
     private ThreadPoolExecutor commonExecutor;
 
+    private ThreadPoolExecutor cacheWriteExecutor;
+
     @Resource
     private ProxyConfigLoader proxyConfigLoader;
 
     @Resource
     private SqlMonitorService sqlMonitorService;
 
+    @Resource
+    private CkConnectionRegistry ckConnectionRegistry;
+
+    @Resource
+    private IndexPatternMetaService indexPatternMetaService;
+
+    @Resource
+    private BlackSqlService blackSqlService;
+
+    @Resource
+    private CkResultCacheService ckResultCacheService;
+
     /**
      * 初始化方法.
      */
@@ -72,6 +93,11 @@ public class ThreadPoolConfigurer implements Closeable {
         mSearchExecutor = buildFixedExecutor(msearchConfig, "msearch");
         log.info("[thread_pool][msearch] init successful. {}", msearchConfig);
 
+        // msearch子查询解析线程池，与查询线程池隔离，队列满时在请求线程解析
+        ThreadPoolProperty.ThreadPoolPropertyDetail msearchParseConfig = proxyConfigLoader.getKibanaProperty().getThreadPool().getMsearchParseProperty();
+        mSearchParseExecutor = buildFixedExecutor(msearchParseConfig, "msearch-parse");
+        log.info("[thread_pool][msearch-parse] init successful. {}", msearchParseConfig);
+
         ThreadPoolProperty.ThreadPoolPropertyDetail commonConfig = proxyConfigLoader.getKibanaProperty().getThreadPool().getCommonProperty();
         commonExecutor = buildFixedExecutor(commonConfig, "common");
         log.info("[thread_pool][common] init successful. {}", msearchConfig);
@@ -91,8 +117,43 @@ public class ThreadPoolConfigurer implements Closeable {
         }, 10, 10, TimeUnit.SECONDS);
         log.info("[task][refresh config] init successful. {}", msearchConfig);
 
+        // init ck idle connection eviction task
+        commonScheduledExecutor.scheduleAtFixedRate(() -> {
+            try {
+                ckConnectionRegistry.evictIdle();
+            } catch (Exception e) {
+                log.warn("evict idle ck connection error", e);
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+        log.info("[task][evict ck connection] init successful.");
+
+        // init kibana index pattern meta refresh task
+        commonScheduledExecutor.scheduleAtFixedRate(() -> {
+            try {
+                indexPatternMetaService.refreshIfStale();
+            } catch (Exception e) {
+                log.warn("refresh index pattern meta error", e);
+            }
+        }, 0, 5, TimeUnit.SECONDS);
+        log.info("[task][refresh index pattern meta] init successful.");
+
+        // init black sql refresh task
+        commonScheduledExecutor.scheduleAtFixedRate(() -> {
+            try {
+                blackSqlService.refresh();
+            } catch (Exception e) {
+                log.warn("refresh black sql error", e);
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+        log.info("[task][refresh black sql] init successful.");
+
         commonExecutor.submit(() -> sqlMonitorService.asyncRecordMonitoring());
         log.info("[task][monitoring] init successful. {}", msearchConfig);
+
+        // init result cache write-behind task, 独立线程避免占用common线程池
+        cacheWriteExecutor = buildFixedExecutor(new ThreadPoolProperty.ThreadPoolPropertyDetail(1, 1), "cache-write");
+        cacheWriteExecutor.submit(() -> ckResultCacheService.asyncWriteBehind());
+        log.info("[task][cache write-behind] init successful.");
     }
 
     private ThreadPoolExecutor buildFixedExecutor(ThreadPoolProperty.ThreadPoolPropertyDetail configDetail, String name) {
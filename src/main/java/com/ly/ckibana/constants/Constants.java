@@ -199,7 +199,8 @@ public class Constants {
         public static final Map<String, Object> CACHE_PROPERTIES = Map.of(
                 "timestamp", Map.of("type", "date"),
                 "key", Map.of("type", "keyword"),
-                "value", Map.of("type", "text", "index", false)
+                "value", Map.of("type", "text", "index", false),
+                "expireAt", Map.of("type", "date")
         );
 
         public static final String BLACK_LIST_INDEX_NAME = "proxy-black-list";
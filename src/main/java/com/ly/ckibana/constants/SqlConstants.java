@@ -30,6 +30,13 @@ public class SqlConstants {
 
     public static final String LIMIT_TEMPLATE = "LIMIT %d";
 
+    public static final String GROUPING_SETS_TEMPLATE = "GROUP BY GROUPING SETS (%s)";
+
+    /**
+     * grouping()按标准语义计算，不在当前分组集合中的列为1.
+     */
+    public static final String GROUPING_STANDARD_SETTINGS = "SETTINGS force_grouping_standard_compatibility = 1";
+
     public static final String COUNT_QUERY = "count(1) as _count";
 
     public static final String TIME_AGG_BY_MINUTE_TEMPLATE = "intDiv(%s,1000*60) as %s";
@@ -104,6 +111,8 @@ public class SqlConstants {
 
     public static final String TYPE_FLOAT = "Float";
 
+    public static final String TYPE_FLOAT64 = "Float64";
+
     public static final String TYPE_DECIMAL = "Decimal";
 
     public static final String SYSTEM_TABLE = "system.tables";
@@ -113,4 +122,14 @@ public class SqlConstants {
     public static final List<String> LOGICAL_OPERATOR = List.of("and", "or", "xor", "not", "and not");
 
     public static final String QUERY_NAME_SEPARATOR = "_";
+
+    /**
+     * GROUPING SETS查询中标识结果行所属分组集合的列.
+     */
+    public static final String GROUPING_SET_NAME = "__grouping_set";
+
+    /**
+     * grouping()结果为Int64位掩码，参与的列数上限.
+     */
+    public static final int MAX_GROUPING_COLUMNS = 63;
 }
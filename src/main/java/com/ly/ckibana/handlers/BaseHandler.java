@@ -25,6 +25,7 @@ import com.ly.ckibana.model.exception.UiException;
 import com.ly.ckibana.model.request.ProxyConfig;
 import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.model.request.RequestContext.RequestInfo;
+import com.ly.ckibana.service.CkQueryTracker;
 import com.ly.ckibana.service.EsClientUtil;
 import com.ly.ckibana.util.HttpServletUtils;
 import com.ly.ckibana.util.JSONUtils;
@@ -58,6 +59,9 @@ public abstract class BaseHandler implements CorsConfigurationSource {
     @Resource
     private ProxyConfigLoader proxyConfigLoader;
 
+    @Resource
+    private CkQueryTracker ckQueryTracker;
+
     public List<HttpRoute> routes() {
         return Collections.emptyList();
     }
@@ -68,6 +72,7 @@ public abstract class BaseHandler implements CorsConfigurationSource {
                 (Map<String, String>) Optional.ofNullable(request.getAttribute(PathTrieHandlerMapping.URL_PARAMS)).orElse(Collections.emptyMap());
         String responseContent;
         RequestContext context = createContext(request, response, urlParams);
+        context.setQueryScope(ckQueryTracker.openScope());
         try {
             responseContent = doHandle(context);
         } catch (FallbackToEsException e) {
@@ -80,7 +85,12 @@ public abstract class BaseHandler implements CorsConfigurationSource {
             responseContent = ProxyUtils.getErrorResponse(e);
             log.error(responseContent, e);
             logRequest(context);
-            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            if (!response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            // 请求已结束(含异常、客户端中断)，取消本请求仍在执行的ck查询
+            ckQueryTracker.closeScope(context.getQueryScope());
         }
         setResponseHeaders(response);
         if (log.isDebugEnabled()) {
@@ -89,7 +99,10 @@ public abstract class BaseHandler implements CorsConfigurationSource {
         IOUtils.write(responseContent, response.getOutputStream(), StandardCharsets.UTF_8);
     }
 
-    private void setResponseHeaders(HttpServletResponse response) {
+    protected void setResponseHeaders(HttpServletResponse response) {
+        if (response.isCommitted()) {
+            return;
+        }
         if (response.getContentType() == null) {
             response.setContentType(ContentType.APPLICATION_JSON.toString());
         }
@@ -25,7 +25,6 @@ import com.ly.ckibana.util.ProxyUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Component;
-import ru.yandex.clickhouse.BalancedClickhouseDataSource;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -54,8 +53,7 @@ public class CheckHandler extends BaseHandler {
         IndexCheckResponse response = new IndexCheckResponse();
         try {
             Pair<List<String>, String> tablesWithSql = ckService.queryTablesWithSql(context.getProxyConfig(), index);
-            BalancedClickhouseDataSource clickhouseDataSource = context.getProxyConfig().getCkDatasource();
-            response.setDatabaseUrls(clickhouseDataSource.getEnabledClickHouseUrls());
+            response.setDatabaseUrls(ckService.getJdbcUrls(context.getProxyConfig()));
             response.setIndex(index);
             response.setDirectToEs(context.getProxyConfig().isDirectToEs(index));
             List<String> whiteList = context.getProxyConfig().getKibanaItemProperty().getWhiteIndexList();
@@ -19,11 +19,10 @@ import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.configure.web.route.HttpRoute;
 import com.ly.ckibana.model.compute.indexpattern.IndexPattern;
 import com.ly.ckibana.model.exception.FallbackToEsException;
-import com.ly.ckibana.model.property.MetadataConfigProperty;
 import com.ly.ckibana.model.request.ProxyConfig;
 import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.parser.ParamParser;
-import com.ly.ckibana.service.EsClientUtil;
+import com.ly.ckibana.service.IndexPatternMetaService;
 import com.ly.ckibana.util.JSONUtils;
 import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Component;
@@ -39,7 +38,7 @@ public class FieldCapsHandler extends BaseHandler {
     private ParamParser paramParser;
 
     @Resource
-    private MetadataConfigProperty metadataConfigProperty;
+    private IndexPatternMetaService indexPatternMetaService;
 
     @Override
     public List<HttpRoute> routes() {
@@ -66,7 +65,7 @@ public class FieldCapsHandler extends BaseHandler {
         JSONObject result = new JSONObject();
         ProxyConfig proxyConfig = context.getProxyConfig();
         IndexPattern indexPattern = proxyConfig.buildIndexPattern(context.getOriginalIndex(), index);
-        indexPattern.setTimeField(EsClientUtil.getIndexPatternMeta(context.getProxyConfig().getRestClient(), metadataConfigProperty.getHeaders()).getOrDefault(index, null));
+        indexPattern.setTimeField(indexPatternMetaService.getTimeField(context.getProxyConfig().getRestClient(), index));
         Map<String, JSONObject> fields = paramParser.queryIndexPatternFields(context, indexPattern, true);
         result.put("fields", fields);
         return JSONUtils.serialize(result);
@@ -16,24 +16,42 @@
 package com.ly.ckibana.handlers;
 
 import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.configure.config.ProxyConfigLoader;
 import com.ly.ckibana.configure.thread.ThreadPoolConfigurer;
 import com.ly.ckibana.configure.web.route.HttpRoute;
 import com.ly.ckibana.model.exception.CKNotSupportException;
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import com.ly.ckibana.model.exception.UiException;
+import com.ly.ckibana.model.property.QueryProperty;
 import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.model.response.Response;
 import com.ly.ckibana.parser.MsearchParamParser;
+import com.ly.ckibana.service.CkQueryTracker;
 import com.ly.ckibana.service.EsClientUtil;
 import com.ly.ckibana.util.JSONUtils;
+import com.ly.ckibana.util.ProxyUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Component
 public class MSearchHandler extends BaseHandler {
@@ -44,6 +62,12 @@ public class MSearchHandler extends BaseHandler {
     @Resource
     private MsearchParamParser msearchParamParser;
 
+    @Resource
+    private ProxyConfigLoader proxyConfigLoader;
+
+    @Resource
+    private CkQueryTracker ckQueryTracker;
+
     @Override
     public List<HttpRoute> routes() {
         return List.of(
@@ -55,45 +79,195 @@ public class MSearchHandler extends BaseHandler {
 
     @Override
     public String doHandle(RequestContext context) throws Exception {
-        List<Response> responses = new ArrayList<>();
         String index = context.getIndex();
-        List<Callable<Response>> subCkRequests = new ArrayList<>();
         StringBuilder subEsRequest = new StringBuilder();
-        // 解析请求，根据索引将查询分为ck和es
-        msearchParamParser.parse(context, index, subEsRequest, subCkRequests, responses);
-        // 如果es请求不为空，且ck请求为空，直接请求 es，避免序列化开销
-        if (StringUtils.isNotEmpty(subEsRequest.toString()) && subCkRequests.isEmpty()) {
+        List<Integer> esPositions = new ArrayList<>();
+        Map<Integer, Callable<Response>> subCkRequests = new LinkedHashMap<>();
+        Map<Integer, Response> fastFailResponses = new HashMap<>();
+        // 解析请求，根据索引将查询分为ck和es，并记录各子查询的位置
+        msearchParamParser.parse(context, index, subEsRequest, esPositions, subCkRequests, fastFailResponses);
+        // 如果es请求不为空，且没有ck请求和解析失败的请求，直接请求 es，避免序列化开销
+        if (StringUtils.isNotEmpty(subEsRequest.toString()) && subCkRequests.isEmpty() && fastFailResponses.isEmpty()) {
             return EsClientUtil.doRequest(context);
         }
-        // 查询ck
-        execute(subCkRequests, responses);
-        // 查询es
-        if (!subEsRequest.isEmpty()) {
-            String responseBody = EsClientUtil.doRequest(context);
-            // merge ck and es response
-            JSON.parseObject(responseBody).getJSONArray("responses").forEach(each -> {
-                responses.add(JSON.parseObject(each.toString(), Response.class));
-            });
+        Response[] responses = new Response[esPositions.size() + subCkRequests.size() + fastFailResponses.size()];
+        fastFailResponses.forEach((position, response) -> responses[position] = response);
+        // es部分只转发es的子查询，异步请求与ck查询并行
+        CompletableFuture<String> esResponse = null;
+        try {
+            if (!esPositions.isEmpty()) {
+                RequestContext.RequestInfo requestInfo = context.getRequestInfo();
+                esResponse = EsClientUtil.doRequestAsync(context.getProxyConfig().getUserRestClient(), requestInfo.getMethod(), requestInfo.getUrl(),
+                        requestInfo.getHeaders(), requestInfo.getParams(), subEsRequest.toString());
+            }
+            // 查询ck
+            execute(context, subCkRequests, responses, esResponse);
+            // 按原顺序合并ck和es的响应
+            if (esResponse != null) {
+                fillEsResponses(responses, esPositions, waitEsResponse(esResponse));
+            }
+        } catch (Exception e) {
+            // 探测已提交200响应头，整体报错无法被kibana识别，未完成的子查询改为返回error
+            if (context.getHttpResponse() == null || !context.getHttpResponse().isCommitted()) {
+                throw e;
+            }
+            log.warn("msearch failed after response committed: {}", e.toString());
+            fillErrorResponses(responses, e);
+        } finally {
+            // ck部分失败时不再等待es
+            if (esResponse != null) {
+                esResponse.cancel(true);
+            }
+        }
+        return JSONUtils.serialize(Map.of("responses", Arrays.asList(responses)));
+    }
+
+    /**
+     * 并发执行ck查询，超过msearchTimeoutMillis、kibana断开或es部分失败时kill未完成的查询.
+     */
+    private void execute(RequestContext context, Map<Integer, Callable<Response>> threads, Response[] responses,
+                         CompletableFuture<String> esResponse) throws Exception {
+        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        Map<Integer, Future<Response>> resultMap = new LinkedHashMap<>();
+        threads.forEach((position, each) -> resultMap.put(position, threadPoolConfigurer.getMSearchExecutor().submit(each)));
+        if (esResponse != null) {
+            cancelOnEsFailure(esResponse, resultMap.values(), () -> ckQueryTracker.cancel(context.getQueryScope(), "es request failed"));
+        }
+        long timeoutMillis = queryProperty.getMsearchTimeoutMillis();
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        try {
+            for (Map.Entry<Integer, Future<Response>> each : resultMap.entrySet()) {
+                responses[each.getKey()] = waitThreadResult(context, each.getValue(), deadline, queryProperty);
+            }
+        } catch (Exception e) {
+            // ck查询因es失败被取消时，返回es的异常
+            if (esResponse != null && esResponse.isCompletedExceptionally() && !esResponse.isCancelled()) {
+                waitEsResponse(esResponse);
+            }
+            throw e;
+        } finally {
+            resultMap.values().forEach(each -> each.cancel(true));
+        }
+    }
+
+    /**
+     * es请求异常结束时，kill并取消未完成的ck查询.
+     *
+     * @param esResponse    es请求
+     * @param ckFutures     ck查询
+     * @param cancelQueries kill ck查询
+     */
+    static void cancelOnEsFailure(CompletableFuture<String> esResponse, Collection<? extends Future<?>> ckFutures, Runnable cancelQueries) {
+        esResponse.whenComplete((body, ex) -> {
+            if (ex != null && !esResponse.isCancelled()) {
+                cancelQueries.run();
+                ckFutures.forEach(each -> each.cancel(true));
+            }
+        });
+    }
+
+    /**
+     * 将es的响应按子查询位置放回，es未逐条返回时(如整体报错)对应位置返回错误.
+     *
+     * @param responses   全部响应
+     * @param esPositions 直连es的子查询位置
+     * @param esBody      es msearch响应
+     */
+    static void fillEsResponses(Response[] responses, List<Integer> esPositions, String esBody) {
+        JSONObject esResult = StringUtils.isEmpty(esBody) ? null : JSON.parseObject(esBody);
+        JSONArray esResponses = esResult == null ? null : esResult.getJSONArray("responses");
+        for (int i = 0; i < esPositions.size(); i++) {
+            if (esResponses != null && i < esResponses.size()) {
+                responses[esPositions.get(i)] = JSON.parseObject(esResponses.get(i).toString(), Response.class);
+            } else {
+                Object error = esResult == null ? null : esResult.get("error");
+                responses[esPositions.get(i)] = ProxyUtils.newKibanaException(error == null ? "es响应为空" : error.toString());
+            }
+        }
+    }
+
+    /**
+     * 未得到响应的子查询返回错误.
+     *
+     * @param responses 全部响应
+     * @param ex        异常
+     */
+    static void fillErrorResponses(Response[] responses, Throwable ex) {
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] == null) {
+                responses[i] = toErrorResponse(ex);
+            }
+        }
+    }
+
+    private static Response toErrorResponse(Throwable ex) {
+        Throwable cause = ex instanceof ExecutionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (cause instanceof UiException uiException) {
+            return ProxyUtils.newKibanaException(uiException.getUiShow());
+        }
+        return ProxyUtils.newKibanaException(StringUtils.defaultString(cause.getMessage(), cause.getClass().getSimpleName()));
+    }
+
+    private String waitEsResponse(CompletableFuture<String> esResponse) throws Exception {
+        try {
+            return esResponse.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
         }
-        return JSONUtils.serialize(Map.of("responses", responses));
     }
 
-    private void execute(List<Callable<Response>> threadList, List<Response> responses) throws Exception {
-        List<Future<Response>> resultList = threadPoolConfigurer.getMSearchExecutor().invokeAll(threadList);
-        for (Future<Response> each : resultList) {
-            Response response = getThreadResult(each);
-            if (response != null) {
-                responses.add(response);
+    private Response waitThreadResult(RequestContext context, Future<Response> response, long deadline, QueryProperty queryProperty) throws Exception {
+        long checkMillis = queryProperty.getClientAbortCheckMillis();
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 && !response.isDone()) {
+                ckQueryTracker.cancel(context.getQueryScope(), "msearch timeout");
+                response.cancel(true);
+                return ProxyUtils.newKibanaException(String.format("查询超时(超过%dms)，已取消", queryProperty.getMsearchTimeoutMillis()));
             }
+            try {
+                return getThreadResult(response, checkMillis > 0 ? Math.min(remaining, checkMillis) : remaining);
+            } catch (TimeoutException e) {
+                if (checkMillis > 0 && isClientAborted(context.getHttpResponse())) {
+                    ckQueryTracker.cancel(context.getQueryScope(), "client aborted");
+                    throw new QueryCancelledException("kibana已断开");
+                }
+            } catch (QueryCancelledException e) {
+                throw e;
+            } catch (Exception e) {
+                // 探测已提交200响应头，整体报错无法被kibana识别，改为该子查询的error
+                if (context.getHttpResponse() != null && context.getHttpResponse().isCommitted()) {
+                    return toErrorResponse(e);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 写入空白字符探测kibana是否已断开，json解析会忽略前导空白.
+     * 写入后响应已提交为200，之后的报错均以各子查询的error返回.
+     */
+    private boolean isClientAborted(HttpServletResponse httpResponse) {
+        try {
+            setResponseHeaders(httpResponse);
+            httpResponse.getOutputStream().write(' ');
+            httpResponse.flushBuffer();
+            return false;
+        } catch (IOException e) {
+            log.info("client aborted: {}", e.getMessage());
+            return true;
         }
     }
 
-    private Response getThreadResult(Future<Response> response) throws Exception {
+    private Response getThreadResult(Future<Response> response, long timeoutMillis) throws Exception {
         Response result;
         try {
-            result = response.get();
+            result = response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            throw ex;
         } catch (Exception ex) {
-            if (ex.getMessage().contains(CKNotSupportException.class.getName())) {
+            if (ex.getMessage() != null && ex.getMessage().contains(CKNotSupportException.class.getName())) {
                 throw new CKNotSupportException(ex.getMessage().replace(CKNotSupportException.class.getName(), ""));
             } else {
                 log.error("getThreadResult", ex);
@@ -20,11 +20,10 @@ import com.ly.ckibana.configure.web.route.HttpRoute;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.model.compute.indexpattern.IndexPattern;
 import com.ly.ckibana.model.exception.FallbackToEsException;
-import com.ly.ckibana.model.property.MetadataConfigProperty;
 import com.ly.ckibana.model.request.ProxyConfig;
 import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.parser.ParamParser;
-import com.ly.ckibana.service.EsClientUtil;
+import com.ly.ckibana.service.IndexPatternMetaService;
 import com.ly.ckibana.util.JSONUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.HttpMethod;
@@ -46,7 +45,7 @@ public class MappingHandler extends BaseHandler {
     private ParamParser paramParser;
 
     @Resource
-    private MetadataConfigProperty metadataConfigProperty;
+    private IndexPatternMetaService indexPatternMetaService;
 
     @Override
     public List<HttpRoute> routes() {
@@ -69,7 +68,7 @@ public class MappingHandler extends BaseHandler {
         
         ProxyConfig proxyConfig = context.getProxyConfig();
         IndexPattern indexPattern = proxyConfig.buildIndexPattern(context.getOriginalIndex(), index);
-        indexPattern.setTimeField(EsClientUtil.getIndexPatternMeta(context.getProxyConfig().getRestClient(), metadataConfigProperty.getHeaders()).getOrDefault(index, null));
+        indexPattern.setTimeField(indexPatternMetaService.getTimeField(context.getProxyConfig().getRestClient(), index));
         Map<String, JSONObject> fields = paramParser.queryIndexPatternFields(context, indexPattern, true);
     
         JSONObject properties = new JSONObject();
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.handlers;
+
+import com.ly.ckibana.configure.web.route.HttpRoute;
+import com.ly.ckibana.model.request.RequestContext;
+import com.ly.ckibana.service.MetricsProvider;
+import com.ly.ckibana.util.JSONUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 输出代理运行指标.
+ */
+@Component
+public class MetricsHandler extends BaseHandler {
+
+    @Resource
+    private List<MetricsProvider> metricsProviders;
+
+    @Override
+    public List<HttpRoute> routes() {
+        return List.of(
+                HttpRoute.newRoute().path("/proxy/_metrics").methods(HttpMethod.GET)
+        );
+    }
+
+    @Override
+    public String doHandle(RequestContext context) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        metricsProviders.forEach(each -> result.put(each.metricsName(), each.metrics()));
+        return JSONUtils.serialize(result);
+    }
+}
@@ -59,6 +59,11 @@ public class Bucket {
         private Map peerAggData;
 
         private Map<String, BucketsResult> peerBucketMap;
+
+        /**
+         * ck中截取前的总文档数，用于terms的sum_other_doc_count.
+         */
+        private Long totalDocCount;
     }
     
 }
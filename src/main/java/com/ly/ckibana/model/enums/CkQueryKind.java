@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.enums;
+
+/**
+ * ck查询类型，用于匹配查询settings profile.
+ * HITS:明细查询
+ * COUNT:总数查询
+ * AGG:聚合查询
+ * PER_MINUTE:明细时间区间优化的按分钟统计
+ */
+public enum CkQueryKind {
+    HITS, COUNT, AGG, PER_MINUTE
+}
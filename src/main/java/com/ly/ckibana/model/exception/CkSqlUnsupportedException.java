@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.exception;
+
+/**
+ * ck不支持该sql(语法、函数、setting不支持等).改写后的sql(如GROUPING SETS、窗口函数)报此异常时可回退为原查询方式.
+ */
+public class CkSqlUnsupportedException extends CkSQLException {
+
+    public CkSqlUnsupportedException(String message) {
+        super(message);
+    }
+}
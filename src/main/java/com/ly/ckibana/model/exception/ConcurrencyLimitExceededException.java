@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.exception;
+
+public class ConcurrencyLimitExceededException extends UiException {
+
+    public ConcurrencyLimitExceededException(String message) {
+        super("ck查询排队超时,请稍后重试: " + message);
+    }
+
+    @Override
+    public String getUiShow() {
+        return "查询排队超时,请稍后重试";
+    }
+}
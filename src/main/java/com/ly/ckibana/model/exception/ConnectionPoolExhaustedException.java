@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.exception;
+
+/**
+ * 代理本地ck连接池已满，等待连接超时.与ck拒绝(TOO_MUCH_SIMULTANEOUS_QUERIES)区分，不参与并发上限调整.
+ */
+public class ConnectionPoolExhaustedException extends UiException {
+
+    public ConnectionPoolExhaustedException(String message) {
+        super("等待ck连接超时,请稍后重试: " + message);
+    }
+
+    @Override
+    public String getUiShow() {
+        return "当前并发操作过多";
+    }
+}
@@ -20,6 +20,16 @@ import lombok.Data;
 @Data
 public class CkProperty {
 
+    /**
+     * 结果格式:jdbc逐行解析.
+     */
+    public static final String RESULT_FORMAT_JDBC = "jdbc";
+
+    /**
+     * 结果格式:RowBinaryWithNamesAndTypes列式解码.
+     */
+    public static final String RESULT_FORMAT_ROW_BINARY = "rowBinary";
+
     private String url;
 
     private String user;
@@ -27,4 +37,39 @@ public class CkProperty {
     private String pass;
 
     private String defaultCkDatabase;
+
+    /**
+     * 单个host最大并发连接数.乘以host数即为实际可并发的ck查询数，query.concurrencyLimit.maxLimit不宜大于该值.
+     */
+    private int maxConnectionsPerHost = 20;
+
+    /**
+     * 等待空闲连接的超时时间，单位ms.
+     */
+    private long connectionWaitTimeoutMillis = 10000;
+
+    /**
+     * 连接空闲超过该时间后释放，单位ms.
+     */
+    private long connectionIdleTimeoutMillis = 300000;
+
+    /**
+     * 查询结果格式，jdbc或rowBinary.
+     */
+    private String resultFormat = RESULT_FORMAT_JDBC;
+
+    /**
+     * host连续失败该次数后暂时摘除.
+     */
+    private int hostEjectFailures = 3;
+
+    /**
+     * host摘除的初始时长，单位ms，连续摘除时翻倍.
+     */
+    private long hostEjectBackoffMillis = 5000;
+
+    /**
+     * host摘除的最长时长，单位ms.
+     */
+    private long hostEjectMaxBackoffMillis = 120000;
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.property;
+
+import lombok.Data;
+
+/**
+ * ck查询自适应并发限制配置.
+ * 按观测到的查询耗时调整并发上限(gradient算法)，ck拒绝或超时时按比例下调，超出上限的查询排队等待.
+ */
+@Data
+public class ConcurrencyLimitProperty {
+
+    /**
+     * 是否开启.
+     */
+    private boolean enabled;
+
+    /**
+     * 初始并发上限.
+     */
+    private int initialLimit = 20;
+
+    /**
+     * 最小并发上限.
+     */
+    private int minLimit = 2;
+
+    /**
+     * 最大并发上限.
+     * 实际并发同时受连接池限制(proxy.ck.maxConnectionsPerHost * host数)，超过连接池容量的部分在连接池排队，
+     * 连接池等待超时不下调上限，因此该值不宜大于连接池容量.
+     */
+    private int maxLimit = 200;
+
+    /**
+     * 最大排队数，超过后直接拒绝.
+     */
+    private int maxQueueSize = 200;
+
+    /**
+     * 排队最长等待时间，单位ms，超过后拒绝.
+     */
+    private long queueTimeoutMillis = 5000;
+
+    /**
+     * 耗时容忍倍数，当前耗时不超过长期平均耗时的此倍数时不下调上限.
+     */
+    private double rttTolerance = 2.0;
+
+    /**
+     * 上限调整的平滑系数，取值(0, 1].
+     */
+    private double smoothing = 0.2;
+
+    /**
+     * ck拒绝(TOO_MUCH_SIMULTANEOUS_QUERIES)时上限的下调比例.
+     */
+    private double backoffRatio = 0.9;
+}
@@ -17,6 +17,7 @@ package com.ly.ckibana.model.property;
 
 import lombok.Data;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -46,4 +47,145 @@ public class QueryProperty {
      * 最大结果条数。若大于或等于此阈值,抛出异常,否则可能引发oom.
      */
     private int maxResultRow = 30000;
+
+    /**
+     * msearch等待ck结果的最长时间，单位ms.超时后kill未完成的ck查询并返回超时错误，应不大于kibana的elasticsearch.requestTimeout.
+     * 默认0不限制，与之前一样等待至ck socket超时.
+     */
+    private long msearchTimeoutMillis;
+
+    /**
+     * 检测kibana是否已断开的间隔，单位ms，0表示不检测.
+     * 检测通过提前提交响应头并写入空白字符实现，响应头提交后状态码固定为200：
+     * 之后的失败(包括es部分失败)均作为各子查询的error返回，kibana按面板展示.
+     */
+    private long clientAbortCheckMillis;
+
+    /**
+     * ck查询settings profile，按顺序匹配，后匹配的覆盖先匹配的同名setting.
+     */
+    private List<QuerySettingsProfile> settingsProfiles = new ArrayList<>();
+
+    /**
+     * ck查询自适应并发限制.
+     */
+    private ConcurrencyLimitProperty concurrencyLimit = new ConcurrencyLimitProperty();
+
+    /**
+     * 表结构缓存的过期时间，单位ms，0表示不缓存.
+     */
+    private long schemaCacheTtlMillis = 300000;
+
+    /**
+     * 表结构从system.columns批量刷新的间隔，单位ms.
+     */
+    private long schemaRefreshIntervalMillis = 60000;
+
+    /**
+     * 表结构缓存最多缓存的表数量.
+     */
+    private int schemaCacheMaxTables = 2000;
+
+    /**
+     * kibana indexpattern元数据的全量刷新间隔，单位ms.
+     */
+    private long indexPatternMetaRefreshMillis = 30000;
+
+    /**
+     * sql黑名单是否按模板匹配，开启后忽略字符串、数字字面量的差异.
+     */
+    private boolean blackSqlTemplateMatch;
+
+    /**
+     * 本地结果缓存的容量，按单元格数(行数×列数)计，0表示不使用本地缓存.
+     */
+    private long localCacheMaxWeight = 2000000;
+
+    /**
+     * 本地结果缓存最长保留时间，单位s，不超过结果本身的缓存时长.
+     */
+    private long localCacheTtlSeconds = 60;
+
+    /**
+     * 结果缓存异步写入es的队列长度，队列满时丢弃.
+     */
+    private int cacheWriteQueueSize = 1000;
+
+    /**
+     * 结果编码后超过该大小(字节)时不写入es缓存，0表示不限制.
+     */
+    private long cacheMaxEncodedBytes = 2097152;
+
+    /**
+     * 数据写入延迟，单位ms.结束时间早于(当前时间-该值)的查询视为历史数据，结果不再变化.
+     */
+    private long cacheIngestionLagMillis = 300000;
+
+    /**
+     * 涉及近期数据的查询结果缓存时长，单位s，0表示不缓存.
+     */
+    private long cacheRecentTtlSeconds = 60;
+
+    /**
+     * 历史数据查询结果缓存时长，单位s.
+     */
+    private long cacheHistoricalTtlSeconds = 86400;
+
+    /**
+     * 命中历史数据缓存时，是否通过system.parts校验表在缓存写入后是否有覆盖该时间范围的数据变更.
+     */
+    private boolean cacheValidateByParts;
+
+    /**
+     * 是否合并执行并发的相同sql.
+     */
+    private boolean coalesceEnabled = true;
+
+    /**
+     * 相同sql最多合并的等待方数量，超过后自行执行.
+     */
+    private int coalesceMaxWaiters = 100;
+
+    /**
+     * 等待相同sql结果的最长时间，单位ms，超时后自行执行.
+     */
+    private long coalesceMaxWaitMillis = 30000;
+
+    /**
+     * date_histogram按时间切片缓存的切片大小，单位ms，按聚合间隔向上取整，0表示关闭.需同时开启useCache.
+     * 结束时间早于(当前时间-cacheIngestionLagMillis)的切片才会被缓存.
+     */
+    private long histogramChunkMillis = 3600000;
+
+    /**
+     * 是否将msearch中表、查询条件相同的面板聚合合并为一次ck查询，分组不同时使用GROUPING SETS，需ck 22.9及以上.
+     */
+    private boolean panelFusionEnabled;
+
+    /**
+     * 单次合并查询最多包含的面板数.
+     */
+    private int panelFusionMaxPanels = 8;
+
+    /**
+     * terms agg包含产生分组的子agg时，是否在ck中截取前size个terms(标量子查询取前size个terms，子terms按父agg分组列LIMIT n BY)，
+     * 并按截取前的总文档数返回sum_other_doc_count.关闭时与之前一样查询全部terms后在内存截取，顶层terms的sum_other_doc_count为0.
+     */
+    private boolean termsTopNPushdownEnabled;
+
+    /**
+     * range/terms agg包含terms子agg时，子agg是否按父agg的全部bucket一次查询，关闭后每个父bucket单独查询.
+     */
+    private boolean subAggSingleQueryEnabled = true;
+
+    /**
+     * filters聚合的各filter是否一次查询，关闭后每个filter单独查询.
+     */
+    private boolean filtersSingleQueryEnabled = true;
+
+    /**
+     * 同层aggs是否按GROUPING SETS一次查询，每个agg只返回自身分组的行，需ck 22.9及以上.
+     * 关闭或查询失败时按各agg分组列的并集查询.
+     */
+    private boolean peerGroupingSetsEnabled;
 }
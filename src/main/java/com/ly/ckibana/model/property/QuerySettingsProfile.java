@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.property;
+
+import com.ly.ckibana.model.enums.CkQueryKind;
+import lombok.Data;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ck查询settings profile，按索引模式和查询类型为查询附加ck settings.
+ */
+@Data
+public class QuerySettingsProfile {
+
+    /**
+     * 适用的索引模式，支持*通配，为空表示全部.
+     */
+    private List<String> indexPatterns = new ArrayList<>();
+
+    /**
+     * 适用的查询类型:HITS/COUNT/AGG/PER_MINUTE，为空表示全部.
+     */
+    private List<String> queryKinds = new ArrayList<>();
+
+    /**
+     * ck settings，如max_threads、max_execution_time、priority.
+     */
+    private Map<String, String> settings = new LinkedHashMap<>();
+
+    /**
+     * 是否适用于当前查询.
+     *
+     * @param uiIndex   索引模式
+     * @param queryKind 查询类型
+     * @return 是否适用
+     */
+    public boolean matches(String uiIndex, CkQueryKind queryKind) {
+        boolean indexMatched = CollectionUtils.isEmpty(indexPatterns)
+                || indexPatterns.stream().anyMatch(each -> uiIndex != null && FilenameUtils.wildcardMatch(uiIndex, each));
+        boolean kindMatched = CollectionUtils.isEmpty(queryKinds)
+                || queryKinds.stream().anyMatch(each -> queryKind.name().equalsIgnoreCase(each));
+        return indexMatched && kindMatched;
+    }
+}
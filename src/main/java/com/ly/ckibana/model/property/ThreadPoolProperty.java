@@ -28,6 +28,8 @@ public class ThreadPoolProperty {
 
     private ThreadPoolPropertyDetail commonProperty = new ThreadPoolPropertyDetail();
 
+    private ThreadPoolPropertyDetail msearchParseProperty = new ThreadPoolPropertyDetail(8, 100);
+
     @Data
     @ToString
     @NoArgsConstructor
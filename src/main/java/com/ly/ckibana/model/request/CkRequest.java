@@ -20,6 +20,9 @@ import com.ly.ckibana.util.SqlUtils;
 import lombok.Data;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.Collections;
+import java.util.Map;
+
 @Data
 public class CkRequest {
 
@@ -39,6 +42,13 @@ public class CkRequest {
 
     private String limit;
 
+    private String settings;
+
+    /**
+     * 同层aggs按GROUPING SETS查询时，agg的staticsId-所属分组集合的grouping()值，否则为空.
+     */
+    private Map<String, Long> groupingSetMasks = Collections.emptyMap();
+
     public CkRequest() {
     }
 
@@ -105,6 +115,15 @@ public class CkRequest {
         }
     }
 
+    /**
+     * 同层aggs是否按GROUPING SETS一次查询.
+     *
+     * @return boolean
+     */
+    public boolean isPeerGroupingSets() {
+        return !getGroupingSetMasks().isEmpty();
+    }
+
     public String buildToStr() {
         StringBuilder builder = new StringBuilder();
         builder.append(SqlUtils.getSelectTemplate(getSelect(), getTable()));
@@ -126,6 +145,9 @@ public class CkRequest {
         if (StringUtils.isNotBlank(getLimit())) {
             builder.append(" ").append(getLimit());
         }
+        if (StringUtils.isNotBlank(getSettings())) {
+            builder.append(" ").append(getSettings());
+        }
         return builder.toString();
     }
 }
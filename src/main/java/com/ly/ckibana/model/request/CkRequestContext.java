@@ -18,6 +18,8 @@ package com.ly.ckibana.model.request;
 import com.ly.ckibana.model.compute.Range;
 import com.ly.ckibana.model.compute.indexpattern.IndexPattern;
 import com.ly.ckibana.model.response.DocValue;
+import com.ly.ckibana.parser.FusedAggQuery;
+import com.ly.ckibana.service.CkQueryScope;
 import com.ly.ckibana.strategy.aggs.Aggregation;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -64,6 +66,11 @@ public class CkRequestContext {
      */
     private int maxResultRow;
 
+    /**
+     * 是否在ck中截取terms agg的前size个terms.
+     */
+    private boolean termsTopNPushdown;
+
     /**
      * 时间范围参数.
      */
@@ -78,6 +85,16 @@ public class CkRequestContext {
 
     private String clientIp;
 
+    /**
+     * 所属http请求的查询范围，用于请求取消时kill查询.
+     */
+    private CkQueryScope queryScope;
+
+    /**
+     * msearch面板合并后本查询所属的合并面板，未合并时为null.
+     */
+    private FusedAggQuery.Panel fusedPanel;
+
     public CkRequestContext() {
     }
 
@@ -19,7 +19,6 @@ import com.ly.ckibana.model.compute.indexpattern.IndexPattern;
 import com.ly.ckibana.model.exception.DataSourceEmptyException;
 import com.ly.ckibana.model.property.CkProperty;
 import com.ly.ckibana.model.property.KibanaItemProperty;
-import com.ly.ckibana.service.CkService;
 import com.ly.ckibana.util.EsProxyClientConsumer;
 import com.ly.ckibana.util.ProxyUtils;
 import com.ly.ckibana.util.RestUtils;
@@ -32,7 +31,6 @@ import org.apache.commons.lang3.StringUtils;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ru.yandex.clickhouse.BalancedClickhouseDataSource;
 
 import java.util.Map;
 import java.util.Objects;
@@ -52,18 +50,11 @@ public class ProxyConfig {
 
     private EsProxyClientConsumer esClientBuffer;
 
-    private BalancedClickhouseDataSource ckDatasource;
-
     public ProxyConfig(KibanaItemProperty kibanaItemProperty) {
         this.kibanaItemProperty = kibanaItemProperty;
         this.restClient = RestUtils.initEsResClient(kibanaItemProperty.getEs());
         this.userRestClient = RestUtils.initEsResClient(kibanaItemProperty.getEs());
         this.esClientBuffer = new EsProxyClientConsumer();
-        if (kibanaItemProperty.getCk() != null) {
-            this.ckDatasource = CkService.initDatasource(kibanaItemProperty.getCk());
-        } else {
-            this.ckDatasource = null;
-        }
     }
 
     public String getCkDatabase() {
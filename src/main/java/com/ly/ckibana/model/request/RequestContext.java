@@ -15,6 +15,7 @@
  */
 package com.ly.ckibana.model.request;
 
+import com.ly.ckibana.service.CkQueryScope;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -68,6 +69,11 @@ public class RequestContext {
      */
     private boolean ckIndex;
 
+    /**
+     * 本次请求发出的ck查询，请求中断或超时时统一取消.
+     */
+    private CkQueryScope queryScope;
+
     @Data
     @AllArgsConstructor
     public static class RequestInfo {
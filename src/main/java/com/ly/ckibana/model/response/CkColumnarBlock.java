@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.response;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.alibaba.fastjson2.util.TypeUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * RowBinary解码得到的列式结果块.
+ * 整数列存为long[]，浮点列存为double[]，字符串列按字典编码存为int[]，通过行游标直接读取原始数组，避免逐单元格装箱.
+ * 游标行仅在消费回调内有效，跨行持有需调用toJSONObject.
+ */
+public class CkColumnarBlock {
+
+    private final String[] columnNames;
+
+    private final Column[] columns;
+
+    private final Map<String, Integer> columnIndexes;
+
+    private final int capacity;
+
+    private final Cursor cursor = new Cursor();
+
+    private int size;
+
+    public CkColumnarBlock(String[] columnNames, Column[] columns, int capacity) {
+        this.columnNames = columnNames;
+        this.columns = columns;
+        this.capacity = capacity;
+        this.columnIndexes = new HashMap<>(columnNames.length * 2);
+        for (int i = 0; i < columnNames.length; i++) {
+            columnIndexes.put(columnNames[i], i);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    /**
+     * 所有列已写入当前行.
+     */
+    public void endRow() {
+        size++;
+    }
+
+    /**
+     * 清空块以复用数组.
+     */
+    public void clear() {
+        size = 0;
+        for (Column column : columns) {
+            column.clear();
+        }
+    }
+
+    /**
+     * 将游标移动到指定行.
+     *
+     * @param rowIndex 行号
+     * @return 游标行
+     */
+    public CkRow row(int rowIndex) {
+        cursor.rowIndex = rowIndex;
+        return cursor;
+    }
+
+    private class Cursor implements CkRow {
+
+        private int rowIndex;
+
+        private Column column(String name) {
+            Integer index = columnIndexes.get(name);
+            return index == null ? null : columns[index];
+        }
+
+        @Override
+        public Object get(String name) {
+            Column column = column(name);
+            return column == null ? null : column.get(rowIndex);
+        }
+
+        @Override
+        public Long getLong(String name) {
+            Column column = column(name);
+            return column == null || column.isNull(rowIndex) ? null : column.getLongValue(rowIndex);
+        }
+
+        @Override
+        public long getLongValue(String name) {
+            Column column = column(name);
+            return column == null || column.isNull(rowIndex) ? 0L : column.getLongValue(rowIndex);
+        }
+
+        @Override
+        public String getString(String name) {
+            Column column = column(name);
+            return column == null || column.isNull(rowIndex) ? null : column.getString(rowIndex);
+        }
+
+        @Override
+        public JSONObject toJSONObject() {
+            JSONObject result = new JSONObject(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                result.put(columnNames[i], columns[i].get(rowIndex));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 单列数据.
+     */
+    public abstract static class Column {
+
+        private final boolean[] nulls;
+
+        protected Column(boolean nullable, int capacity) {
+            this.nulls = nullable ? new boolean[capacity] : null;
+        }
+
+        public boolean isNull(int rowIndex) {
+            return nulls != null && nulls[rowIndex];
+        }
+
+        /**
+         * 写入null，仅Nullable列调用.
+         *
+         * @param rowIndex 行号
+         */
+        public void appendNull(int rowIndex) {
+            nulls[rowIndex] = true;
+        }
+
+        protected void markNotNull(int rowIndex) {
+            if (nulls != null) {
+                nulls[rowIndex] = false;
+            }
+        }
+
+        /**
+         * 获取与jdbc getObject类型一致的装箱值.
+         *
+         * @param rowIndex 行号
+         * @return 值
+         */
+        public Object get(int rowIndex) {
+            return isNull(rowIndex) ? null : getNotNull(rowIndex);
+        }
+
+        protected abstract Object getNotNull(int rowIndex);
+
+        public long getLongValue(int rowIndex) {
+            return TypeUtils.toLongValue(getNotNull(rowIndex));
+        }
+
+        public String getString(int rowIndex) {
+            return JSONObject.of("value", getNotNull(rowIndex)).getString("value");
+        }
+
+        protected void clear() {
+        }
+    }
+
+    /**
+     * 整数列.
+     */
+    public static class LongColumn extends Column {
+
+        private final long[] values;
+
+        private final LongFunction<Object> boxer;
+
+        /**
+         * 构建整数列.
+         *
+         * @param nullable 是否可为null
+         * @param capacity 块容量
+         * @param boxer    装箱方式，与jdbc对应类型一致(Integer/Long/BigInteger)
+         */
+        public LongColumn(boolean nullable, int capacity, LongFunction<Object> boxer) {
+            super(nullable, capacity);
+            this.values = new long[capacity];
+            this.boxer = boxer;
+        }
+
+        public void append(int rowIndex, long value) {
+            markNotNull(rowIndex);
+            values[rowIndex] = value;
+        }
+
+        @Override
+        protected Object getNotNull(int rowIndex) {
+            return boxer.apply(values[rowIndex]);
+        }
+
+        @Override
+        public long getLongValue(int rowIndex) {
+            return values[rowIndex];
+        }
+
+        @Override
+        public String getString(int rowIndex) {
+            return getNotNull(rowIndex).toString();
+        }
+    }
+
+    /**
+     * 浮点列.
+     */
+    public static class DoubleColumn extends Column {
+
+        private final double[] values;
+
+        private final boolean float32;
+
+        public DoubleColumn(boolean nullable, int capacity, boolean float32) {
+            super(nullable, capacity);
+            this.values = new double[capacity];
+            this.float32 = float32;
+        }
+
+        public void append(int rowIndex, double value) {
+            markNotNull(rowIndex);
+            values[rowIndex] = value;
+        }
+
+        @Override
+        protected Object getNotNull(int rowIndex) {
+            return float32 ? Float.valueOf((float) values[rowIndex]) : Double.valueOf(values[rowIndex]);
+        }
+
+        @Override
+        public long getLongValue(int rowIndex) {
+            return (long) values[rowIndex];
+        }
+
+        @Override
+        public String getString(int rowIndex) {
+            return float32 ? Float.toString((float) values[rowIndex]) : Double.toString(values[rowIndex]);
+        }
+    }
+
+    /**
+     * 字典编码的字符串列.
+     * 按utf8字节查字典，重复值不再创建String；字典超过块容量时随块清空，避免高基数列无限增长.
+     */
+    public static class StringColumn extends Column {
+
+        private final int[] codes;
+
+        private final int capacity;
+
+        private String[] dictionary = new String[16];
+
+        private byte[][] dictionaryBytes = new byte[16][];
+
+        private int dictionarySize;
+
+        private int[] slots = new int[32];
+
+        public StringColumn(boolean nullable, int capacity) {
+            super(nullable, capacity);
+            this.codes = new int[capacity];
+            this.capacity = capacity;
+        }
+
+        /**
+         * 写入utf8字节表示的字符串.
+         *
+         * @param rowIndex 行号
+         * @param bytes    字节缓冲
+         * @param offset   起始位置
+         * @param length   有效长度
+         */
+        public void append(int rowIndex, byte[] bytes, int offset, int length) {
+            markNotNull(rowIndex);
+            codes[rowIndex] = lookup(bytes, offset, length);
+        }
+
+        private int lookup(byte[] bytes, int offset, int length) {
+            int mask = slots.length - 1;
+            int slot = hash(bytes, offset, length) & mask;
+            while (slots[slot] != 0) {
+                int code = slots[slot] - 1;
+                byte[] candidate = dictionaryBytes[code];
+                if (Arrays.equals(candidate, 0, candidate.length, bytes, offset, offset + length)) {
+                    return code;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int code = dictionarySize++;
+            if (code == dictionary.length) {
+                dictionary = Arrays.copyOf(dictionary, code * 2);
+                dictionaryBytes = Arrays.copyOf(dictionaryBytes, code * 2);
+            }
+            dictionaryBytes[code] = Arrays.copyOfRange(bytes, offset, offset + length);
+            dictionary[code] = new String(bytes, offset, length, StandardCharsets.UTF_8);
+            slots[slot] = code + 1;
+            if (dictionarySize * 2 > slots.length) {
+                rehash();
+            }
+            return code;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int code = 0; code < dictionarySize; code++) {
+                byte[] bytes = dictionaryBytes[code];
+                int slot = hash(bytes, 0, bytes.length) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = code + 1;
+            }
+        }
+
+        private static int hash(byte[] bytes, int offset, int length) {
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        public int getDictionarySize() {
+            return dictionarySize;
+        }
+
+        @Override
+        protected Object getNotNull(int rowIndex) {
+            return dictionary[codes[rowIndex]];
+        }
+
+        @Override
+        public String getString(int rowIndex) {
+            return dictionary[codes[rowIndex]];
+        }
+
+        @Override
+        protected void clear() {
+            if (dictionarySize > capacity) {
+                dictionary = new String[16];
+                dictionaryBytes = new byte[16][];
+                slots = new int[32];
+                dictionarySize = 0;
+            }
+        }
+    }
+
+    /**
+     * 其他类型列(日期、Decimal、数组等)，按jdbc对应类型存储.
+     */
+    public static class ObjectColumn extends Column {
+
+        private final Object[] values;
+
+        public ObjectColumn(boolean nullable, int capacity) {
+            super(nullable, capacity);
+            this.values = new Object[capacity];
+        }
+
+        public void append(int rowIndex, Object value) {
+            markNotNull(rowIndex);
+            values[rowIndex] = value;
+        }
+
+        @Override
+        protected Object getNotNull(int rowIndex) {
+            return values[rowIndex];
+        }
+
+        @Override
+        protected void clear() {
+            Arrays.fill(values, null);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.response;
+
+import com.alibaba.fastjson2.JSONObject;
+
+/**
+ * ck查询结果的一行.
+ * jdbc逐行结果与RowBinary列式结果统一通过该接口读取，取值语义与JSONObject一致.
+ */
+public interface CkRow {
+
+    /**
+     * 包装JSONObject行.
+     *
+     * @param row 行数据
+     * @return CkRow
+     */
+    static CkRow of(JSONObject row) {
+        return new JsonCkRow(row);
+    }
+
+    Object get(String column);
+
+    Long getLong(String column);
+
+    /**
+     * 获取long值，null时返回0.
+     *
+     * @param column 列名
+     * @return long值
+     */
+    long getLongValue(String column);
+
+    String getString(String column);
+
+    /**
+     * 转换为独立的JSONObject，可在消费回调外继续持有.
+     *
+     * @return JSONObject
+     */
+    JSONObject toJSONObject();
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.model.response;
+
+import com.alibaba.fastjson2.JSONObject;
+
+/**
+ * 基于JSONObject的ck结果行.
+ */
+public class JsonCkRow implements CkRow {
+
+    private final JSONObject row;
+
+    public JsonCkRow(JSONObject row) {
+        this.row = row;
+    }
+
+    @Override
+    public Object get(String column) {
+        return row.get(column);
+    }
+
+    @Override
+    public Long getLong(String column) {
+        return row.getLong(column);
+    }
+
+    @Override
+    public long getLongValue(String column) {
+        return row.getLongValue(column);
+    }
+
+    @Override
+    public String getString(String column) {
+        return row.getString(column);
+    }
+
+    @Override
+    public JSONObject toJSONObject() {
+        return row;
+    }
+}
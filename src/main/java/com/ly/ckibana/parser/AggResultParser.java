@@ -16,15 +16,23 @@
 package com.ly.ckibana.parser;
 
 import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.configure.config.ProxyConfigLoader;
+import com.ly.ckibana.model.compute.aggregation.bucket.BucketStatics;
 import com.ly.ckibana.model.enums.AggBucketsName;
 import com.ly.ckibana.model.enums.AggType;
+import com.ly.ckibana.model.enums.CkQueryKind;
+import com.ly.ckibana.model.exception.CkSqlUnsupportedException;
 import com.ly.ckibana.model.request.CkRequest;
 import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.model.response.Response;
+import com.ly.ckibana.service.CkRowConsumer;
 import com.ly.ckibana.service.CkService;
 import com.ly.ckibana.strategy.aggs.Aggregation;
 import com.ly.ckibana.strategy.aggs.FiltersAggregation;
+import com.ly.ckibana.strategy.aggs.FiltersItemAggregation;
 import com.ly.ckibana.util.JSONUtils;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.stereotype.Service;
@@ -41,6 +49,7 @@ import java.util.Map;
  *
  * @author caojiaqiang
  */
+@Slf4j
 @Service
 public class AggResultParser extends HitsResultParser {
 
@@ -53,8 +62,16 @@ public class AggResultParser extends HitsResultParser {
     @Resource
     private AggResultParserHelper aggResultParserHelper;
 
+    @Resource
+    private DateHistogramChunkHelper dateHistogramChunkHelper;
+
+    @Resource
+    private PanelFusionPlanner panelFusionPlanner;
+
+    @Resource
+    private ProxyConfigLoader proxyConfigLoader;
+
     /**
-     * todo range子agg 请求1->n+1,filters 1->n待优化
      * 基于查询参数解析获取聚合结果.
      * filters是和其他agg组合使用。支持n个filter，每种filter有自己的query条件。filters会返回n组数据返回。
      * 其他聚合进返回1组数据
@@ -84,7 +101,11 @@ public class AggResultParser extends HitsResultParser {
      */
     private Response executeFiltersAggs(CkRequestContext ckRequestContext, FiltersAggregation filtersAgg) throws Exception {
         checkMultiFiltersSupported(filtersAgg);
-        Response result = new Response();
+        Response result = executeFiltersAggsInOneQuery(ckRequestContext, filtersAgg);
+        if (result != null) {
+            return result;
+        }
+        result = new Response();
         Map<String, Map<String, Object>> filterAggResult = new HashMap<>();
         List<Aggregation> subAggs = filtersAgg.getSubAggs();
         for (int i = 0; i < filtersAgg.getFiltersItems().size(); i++) {
@@ -102,6 +123,59 @@ public class AggResultParser extends HitsResultParser {
         return result;
     }
 
+    /**
+     * 全部filtersItem一次查询，按filter序号拆分结果后逐个filtersItem解析，结果与每个filtersItem单独查询一致.
+     * 仅1个filtersItem、或ck不支持该sql时返回null.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param filtersAgg       filtersAgg
+     * @return Response
+     * @throws Exception 异常
+     */
+    private Response executeFiltersAggsInOneQuery(CkRequestContext ckRequestContext, FiltersAggregation filtersAgg) throws Exception {
+        List<FiltersItemAggregation> items = filtersAgg.getFiltersItems();
+        if (!proxyConfigLoader.getKibanaProperty().getQuery().isFiltersSingleQueryEnabled() || items.size() < 2) {
+            return null;
+        }
+        String sql = aggResultParserHelper.getFiltersCkRequestInOneQuery(ckRequestContext, filtersAgg).buildToStr();
+        String filterIndex = aggResultParserHelper.getFilterIndexAlias(filtersAgg);
+        // 一次查询的count列与filtersAgg同名，拆分时改为各filtersItem的count列
+        String countName = filtersAgg.queryAggCountName();
+        List<List<Map<String, BucketStatics>>> staticsByItem = new ArrayList<>();
+        List<CkRowConsumer> consumerByItem = new ArrayList<>();
+        for (FiltersItemAggregation each : items) {
+            each.setSubAggs(filtersAgg.getSubAggs());
+            List<Map<String, BucketStatics>> statics = new ArrayList<>();
+            staticsByItem.add(statics);
+            consumerByItem.add(resultParseService.buildStaticsConsumer(each, statics));
+        }
+        boolean cached;
+        try {
+            cached = ckService.queryDataWithCacheAndStatus(ckRequestContext, CkQueryKind.AGG, sql, row -> {
+                int index = (int) row.getLongValue(filterIndex) - 1;
+                JSONObject itemRow = new JSONObject(row.toJSONObject());
+                itemRow.put(items.get(index).queryAggCountName(), itemRow.get(countName));
+                consumerByItem.get(index).accept(CkRow.of(itemRow));
+            });
+        } catch (CkSqlUnsupportedException e) {
+            log.warn("[filters] query filters in one query unsupported, fallback to query by filter, error:{}", e.getMessage());
+            return null;
+        }
+        Map<String, Map<String, Object>> filterAggResult = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            Response response = resultParseService.executeByStatics(items.get(i), staticsByItem.get(i));
+            if (response.getAggregations() != null) {
+                filterAggResult.putAll(response.getAggregations());
+            }
+        }
+        Response result = new Response();
+        Map<String, Object> buckets = Collections.singletonMap(AggBucketsName.BUCKETS.name().toLowerCase(), filterAggResult);
+        result.setAggregations(Collections.singletonMap(filtersAgg.getAggName(), buckets));
+        result.setCache(cached);
+        result.getSqls().add(sql);
+        return result;
+    }
+
     private void checkMultiFiltersSupported(Aggregation filtersAgg) {
         if (filtersAgg.getSubAggs() != null) {
             for (Aggregation child : filtersAgg.getSubAggs()) {
@@ -121,16 +195,97 @@ public class AggResultParser extends HitsResultParser {
      */
     private Response executeNotFiltersAggs(CkRequestContext ckRequestContext) throws Exception {
         Aggregation firstAgg = buildFirstAgg(ckRequestContext.getAggs());
-        CkRequest ckRequest = firstAgg.buildCkRequest(ckRequestContext);
-        Response response = executeByAgg(ckRequestContext, firstAgg, ckRequest);
+        if (ckRequestContext.getFusedPanel() != null) {
+            Response response = executeByFusion(ckRequestContext, firstAgg);
+            if (response != null) {
+                return response;
+            }
+        }
+        if (dateHistogramChunkHelper.isChunkable(ckRequestContext, firstAgg)) {
+            return executeByChunks(ckRequestContext, firstAgg);
+        }
+        Response response = executeByPeerGroupingSets(ckRequestContext, firstAgg);
+        if (response == null) {
+            CkRequest ckRequest = firstAgg.buildCkRequest(ckRequestContext);
+            response = executeByAgg(ckRequestContext, firstAgg, ckRequest);
+        }
         mergeSubResponses(ckRequestContext, firstAgg, response);
         return response;
 
     }
 
     /**
-     * range agg可能包含子agg，需要转为多次查询结果拼接.
-     * todo 待优化
+     * 同层aggs按GROUPING SETS一次查询.未开启、无法按GROUPING SETS查询或ck不支持(如版本低于22.9)时返回null.
+     * @param ckRequestContext ckRequestContext
+     * @param firstAgg         firstAgg
+     * @return Response
+     * @throws Exception 异常
+     */
+    private Response executeByPeerGroupingSets(CkRequestContext ckRequestContext, Aggregation firstAgg) throws Exception {
+        CkRequest ckRequest = buildPeerGroupingSetsCkRequest(ckRequestContext, firstAgg);
+        if (ckRequest == null) {
+            return null;
+        }
+        try {
+            return executeByAgg(ckRequestContext, firstAgg, ckRequest);
+        } catch (CkSqlUnsupportedException e) {
+            log.warn("[peer-aggs] query peer aggs by grouping sets unsupported, fallback to query by group by, error:{}", e.getMessage());
+            return null;
+        }
+    }
+
+    private CkRequest buildPeerGroupingSetsCkRequest(CkRequestContext ckRequestContext, Aggregation firstAgg) {
+        if (!proxyConfigLoader.getKibanaProperty().getQuery().isPeerGroupingSetsEnabled() || CollectionUtils.isEmpty(firstAgg.getPeerAggs())) {
+            return null;
+        }
+        CkRequest result = firstAgg.buildCkRequest(ckRequestContext, true);
+        return result.isPeerGroupingSets() ? result : null;
+    }
+
+    /**
+     * 从msearch合并查询的结果中拆出本面板的行解析.合并查询失败时返回null.
+     * @param ckRequestContext ckRequestContext
+     * @param aggregation      aggregation
+     * @return Response
+     * @throws Exception 异常
+     */
+    private Response executeByFusion(CkRequestContext ckRequestContext, Aggregation aggregation) throws Exception {
+        Pair<List<JSONObject>, Boolean> rows = panelFusionPlanner.query(ckRequestContext);
+        if (rows == null) {
+            return null;
+        }
+        List<Map<String, BucketStatics>> statics = new ArrayList<>();
+        CkRowConsumer rowConsumer = resultParseService.buildStaticsConsumer(aggregation, statics);
+        for (JSONObject each : rows.getLeft()) {
+            rowConsumer.accept(CkRow.of(each));
+        }
+        Response result = resultParseService.executeByStatics(aggregation, statics);
+        result.setCache(rows.getRight());
+        result.getSqls().add(ckRequestContext.getFusedPanel().getQuery().getSql());
+        return result;
+    }
+
+    /**
+     * date_histogram按时间切片查询，各切片结果合并后统一解析.
+     * @param ckRequestContext ckRequestContext
+     * @param aggregation      aggregation
+     * @return Response
+     * @throws Exception 异常
+     */
+    private Response executeByChunks(CkRequestContext ckRequestContext, Aggregation aggregation) throws Exception {
+        List<Map<String, BucketStatics>> statics = new ArrayList<>();
+        List<String> sqls = new ArrayList<>();
+        boolean cached = dateHistogramChunkHelper.queryByChunks(ckRequestContext, aggregation,
+                resultParseService.buildStaticsConsumer(aggregation, statics), sqls);
+        Response result = resultParseService.executeByStatics(aggregation, statics);
+        result.setCache(cached);
+        result.getSqls().addAll(sqls);
+        return result;
+    }
+
+    /**
+     * range/terms agg包含terms子agg时，父agg单独查询，子agg按父agg的全部bucket一次查询后拆分.
+     * 无法合并为一次查询时回退为每个父bucket单独查询子agg.
      *
      * @param ckRequestContext ckRequestContext
      * @param parentAgg       parentAgg
@@ -141,17 +296,15 @@ public class AggResultParser extends HitsResultParser {
         if (parentAgg.isIgnoreSubAggCondition()) {
             Object parentBuckets = response.getAggregations().get(parentAgg.getAggName()).get(AggBucketsName.BUCKETS.name().toLowerCase());
             Map<Object, String> appendWhereSqlForSub = aggResultParserHelper.buildAppendWhereForSubAgg(parentAgg, parentBuckets);
+            List<Map<String, Response>> subResponsesByParentKey = executeSubAggsByParentKeys(ckRequestContext, parentAgg, appendWhereSqlForSub, response);
             //map类结果
             if (parentAgg.isKeyed()) {
                 JSONObject mapBuckets = JSONUtils.convert(parentBuckets, JSONObject.class);
                 for (int i = 0; i < parentAgg.getSubAggs().size(); i++) {
                     Aggregation aggregation = parentAgg.getSubAggs().get(i);
                     for (Map.Entry<Object, String> parentItem : appendWhereSqlForSub.entrySet()) {
-                        CkRequest subAggCkRequest = aggResultParserHelper.getSubAggCkRequestByParentAgg(ckRequestContext, parentAgg,
-                                aggregation, parentItem.getValue());
-                        Response responseChild = executeByAgg(ckRequestContext, aggregation, subAggCkRequest);
+                        Response responseChild = getSubResponse(ckRequestContext, parentAgg, aggregation, parentItem, subResponsesByParentKey, i, response);
                         mapBuckets.getJSONObject(parentItem.getKey().toString()).putAll(responseChild.getAggregations());
-                        response.getSqls().addAll(responseChild.getSqls());
                     }
                 }
                 response.getAggregations().put(parentAgg.getAggName(), Collections.singletonMap(AggBucketsName.BUCKETS.name().toLowerCase(), mapBuckets));
@@ -161,11 +314,8 @@ public class AggResultParser extends HitsResultParser {
                 for (int i = 0; i < parentAgg.getSubAggs().size(); i++) {
                     Aggregation aggregation = parentAgg.getSubAggs().get(i);
                     for (Map.Entry<Object, String> parentItem : appendWhereSqlForSub.entrySet()) {
-                        CkRequest subAggCkRequest = aggResultParserHelper.getSubAggCkRequestByParentAgg(ckRequestContext, parentAgg,
-                                aggregation, parentItem.getValue());
-                        Response responseChild = executeByAgg(ckRequestContext, aggregation, subAggCkRequest);
+                        Response responseChild = getSubResponse(ckRequestContext, parentAgg, aggregation, parentItem, subResponsesByParentKey, i, response);
                         listBuckets.stream().filter(v -> v.get(AggResultParserHelper.KEY).equals(parentItem.getKey())).findFirst().ifPresent(v -> v.putAll(responseChild.getAggregations()));
-                        response.getSqls().addAll(responseChild.getSqls());
                     }
                 }
                 response.getAggregations().put(parentAgg.getAggName(), Collections.singletonMap(AggBucketsName.BUCKETS.name().toLowerCase(), listBuckets));
@@ -173,6 +323,63 @@ public class AggResultParser extends HitsResultParser {
         }
     }
 
+    private Response getSubResponse(CkRequestContext ckRequestContext, Aggregation parentAgg, Aggregation aggregation, Map.Entry<Object, String> parentItem,
+                                    List<Map<String, Response>> subResponsesByParentKey, int subAggIndex, Response response) throws Exception {
+        if (subResponsesByParentKey != null) {
+            return subResponsesByParentKey.get(subAggIndex).get(String.valueOf(parentItem.getKey()));
+        }
+        CkRequest subAggCkRequest = aggResultParserHelper.getSubAggCkRequestByParentAgg(ckRequestContext, parentAgg, aggregation, parentItem.getValue());
+        Response result = executeByAgg(ckRequestContext, aggregation, subAggCkRequest);
+        response.getSqls().addAll(result.getSqls());
+        return result;
+    }
+
+    /**
+     * 每个子agg一次查询全部父bucket的结果，按父bucket key拆分解析.
+     * 父agg不支持、或ck不支持该sql时返回null.
+     *
+     * @return 与子agg一一对应，父bucket key -> 子agg结果
+     */
+    private List<Map<String, Response>> executeSubAggsByParentKeys(CkRequestContext ckRequestContext, Aggregation parentAgg,
+                                                                   Map<Object, String> parentWhereSqls, Response response) throws Exception {
+        if (!proxyConfigLoader.getKibanaProperty().getQuery().isSubAggSingleQueryEnabled() || parentWhereSqls.isEmpty()) {
+            return null;
+        }
+        List<CkRequest> ckRequests = new ArrayList<>();
+        for (Aggregation each : parentAgg.getSubAggs()) {
+            CkRequest ckRequest = aggResultParserHelper.getSubAggCkRequestByParentKeys(ckRequestContext, parentAgg, each, parentWhereSqls);
+            if (ckRequest == null) {
+                return null;
+            }
+            ckRequests.add(ckRequest);
+        }
+        String parentKey = aggResultParserHelper.getParentKeyAlias(parentAgg);
+        List<Map<String, Response>> result = new ArrayList<>();
+        List<String> sqls = new ArrayList<>();
+        try {
+            for (int i = 0; i < ckRequests.size(); i++) {
+                Aggregation aggregation = parentAgg.getSubAggs().get(i);
+                String sql = ckRequests.get(i).buildToStr();
+                Map<String, List<Map<String, BucketStatics>>> staticsByParentKey = new HashMap<>();
+                Map<String, CkRowConsumer> consumerByParentKey = new HashMap<>();
+                ckService.queryDataWithCacheAndStatus(ckRequestContext, CkQueryKind.AGG, sql, row -> consumerByParentKey.computeIfAbsent(String.valueOf(row.get(parentKey)),
+                        key -> resultParseService.buildStaticsConsumer(aggregation, staticsByParentKey.computeIfAbsent(key, k -> new ArrayList<>()))).accept(row));
+                Map<String, Response> responses = new HashMap<>();
+                for (Object each : parentWhereSqls.keySet()) {
+                    String key = String.valueOf(each);
+                    responses.put(key, resultParseService.executeByStatics(aggregation, staticsByParentKey.getOrDefault(key, new ArrayList<>())));
+                }
+                result.add(responses);
+                sqls.add(sql);
+            }
+        } catch (CkSqlUnsupportedException e) {
+            log.warn("[sub-agg] query sub aggs by parent keys unsupported, fallback to query by parent bucket, error:{}", e.getMessage());
+            return null;
+        }
+        response.getSqls().addAll(sqls);
+        return result;
+    }
+
     /**
      * 处理sql查询结果，主agg和sug agg一个sql查询。内存处理成最终返回结果。其中，sub agg如果是terms，size限制也在此完成.
      * @param ckRequestContext ckRequestContext
@@ -184,7 +391,37 @@ public class AggResultParser extends HitsResultParser {
     public Response executeByAgg(CkRequestContext ckRequestContext, Aggregation aggregation, CkRequest ckRequest) throws Exception {
         Response result = new Response();
         if (ckRequest != null) {
-            result = executeByCk(ckRequestContext, aggregation, ckRequest.buildToStr());
+            result = executeByCk(ckRequestContext, aggregation, ckRequest.buildToStr(), ckRequest.getGroupingSetMasks());
+        }
+        return result;
+    }
+
+    /**
+     * 该查询首先读取的缓存key，与buildMSearchAggResult的执行路径一致，用于msearch批量预取.
+     * filters聚合和依赖前一次查询结果的sql不预测.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @return sql
+     */
+    public List<String> collectCacheKeys(CkRequestContext ckRequestContext) {
+        List<String> result = new ArrayList<>();
+        if (CollectionUtils.isNotEmpty(ckRequestContext.getAggs())) {
+            if (ckRequestContext.getAggs().stream().noneMatch(each -> AggType.FILTERS.equals(each.getAggType()))) {
+                Aggregation firstAgg = buildFirstAgg(ckRequestContext.getAggs());
+                if (ckRequestContext.getFusedPanel() != null) {
+                    result.add(ckRequestContext.getFusedPanel().getQuery().getSql());
+                } else if (dateHistogramChunkHelper.isChunkable(ckRequestContext, firstAgg)) {
+                    result.addAll(dateHistogramChunkHelper.collectCacheKeys(ckRequestContext, firstAgg));
+                } else {
+                    CkRequest ckRequest = buildPeerGroupingSetsCkRequest(ckRequestContext, firstAgg);
+                    result.add((ckRequest != null ? ckRequest : firstAgg.buildCkRequest(ckRequestContext)).buildToStr());
+                }
+            }
+        } else if (ckRequestContext.getSize() == 0) {
+            result.add(getTotalCountQuerySql(ckRequestContext));
+        }
+        if (ckRequestContext.getSize() > 0) {
+            result.add(buildHitsCacheKey(ckRequestContext));
         }
         return result;
     }
@@ -210,13 +447,16 @@ public class AggResultParser extends HitsResultParser {
      * @param ckRequestContext ckRequestContext
      * @param aggregation      aggregation
      * @param aggSql           aggSql
+     * @param groupingSetMasks 同层aggs按GROUPING SETS查询时各agg的grouping()值，否则为空
      * @return Response
      * @throws Exception 异常
      */
-    private Response executeByCk(CkRequestContext ckRequestContext, Aggregation aggregation, String aggSql) throws Exception {
-        Pair<List<JSONObject>, Boolean> aggCkResultAndCacheStatus = ckService.queryDataWithCacheAndStatus(ckRequestContext, aggSql);
-        Response result = resultParseService.execute(aggregation, aggCkResultAndCacheStatus.getLeft());
-        result.setCache(aggCkResultAndCacheStatus.getRight());
+    private Response executeByCk(CkRequestContext ckRequestContext, Aggregation aggregation, String aggSql, Map<String, Long> groupingSetMasks) throws Exception {
+        List<Map<String, BucketStatics>> statics = new ArrayList<>();
+        boolean cached = ckService.queryDataWithCacheAndStatus(ckRequestContext, CkQueryKind.AGG, aggSql,
+                resultParseService.buildStaticsConsumer(aggregation, statics, groupingSetMasks));
+        Response result = resultParseService.executeByStatics(aggregation, statics, groupingSetMasks);
+        result.setCache(cached);
         result.getSqls().add(aggSql);
         return result;
     }
@@ -226,7 +466,7 @@ public class AggResultParser extends HitsResultParser {
      * @param aggsStrategies aggsStrategies
      * @return Aggregation
      */
-    private Aggregation buildFirstAgg(List<Aggregation> aggsStrategies) {
+    static Aggregation buildFirstAgg(List<Aggregation> aggsStrategies) {
         Aggregation result = aggsStrategies.get(0);
         result.setPeerAggs(new ArrayList<>());
         for (int i = 1; i < aggsStrategies.size(); i++) {
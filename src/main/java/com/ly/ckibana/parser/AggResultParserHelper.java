@@ -23,17 +23,25 @@ import com.ly.ckibana.model.enums.AggType;
 import com.ly.ckibana.model.request.CkRequest;
 import com.ly.ckibana.model.request.CkRequestContext;
 import com.ly.ckibana.strategy.aggs.Aggregation;
+import com.ly.ckibana.strategy.aggs.FiltersAggregation;
+import com.ly.ckibana.strategy.aggs.FiltersItemAggregation;
 import com.ly.ckibana.strategy.aggs.RangeAggregation;
+import com.ly.ckibana.strategy.aggs.TermsAggStrategy;
 import com.ly.ckibana.util.JSONUtils;
 import com.ly.ckibana.util.ProxyUtils;
 import com.ly.ckibana.util.SqlUtils;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.springframework.stereotype.Service;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * 封装结果-辅助类。主要用于多次ck结果合并.
@@ -45,6 +53,17 @@ import java.util.Map;
 public class AggResultParserHelper {
     public static final String KEY = "key";
 
+    private static final String PARENT_KEY_SUFFIX = "parent_key";
+
+    private static final String FILTER_INDEX_SUFFIX = "filter_index";
+
+    private static final String MATCH_ALL_CONDITION = "1";
+
+    /**
+     * ck结果与kibana bucket key转为字符串后格式一致的字段类型.
+     */
+    private static final List<String> EXACT_KEY_TYPES = List.of(SqlConstants.TYPE_STRING, "Int8", "Int16", "Int32", "Int64", "UInt8", "UInt16", "UInt32");
+
     /**
      * 获取需要额外为子agg添加的条件。支持range agg和terms agg.
      * 父agg range为查询range item条件生成的比较条件
@@ -111,4 +130,155 @@ public class AggResultParserHelper {
 
     }
 
+    /**
+     * 子agg按父agg的全部bucket一次查询：增加父bucket key列并按其分组，子agg有size限制时改为LIMIT n BY父bucket key.
+     * 父agg range取值区间需互不重叠，以multiIf生成区间key；父agg terms直接取字段值，仅支持字符串和整数字段.不支持时返回null.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param parentAgg        parentAgg
+     * @param subAgg           subAgg
+     * @param parentWhereSqls  父agg各bucket的条件，由buildAppendWhereForSubAgg生成
+     * @return CkRequest
+     */
+    public CkRequest getSubAggCkRequestByParentKeys(CkRequestContext ckRequestContext,
+                                                    Aggregation parentAgg,
+                                                    Aggregation subAgg,
+                                                    Map<Object, String> parentWhereSqls) {
+        String parentKeySql;
+        if (AggType.TERMS.equals(parentAgg.getAggType()) && StringUtils.isBlank(((TermsAggStrategy) parentAgg).getMissing())
+                && isExactKeyType(parentAgg.getFieldType())) {
+            parentKeySql = parentAgg.getField();
+        } else if (AggType.RANGE.equals(parentAgg.getAggType()) && isDisjoint((RangeAggregation) parentAgg)) {
+            List<String> conditions = new ArrayList<>();
+            parentWhereSqls.forEach((key, where) -> {
+                conditions.add(where);
+                conditions.add(String.format("'%s'", key.toString().replace("\\", "\\\\").replace("'", "\\'")));
+            });
+            parentKeySql = String.format("multiIf(%s,'')", String.join(",", conditions));
+        } else {
+            return null;
+        }
+        String parentKey = getParentKeyAlias(parentAgg);
+        CkRequest result = subAgg.buildCkRequest(ckRequestContext);
+        result.appendWhere(parentWhereSqls.values().stream().map(each -> String.format("(%s)", each)).collect(Collectors.joining(" OR ")));
+        result.appendSelect(SqlUtils.getColumnAsAliasString(parentKeySql, parentKey));
+        result.appendGroupBy(SqlUtils.escape(parentKey));
+        appendLimitBy(ckRequestContext, result, parentKey);
+        return result;
+    }
+
+    /**
+     * filters聚合的全部filter一次查询.
+     * 每行命中的filter序号(从1开始)经arrayJoin展开，与子agg的分组列一起分组，子agg的size限制改为按filter序号LIMIT BY.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param filtersAgg       filtersAgg
+     * @return CkRequest
+     */
+    public CkRequest getFiltersCkRequestInOneQuery(CkRequestContext ckRequestContext, FiltersAggregation filtersAgg) {
+        List<FiltersItemAggregation> items = filtersAgg.getFiltersItems();
+        List<String> conditions = new ArrayList<>();
+        List<String> indexes = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            String filterQuerySql = items.get(i).getFilterQuerySql();
+            String condition = StringUtils.isBlank(filterQuerySql) ? MATCH_ALL_CONDITION : String.format("(%s)", filterQuerySql);
+            conditions.add(condition);
+            indexes.add(String.format("if(%s, %d, 0)", condition, i + 1));
+        }
+        FiltersItemAggregation fusedItem = JSONUtils.copy(items.get(0));
+        fusedItem.setAggName(filtersAgg.getAggName());
+        fusedItem.setFilterQuerySql(conditions.contains(MATCH_ALL_CONDITION) ? null : String.join(" OR ", conditions));
+        fusedItem.setSubAggs(filtersAgg.getSubAggs());
+        String filterIndex = getFilterIndexAlias(filtersAgg);
+        CkRequest result = fusedItem.buildCkRequest(ckRequestContext);
+        result.appendSelect(SqlUtils.getColumnAsAliasString(String.format("arrayJoin(arrayFilter(x -> x > 0, [%s]))", String.join(",", indexes)), filterIndex));
+        result.appendGroupBy(SqlUtils.escape(filterIndex));
+        appendLimitBy(ckRequestContext, result, filterIndex);
+        return result;
+    }
+
+    /**
+     * filters一次查询时filter序号列的别名.
+     *
+     * @param filtersAgg filtersAgg
+     * @return alias
+     */
+    public String getFilterIndexAlias(FiltersAggregation filtersAgg) {
+        return filtersAgg.getAggName() + SqlConstants.QUERY_NAME_SEPARATOR + FILTER_INDEX_SUFFIX;
+    }
+
+    /**
+     * 非默认的limit(子agg size限制)改为按key分别限制，整体仍受默认limit约束.
+     */
+    private void appendLimitBy(CkRequestContext ckRequestContext, CkRequest ckRequest, String keyAlias) {
+        String defaultLimit = ckRequestContext.getMaxResultRow() > 0 ? String.format(SqlConstants.LIMIT_TEMPLATE, ckRequestContext.getMaxResultRow()) : null;
+        if (StringUtils.isNotBlank(ckRequest.getLimit()) && !ckRequest.getLimit().equals(defaultLimit)) {
+            ckRequest.setLimit(String.format("%s BY %s %s", ckRequest.getLimit(), SqlUtils.escape(keyAlias), StringUtils.defaultString(defaultLimit)).trim());
+        }
+    }
+
+    /**
+     * 父bucket key列的别名.父agg terms的条件引用queryFieldName，沿用该别名.
+     *
+     * @param parentAgg parentAgg
+     * @return alias
+     */
+    public String getParentKeyAlias(Aggregation parentAgg) {
+        if (AggType.TERMS.equals(parentAgg.getAggType())) {
+            return parentAgg.queryFieldName();
+        }
+        return parentAgg.getAggName() + SqlConstants.QUERY_NAME_SEPARATOR + PARENT_KEY_SUFFIX;
+    }
+
+    /**
+     * 结果行按父bucket key的字符串拆分，DateTime、UInt64、Decimal、浮点等类型两侧格式可能不同，不支持.
+     *
+     * @param fieldType ck字段类型
+     * @return boolean
+     */
+    static boolean isExactKeyType(String fieldType) {
+        return fieldType != null && !ProxyUtils.isArrayType(fieldType) && EXACT_KEY_TYPES.contains(ProxyUtils.parseCkBaseType(fieldType));
+    }
+
+    /**
+     * range各区间是否互不重叠，仅支持数值区间.
+     */
+    private boolean isDisjoint(RangeAggregation rangeAggregation) {
+        if (!ProxyUtils.isNumeric(rangeAggregation.getFieldType())) {
+            return false;
+        }
+        List<BigDecimal[]> bounds = new ArrayList<>();
+        for (RangeAggItem each : rangeAggregation.getRanges()) {
+            if (!isBoundValid(rangeAggregation, each.getFrom()) || !isBoundValid(rangeAggregation, each.getTo())) {
+                return false;
+            }
+            BigDecimal from = toBound(rangeAggregation, each.getFrom());
+            BigDecimal to = toBound(rangeAggregation, each.getTo());
+            if (from == null && to == null) {
+                return false;
+            }
+            bounds.add(new BigDecimal[]{from, to});
+        }
+        bounds.sort(Comparator.comparing((BigDecimal[] each) -> each[0], Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (int i = 1; i < bounds.size(); i++) {
+            BigDecimal previousTo = bounds.get(i - 1)[1];
+            BigDecimal from = bounds.get(i)[0];
+            if (previousTo == null || from == null || previousTo.compareTo(from) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isBoundValid(RangeAggregation rangeAggregation, Object value) {
+        return isUnbounded(rangeAggregation, value) || NumberUtils.isCreatable(value.toString());
+    }
+
+    private boolean isUnbounded(RangeAggregation rangeAggregation, Object value) {
+        return value == null || StringUtils.isBlank(value.toString()) || rangeAggregation.isMatchAll(value.toString());
+    }
+
+    private BigDecimal toBound(RangeAggregation rangeAggregation, Object value) {
+        return isUnbounded(rangeAggregation, value) ? null : new BigDecimal(value.toString());
+    }
 }
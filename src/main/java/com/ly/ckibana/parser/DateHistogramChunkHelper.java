@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.parser;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.configure.config.ProxyConfigLoader;
+import com.ly.ckibana.model.compute.Range;
+import com.ly.ckibana.model.enums.CkQueryKind;
+import com.ly.ckibana.model.exception.ResourceExceedException;
+import com.ly.ckibana.model.property.QueryProperty;
+import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.model.response.CkRow;
+import com.ly.ckibana.service.CkResultCacheService;
+import com.ly.ckibana.service.CkRowConsumer;
+import com.ly.ckibana.service.CkService;
+import com.ly.ckibana.service.MetricsProvider;
+import com.ly.ckibana.strategy.aggs.Aggregation;
+import com.ly.ckibana.strategy.aggs.DateHistogramAggregation;
+import com.ly.ckibana.util.JSONUtils;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * date_histogram按时间切片查询.
+ * 时间范围按聚合间隔对齐切分为固定大小的切片，已稳定的切片结果按切片sql缓存，只查询缺失和最近的切片.
+ * 切片边界是聚合间隔的整数倍，每个时间桶只落在一个切片内，按时间顺序拼接各切片结果即为整体结果.
+ */
+@Service
+public class DateHistogramChunkHelper implements MetricsProvider {
+
+    @Resource
+    private CkService ckService;
+
+    @Resource
+    private CkResultCacheService ckResultCacheService;
+
+    @Resource
+    private ProxyConfigLoader proxyConfigLoader;
+
+    private final LongAdder chunkHitCount = new LongAdder();
+
+    private final LongAdder chunkMissCount = new LongAdder();
+
+    private final LongAdder queryCount = new LongAdder();
+
+    /**
+     * 是否可以按时间切片查询.
+     * 仅限按索引时间字段聚合的首层date_histogram，且存在至少一个已稳定的完整切片.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param aggregation      首层agg
+     * @return boolean
+     */
+    public boolean isChunkable(CkRequestContext ckRequestContext, Aggregation aggregation) {
+        return !split(ckRequestContext, aggregation).isEmpty();
+    }
+
+    /**
+     * 按时间切片查询，结果按时间顺序逐行回调rowConsumer.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param aggregation      首层date_histogram
+     * @param rowConsumer      行消费者
+     * @param sqls             收集实际执行和命中缓存的sql
+     * @return 是否全部命中缓存
+     * @throws Exception 异常
+     */
+    public boolean queryByChunks(CkRequestContext ckRequestContext, Aggregation aggregation, CkRowConsumer rowConsumer,
+                                 List<String> sqls) throws Exception {
+        CkRowConsumer limitedConsumer = buildRowLimitConsumer(rowConsumer);
+        boolean cached = true;
+        List<Segment> pending = new ArrayList<>();
+        for (Segment segment : split(ckRequestContext, aggregation)) {
+            if (segment.isCacheable()) {
+                Pair<CkRequestContext, String> segmentQuery = buildSql(ckRequestContext, aggregation, segment);
+                String sql = segmentQuery.getRight();
+                List<JSONObject> rows = ckService.getCachedResult(segmentQuery.getLeft(), segmentQuery.getLeft().getTimeRange(), sql);
+                if (rows != null) {
+                    chunkHitCount.increment();
+                    cached &= queryPending(ckRequestContext, aggregation, pending, limitedConsumer, sqls);
+                    for (JSONObject row : rows) {
+                        limitedConsumer.accept(CkRow.of(row));
+                    }
+                    sqls.add(sql);
+                    continue;
+                }
+                chunkMissCount.increment();
+            }
+            pending.add(segment);
+        }
+        cached &= queryPending(ckRequestContext, aggregation, pending, limitedConsumer, sqls);
+        return cached;
+    }
+
+    /**
+     * 可缓存切片的缓存key，用于msearch批量预取.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param aggregation      首层date_histogram
+     * @return sql
+     */
+    public List<String> collectCacheKeys(CkRequestContext ckRequestContext, Aggregation aggregation) {
+        return split(ckRequestContext, aggregation).stream().filter(Segment::isCacheable)
+                .map(each -> buildSql(ckRequestContext, aggregation, each).getRight()).toList();
+    }
+
+    /**
+     * 连续的未命中切片合并为一次查询，结果按切片拆分后缓存稳定切片.
+     *
+     * @return 是否没有执行查询
+     */
+    private boolean queryPending(CkRequestContext ckRequestContext, Aggregation aggregation, List<Segment> pending,
+                                 CkRowConsumer rowConsumer, List<String> sqls) throws Exception {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        Segment first = pending.get(0);
+        Segment last = pending.get(pending.size() - 1);
+        Segment span = new Segment(first.getLow(), first.isLowInclusive(), last.getHigh(), last.isHighInclusive(), false);
+        Pair<CkRequestContext, String> spanQuery = buildSql(ckRequestContext, aggregation, span);
+        List<JSONObject> rows = new ArrayList<>();
+        ckService.queryDataSkipCache(spanQuery.getLeft(), CkQueryKind.AGG, spanQuery.getRight(), row -> rows.add(row.toJSONObject()));
+        queryCount.increment();
+        sqls.add(spanQuery.getRight());
+
+        long chunkSize = getChunkSize(aggregation);
+        Map<Long, List<JSONObject>> rowsByChunk = new HashMap<>();
+        for (JSONObject row : rows) {
+            long key = ((DateHistogramAggregation) aggregation).getInterval() * row.getLongValue(aggregation.queryFieldName());
+            rowsByChunk.computeIfAbsent(Math.floorDiv(key, chunkSize) * chunkSize, k -> new ArrayList<>()).add(row);
+        }
+        for (Segment segment : pending) {
+            if (segment.isCacheable()) {
+                Pair<CkRequestContext, String> segmentQuery = buildSql(ckRequestContext, aggregation, segment);
+                ckResultCacheService.put(segmentQuery.getRight(), rowsByChunk.getOrDefault(segment.getLow(), new ArrayList<>()),
+                        ckResultCacheService.resolveTtlMillis(segmentQuery.getLeft().getTimeRange()));
+            }
+        }
+        // 缓存中保留原始行，解析时会修改行，逐行浅拷贝
+        for (JSONObject row : rows) {
+            rowConsumer.accept(CkRow.of(new JSONObject(row)));
+        }
+        pending.clear();
+        return false;
+    }
+
+    /**
+     * 生成指定时间段的查询上下文和sql，除时间条件外与整体查询一致.
+     */
+    private Pair<CkRequestContext, String> buildSql(CkRequestContext ckRequestContext, Aggregation aggregation,
+                                                                                  Segment segment) {
+        Range timeRange = JSONUtils.copy(ckRequestContext.getTimeRange());
+        timeRange.setLow(segment.getLow());
+        timeRange.setMoreThanEq(segment.isLowInclusive());
+        timeRange.setHigh(segment.getHigh());
+        timeRange.setLessThanEq(segment.isHighInclusive());
+        CkRequestContext segmentContext = JSONUtils.copy(ckRequestContext);
+        segmentContext.setTimeRange(timeRange);
+        segmentContext.setQuery(MsearchParamParser.buildQuerySql(ckRequestContext.getQuerySqlWithoutTimeRange(), timeRange));
+        return Pair.of(segmentContext, aggregation.buildCkRequest(segmentContext).buildToStr());
+    }
+
+    private CkRowConsumer buildRowLimitConsumer(CkRowConsumer rowConsumer) {
+        int maxResultRow = proxyConfigLoader.getKibanaProperty().getQuery().getMaxResultRow();
+        int[] rowCount = new int[1];
+        return row -> {
+            if (maxResultRow > 0 && ++rowCount[0] >= maxResultRow) {
+                throw new ResourceExceedException(String.format("超过代理配置maxResultRow %s", maxResultRow));
+            }
+            rowConsumer.accept(row);
+        };
+    }
+
+    private List<Segment> split(CkRequestContext ckRequestContext, Aggregation aggregation) {
+        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        Range timeRange = ckRequestContext.getTimeRange();
+        if (!(aggregation instanceof DateHistogramAggregation dateHistogram) || dateHistogram.getInterval() <= 0
+                || !queryProperty.isUseCache() || queryProperty.getHistogramChunkMillis() <= 0
+                || timeRange == null || !(timeRange.getLow() instanceof Long low) || !(timeRange.getHigh() instanceof Long high)
+                || !StringUtils.equals(aggregation.getField(), timeRange.getCkFieldName())) {
+            return new ArrayList<>();
+        }
+        return split(low, timeRange.isMoreThanEq(), high, timeRange.isLessThanEq(), getChunkSize(aggregation),
+                System.currentTimeMillis() - queryProperty.getCacheIngestionLagMillis());
+    }
+
+    private long getChunkSize(Aggregation aggregation) {
+        long interval = ((DateHistogramAggregation) aggregation).getInterval();
+        long chunkMillis = proxyConfigLoader.getKibanaProperty().getQuery().getHistogramChunkMillis();
+        return Math.max(1, (chunkMillis + interval - 1) / interval) * interval;
+    }
+
+    /**
+     * 将时间范围切分为：头部不完整段、完整切片、尾部未稳定段.
+     * 只有结束时间早于stableBefore的完整切片可缓存，没有可缓存切片时返回空.
+     *
+     * @param low           开始时间
+     * @param lowInclusive  是否包含开始时间
+     * @param high          结束时间
+     * @param highInclusive 是否包含结束时间
+     * @param chunkSize     切片大小
+     * @param stableBefore  数据稳定的时间点
+     * @return 按时间顺序排列的时间段
+     */
+    static List<Segment> split(long low, boolean lowInclusive, long high, boolean highInclusive, long chunkSize, long stableBefore) {
+        List<Segment> result = new ArrayList<>();
+        long chunkStart = low % chunkSize == 0 && lowInclusive ? low : Math.floorDiv(low, chunkSize) * chunkSize + chunkSize;
+        if (chunkStart != low) {
+            result.add(new Segment(low, lowInclusive, Math.min(chunkStart, high), false, false));
+        }
+        boolean hasCacheable = false;
+        while (chunkStart + chunkSize <= Math.min(high, stableBefore)) {
+            result.add(new Segment(chunkStart, true, chunkStart + chunkSize, false, true));
+            chunkStart += chunkSize;
+            hasCacheable = true;
+        }
+        if (!hasCacheable) {
+            return new ArrayList<>();
+        }
+        if (chunkStart < high || chunkStart == high && highInclusive) {
+            result.add(new Segment(chunkStart, true, high, highInclusive, false));
+        }
+        return result;
+    }
+
+    @Override
+    public String metricsName() {
+        return "histogramChunk";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long hits = chunkHitCount.sum();
+        long requests = hits + chunkMissCount.sum();
+        result.put("chunkHitCount", hits);
+        result.put("chunkHitRate", requests == 0 ? 0D : (double) hits / requests);
+        result.put("queryCount", queryCount.sum());
+        return result;
+    }
+
+    /**
+     * 时间段.
+     */
+    @Data
+    @AllArgsConstructor
+    static class Segment {
+
+        private long low;
+
+        private boolean lowInclusive;
+
+        private long high;
+
+        private boolean highInclusive;
+
+        /**
+         * 是否为可缓存的完整稳定切片.
+         */
+        private boolean cacheable;
+    }
+}
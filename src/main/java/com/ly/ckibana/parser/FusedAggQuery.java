@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.parser;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.constants.SqlConstants;
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * msearch中多个面板合并后的单次ck聚合查询.
+ * 首个执行到的面板负责查询，其余面板等待并复用同一份结果，再按Panel拆回各自的行.
+ */
+public class FusedAggQuery {
+
+    /**
+     * GROUPING SETS查询中标识结果行所属分组集合的列.
+     */
+    public static final String GROUPING_SET_ALIAS = SqlConstants.GROUPING_SET_NAME;
+
+    @Getter
+    private final String sql;
+
+    @Getter
+    private final int panelCount;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final CompletableFuture<Pair<List<JSONObject>, Boolean>> result = new CompletableFuture<>();
+
+    public FusedAggQuery(String sql, int panelCount) {
+        this.sql = sql;
+        this.panelCount = panelCount;
+    }
+
+    /**
+     * 获取合并查询结果，仅首个调用方执行loader，其余面板等待同一结果，失败时各面板均得到同一异常.
+     * 等待不持有锁，超过deadline或被中断时按查询取消处理.
+     *
+     * @param loader   查询逻辑
+     * @param deadline 等待截止时间戳，Long.MAX_VALUE为不限
+     * @return 结果行及是否命中缓存
+     * @throws Exception 异常
+     */
+    public Pair<List<JSONObject>, Boolean> load(Callable<Pair<List<JSONObject>, Boolean>> loader, long deadline) throws Exception {
+        if (started.compareAndSet(false, true)) {
+            try {
+                result.complete(loader.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                return result.get();
+            }
+            return result.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } catch (TimeoutException e) {
+            throw new QueryCancelledException("等待合并查询结果超时");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException("等待合并查询结果时被中断");
+        }
+    }
+
+    /**
+     * 合并查询中的单个面板.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Panel {
+
+        private final FusedAggQuery query;
+
+        /**
+         * 面板自身的结果列.
+         */
+        private final List<String> columns;
+
+        /**
+         * 面板所属分组集合的grouping()位掩码，仅一个分组集合时为null.
+         */
+        private final Long groupingMask;
+
+        /**
+         * 面板原sql的排序，key为列名，value为是否倒序.
+         */
+        private final List<Pair<String, Boolean>> orders;
+
+        /**
+         * 从合并结果中拆出本面板的行，按原sql的排序返回.
+         *
+         * @param rows 合并查询结果
+         * @return 本面板的行
+         */
+        public List<JSONObject> extract(List<JSONObject> rows) {
+            List<JSONObject> result = new ArrayList<>();
+            for (JSONObject row : rows) {
+                if (groupingMask != null && !groupingMask.equals(row.getLong(GROUPING_SET_ALIAS))) {
+                    continue;
+                }
+                JSONObject panelRow = new JSONObject(columns.size());
+                columns.forEach(column -> panelRow.put(column, row.get(column)));
+                result.add(panelRow);
+            }
+            if (!orders.isEmpty()) {
+                result.sort(this::compare);
+            }
+            return result;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private int compare(JSONObject left, JSONObject right) {
+            for (Pair<String, Boolean> order : orders) {
+                Object leftValue = left.get(order.getKey());
+                Object rightValue = right.get(order.getKey());
+                int compared;
+                if (leftValue == null || rightValue == null) {
+                    compared = leftValue == null ? (rightValue == null ? 0 : -1) : 1;
+                } else if (leftValue instanceof Number leftNumber && rightValue instanceof Number rightNumber) {
+                    compared = Double.compare(leftNumber.doubleValue(), rightNumber.doubleValue());
+                } else if (leftValue instanceof Comparable comparable && leftValue.getClass().equals(rightValue.getClass())) {
+                    compared = comparable.compareTo(rightValue);
+                } else {
+                    compared = leftValue.toString().compareTo(rightValue.toString());
+                }
+                if (compared != 0) {
+                    return order.getValue() ? -compared : compared;
+                }
+            }
+            return 0;
+        }
+    }
+}
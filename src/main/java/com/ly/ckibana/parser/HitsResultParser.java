@@ -19,6 +19,7 @@ import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.constants.SqlConstants;
 import com.ly.ckibana.model.compute.Range;
+import com.ly.ckibana.model.enums.CkQueryKind;
 import com.ly.ckibana.model.enums.SortType;
 import com.ly.ckibana.model.request.CkRequest;
 import com.ly.ckibana.model.request.CkRequestContext;
@@ -27,13 +28,13 @@ import com.ly.ckibana.model.response.DocValue;
 import com.ly.ckibana.model.response.Hit;
 import com.ly.ckibana.model.response.HitsOptimizedResult;
 import com.ly.ckibana.model.response.Response;
+import com.ly.ckibana.service.CkRowConsumer;
 import com.ly.ckibana.service.CkService;
 import com.ly.ckibana.util.DateUtils;
 import com.ly.ckibana.util.JSONUtils;
 import com.ly.ckibana.util.ProxyUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
@@ -42,6 +43,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 封装明细hits结果类.
@@ -79,19 +81,16 @@ public class HitsResultParser {
      * @throws Exception Exception
      */
     public long queryTotalCount(CkRequestContext ckRequestContext, Response response) throws Exception {
-        long result = 0;
         String sql = getTotalCountQuerySql(ckRequestContext);
-
-        Pair<List<JSONObject>, Boolean> countResultAndStatus = ckService.queryDataWithCacheAndStatus(ckRequestContext, sql);
-        if (!countResultAndStatus.getLeft().isEmpty()) {
-            result = countResultAndStatus.getLeft().get(0).getLongValue(SqlConstants.DEFAULT_COUNT_NAME);
-        }
+        AtomicLong result = new AtomicLong();
+        boolean cached = ckService.queryDataWithCacheAndStatus(ckRequestContext, CkQueryKind.COUNT, sql,
+                row -> result.set(row.getLongValue(SqlConstants.DEFAULT_COUNT_NAME)));
         if (response == null) {
-            return result;
+            return result.get();
         }
-        response.setCache(countResultAndStatus.getRight());
+        response.setCache(cached);
         response.getSqls().add(sql);
-        return result;
+        return result.get();
     }
 
     /**
@@ -118,9 +117,11 @@ public class HitsResultParser {
      * @throws Exception Exception
      */
     private void queryHitsFromCk(CkRequestContext ckRequestContext, Response response, String optimizedSql) throws Exception {
-        Pair<List<JSONObject>, Boolean> hitResultAndStatus = ckService.queryDataWithCacheAndStatus(ckRequestContext, optimizedSql);
-        response.getHits().setHits(buildHitsResponse(ckRequestContext, hitResultAndStatus.getLeft()));
-        response.setCache(hitResultAndStatus.getRight());
+        List<Hit> hits = new ArrayList<>();
+        boolean cached = ckService.queryDataWithCacheAndStatus(ckRequestContext, CkQueryKind.HITS, optimizedSql,
+                row -> hits.add(buildHit(ckRequestContext, row.toJSONObject(), hits.size())));
+        response.getHits().setHits(hits);
+        response.setCache(cached);
     }
 
     /**
@@ -130,21 +131,35 @@ public class HitsResultParser {
      * @param ckRequestContext ckRequestContext
      * @param optimizedContext optimizedContext
      * @param orgTimeRange     orgTimeRange
-     * @return List count
+     * @param rowConsumer      每分钟count的消费者
      * @throws Exception Exception
      */
-    private List<JSONObject> queryCountByDivMinutes(CkRequestContext ckRequestContext, HitsOptimizedResult optimizedContext,
-                                                    Range orgTimeRange) throws Exception {
-        CkRequest ckRequest = getByMinuteRequest(optimizedContext.getSortType(), ckRequestContext, orgTimeRange);
-        String sql = orgTimeRange.toSql(true);
-        ckRequest.appendWhere(sql);
+    private void queryCountByDivMinutes(CkRequestContext ckRequestContext, HitsOptimizedResult optimizedContext,
+                                        Range orgTimeRange, CkRowConsumer rowConsumer) throws Exception {
+        String countByMinutesQuerySql = buildCountByMinutesSql(optimizedContext.getSortType(), ckRequestContext, orgTimeRange);
+        optimizedContext.setCountByMinutesQuerySql(countByMinutesQuerySql);
+        optimizedContext.setCache(ckService.queryDataWithCacheAndStatus(ckRequestContext, CkQueryKind.PER_MINUTE, countByMinutesQuerySql, rowConsumer));
+    }
+
+    private String buildCountByMinutesSql(SortType sortType, CkRequestContext ckRequestContext, Range orgTimeRange) {
+        CkRequest ckRequest = getByMinuteRequest(sortType, ckRequestContext, orgTimeRange);
+        ckRequest.appendWhere(orgTimeRange.toSql(true));
         ckRequest.appendWhere(ckRequestContext.getQuerySqlWithoutTimeRange());
+        return ckRequest.buildToStr();
+    }
 
-        String countByMinutesQuerySql = ckRequest.buildToStr();
-        optimizedContext.setCountByMinutesQuerySql(countByMinutesQuerySql);
-        Pair<List<JSONObject>, Boolean> resultAndStatus = ckService.queryDataWithCacheAndStatus(ckRequestContext, countByMinutesQuerySql);
-        optimizedContext.setCache(resultAndStatus.getRight());
-        return resultAndStatus.getLeft();
+    /**
+     * hits查询首先读取的缓存key，用于msearch批量预取.
+     * 可优化时为每分钟count的sql，否则为明细sql.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @return sql
+     */
+    public String buildHitsCacheKey(CkRequestContext ckRequestContext) {
+        if (isOptimizeAble(ckRequestContext)) {
+            return buildCountByMinutesSql(ckRequestContext.getSortingFields().get(0).getType(), ckRequestContext, ckRequestContext.getTimeRange());
+        }
+        return buildHitRequest(ckRequestContext).buildToStr();
     }
 
     public CkRequest buildHitRequest(CkRequestContext ckRequestContext) {
@@ -156,29 +171,26 @@ public class HitsResultParser {
     }
 
     /**
-     * 封装hits结构.
+     * 封装单条hit结构.
      * 展开extention字段，
      * 字段名转换为es字段名
      * 封装sort,fields字段
      *
      * @param ckRequestContext ckRequestContext
-     * @param hitResult        hitResult
-     * @return List hits结果
+     * @param row              ck行数据
+     * @param index            行号
+     * @return Hit hit结果
      */
-    private List<Hit> buildHitsResponse(CkRequestContext ckRequestContext, List<JSONObject> hitResult) {
-        List<Hit> result = new ArrayList<>();
-        for (int i = 0; i < hitResult.size(); i++) {
-            Hit hitTemp = new Hit();
-            //解压扩展字段,ck field->es field
-            JSONObject hitSource = setHitResource(hitResult, i, hitTemp);
-            hitTemp.setIndex(generateHitsIndexValue(ckRequestContext.getTableName(), hitSource.get(ckRequestContext.getIndexPattern().getTimeField())));
-            hitTemp.setId(generateHitsId(i, hitTemp));
-            setHitFieldsResponse(ckRequestContext, hitSource, hitTemp);
-            setHitSortResponse(ckRequestContext, hitSource, hitTemp);
-            result.add(hitTemp);
-            //total已经在优化中设置
-        }
-        return result;
+    private Hit buildHit(CkRequestContext ckRequestContext, JSONObject row, int index) {
+        Hit hitTemp = new Hit();
+        //解压扩展字段,ck field->es field
+        JSONObject hitSource = setHitResource(row, hitTemp);
+        hitTemp.setIndex(generateHitsIndexValue(ckRequestContext.getTableName(), hitSource.get(ckRequestContext.getIndexPattern().getTimeField())));
+        hitTemp.setId(generateHitsId(index, hitTemp));
+        setHitFieldsResponse(ckRequestContext, hitSource, hitTemp);
+        setHitSortResponse(ckRequestContext, hitSource, hitTemp);
+        //total已经在优化中设置
+        return hitTemp;
     }
 
     private String generateHitsId(int index, Hit hitTemp) {
@@ -255,13 +267,14 @@ public class HitsResultParser {
         Range orgTimeRange = ckRequestContext.getTimeRange();
         long requestSize = ckRequestContext.getSize();
         Range optimizedTimeRange = JSONUtils.copy(orgTimeRange);
-        long totalCount = 0L;
-        //查询每分钟统计count
-        List<JSONObject> byMinuteResult = queryCountByDivMinutes(ckRequestContext, optimizedContext, orgTimeRange);
-        boolean isFindThreshOld = false;
-        for (JSONObject each : byMinuteResult) {
-            totalCount = totalCount + each.getLongValue(SqlConstants.DEFAULT_COUNT_NAME);
-            if (!isFindThreshOld && totalCount >= requestSize) {
+        optimizedContext.setOptimized(false);
+        optimizedContext.setTotalCount(0L);
+        optimizedContext.setOptimizedTimeRange(optimizedTimeRange);
+        //查询每分钟统计count,逐行累加
+        queryCountByDivMinutes(ckRequestContext, optimizedContext, orgTimeRange, each -> {
+            long totalCount = optimizedContext.getTotalCount() + each.getLongValue(SqlConstants.DEFAULT_COUNT_NAME);
+            optimizedContext.setTotalCount(totalCount);
+            if (!optimizedContext.isOptimized() && totalCount >= requestSize) {
                 long realTime = each.getLongValue(SqlConstants.CK_MINUTE_NAME) * 1000 * 60;
                 if (SortType.ASC.equals(optimizedContext.getSortType())) {
                     //升序是 是这一分钟的59.999 结束
@@ -272,12 +285,9 @@ public class HitsResultParser {
                     optimizedTimeRange.setLow(realTime);
                     optimizedTimeRange.setMoreThanEq(true);
                 }
-                isFindThreshOld = true;
+                optimizedContext.setOptimized(true);
             }
-        }
-        optimizedContext.setOptimized(isFindThreshOld);
-        optimizedContext.setTotalCount(totalCount);
-        optimizedContext.setOptimizedTimeRange(optimizedTimeRange);
+        });
         return optimizedContext;
     }
 
@@ -303,8 +313,7 @@ public class HitsResultParser {
         response.getHits().setTotal(tempCount);
     }
 
-    private JSONObject setHitResource(List<JSONObject> hitResult, int index, Hit hitTemp) {
-        JSONObject result = hitResult.get(index);
+    private JSONObject setHitResource(JSONObject result, Hit hitTemp) {
         unZipExtension(result);
         hitTemp.setSource(result);
         return result;
@@ -19,16 +19,19 @@ import com.alibaba.fastjson2.JSONArray;
 import com.alibaba.fastjson2.JSONObject;
 import com.google.common.base.Strings;
 import com.ly.ckibana.configure.config.ProxyConfigLoader;
+import com.ly.ckibana.configure.thread.ThreadPoolConfigurer;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.constants.EsConstants;
 import com.ly.ckibana.constants.SqlConstants;
+import com.ly.ckibana.model.compute.Range;
 import com.ly.ckibana.model.compute.indexpattern.IndexPattern;
 import com.ly.ckibana.model.enums.SortType;
+import com.ly.ckibana.model.exception.QueryCancelledException;
 import com.ly.ckibana.model.exception.TimeNotInRangeException;
 import com.ly.ckibana.model.exception.UiException;
 import com.ly.ckibana.model.exception.UnKnowTimeFieldException;
+import com.ly.ckibana.model.exception.UnKnownFieldException;
 import com.ly.ckibana.model.property.KibanaItemProperty;
-import com.ly.ckibana.model.property.MetadataConfigProperty;
 import com.ly.ckibana.model.property.QueryProperty;
 import com.ly.ckibana.model.request.CkRequestContext;
 import com.ly.ckibana.model.request.CkRequestContext.SampleParam;
@@ -37,12 +40,15 @@ import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.model.request.SortedField;
 import com.ly.ckibana.model.response.DocValue;
 import com.ly.ckibana.model.response.Response;
-import com.ly.ckibana.service.EsClientUtil;
+import com.ly.ckibana.service.CkResultCacheService;
+import com.ly.ckibana.service.IndexPatternMetaService;
 import com.ly.ckibana.strategy.clause.ClauseStrategySelector;
 import com.ly.ckibana.util.DateUtils;
 import com.ly.ckibana.util.JSONUtils;
 import com.ly.ckibana.util.ParamConvertUtils;
 import com.ly.ckibana.util.ProxyUtils;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.HttpStatus;
@@ -50,10 +56,17 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * msearch参数解析类.
@@ -74,7 +87,16 @@ public class MsearchParamParser extends ParamParser {
     private ClauseStrategySelector clauseStrategySelector;
 
     @Resource
-    private MetadataConfigProperty metadataConfigProperty;
+    private IndexPatternMetaService indexPatternMetaService;
+
+    @Resource
+    private CkResultCacheService ckResultCacheService;
+
+    @Resource
+    private PanelFusionPlanner panelFusionPlanner;
+
+    @Resource
+    private ThreadPoolConfigurer threadPoolConfigurer;
 
     public void checkTimeInRange(CkRequestContext ckRequestContext) {
         if (!isTimeInRange(ckRequestContext)) {
@@ -90,8 +112,19 @@ public class MsearchParamParser extends ParamParser {
         // round时间参数
         ckRequestContext.setTimeRange(getTimeRangeAfterRound(ckRequestContext));
         // 查询条件+round后的时间
-        String otherQuery = ckRequestContext.getTimeRange() == null ? "" : ckRequestContext.getTimeRange().toSql(true);
-        ckRequestContext.setQuery(appendWhereSql(querySql, otherQuery));
+        ckRequestContext.setQuery(buildQuerySql(querySql, ckRequestContext.getTimeRange()));
+    }
+
+    /**
+     * 拼接业务条件和时间条件.
+     *
+     * @param querySqlWithoutTimeRange 业务条件
+     * @param timeRange                时间范围，可为null
+     * @return where条件
+     */
+    public static String buildQuerySql(String querySqlWithoutTimeRange, Range timeRange) {
+        String otherQuery = timeRange == null ? "" : timeRange.toSql(true);
+        return appendWhereSql(querySqlWithoutTimeRange, otherQuery);
     }
 
     /**
@@ -106,7 +139,7 @@ public class MsearchParamParser extends ParamParser {
         return result;
     }
 
-    private String appendWhereSql(String query, String otherQuery) {
+    private static String appendWhereSql(String query, String otherQuery) {
         if (Strings.isNullOrEmpty(query)) {
             return otherQuery;
         }
@@ -197,73 +230,187 @@ public class MsearchParamParser extends ParamParser {
     }
 
     /**
-     * 多线程处理msearch请求，得到返回结果列表.
+     * 多线程处理msearch请求，得到返回结果列表.子查询在独立的解析线程池中并发解析，不占用ck查询线程.
+     * 子查询位置为其在msearch中的序号，用于按原顺序合并各部分的响应.
      *
      * @param context           context
      * @param defaultIndex      defaultIndex
-     * @param subEsRequest      subEsRequest
-     * @param subCkRequests     subCkRequests
-     * @param fastFailResponses fastFailResponses
+     * @param subEsRequest      直连es的子查询
+     * @param esPositions       直连es的子查询位置，与subEsRequest顺序一致
+     * @param subCkRequests     子查询位置-ck查询任务
+     * @param fastFailResponses 子查询位置-解析失败的响应
      * @throws UnKnowTimeFieldException 异常
      */
-    public void parse(RequestContext context, String defaultIndex, StringBuilder subEsRequest,
-                      List<Callable<Response>> subCkRequests, List<Response> fastFailResponses) {
+    public void parse(RequestContext context, String defaultIndex, StringBuilder subEsRequest, List<Integer> esPositions,
+                      Map<Integer, Callable<Response>> subCkRequests, Map<Integer, Response> fastFailResponses) {
         String[] lines = context.getRequestInfo().getRequestBody().split(System.lineSeparator());
-        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
-        ProxyConfig proxyConfig = context.getProxyConfig();
-        Map<String, String> indexPatternMeta = EsClientUtil.getIndexPatternMeta(context.getProxyConfig().getRestClient(), metadataConfigProperty.getHeaders());
-        Map<String, Map<String, String>> tableColumnsCache = new HashMap<>();
-        Map<String, Long> totalCountByQueryCache = new HashMap<>();
-        for (int i = 0; i < lines.length; i++) {
-            if (0 != i % 2) {
-                continue;
+        Map<Integer, String> ckIndexByPosition = splitByIndex(context.getProxyConfig(), defaultIndex, lines, subEsRequest, esPositions);
+        Map<String, Map<String, String>> tableColumnsCache = new ConcurrentHashMap<>();
+        Map<String, CompletableFuture<Long>> totalCountByQueryCache = new ConcurrentHashMap<>();
+        List<Integer> positions = new ArrayList<>(ckIndexByPosition.keySet());
+        List<Callable<SubRequest>> parseTasks = new ArrayList<>(positions.size());
+        ckIndexByPosition.forEach((position, uiIndex) -> parseTasks.add(() -> parseSubRequest(context, position, uiIndex, lines[position * 2 + 1],
+                tableColumnsCache, totalCountByQueryCache)));
+        List<SubRequest> subRequests = invokeAll(parseTasks, threadPoolConfigurer.getMSearchParseExecutor());
+        List<CkRequestContext> ckRequestContexts = new ArrayList<>();
+        for (int i = 0; i < subRequests.size(); i++) {
+            SubRequest each = subRequests.get(i);
+            if (each.getFailResponse() != null) {
+                fastFailResponses.put(positions.get(i), each.getFailResponse());
+            } else {
+                // 将查询任务放入线程队列
+                subCkRequests.put(positions.get(i), new MsearchQueryTask(each.getCkRequestContext(), aggResultParser, each.getSearchQuery()));
+                ckRequestContexts.add(each.getCkRequestContext());
             }
+        }
+        // 表、查询条件相同的面板合并为一次ck查询
+        panelFusionPlanner.plan(ckRequestContexts);
+        List<String> cacheKeys = new ArrayList<>();
+        ckRequestContexts.forEach(each -> collectCacheKeys(each, cacheKeys));
+        // 一次_mget批量预取所有子查询的缓存，子查询执行时直接命中本地缓存
+        if (cacheKeys.size() > 1) {
+            ckResultCacheService.prefetch(cacheKeys);
+        }
+    }
+
+    /**
+     * 按索引拆分子查询，直连es的请求头、请求体按原顺序拼入subEsRequest并记录位置.
+     *
+     * @param proxyConfig  proxyConfig
+     * @param defaultIndex 请求头未指定索引时的索引
+     * @param lines        msearch请求体的各行
+     * @param subEsRequest 直连es的子查询
+     * @param esPositions  直连es的子查询位置
+     * @return 需查询ck的子查询位置-索引，按位置排序
+     */
+    static Map<Integer, String> splitByIndex(ProxyConfig proxyConfig, String defaultIndex, String[] lines, StringBuilder subEsRequest,
+                                             List<Integer> esPositions) {
+        Map<Integer, String> result = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < lines.length; i += 2) {
             String uiIndex = JSONUtils.deserialize(lines[i], JSONObject.class).getString(Constants.INDEX_NAME_KEY);
             if (uiIndex == null) {
                 uiIndex = defaultIndex;
             }
-            JSONObject searchQuery = JSONUtils.deserialize(lines[i + 1], JSONObject.class);
-            try {
-                if (proxyConfig.isDirectToEs(uiIndex)) {
-                    subEsRequest.append(lines[i]).append(System.lineSeparator());
-                    subEsRequest.append(lines[i + 1]).append(System.lineSeparator());
-                    continue;
-                }
-                IndexPattern indexPattern = proxyConfig.buildIndexPattern(uiIndex);
-                CkRequestContext ckRequestContext = new CkRequestContext(context.getClientIp(), indexPattern, queryProperty.getMaxResultRow());
-                String timeField = StringUtils.defaultIfBlank(indexPatternMeta.get(uiIndex), context.getProxyConfig().getKibanaItemProperty().getDefaultTimeFieldName());
-                parseRequestBySearchQuery(tableColumnsCache, searchQuery, timeField, indexPattern, ckRequestContext);
-                if (checkIfNeedSampleByIndex(uiIndex)) {
-                    CkRequestContext.SampleParam sampleParam = new SampleParam(Constants.USE_SAMPLE_COUNT_THREASHOLD, queryProperty.getSampleCountMaxThreshold());
-                    sampleParam.setSampleTotalCount(getTotalCountBySearchQuery(totalCountByQueryCache, ckRequestContext));
-                    ckRequestContext.setSampleParam(sampleParam);
+            if (proxyConfig.isDirectToEs(uiIndex)) {
+                subEsRequest.append(lines[i]).append(System.lineSeparator());
+                subEsRequest.append(lines[i + 1]).append(System.lineSeparator());
+                esPositions.add(i / 2);
+            } else {
+                result.put(i / 2, uiIndex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 解析单个子查询.表结构查询、采样count预查询等ck往返在此完成，多个子查询并发解析.
+     */
+    private SubRequest parseSubRequest(RequestContext context, int position, String uiIndex, String line, Map<String, Map<String, String>> tableColumnsCache,
+                                       Map<String, CompletableFuture<Long>> totalCountByQueryCache) {
+        JSONObject searchQuery = JSONUtils.deserialize(line, JSONObject.class);
+        try {
+            QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+            IndexPattern indexPattern = context.getProxyConfig().buildIndexPattern(uiIndex);
+            CkRequestContext ckRequestContext = new CkRequestContext(context.getClientIp(), indexPattern, queryProperty.getMaxResultRow());
+            ckRequestContext.setTermsTopNPushdown(queryProperty.isTermsTopNPushdownEnabled());
+            ckRequestContext.setQueryScope(context.getQueryScope());
+            String timeField = StringUtils.defaultIfBlank(indexPatternMetaService.getTimeField(context.getProxyConfig().getRestClient(), uiIndex), context.getProxyConfig().getKibanaItemProperty().getDefaultTimeFieldName());
+            parseRequestBySearchQuery(tableColumnsCache, searchQuery, timeField, indexPattern, ckRequestContext);
+            if (checkIfNeedSampleByIndex(uiIndex)) {
+                CkRequestContext.SampleParam sampleParam = new SampleParam(Constants.USE_SAMPLE_COUNT_THREASHOLD, queryProperty.getSampleCountMaxThreshold());
+                sampleParam.setSampleTotalCount(getTotalCountBySearchQuery(totalCountByQueryCache, ckRequestContext));
+                ckRequestContext.setSampleParam(sampleParam);
+            }
+            return new SubRequest(ckRequestContext, searchQuery, null);
+        } catch (UiException uiException) {
+            return new SubRequest(null, searchQuery, ProxyUtils.newKibanaException(HttpStatus.BAD_REQUEST, uiException.getUiShow()));
+        } catch (Exception ex) {
+            log.error("msearch param parse error, position:{}, uiIndex:{}, searchQuery:{}", position, uiIndex, searchQuery, ex);
+            return new SubRequest(null, searchQuery, ProxyUtils.newKibanaException(HttpStatus.BAD_REQUEST, ex.getMessage()));
+        }
+    }
+
+    /**
+     * 多个任务时提交到线程池并发执行，线程池拒绝时在当前线程执行，按原顺序返回.
+     *
+     * @param tasks    任务
+     * @param executor 线程池，为null时在当前线程执行
+     * @param <T>      结果类型
+     * @return 结果，与tasks顺序一致
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks, ExecutorService executor) {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> each : tasks) {
+            FutureTask<T> future = new FutureTask<>(each);
+            if (tasks.size() > 1 && executor != null) {
+                try {
+                    executor.execute(future);
+                } catch (RejectedExecutionException e) {
+                    future.run();
                 }
-                // 将查询任务放入线程队列
-                MsearchQueryTask msearchQueryTask = new MsearchQueryTask(ckRequestContext, aggResultParser, searchQuery);
-                subCkRequests.add(msearchQueryTask);
-            } catch (UiException uiException) {
-                fastFailResponses.add(ProxyUtils.newKibanaException(HttpStatus.BAD_REQUEST, uiException.getUiShow()));
-            } catch (Exception ex) {
-                log.error("msearch param parse error, i:{}, uiIndex:{}, searchQuery:{}", i, uiIndex, searchQuery, ex);
-                fastFailResponses.add(ProxyUtils.newKibanaException(HttpStatus.BAD_REQUEST, ex.getMessage()));
+            } else {
+                future.run();
             }
+            futures.add(future);
         }
+        List<T> result = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> each : futures) {
+                result.add(each.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(each -> each.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException("msearch解析被中断");
+        } catch (ExecutionException e) {
+            futures.forEach(each -> each.cancel(true));
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException runtimeException ? runtimeException : new IllegalStateException(cause);
+        }
+        return result;
+    }
 
+    private void collectCacheKeys(CkRequestContext ckRequestContext, List<String> cacheKeys) {
+        if (!proxyConfigLoader.getKibanaProperty().getQuery().isUseCache()) {
+            return;
+        }
+        try {
+            aggResultParser.collectCacheKeys(ckRequestContext).stream().filter(each -> !cacheKeys.contains(each)).forEach(cacheKeys::add);
+        } catch (Exception e) {
+            log.warn("collect cache keys error, table:{}", ckRequestContext.getTableName(), e);
+        }
     }
 
     /**
-     * 基于当前searchQuery获取totalCount.
+     * 基于当前searchQuery获取totalCount.库、表、时间范围和查询条件均相同的子查询共用一次count查询.
      *
      * @param totalCountByQuery totalCountByQuery
      * @param ckRequestContext  ckRequestContext
      * @throws Exception 异常
      */
-    private Long getTotalCountBySearchQuery(Map<String, Long> totalCountByQuery, CkRequestContext ckRequestContext) throws Exception {
-        String userQuery = ckRequestContext.getQuerySqlWithoutTimeRange();
-        if (totalCountByQuery.getOrDefault(userQuery, Constants.DEFAULT_TOTAL_COUNT) <= Constants.DEFAULT_TOTAL_COUNT) {
-            totalCountByQuery.put(userQuery, aggResultParser.queryTotalCount(ckRequestContext, null));
+    private Long getTotalCountBySearchQuery(Map<String, CompletableFuture<Long>> totalCountByQuery, CkRequestContext ckRequestContext) throws Exception {
+        String countKey = ckRequestContext.getDatabase() + "." + aggResultParser.getTotalCountQuerySql(ckRequestContext);
+        CompletableFuture<Long> created = new CompletableFuture<>();
+        CompletableFuture<Long> exists = totalCountByQuery.putIfAbsent(countKey, created);
+        if (exists != null) {
+            try {
+                return exists.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+        try {
+            Long result = aggResultParser.queryTotalCount(ckRequestContext, null);
+            created.complete(result);
+            if (result <= Constants.DEFAULT_TOTAL_COUNT) {
+                totalCountByQuery.remove(countKey, created);
+            }
+            return result;
+        } catch (Exception e) {
+            totalCountByQuery.remove(countKey, created);
+            created.completeExceptionally(e);
+            throw e;
         }
-        return totalCountByQuery.get(userQuery);
     }
 
     /**
@@ -278,10 +425,28 @@ public class MsearchParamParser extends ParamParser {
         String tableName = indexPattern.getIndex();
         ckRequestContext.setTableName(tableName);
         Map<String, String> columns = queryColumnsFromCache(tableColumnsCache, tableName);
-        if (columns == null) {
-            columns = queryTableColumns(proxyConfigLoader.getConfig().getCkDatasource(), tableName);
-            tableColumnsCache.put(tableName, columns);
+        if (columns != null) {
+            parseRequestByColumns(columns, searchQuery, timeField, ckRequestContext);
+            return;
         }
+        columns = queryTableColumns(proxyConfigLoader.getConfig(), tableName);
+        tableColumnsCache.put(tableName, columns);
+        try {
+            parseRequestByColumns(columns, searchQuery, timeField, ckRequestContext);
+        } catch (UnKnownFieldException e) {
+            // 全局表结构缓存可能晚于ck新增的列，失效后重新加载，列有变化时重新解析一次
+            invalidateTableColumns(proxyConfigLoader.getConfig(), tableName);
+            Map<String, String> reloadedColumns = queryTableColumns(proxyConfigLoader.getConfig(), tableName);
+            tableColumnsCache.put(tableName, reloadedColumns);
+            if (reloadedColumns.equals(columns)) {
+                throw e;
+            }
+            parseRequestByColumns(reloadedColumns, searchQuery, timeField, ckRequestContext);
+        }
+    }
+
+    private void parseRequestByColumns(Map<String, String> columns, JSONObject searchQuery, String timeField,
+                                       CkRequestContext ckRequestContext) {
         ckRequestContext.setColumns(columns);
 
         // 解析msearch indexpattern ,额外需要timefield
@@ -296,4 +461,18 @@ public class MsearchParamParser extends ParamParser {
         ckRequestContext.setDocValues(parseDocValueFields(searchQuery, ckRequestContext.getColumns(), ckRequestContext.getIndexPattern()));
         ckRequestContext.setAggs(parseAggs(Constants.AGG_INIT_DEPTH, ckRequestContext, searchQuery));
     }
+
+    /**
+     * 解析后的子查询，解析失败时failResponse不为空.
+     */
+    @Getter
+    @AllArgsConstructor
+    private static class SubRequest {
+
+        private final CkRequestContext ckRequestContext;
+
+        private final JSONObject searchQuery;
+
+        private final Response failResponse;
+    }
 }
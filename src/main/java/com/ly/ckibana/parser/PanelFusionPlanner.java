@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.parser;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.configure.config.ProxyConfigLoader;
+import com.ly.ckibana.constants.SqlConstants;
+import com.ly.ckibana.model.enums.AggType;
+import com.ly.ckibana.model.enums.CkQueryKind;
+import com.ly.ckibana.model.exception.CkSqlUnsupportedException;
+import com.ly.ckibana.model.property.QueryProperty;
+import com.ly.ckibana.model.request.CkRequest;
+import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.service.CkService;
+import com.ly.ckibana.service.MetricsProvider;
+import com.ly.ckibana.strategy.aggs.Aggregation;
+import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
+import com.ly.ckibana.util.SqlUtils;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * msearch面板合并.
+ * 同一次msearch中表、where、采样均相同的面板聚合合并为一次ck扫描：select取各面板的并集，
+ * 分组列相同时直接GROUP BY，不同时使用GROUPING SETS，并通过grouping()位掩码区分结果行所属面板.
+ * 仅合并使用默认limit、且只按分组列排序的聚合(如date_histogram、指标)，其余面板仍单独查询.
+ */
+@Slf4j
+@Service
+public class PanelFusionPlanner implements MetricsProvider {
+
+    private static final String ALIAS_PREFIX = " as `";
+
+    /**
+     * 合并查询不被ck支持(如低于22.9不支持GROUPING SETS)时，该集群暂停合并的时长.
+     */
+    static final long UNSUPPORTED_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    @Resource
+    private CkService ckService;
+
+    @Resource
+    private ProxyConfigLoader proxyConfigLoader;
+
+    @Resource
+    private DateHistogramChunkHelper dateHistogramChunkHelper;
+
+    private final LongAdder fusedQueryCount = new LongAdder();
+
+    private final LongAdder fusedPanelCount = new LongAdder();
+
+    private final LongAdder executeCount = new LongAdder();
+
+    private final LongAdder fallbackCount = new LongAdder();
+
+    /**
+     * ck集群-暂停合并的截止时间.
+     */
+    private final Map<String, Long> unsupportedUntil = new ConcurrentHashMap<>();
+
+    /**
+     * 对msearch的各子查询做合并规划，可合并的子查询设置fusedPanel.
+     *
+     * @param ckRequestContexts msearch各子查询
+     */
+    public void plan(List<CkRequestContext> ckRequestContexts) {
+        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        if (!queryProperty.isPanelFusionEnabled() || ckRequestContexts.size() < 2) {
+            return;
+        }
+        Map<String, List<Candidate>> scans = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (CkRequestContext each : ckRequestContexts) {
+            if (isUnsupported(clusterKey(each), now)) {
+                continue;
+            }
+            try {
+                Candidate candidate = toCandidate(each, queryProperty);
+                if (candidate != null) {
+                    scans.computeIfAbsent(candidate.getScanKey(), key -> new ArrayList<>()).add(candidate);
+                }
+            } catch (Exception e) {
+                log.warn("[panel-fusion] build candidate error, table:{}", each.getTableName(), e);
+            }
+        }
+        for (List<Candidate> candidates : scans.values()) {
+            for (List<Candidate> batch : partition(candidates, queryProperty.getPanelFusionMaxPanels())) {
+                if (batch.size() > 1) {
+                    List<FusedAggQuery.Panel> panels = fuse(batch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).getCkRequestContext().setFusedPanel(panels.get(i));
+                    }
+                    fusedQueryCount.increment();
+                    fusedPanelCount.add(batch.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * 查询合并面板的结果.ck不支持合并查询时返回null，由调用方按面板原sql单独查询，并暂停该集群的合并.
+     * 限流、连接池、黑名单、资源超限等异常直接抛出.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @return 本面板的结果行及是否命中缓存
+     * @throws Exception 异常
+     */
+    public Pair<List<JSONObject>, Boolean> query(CkRequestContext ckRequestContext) throws Exception {
+        FusedAggQuery.Panel panel = ckRequestContext.getFusedPanel();
+        FusedAggQuery fusedAggQuery = panel.getQuery();
+        long timeoutMillis = proxyConfigLoader.getKibanaProperty().getQuery().getMsearchTimeoutMillis();
+        long deadline = timeoutMillis > 0 ? ckRequestContext.getBeginTime() + timeoutMillis : Long.MAX_VALUE;
+        try {
+            Pair<List<JSONObject>, Boolean> rows = fusedAggQuery.load(() -> {
+                executeCount.increment();
+                return ckService.queryDataWithCacheAndStatus(ckRequestContext, CkQueryKind.AGG, fusedAggQuery.getSql());
+            }, deadline);
+            return Pair.of(panel.extract(rows.getLeft()), rows.getRight());
+        } catch (CkSqlUnsupportedException e) {
+            fallbackCount.increment();
+            String clusterKey = clusterKey(ckRequestContext);
+            if (markUnsupported(clusterKey, System.currentTimeMillis())) {
+                log.warn("[panel-fusion] fused query unsupported, disable fusion of {} for {}ms, sql:{}, error:{}", clusterKey,
+                        UNSUPPORTED_TTL_MILLIS, fusedAggQuery.getSql(), e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    private String clusterKey(CkRequestContext ckRequestContext) {
+        String database = ckRequestContext.getIndexPattern() == null ? ckRequestContext.getDatabase() : ckRequestContext.getIndexPattern().getDatabase();
+        return proxyConfigLoader.getKibanaProperty().getProxy().getCk().getUrl() + "/" + database;
+    }
+
+    /**
+     * 记录集群不支持合并查询.
+     *
+     * @param clusterKey 集群
+     * @param now        当前时间
+     * @return 是否为新记录(此前未记录或已过期)
+     */
+    boolean markUnsupported(String clusterKey, long now) {
+        Long previous = unsupportedUntil.put(clusterKey, now + UNSUPPORTED_TTL_MILLIS);
+        return previous == null || previous <= now;
+    }
+
+    boolean isUnsupported(String clusterKey, long now) {
+        Long until = unsupportedUntil.get(clusterKey);
+        return until != null && until > now;
+    }
+
+    private Candidate toCandidate(CkRequestContext ckRequestContext, QueryProperty queryProperty) {
+        if (CollectionUtils.isEmpty(ckRequestContext.getAggs())
+                || ckRequestContext.getAggs().stream().anyMatch(each -> AggType.FILTERS.equals(each.getAggType()))) {
+            return null;
+        }
+        Aggregation firstAgg = AggResultParser.buildFirstAgg(ckRequestContext.getAggs());
+        if (firstAgg.isIgnoreSubAggCondition() || dateHistogramChunkHelper.isChunkable(ckRequestContext, firstAgg)) {
+            return null;
+        }
+        //同层aggs按GROUPING SETS单独查询
+        if (queryProperty.isPeerGroupingSetsEnabled() && CollectionUtils.isNotEmpty(firstAgg.getPeerAggs())) {
+            return null;
+        }
+        return toCandidate(ckRequestContext, firstAgg);
+    }
+
+    /**
+     * 解析面板聚合sql的各部分，不满足合并条件时返回null.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param firstAgg         firstAgg
+     * @return Candidate
+     */
+    static Candidate toCandidate(CkRequestContext ckRequestContext, Aggregation firstAgg) {
+        CkRequest ckRequest = firstAgg.buildCkRequest(ckRequestContext);
+        String defaultLimit = ckRequestContext.getMaxResultRow() > 0 ? String.format(SqlConstants.LIMIT_TEMPLATE, ckRequestContext.getMaxResultRow()) : null;
+        if (StringUtils.isNotBlank(ckRequest.getHaving()) || !StringUtils.equals(ckRequest.getLimit(), defaultLimit)) {
+            return null;
+        }
+        List<String> groupColumns = new ArrayList<>();
+        for (String each : firstAgg.collectGroupBy()) {
+            String column = unescape(each);
+            if (column == null) {
+                return null;
+            }
+            if (!groupColumns.contains(column)) {
+                groupColumns.add(column);
+            }
+        }
+        List<Pair<String, Boolean>> orders = new ArrayList<>();
+        for (String each : firstAgg.collectorOrders()) {
+            Pair<String, Boolean> order = parseOrder(each);
+            if (order == null || !groupColumns.contains(order.getKey())) {
+                return null;
+            }
+            orders.add(order);
+        }
+        List<SqlConverter> convertors = new ArrayList<>();
+        firstAgg.buildSelectSqlConvertors(convertors, ckRequestContext.getTimeRange());
+        double sample = firstAgg.getSample(ckRequestContext.getSampleParam());
+        Map<String, String> selects = new LinkedHashMap<>();
+        for (SqlConverter each : convertors) {
+            String selectSql = each.toSql(sample);
+            if (StringUtils.isBlank(selectSql)) {
+                continue;
+            }
+            int aliasIndex = selectSql.lastIndexOf(ALIAS_PREFIX);
+            if (aliasIndex < 0 || !selectSql.endsWith("`")) {
+                return null;
+            }
+            selects.put(selectSql.substring(aliasIndex + ALIAS_PREFIX.length(), selectSql.length() - 1), selectSql);
+        }
+        if (selects.isEmpty() || !selects.keySet().containsAll(groupColumns)) {
+            return null;
+        }
+        String scanKey = String.join("\n", StringUtils.defaultString(ckRequestContext.getDatabase()), ckRequest.getTable(),
+                StringUtils.defaultString(ckRequest.getSample()), StringUtils.defaultString(ckRequest.getWhere()), StringUtils.defaultString(defaultLimit));
+        return new Candidate(ckRequestContext, scanKey, ckRequest, selects, groupColumns, orders);
+    }
+
+    private static String unescape(String column) {
+        String value = column.trim();
+        if (value.length() < 2 || !value.startsWith("`") || !value.endsWith("`")) {
+            return null;
+        }
+        return value.substring(1, value.length() - 1);
+    }
+
+    private static Pair<String, Boolean> parseOrder(String order) {
+        String value = order.trim();
+        int index = value.lastIndexOf(' ');
+        if (index < 0) {
+            return null;
+        }
+        String column = unescape(value.substring(0, index));
+        String direction = value.substring(index + 1);
+        if (column == null || !("asc".equalsIgnoreCase(direction) || "desc".equalsIgnoreCase(direction))) {
+            return null;
+        }
+        return Pair.of(column, "desc".equalsIgnoreCase(direction));
+    }
+
+    /**
+     * 同一扫描的面板按select别名是否冲突、分组列数量分批，每批合并为一次查询.
+     *
+     * @param candidates 同一扫描的面板
+     * @param maxPanels  单批最大面板数
+     * @return 分批结果
+     */
+    static List<List<Candidate>> partition(List<Candidate> candidates, int maxPanels) {
+        List<List<Candidate>> result = new ArrayList<>();
+        List<Map<String, String>> batchSelects = new ArrayList<>();
+        List<Set<String>> batchGroupColumns = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            int index = -1;
+            for (int i = 0; i < result.size() && index < 0; i++) {
+                if (result.get(i).size() < maxPanels && isCompatible(batchSelects.get(i), batchGroupColumns.get(i), candidate)) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                index = result.size();
+                result.add(new ArrayList<>());
+                batchSelects.add(new LinkedHashMap<>());
+                batchGroupColumns.add(new LinkedHashSet<>());
+            }
+            result.get(index).add(candidate);
+            batchSelects.get(index).putAll(candidate.getSelects());
+            batchGroupColumns.get(index).addAll(candidate.getGroupColumns());
+        }
+        return result;
+    }
+
+    private static boolean isCompatible(Map<String, String> selects, Set<String> groupColumns, Candidate candidate) {
+        for (Map.Entry<String, String> each : candidate.getSelects().entrySet()) {
+            String exists = selects.get(each.getKey());
+            if (exists != null && !exists.equals(each.getValue())) {
+                return false;
+            }
+        }
+        Set<String> columns = new HashSet<>(groupColumns);
+        columns.addAll(candidate.getGroupColumns());
+        return columns.size() <= SqlConstants.MAX_GROUPING_COLUMNS;
+    }
+
+    /**
+     * 生成合并查询，返回与batch一一对应的面板.
+     *
+     * @param batch 可合并的面板
+     * @return 面板
+     */
+    static List<FusedAggQuery.Panel> fuse(List<Candidate> batch) {
+        Map<String, String> selects = new LinkedHashMap<>();
+        Set<String> allGroupColumns = new LinkedHashSet<>();
+        Map<Set<String>, List<String>> groupingSets = new LinkedHashMap<>();
+        for (Candidate each : batch) {
+            selects.putAll(each.getSelects());
+            allGroupColumns.addAll(each.getGroupColumns());
+            groupingSets.putIfAbsent(new HashSet<>(each.getGroupColumns()), each.getGroupColumns());
+        }
+        CkRequest first = batch.get(0).getCkRequest();
+        CkRequest fused = new CkRequest();
+        fused.setTable(first.getTable());
+        fused.setSample(first.getSample());
+        fused.setWhere(first.getWhere());
+        fused.setLimit(first.getLimit());
+        fused.initSelect(String.join(",", selects.values()));
+        boolean multiSets = groupingSets.size() > 1;
+        if (multiSets) {
+            fused.appendSelect(SqlUtils.getColumnAsAliasString(String.format("grouping(%s)", escapeJoin(allGroupColumns)), FusedAggQuery.GROUPING_SET_ALIAS));
+            fused.setGroup(String.format(SqlConstants.GROUPING_SETS_TEMPLATE,
+                    groupingSets.values().stream().map(each -> "(" + escapeJoin(each) + ")").collect(Collectors.joining(","))));
+        } else {
+            fused.initGroupBy(escapeJoin(allGroupColumns));
+        }
+        if (multiSets) {
+            fused.setSettings(SqlConstants.GROUPING_STANDARD_SETTINGS);
+        }
+        FusedAggQuery fusedAggQuery = new FusedAggQuery(fused.buildToStr(), batch.size());
+        List<FusedAggQuery.Panel> result = new ArrayList<>();
+        for (Candidate each : batch) {
+            Long groupingMask = multiSets ? SqlUtils.getGroupingMask(allGroupColumns, each.getGroupColumns()) : null;
+            result.add(new FusedAggQuery.Panel(fusedAggQuery, new ArrayList<>(each.getSelects().keySet()), groupingMask, each.getOrders()));
+        }
+        return result;
+    }
+
+    private static String escapeJoin(Iterable<String> columns) {
+        List<String> result = new ArrayList<>();
+        columns.forEach(each -> result.add(SqlUtils.escape(each)));
+        return String.join(",", result);
+    }
+
+    @Override
+    public String metricsName() {
+        return "panelFusion";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("fusedQueryCount", fusedQueryCount.sum());
+        result.put("fusedPanelCount", fusedPanelCount.sum());
+        result.put("executeCount", executeCount.sum());
+        result.put("fallbackCount", fallbackCount.sum());
+        long now = System.currentTimeMillis();
+        result.put("unsupportedClusters", unsupportedUntil.values().stream().filter(each -> each > now).count());
+        return result;
+    }
+
+    /**
+     * 可合并的面板.
+     */
+    @Getter
+    @AllArgsConstructor
+    static class Candidate {
+
+        private final CkRequestContext ckRequestContext;
+
+        /**
+         * 库、表、采样、where、limit相同的面板为同一扫描.
+         */
+        private final String scanKey;
+
+        private final CkRequest ckRequest;
+
+        /**
+         * select别名到select sql.
+         */
+        private final Map<String, String> selects;
+
+        private final List<String> groupColumns;
+
+        private final List<Pair<String, Boolean>> orders;
+    }
+}
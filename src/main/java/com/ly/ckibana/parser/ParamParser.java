@@ -29,6 +29,7 @@ import com.ly.ckibana.model.exception.UnSupportAggsTypeException;
 import com.ly.ckibana.model.property.KibanaItemProperty;
 import com.ly.ckibana.model.property.QueryProperty;
 import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.model.request.ProxyConfig;
 import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.model.response.IndexPatternFields;
 import com.ly.ckibana.service.CkService;
@@ -42,7 +43,6 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Service;
-import ru.yandex.clickhouse.BalancedClickhouseDataSource;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
@@ -239,10 +239,17 @@ public class ParamParser {
     }
 
     /**
-     * 查询列信息.
+     * 查询列信息，优先读全局表结构缓存.
      */
-    public Map<String, String> queryTableColumns(BalancedClickhouseDataSource clickhouseDataSource, String tableName) throws Exception {
-        return ckService.queryColumns(clickhouseDataSource, tableName);
+    public Map<String, String> queryTableColumns(ProxyConfig proxyConfig, String tableName) throws Exception {
+        return ckService.getTableColumns(proxyConfig, tableName);
+    }
+
+    /**
+     * 使全局表结构缓存失效.
+     */
+    public void invalidateTableColumns(ProxyConfig proxyConfig, String tableName) {
+        ckService.invalidateTableColumns(proxyConfig, tableName);
     }
 
     /**
@@ -272,7 +279,7 @@ public class ParamParser {
                                                            boolean isForSelectTimeField) throws Exception {
         Map<String, JSONObject> result = new HashMap<>();
         String tableName = indexPattern.getIndex();
-        Map<String, String> columns = ckService.queryColumns(requestContext.getProxyConfig().getCkDatasource(), tableName);
+        Map<String, String> columns = ckService.getTableColumns(requestContext.getProxyConfig(), tableName);
         for (Map.Entry<String, String> each : columns.entrySet()) {
             String ckName = each.getKey();
             String ckType = each.getValue();
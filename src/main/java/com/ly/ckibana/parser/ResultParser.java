@@ -17,6 +17,7 @@ package com.ly.ckibana.parser;
 
 import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.constants.Constants;
+import com.ly.ckibana.constants.SqlConstants;
 import com.ly.ckibana.model.compute.aggregation.bucket.Bucket;
 import com.ly.ckibana.model.compute.aggregation.bucket.BucketStatics;
 import com.ly.ckibana.model.compute.aggregation.bucket.BucketsResult;
@@ -29,7 +30,9 @@ import com.ly.ckibana.model.enums.AggCategory;
 import com.ly.ckibana.model.enums.AggType;
 import com.ly.ckibana.model.enums.SortType;
 import com.ly.ckibana.model.enums.TermsAggOrderType;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.model.response.Response;
+import com.ly.ckibana.service.CkRowConsumer;
 import com.ly.ckibana.strategy.aggs.Aggregation;
 import com.ly.ckibana.strategy.aggs.TermsAggStrategy;
 import com.ly.ckibana.util.JSONUtils;
@@ -63,17 +66,105 @@ public class ResultParser extends HitsResultParser {
      * @return Response
      */
     public Response execute(Aggregation aggregation, List<JSONObject> aggCkResult) {
+        return executeByStatics(aggregation, buildCkRowAndAggBucketMappingList(aggregation, aggCkResult));
+    }
+
+    /**
+     * 构建ck结果行消费者，每行到达即解析为各agg的bucket统计数据，追加到statics.
+     *
+     * @param aggregation aggregation
+     * @param statics     每行ck结果对应的统计数据
+     * @return CkRowConsumer
+     */
+    public CkRowConsumer buildStaticsConsumer(Aggregation aggregation, List<Map<String, BucketStatics>> statics) {
+        return buildStaticsConsumer(aggregation, statics, Collections.emptyMap());
+    }
+
+    /**
+     * 构建ck结果行消费者，同层aggs按GROUPING SETS查询时，只解析属于各agg分组集合的行.
+     *
+     * @param aggregation      aggregation
+     * @param statics          每行ck结果对应的统计数据
+     * @param groupingSetMasks agg的staticsId-所属分组集合的grouping()值
+     * @return CkRowConsumer
+     */
+    public CkRowConsumer buildStaticsConsumer(Aggregation aggregation, List<Map<String, BucketStatics>> statics, Map<String, Long> groupingSetMasks) {
+        return row -> statics.add(buildCkRowAndAggsMapping(aggregation, row, groupingSetMasks));
+    }
+
+    /**
+     * 基于逐行解析得到的统计数据，转换为kibana需要的格式数据.
+     *
+     * @param aggregation aggregation
+     * @param statics     每行ck结果对应的统计数据
+     * @return Response
+     */
+    public Response executeByStatics(Aggregation aggregation, List<Map<String, BucketStatics>> statics) {
+        return executeByStatics(aggregation, statics, Collections.emptyMap());
+    }
+
+    /**
+     * 基于逐行解析得到的统计数据，转换为kibana需要的格式数据.
+     *
+     * @param aggregation      aggregation
+     * @param statics          每行ck结果对应的统计数据
+     * @param groupingSetMasks 同层aggs按GROUPING SETS查询时各agg的grouping()值，否则为空
+     * @return Response
+     */
+    public Response executeByStatics(Aggregation aggregation, List<Map<String, BucketStatics>> statics, Map<String, Long> groupingSetMasks) {
+        if (!groupingSetMasks.isEmpty()) {
+            return executeByGroupingSets(aggregation, statics);
+        }
         Response result = new Response();
-        List<Bucket> buckets = computeBuckets(aggregation, aggCkResult);
-        result.setAggregations(computeAggsResult(aggregation, buckets));
+        BucketsResult bucketsResult = buildBucketsResult(aggregation, statics, true);
+        List<Bucket> buckets = bucketsResult.getBuckets();
+        result.setAggregations(computeAggsResult(aggregation, buckets, getTopLevelOtherDocCount(bucketsResult), true));
         result.getHits().setTotal(buckets.stream().mapToLong(Bucket::getDocCount).sum());
         return result;
     }
 
-    private Map<String, Map<String, Object>> computeAggsResult(Aggregation aggregation, List<Bucket> buckets) {
+    /**
+     * 同层aggs按GROUPING SETS一次查询，每行只属于一个agg，各agg基于所属的行分别解析.
+     *
+     * @param aggregation aggregation
+     * @param statics     每行ck结果对应的统计数据
+     * @return Response
+     */
+    private Response executeByGroupingSets(Aggregation aggregation, List<Map<String, BucketStatics>> statics) {
+        Response result = new Response();
+        BucketsResult bucketsResult = buildBucketsResult(aggregation, filterStatics(aggregation, statics), false);
+        List<Bucket> buckets = bucketsResult.getBuckets();
+        Map<String, Map<String, Object>> aggsResult = computeAggsResult(aggregation, buckets, getTopLevelOtherDocCount(bucketsResult), false);
+        aggregation.getPeerAggs().forEach(each -> {
+            BucketsResult peerBucketsResult = buildBucketsResult(each, filterStatics(each, statics), false);
+            parseDeepAggData(each, peerBucketsResult.getBuckets(), aggsResult, false);
+            aggsResult.putAll(formatResult(each, peerBucketsResult.getBuckets(), getTopLevelOtherDocCount(peerBucketsResult)));
+        });
+        result.setAggregations(aggsResult);
+        result.getHits().setTotal(buckets.stream().mapToLong(Bucket::getDocCount).sum());
+        return result;
+    }
+
+    /**
+     * 顶层agg的sum_other_doc_count.仅ck返回了截取前的总文档数(开启termsTopNPushdownEnabled)时返回，否则与之前一样为0.
+     *
+     * @param bucketsResult bucketsResult
+     * @return sum_other_doc_count
+     */
+    private long getTopLevelOtherDocCount(BucketsResult bucketsResult) {
+        List<Bucket> buckets = bucketsResult.getBuckets();
+        boolean ckTotalDocCount = !buckets.isEmpty() && buckets.get(0).getComputeData().getTotalDocCount() != null;
+        return ckTotalDocCount ? bucketsResult.getOtherDocCount() : 0;
+    }
+
+    private List<Map<String, BucketStatics>> filterStatics(Aggregation aggregation, List<Map<String, BucketStatics>> statics) {
+        return statics.stream().filter(each -> each.containsKey(aggregation.getStaticsId())).collect(Collectors.toList());
+    }
+
+    private Map<String, Map<String, Object>> computeAggsResult(Aggregation aggregation, List<Bucket> buckets, long sumOtherDocCount, boolean includePeers) {
         Map<String, Map<String, Object>> peerAggResult = new HashMap<>();
-        parseDeepAggData(aggregation, buckets, peerAggResult);
-        Map<String, Map<String, Object>> aggsResult = formatResult(aggregation, buckets, 0);
+        parseDeepAggData(aggregation, buckets, peerAggResult, includePeers);
+        Map<String, Map<String, Object>> aggsResult = formatResult(aggregation, buckets, sumOtherDocCount);
         aggsResult.putAll(peerAggResult);
         return aggsResult;
     }
@@ -88,14 +179,13 @@ public class ResultParser extends HitsResultParser {
         //statics:每一行ck结果解析到的对应各个agg的bucket结果List<Map<聚合staticsId,BucketStatics{Bucket.key(),Bucket}>
         List<Map<String, BucketStatics>> statics = buildCkRowAndAggBucketMappingList(aggregation, ckResult);
         // 解析得到当前agg对应的buckets，包括subBuckets和peerBuckets
-        return buildBucketsResult(aggregation, statics).getBuckets();
+        return buildBucketsResult(aggregation, statics, true).getBuckets();
     }
 
     private List<Map<String, BucketStatics>> buildCkRowAndAggBucketMappingList(Aggregation aggregation, List<JSONObject> ckResult) {
         List<Map<String, BucketStatics>> result = new ArrayList<>();
         for (int i = 0; i < ckResult.size(); i++) {
-            JSONObject obj = ckResult.get(i);
-            result.add(buildCkRowAndAggsMapping(aggregation, obj));
+            result.add(buildCkRowAndAggsMapping(aggregation, CkRow.of(ckResult.get(i)), Collections.emptyMap()));
         }
         return result;
     }
@@ -103,31 +193,36 @@ public class ResultParser extends HitsResultParser {
     /**
      * statics:约定统计数据存放规则（key:每个depth的每个agg,value=bucket,count）.
      */
-    private Map<String, BucketStatics> buildCkRowAndAggsMapping(Aggregation aggregation, JSONObject ckResult) {
+    private Map<String, BucketStatics> buildCkRowAndAggsMapping(Aggregation aggregation, CkRow ckResult, Map<String, Long> groupingSetMasks) {
         Map<String, BucketStatics> result = new HashMap<>();
-        if (CollectionUtils.isNotEmpty(aggregation.getSubAggs()) && !aggregation.isIgnoreSubAggCondition()) {
-            aggregation.getSubAggs().forEach(each -> result.putAll(buildCkRowAndAggsMapping(each, ckResult)));
-        }
         if (CollectionUtils.isNotEmpty(aggregation.getPeerAggs())) {
-            aggregation.getPeerAggs().forEach(each -> result.putAll(buildCkRowAndAggsMapping(each, ckResult)));
+            aggregation.getPeerAggs().forEach(each -> result.putAll(buildCkRowAndAggsMapping(each, ckResult, groupingSetMasks)));
+        }
+        //GROUPING SETS查询时，只解析属于当前agg分组集合的行
+        Long groupingSetMask = groupingSetMasks.get(aggregation.getStaticsId());
+        if (groupingSetMask != null && groupingSetMask != ckResult.getLongValue(SqlConstants.GROUPING_SET_NAME)) {
+            return result;
+        }
+        if (CollectionUtils.isNotEmpty(aggregation.getSubAggs()) && !aggregation.isIgnoreSubAggCondition()) {
+            aggregation.getSubAggs().forEach(each -> result.putAll(buildCkRowAndAggsMapping(each, ckResult, groupingSetMasks)));
         }
         result.put(aggregation.getStaticsId(), buildBucketStatics(aggregation, ckResult));
         return result;
     }
 
-    private BucketStatics buildBucketStatics(Aggregation aggregation, JSONObject ckResult) {
+    private BucketStatics buildBucketStatics(Aggregation aggregation, CkRow ckResult) {
         Bucket bucket = aggregation.buildResultBucket(ckResult);
         return new BucketStatics(null == bucket.getKey() ? "unknownKey" : bucket.getKey().toString(), bucket);
     }
 
-    private void parseDeepAggData(Aggregation aggregation, List<Bucket> buckets, Map<String, Map<String, Object>> peerAggDatas) {
+    private void parseDeepAggData(Aggregation aggregation, List<Bucket> buckets, Map<String, Map<String, Object>> peerAggDatas, boolean includePeers) {
         buckets.forEach(bucket -> {
             //注意目前仅第一层有peer agg
-            if (CollectionUtils.isNotEmpty(aggregation.getPeerAggs())) {
+            if (CollectionUtils.isNotEmpty(aggregation.getPeerAggs()) && includePeers) {
                 aggregation.getPeerAggs().forEach(each -> {
                     BucketsResult bucketsResult = bucket.getComputeData().getPeerBucketMap().get(each.getAggName());
                     List<Bucket> tempBuckets = bucketsResult.getBuckets();
-                    parseDeepAggData(each, tempBuckets, peerAggDatas);
+                    parseDeepAggData(each, tempBuckets, peerAggDatas, true);
                     peerAggDatas.putAll(formatResult(each, tempBuckets, bucketsResult.getOtherDocCount()));
                 });
             }
@@ -138,7 +233,7 @@ public class ResultParser extends HitsResultParser {
                     aggregation.getSubAggs().forEach(each -> {
                         BucketsResult bucketsResult = bucket.getComputeData().getSubBucketMap().get(each.getAggName());
                         List<Bucket> tempBuckets = bucketsResult.getBuckets();
-                        parseDeepAggData(each, tempBuckets, peerAggDatas);
+                        parseDeepAggData(each, tempBuckets, peerAggDatas, true);
                         aggsData.putAll(formatResult(each, tempBuckets, bucketsResult.getOtherDocCount()));
                     });
                     bucket.setComputeSubAggData(aggsData);
@@ -151,8 +246,8 @@ public class ResultParser extends HitsResultParser {
      * 解析得到当前agg对应的buckets.
      * 1.内存计算后，内存处理排序和size截取
      */
-    private BucketsResult buildBucketsResult(Aggregation aggsStrategy, List<Map<String, BucketStatics>> bucketStatics) {
-        List<Bucket> currentBuckets = buildAggBuckets(aggsStrategy, bucketStatics);
+    private BucketsResult buildBucketsResult(Aggregation aggsStrategy, List<Map<String, BucketStatics>> bucketStatics, boolean includePeers) {
+        List<Bucket> currentBuckets = buildAggBuckets(aggsStrategy, bucketStatics, includePeers);
         //内存处理排序和size截取
         List<Bucket> sortedAndSizedBuckets = subSizeBuckets(aggsStrategy, sortBuckets(aggsStrategy, currentBuckets));
         BucketsResult bucketsResult = new BucketsResult(sortedAndSizedBuckets);
@@ -188,7 +283,8 @@ public class ResultParser extends HitsResultParser {
     private long buildOtherDocCountForTermAgg(Aggregation aggregation, List<Bucket> currentBuckets, List<Bucket> buckets) {
         long otherDocCount = 0;
         if (AggType.TERMS.equals(aggregation.getAggType())) {
-            long totalDocCount = currentBuckets.stream().mapToLong(Bucket::getDocCount).sum();
+            Long ckTotalDocCount = currentBuckets.isEmpty() ? null : currentBuckets.get(0).getComputeData().getTotalDocCount();
+            long totalDocCount = ckTotalDocCount != null ? ckTotalDocCount : currentBuckets.stream().mapToLong(Bucket::getDocCount).sum();
             long showDocCount = buckets.stream().mapToLong(Bucket::getDocCount).sum();
             otherDocCount = totalDocCount - showDocCount;
         }
@@ -202,7 +298,7 @@ public class ResultParser extends HitsResultParser {
      * @param bucketStatics 所有行数据，包含当前agg/subAgg,peerAgg数据
      * @return buckets
      */
-    private List<Bucket> buildAggBuckets(Aggregation aggregation, List<Map<String, BucketStatics>> bucketStatics) {
+    private List<Bucket> buildAggBuckets(Aggregation aggregation, List<Map<String, BucketStatics>> bucketStatics, boolean includePeers) {
         String staticsId = aggregation.getStaticsId();
         List<Bucket> result = new ArrayList<>();
         //按照agg的bucketKey的值分类（如DateHistogramAggsStrategy的DateHistogramBucket的Key为时间)。需要LinkedHashMap保持先后顺序
@@ -216,7 +312,9 @@ public class ResultParser extends HitsResultParser {
             //内存计算。基于sub agg size计算sub buckets(如items top 10)的结果
             buildSubAggsBuckets(aggregation, value, bucket);
             //针对第一层有兄弟节点
-            buildPeerAggsBuckets(aggregation, value, bucket);
+            if (includePeers) {
+                buildPeerAggsBuckets(aggregation, value, bucket);
+            }
             result.add(bucket);
         });
         return result;
@@ -226,7 +324,7 @@ public class ResultParser extends HitsResultParser {
         if (CollectionUtils.isNotEmpty(aggregation.getPeerAggs())) {
             bucket.getComputeData().setPeerBucketMap(new HashMap<>());
             aggregation.getPeerAggs().forEach(each -> {
-                bucket.getComputeData().getPeerBucketMap().put(each.getAggName(), buildBucketsResult(each, bucketStatics));
+                bucket.getComputeData().getPeerBucketMap().put(each.getAggName(), buildBucketsResult(each, bucketStatics, true));
             });
         }
     }
@@ -234,7 +332,7 @@ public class ResultParser extends HitsResultParser {
     private void buildSubAggsBuckets(Aggregation aggregation, List<Map<String, BucketStatics>> bucketStatics, Bucket bucket) {
         if (CollectionUtils.isNotEmpty(aggregation.getSubAggs()) && !aggregation.isIgnoreSubAggCondition()) {
             bucket.getComputeData().setSubBucketMap(new HashMap<>());
-            aggregation.getSubAggs().forEach(each -> bucket.getComputeData().getSubBucketMap().put(each.getAggName(), buildBucketsResult(each, bucketStatics)));
+            aggregation.getSubAggs().forEach(each -> bucket.getComputeData().getSubBucketMap().put(each.getAggName(), buildBucketsResult(each, bucketStatics, true)));
         }
     }
 
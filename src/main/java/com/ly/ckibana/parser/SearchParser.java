@@ -5,12 +5,11 @@ import com.ly.ckibana.configure.config.ProxyConfigLoader;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.model.compute.indexpattern.IndexPattern;
 import com.ly.ckibana.model.exception.UiException;
-import com.ly.ckibana.model.property.MetadataConfigProperty;
 import com.ly.ckibana.model.property.QueryProperty;
 import com.ly.ckibana.model.request.CkRequestContext;
 import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.model.response.Response;
-import com.ly.ckibana.service.EsClientUtil;
+import com.ly.ckibana.service.IndexPatternMetaService;
 import com.ly.ckibana.strategy.aggs.Aggregation;
 import com.ly.ckibana.util.JSONUtils;
 import com.ly.ckibana.util.ProxyUtils;
@@ -48,7 +47,7 @@ public class SearchParser {
     private MsearchParamParser msearchParamParser;
 
     @Resource
-    private MetadataConfigProperty metadataConfigProperty;
+    private IndexPatternMetaService indexPatternMetaService;
 
     /**
      * 解析并执行search请求
@@ -62,11 +61,13 @@ public class SearchParser {
     public String execute(RequestContext context, String index,
                           IndexPattern indexPattern, boolean asyncSearch) throws Exception {
         CkRequestContext ckRequestContext = new CkRequestContext(context.getClientIp(), indexPattern, paramParser.getMaxResultRow());
+        ckRequestContext.setQueryScope(context.getQueryScope());
         JSONObject searchQuery = JSONUtils.deserialize(context.getRequestInfo().getRequestBody(), JSONObject.class);
         Map<String, Map<String, String>> tableColumnsCache = new HashMap<>();
-        String timeField = StringUtils.defaultIfBlank(EsClientUtil.getIndexPatternMeta(context.getProxyConfig().getRestClient(), metadataConfigProperty.getHeaders()).get(index),
+        String timeField = StringUtils.defaultIfBlank(indexPatternMetaService.getTimeField(context.getProxyConfig().getRestClient(), index),
                 context.getProxyConfig().getKibanaItemProperty().getDefaultTimeFieldName());
         QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        ckRequestContext.setTermsTopNPushdown(queryProperty.isTermsTopNPushdownEnabled());
 
         try {
             msearchParamParser.parseRequestBySearchQuery(tableColumnsCache, searchQuery, timeField, indexPattern, ckRequestContext);
@@ -90,7 +91,7 @@ public class SearchParser {
         CkRequestContext ckRequestContext = new CkRequestContext(context.getClientIp(), indexPattern, paramParser.getMaxResultRow());
         ckRequestContext.setTableName(index);
         if (!ProxyUtils.isWildcardIndexPattern(index)) {
-            ckRequestContext.setColumns(paramParser.queryTableColumns(proxyConfigLoader.getConfig().getCkDatasource(), ckRequestContext.getTableName()));
+            ckRequestContext.setColumns(paramParser.queryTableColumns(proxyConfigLoader.getConfig(), ckRequestContext.getTableName()));
         }
         return paramParser.parseAggs(Constants.AGG_INIT_DEPTH, ckRequestContext, searchQuery);
     }
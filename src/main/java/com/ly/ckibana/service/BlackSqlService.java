@@ -15,6 +15,7 @@
  */
 package com.ly.ckibana.service;
 
+import com.alibaba.fastjson2.JSONArray;
 import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.configure.config.ProxyConfigLoader;
 import com.ly.ckibana.constants.Constants;
@@ -23,23 +24,57 @@ import com.ly.ckibana.model.request.RequestContext;
 import com.ly.ckibana.util.RestUtils;
 import com.ly.ckibana.util.Utils;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * 黑名单.
+ * 黑名单保存在es，内存中维护不可变快照，启动时加载、定期刷新，增删时立即更新，判断时不访问es.
  */
 @Slf4j
 @Service
-public class BlackSqlService {
+public class BlackSqlService implements MetricsProvider {
     private static final String INDEX_NAME = Constants.ConfigFile.BLACK_LIST_INDEX_NAME;
 
+    private static final int MAX_LOAD_SIZE = 10000;
+
+    /**
+     * es写入后到可被搜索到的最长时间，刷新时重放此时间内的本地增删.
+     */
+    private static final long ES_VISIBLE_DELAY_MILLIS = 5000;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'");
+
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
     private RequestContext requestContext;
 
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+
+    /**
+     * 最近的本地增删，id-变更，value为null表示删除.刷新时重放，避免被读取较早的es结果覆盖.
+     */
+    private final Map<String, LocalChange> localChanges = new HashMap<>();
+
+    private final LongAdder refreshCount = new LongAdder();
+
+    private final LongAdder refreshFailCount = new LongAdder();
+
+    private final LongAdder blockCount = new LongAdder();
+
     @Resource
     private MetadataConfigProperty metadataConfigProperty;
 
@@ -52,28 +87,130 @@ public class BlackSqlService {
             return;
         }
         requestContext = RestUtils.createRequestContext(metadataConfigProperty.getHosts(), metadataConfigProperty.getHeaders());
+        refresh();
     }
 
     public String addBlackSql(long range, String sql) {
         String key = buildKey(range, sql);
         log.info("add to black-list index: {}", key);
-        return EsClientUtil.saveOne(requestContext.getProxyConfig().getRestClient(), INDEX_NAME, Utils.toUuid(key), buildBulkBody(key), proxyConfigLoader.getMajorVersion());
+        String id = Utils.toUuid(key);
+        String response = EsClientUtil.saveOne(requestContext.getProxyConfig().getRestClient(), INDEX_NAME, id, buildBulkBody(key), proxyConfigLoader.getMajorVersion());
+        updateSnapshot(id, key);
+        return response;
     }
 
     public String removeBlackSql(String id) {
-        return EsClientUtil.deleteSource(requestContext.getProxyConfig().getRestClient(), Constants.ConfigFile.BLACK_LIST_INDEX_NAME, id);
+        String response = EsClientUtil.deleteSource(requestContext.getProxyConfig().getRestClient(), Constants.ConfigFile.BLACK_LIST_INDEX_NAME, id);
+        updateSnapshot(id, null);
+        return response;
     }
 
     public String getList(int size) {
         return EsClientUtil.search(requestContext.getProxyConfig().getRestClient(), Constants.ConfigFile.BLACK_LIST_INDEX_NAME, String.format("{\"size\":%s}", size));
     }
 
+    /**
+     * 是否在黑名单中，仅查内存快照.
+     * 开启proxy.query.blackSqlTemplateMatch时，忽略字面量后sql相同也视为命中.
+     */
     public boolean isBlackSql(long range, String sql) {
-        JSONObject sourceObj = EsClientUtil.getSource(requestContext.getProxyConfig().getRestClient(), INDEX_NAME, buildKey(range, sql));
-        return sourceObj != null;
+        Snapshot current = snapshot;
+        if (current.keys.isEmpty()) {
+            return false;
+        }
+        boolean result = current.keys.contains(buildKey(range, sql))
+                || isTemplateMatch() && current.templateKeys.contains(buildKey(range, normalizeSql(sql)));
+        if (result) {
+            blockCount.increment();
+        }
+        return result;
+    }
+
+    private boolean isTemplateMatch() {
+        return proxyConfigLoader.getKibanaProperty().getQuery().isBlackSqlTemplateMatch();
+    }
+
+    /**
+     * 从es全量加载黑名单并替换快照，失败时保留旧快照.
+     */
+    public void refresh() {
+        if (requestContext == null) {
+            return;
+        }
+        long readAt = System.currentTimeMillis();
+        String response = EsClientUtil.search(requestContext.getProxyConfig().getRestClient(), INDEX_NAME,
+                String.format("{\"size\":%d,\"_source\":[\"key\"]}", MAX_LOAD_SIZE));
+        if (StringUtils.isEmpty(response)) {
+            refreshFailCount.increment();
+            return;
+        }
+        try {
+            JSONObject hits = JSONObject.parseObject(response).getJSONObject(Constants.HIT);
+            Map<String, String> keysById = new HashMap<>();
+            JSONArray array = hits == null ? null : hits.getJSONArray(Constants.HIT);
+            for (int i = 0; array != null && i < array.size(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                JSONObject source = item.getJSONObject(Constants.SOURCE);
+                if (source != null && source.getString("key") != null) {
+                    keysById.put(item.getString("_id"), source.getString("key"));
+                }
+            }
+            if (array != null && array.size() >= MAX_LOAD_SIZE) {
+                log.warn("black-list size reaches the load limit {}, entries beyond it are not checked", MAX_LOAD_SIZE);
+            }
+            applyRefresh(keysById, readAt);
+            refreshCount.increment();
+        } catch (Exception e) {
+            refreshFailCount.increment();
+            log.error("refresh black-list error, response:{}", response, e);
+        }
+    }
+
+    /**
+     * 以es全量结果替换快照，并重放es读取前一段时间内的本地增删.
+     * es写入后不能立即被搜索到，读取时可能还看不到刚增删的记录.
+     *
+     * @param keysById es中的黑名单，id-key
+     * @param readAt   读取es的时间
+     */
+    synchronized void applyRefresh(Map<String, String> keysById, long readAt) {
+        localChanges.values().removeIf(each -> each.changedAt < readAt - ES_VISIBLE_DELAY_MILLIS);
+        Map<String, String> result = new HashMap<>(keysById);
+        localChanges.forEach((id, change) -> apply(result, id, change.key));
+        snapshot = new Snapshot(result);
+    }
+
+    synchronized void updateSnapshot(String id, String key) {
+        localChanges.put(id, new LocalChange(key, System.currentTimeMillis()));
+        Map<String, String> keysById = new HashMap<>(snapshot.keysById);
+        apply(keysById, id, key);
+        snapshot = new Snapshot(keysById);
     }
 
-    private String buildKey(long range, String sql) {
+    private static void apply(Map<String, String> keysById, String id, String key) {
+        if (key == null) {
+            keysById.remove(id);
+        } else {
+            keysById.put(id, key);
+        }
+    }
+
+    /**
+     * 将sql中的字符串、数字字面量替换为?并合并空白，用于模板匹配.
+     *
+     * @param sql sql
+     * @return 归一化后的sql
+     */
+    public static String normalizeSql(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        String result = STRING_LITERAL.matcher(sql).replaceAll("?");
+        result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+        return WHITESPACE.matcher(result).replaceAll(" ").trim();
+    }
+
+    private static String buildKey(long range, String sql) {
         return range + "_" + sql;
     }
 
@@ -83,4 +220,54 @@ public class BlackSqlService {
         map.put("timestamp", System.currentTimeMillis());
         return map;
     }
+
+    @Override
+    public String metricsName() {
+        return "blackSql";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", snapshot.keys.size());
+        result.put("refreshCount", refreshCount.sum());
+        result.put("refreshFailCount", refreshFailCount.sum());
+        result.put("blockCount", blockCount.sum());
+        return result;
+    }
+
+    private static class LocalChange {
+
+        private final String key;
+
+        private final long changedAt;
+
+        LocalChange(String key, long changedAt) {
+            this.key = key;
+            this.changedAt = changedAt;
+        }
+    }
+
+    /**
+     * 黑名单快照，id-key及其模板.
+     */
+    private static class Snapshot {
+
+        private final Map<String, String> keysById;
+
+        private final Set<String> keys;
+
+        private final Set<String> templateKeys;
+
+        Snapshot(Map<String, String> keysById) {
+            this.keysById = Collections.unmodifiableMap(keysById);
+            this.keys = Set.copyOf(keysById.values());
+            this.templateKeys = keys.stream().map(Snapshot::toTemplateKey).collect(Collectors.toUnmodifiableSet());
+        }
+
+        private static String toTemplateKey(String key) {
+            int index = key.indexOf('_');
+            return index < 0 ? key : key.substring(0, index + 1) + normalizeSql(key.substring(index + 1));
+        }
+    }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.response.CkColumnarBlock;
+import lombok.Getter;
+import ru.yandex.clickhouse.domain.ClickHouseDataType;
+import ru.yandex.clickhouse.response.ClickHouseColumnInfo;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryInputStream;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * RowBinaryWithNamesAndTypes格式ck结果的列式解码器.
+ * 列头由驱动解析，数据按块解码到CkColumnarBlock后逐行回调，块内数组复用；存在不支持的列类型时由调用方回退到jdbc.
+ */
+public class CkColumnarReader {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final LongFunction<Object> INT_BOXER = value -> (int) value;
+
+    private static final LongFunction<Object> LONG_BOXER = Long::valueOf;
+
+    private static final LongFunction<Object> UINT64_BOXER = value -> value >= 0 ? BigInteger.valueOf(value) : new BigInteger(Long.toUnsignedString(value));
+
+    private final RowBinaryInput input;
+
+    private final ColumnDecoder[] decoders;
+
+    @Getter
+    private final CkColumnarBlock block;
+
+    private boolean finished;
+
+    private CkColumnarReader(RowBinaryInput input, List<ClickHouseColumnInfo> columnInfos, int blockSize) {
+        this.input = input;
+        String[] names = new String[columnInfos.size()];
+        CkColumnarBlock.Column[] columns = new CkColumnarBlock.Column[columnInfos.size()];
+        this.decoders = new ColumnDecoder[columnInfos.size()];
+        for (int i = 0; i < columnInfos.size(); i++) {
+            ClickHouseColumnInfo columnInfo = columnInfos.get(i);
+            names[i] = columnInfo.getColumnName();
+            columns[i] = buildColumn(columnInfo, blockSize);
+            decoders[i] = buildDecoder(columnInfo, columns[i]);
+        }
+        this.block = new CkColumnarBlock(names, columns, blockSize);
+        this.finished = columnInfos.isEmpty();
+    }
+
+    /**
+     * 根据结果列头构建解码器.
+     *
+     * @param input     RowBinary结果流
+     * @param blockSize 块大小
+     * @return 解码器，存在不支持的列类型时返回null
+     */
+    public static CkColumnarReader create(ClickHouseRowBinaryInputStream input, int blockSize) {
+        List<ClickHouseColumnInfo> columnInfos = input.getColumns();
+        for (ClickHouseColumnInfo each : columnInfos) {
+            if (!isSupported(each)) {
+                return null;
+            }
+        }
+        return new CkColumnarReader(RowBinaryInput.of(input), columnInfos, blockSize);
+    }
+
+    /**
+     * 解码全部结果并逐行回调.
+     *
+     * @param rowConsumer 行消费者，游标行仅在回调内有效
+     * @throws Exception 异常
+     */
+    public void read(CkRowConsumer rowConsumer) throws Exception {
+        while (readBlock()) {
+            for (int i = 0; i < block.size(); i++) {
+                rowConsumer.accept(block.row(i));
+            }
+        }
+    }
+
+    /**
+     * 解码下一块.
+     *
+     * @return 是否读到数据
+     * @throws IOException io异常
+     */
+    public boolean readBlock() throws IOException {
+        block.clear();
+        while (!finished && !block.isFull()) {
+            if (!input.hasRemaining()) {
+                finished = true;
+                break;
+            }
+            int rowIndex = block.size();
+            for (ColumnDecoder decoder : decoders) {
+                decoder.decode(rowIndex);
+            }
+            block.endRow();
+        }
+        return block.size() > 0;
+    }
+
+    private static boolean isSupported(ClickHouseColumnInfo columnInfo) {
+        if (columnInfo.isArray()) {
+            return columnInfo.getArrayLevel() == 1 && !columnInfo.getOriginalTypeName().contains("Nullable")
+                    && isScalarSupported(columnInfo.getArrayBaseType());
+        }
+        return isScalarSupported(columnInfo.getClickHouseDataType());
+    }
+
+    private static boolean isScalarSupported(ClickHouseDataType type) {
+        switch (type) {
+            case Int8:
+            case Int16:
+            case Int32:
+            case Int64:
+            case UInt8:
+            case UInt16:
+            case UInt32:
+            case UInt64:
+            case Float32:
+            case Float64:
+            case String:
+            case FixedString:
+            case Date:
+            case DateTime:
+            case DateTime32:
+            case DateTime64:
+            case Decimal:
+            case Decimal32:
+            case Decimal64:
+            case Decimal128:
+            case Decimal256:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static CkColumnarBlock.Column buildColumn(ClickHouseColumnInfo columnInfo, int blockSize) {
+        boolean nullable = columnInfo.isNullable();
+        if (columnInfo.isArray()) {
+            return new CkColumnarBlock.ObjectColumn(false, blockSize);
+        }
+        switch (columnInfo.getClickHouseDataType()) {
+            case Int8:
+            case Int16:
+            case Int32:
+            case UInt8:
+            case UInt16:
+                return new CkColumnarBlock.LongColumn(nullable, blockSize, INT_BOXER);
+            case Int64:
+            case UInt32:
+                return new CkColumnarBlock.LongColumn(nullable, blockSize, LONG_BOXER);
+            case UInt64:
+                return new CkColumnarBlock.LongColumn(nullable, blockSize, UINT64_BOXER);
+            case Float32:
+                return new CkColumnarBlock.DoubleColumn(nullable, blockSize, true);
+            case Float64:
+                return new CkColumnarBlock.DoubleColumn(nullable, blockSize, false);
+            case String:
+            case FixedString:
+                return new CkColumnarBlock.StringColumn(nullable, blockSize);
+            default:
+                return new CkColumnarBlock.ObjectColumn(nullable, blockSize);
+        }
+    }
+
+    private ColumnDecoder buildDecoder(ClickHouseColumnInfo columnInfo, CkColumnarBlock.Column column) {
+        ColumnDecoder decoder;
+        if (column instanceof CkColumnarBlock.LongColumn) {
+            CkColumnarBlock.LongColumn longColumn = (CkColumnarBlock.LongColumn) column;
+            LongReader reader = buildLongReader(columnInfo.getClickHouseDataType());
+            decoder = rowIndex -> longColumn.append(rowIndex, reader.read());
+        } else if (column instanceof CkColumnarBlock.DoubleColumn) {
+            CkColumnarBlock.DoubleColumn doubleColumn = (CkColumnarBlock.DoubleColumn) column;
+            boolean float32 = ClickHouseDataType.Float32 == columnInfo.getClickHouseDataType();
+            decoder = rowIndex -> doubleColumn.append(rowIndex, float32 ? input.readFloat32() : input.readFloat64());
+        } else if (column instanceof CkColumnarBlock.StringColumn) {
+            CkColumnarBlock.StringColumn stringColumn = (CkColumnarBlock.StringColumn) column;
+            boolean fixed = ClickHouseDataType.FixedString == columnInfo.getClickHouseDataType();
+            int fixedLength = columnInfo.getPrecision();
+            decoder = rowIndex -> {
+                int length = fixed ? fixedLength : input.readLeb128();
+                int offset = input.require(length);
+                stringColumn.append(rowIndex, input.buffer(), offset, length);
+                input.skip(length);
+            };
+        } else {
+            CkColumnarBlock.ObjectColumn objectColumn = (CkColumnarBlock.ObjectColumn) column;
+            ValueReader reader = columnInfo.isArray()
+                    ? buildArrayReader(buildValueReader(columnInfo.getArrayBaseType(), columnInfo))
+                    : buildValueReader(columnInfo.getClickHouseDataType(), columnInfo);
+            decoder = rowIndex -> objectColumn.append(rowIndex, reader.read());
+        }
+        if (columnInfo.isNullable() && !columnInfo.isArray()) {
+            ColumnDecoder notNullDecoder = decoder;
+            decoder = rowIndex -> {
+                if (input.readUInt8() != 0) {
+                    column.appendNull(rowIndex);
+                } else {
+                    notNullDecoder.decode(rowIndex);
+                }
+            };
+        }
+        return decoder;
+    }
+
+    private LongReader buildLongReader(ClickHouseDataType type) {
+        switch (type) {
+            case Int8:
+                return () -> (byte) input.readUInt8();
+            case Int16:
+                return input::readInt16;
+            case Int32:
+                return input::readInt32;
+            case UInt8:
+                return input::readUInt8;
+            case UInt16:
+                return () -> input.readInt16() & 0xFFFF;
+            case UInt32:
+                return () -> input.readInt32() & 0xFFFFFFFFL;
+            default:
+                return input::readInt64;
+        }
+    }
+
+    private ValueReader buildValueReader(ClickHouseDataType type, ClickHouseColumnInfo columnInfo) {
+        switch (type) {
+            case Int8:
+            case Int16:
+            case Int32:
+            case UInt8:
+            case UInt16:
+                return boxed(buildLongReader(type), INT_BOXER);
+            case Int64:
+            case UInt32:
+                return boxed(buildLongReader(type), LONG_BOXER);
+            case UInt64:
+                return boxed(buildLongReader(type), UINT64_BOXER);
+            case Float32:
+                return input::readFloat32;
+            case Float64:
+                return input::readFloat64;
+            case String:
+                return () -> readString(input.readLeb128());
+            case FixedString:
+                int fixedLength = columnInfo.getPrecision();
+                return () -> readString(fixedLength);
+            case Date:
+                return () -> Date.valueOf(LocalDate.ofEpochDay(input.readInt16() & 0xFFFF));
+            case DateTime:
+            case DateTime32:
+                return () -> new Timestamp((input.readInt32() & 0xFFFFFFFFL) * 1000);
+            case DateTime64:
+                int scale = columnInfo.getScale();
+                return () -> toTimestamp(input.readInt64(), scale);
+            default:
+                return buildDecimalReader(columnInfo.getPrecision(), columnInfo.getScale());
+        }
+    }
+
+    private ValueReader buildDecimalReader(int precision, int scale) {
+        if (precision <= 9) {
+            return () -> BigDecimal.valueOf(input.readInt32(), scale);
+        } else if (precision <= 18) {
+            return () -> BigDecimal.valueOf(input.readInt64(), scale);
+        } else if (precision <= 38) {
+            return () -> new BigDecimal(input.readBigInteger(16), scale);
+        }
+        return () -> new BigDecimal(input.readBigInteger(32), scale);
+    }
+
+    private ValueReader buildArrayReader(ValueReader elementReader) {
+        return () -> {
+            int length = input.readLeb128();
+            List<Object> result = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                result.add(elementReader.read());
+            }
+            return result;
+        };
+    }
+
+    private static ValueReader boxed(LongReader reader, LongFunction<Object> boxer) {
+        return () -> boxer.apply(reader.read());
+    }
+
+    private static Timestamp toTimestamp(long ticks, int scale) {
+        long unit = 1;
+        for (int i = 0; i < scale; i++) {
+            unit *= 10;
+        }
+        Timestamp result = new Timestamp(Math.floorDiv(ticks, unit) * 1000);
+        long fraction = Math.floorMod(ticks, unit);
+        for (int i = scale; i < 9; i++) {
+            fraction *= 10;
+        }
+        result.setNanos((int) fraction);
+        return result;
+    }
+
+    private String readString(int length) throws IOException {
+        int offset = input.require(length);
+        input.skip(length);
+        return new String(input.buffer(), offset, length, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface ColumnDecoder {
+
+        void decode(int rowIndex) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface LongReader {
+
+        long read() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ValueReader {
+
+        Object read() throws IOException;
+    }
+}
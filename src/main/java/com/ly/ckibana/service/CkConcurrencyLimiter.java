@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.exception.ConcurrencyLimitExceededException;
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import com.ly.ckibana.model.property.ConcurrencyLimitProperty;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ck查询自适应并发限制.
+ * 参考gradient算法：以长期平均耗时为基准，当前耗时明显变长时下调并发上限，否则缓慢上调；
+ * ck返回TOO_MUCH_SIMULTANEOUS_QUERIES时按比例下调(AIMD)。超出上限的查询排队，超过排队时间后拒绝.
+ */
+@Slf4j
+@Service
+public class CkConcurrencyLimiter implements MetricsProvider {
+
+    /**
+     * 长期平均耗时的样本窗口.
+     */
+    private static final int LONG_RTT_WINDOW = 600;
+
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final Condition available = lock.newCondition();
+
+    private final LongAdder admittedCount = new LongAdder();
+
+    private final LongAdder queuedCount = new LongAdder();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    private final LongAdder queueWaitMillis = new LongAdder();
+
+    private double limit = -1;
+
+    private double longRttNanos;
+
+    private long sampleCount;
+
+    private int inflight;
+
+    private int queued;
+
+    /**
+     * 获取执行许可，超出并发上限时排队等待.
+     *
+     * @param property 并发限制配置
+     * @return 许可，查询结束后close
+     */
+    public Permit acquire(ConcurrencyLimitProperty property) {
+        if (property == null || !property.isEnabled()) {
+            return new Permit(null, property, 0);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(property.getQueueTimeoutMillis());
+        lock.lock();
+        try {
+            clampLimit(property);
+            if (inflight >= currentLimit()) {
+                if (queued >= property.getMaxQueueSize()) {
+                    rejectedCount.increment();
+                    throw new ConcurrencyLimitExceededException(describe("排队已满"));
+                }
+                waitForPermit(deadline);
+            }
+            inflight++;
+            admittedCount.increment();
+            return new Permit(this, property, inflight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void waitForPermit(long deadline) {
+        queued++;
+        queuedCount.increment();
+        long begin = System.nanoTime();
+        try {
+            while (inflight >= currentLimit()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejectedCount.increment();
+                    throw new ConcurrencyLimitExceededException(describe("排队超时"));
+                }
+                available.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException("等待ck并发许可时被中断");
+        } finally {
+            queued--;
+            queueWaitMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        }
+    }
+
+    private void release(Permit permit, long rttNanos) {
+        lock.lock();
+        try {
+            inflight--;
+            ConcurrencyLimitProperty property = permit.property;
+            if (permit.dropped) {
+                droppedCount.increment();
+                limit = Math.max(property.getMinLimit(), limit * property.getBackoffRatio());
+                log.warn("[concurrency-limit] clickhouse rejected query, limit down to {}", currentLimit());
+            } else if (permit.succeeded) {
+                updateLimit(property, rttNanos, permit.inflightAtStart);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateLimit(ConcurrencyLimitProperty property, long rttNanos, int inflightAtStart) {
+        double rtt = Math.max(1, rttNanos);
+        sampleCount++;
+        longRttNanos = sampleCount == 1 ? rtt : longRttNanos + (rtt - longRttNanos) / Math.min(sampleCount, LONG_RTT_WINDOW);
+        // 长期耗时被持续的慢查询拉高后，快速回落以便重新感知负载
+        if (longRttNanos / rtt > 2) {
+            longRttNanos *= 0.95;
+        }
+        // 并发远未达到上限时，耗时不能反映上限是否合适，不调整
+        if (inflightAtStart < limit / 2) {
+            return;
+        }
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, property.getRttTolerance() * longRttNanos / rtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - property.getSmoothing()) + newLimit * property.getSmoothing();
+        limit = Math.max(property.getMinLimit(), Math.min(property.getMaxLimit(), newLimit));
+    }
+
+    /**
+     * 首次使用时初始化，配置变更后限制在新的上下限内.
+     */
+    private void clampLimit(ConcurrencyLimitProperty property) {
+        int minLimit = Math.max(1, property.getMinLimit());
+        int maxLimit = Math.max(minLimit, property.getMaxLimit());
+        double value = limit < 0 ? property.getInitialLimit() : limit;
+        limit = Math.max(minLimit, Math.min(maxLimit, value));
+    }
+
+    private int currentLimit() {
+        return Math.max(1, (int) limit);
+    }
+
+    private String describe(String reason) {
+        return String.format("%s, limit:%d, inflight:%d, queued:%d", reason, currentLimit(), inflight, queued);
+    }
+
+    /**
+     * 当前并发上限.
+     *
+     * @return 并发上限，未初始化时为-1
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit < 0 ? -1 : currentLimit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String metricsName() {
+        return "ckConcurrencyLimit";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            result.put("limit", limit < 0 ? -1 : currentLimit());
+            result.put("inflight", inflight);
+            result.put("queued", queued);
+            result.put("longRttMillis", TimeUnit.NANOSECONDS.toMillis((long) longRttNanos));
+        } finally {
+            lock.unlock();
+        }
+        result.put("admittedCount", admittedCount.sum());
+        result.put("queuedCount", queuedCount.sum());
+        result.put("rejectedCount", rejectedCount.sum());
+        result.put("droppedCount", droppedCount.sum());
+        result.put("queueWaitMillisTotal", queueWaitMillis.sum());
+        return result;
+    }
+
+    /**
+     * 执行许可，查询结束后close.
+     * 未标记结果的许可(如sql错误、查询取消)只归还并发，不参与上限调整.
+     */
+    public static class Permit implements AutoCloseable {
+
+        private final CkConcurrencyLimiter limiter;
+
+        private final ConcurrencyLimitProperty property;
+
+        private final int inflightAtStart;
+
+        private final long startNanos = System.nanoTime();
+
+        private boolean succeeded;
+
+        private boolean dropped;
+
+        private boolean released;
+
+        private Permit(CkConcurrencyLimiter limiter, ConcurrencyLimitProperty property, int inflightAtStart) {
+            this.limiter = limiter;
+            this.property = property;
+            this.inflightAtStart = inflightAtStart;
+        }
+
+        /**
+         * 查询成功，耗时参与上限调整.
+         */
+        public void onSuccess() {
+            succeeded = true;
+        }
+
+        /**
+         * ck因过载拒绝了查询，下调上限.
+         */
+        public void onDropped() {
+            dropped = true;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (limiter != null) {
+                limiter.release(this, System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.exception.ConnectionPoolExhaustedException;
+import com.ly.ckibana.model.property.CkProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import ru.yandex.clickhouse.ClickHouseConnectionImpl;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 单个ck集群(url+database+账号)的长连接池.
+ * 每个host维护一个常驻的ck连接(内部为keep-alive的http连接池)，通过信号量限制单host并发，空闲超时后释放.
+ * 借出时由CkHostSelector按耗时、错误率和并发选择host.
+ */
+@Slf4j
+public class CkConnectionPool implements Closeable {
+
+    private static final int ADMIN_MAX_CONNECTIONS = 2;
+
+    @Getter
+    private final PoolKey poolKey;
+
+    @Getter
+    private final List<String> hosts;
+
+    private final ClickHouseProperties properties;
+
+    private final ClickHouseProperties adminProperties;
+
+    private final int maxConnectionsPerHost;
+
+    private final long waitTimeoutMillis;
+
+    private final long idleTimeoutMillis;
+
+    private final Map<String, HostEntry> hostEntries = new ConcurrentHashMap<>();
+
+    private final CkHostSelector hostSelector;
+
+    private final LongAdder leaseCount = new LongAdder();
+
+    private final LongAdder reuseCount = new LongAdder();
+
+    private final LongAdder createCount = new LongAdder();
+
+    private final LongAdder evictCount = new LongAdder();
+
+    private final LongAdder waitMillis = new LongAdder();
+
+    private final LongAdder waitTimeoutCount = new LongAdder();
+
+    private volatile boolean closed;
+
+    public CkConnectionPool(PoolKey poolKey, CkProperty ckProperty) {
+        this.poolKey = poolKey;
+        this.hosts = Arrays.stream(poolKey.getUrl().split(",")).map(String::trim).filter(each -> !each.isEmpty()).collect(Collectors.toList());
+        this.maxConnectionsPerHost = Math.max(1, ckProperty.getMaxConnectionsPerHost());
+        this.waitTimeoutMillis = ckProperty.getConnectionWaitTimeoutMillis();
+        this.idleTimeoutMillis = ckProperty.getConnectionIdleTimeoutMillis();
+        this.properties = buildProperties(poolKey, maxConnectionsPerHost);
+        this.adminProperties = buildProperties(poolKey, ADMIN_MAX_CONNECTIONS);
+        adminProperties.setSocketTimeout(CkService.CONNECTION_TIMEOUT);
+        hosts.forEach(host -> hostEntries.put(host, new HostEntry(host, maxConnectionsPerHost)));
+        this.hostSelector = new CkHostSelector(hosts, ckProperty.getHostEjectFailures(), ckProperty.getHostEjectBackoffMillis(),
+                ckProperty.getHostEjectMaxBackoffMillis());
+    }
+
+    private static ClickHouseProperties buildProperties(PoolKey poolKey, int maxConnectionsPerHost) {
+        ClickHouseProperties props = new ClickHouseProperties();
+        props.setUseServerTimeZone(false);
+        props.setUseTimeZone(ZoneId.systemDefault().getId());
+        props.setSocketTimeout(CkService.SOCKET_TIMEOUT);
+        props.setConnectionTimeout(CkService.CONNECTION_TIMEOUT);
+        props.setUser(poolKey.getUser());
+        props.setPassword(poolKey.getPass());
+        props.setDatabase(poolKey.getDatabase());
+        props.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        props.setMaxTotal(maxConnectionsPerHost);
+        return props;
+    }
+
+    /**
+     * 选择耗时低、健康的host并借出连接.
+     *
+     * @return 连接租约，使用完后需close归还
+     * @throws SQLException sql异常
+     */
+    public Lease lease() throws SQLException {
+        String host = hostSelector.select(this::getInflight);
+        try {
+            return lease(host);
+        } catch (Exception e) {
+            hostSelector.onAbort(host);
+            throw e;
+        }
+    }
+
+    private int getInflight(String host) {
+        HostEntry entry = hostEntries.get(host);
+        return entry == null ? 0 : entry.inUse.get();
+    }
+
+    /**
+     * 借出指定host的连接，超过单host上限时排队等待.
+     *
+     * @param host host
+     * @return 连接租约，使用完后需close归还
+     * @throws SQLException sql异常
+     */
+    public Lease lease(String host) throws SQLException {
+        HostEntry entry = hostEntries.get(host);
+        if (entry == null) {
+            throw new IllegalArgumentException("unknown clickhouse host: " + host);
+        }
+        long begin = System.currentTimeMillis();
+        boolean acquired;
+        try {
+            acquired = entry.permits.tryAcquire(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for clickhouse connection", e);
+        }
+        waitMillis.add(System.currentTimeMillis() - begin);
+        if (!acquired) {
+            waitTimeoutCount.increment();
+            throw new ConnectionPoolExhaustedException(String.format("host:%s, maxConnectionsPerHost:%d", host, maxConnectionsPerHost));
+        }
+        try {
+            ClickHouseConnectionImpl connection = acquireConnection(entry);
+            leaseCount.increment();
+            return new Lease(this, entry, connection);
+        } catch (Exception e) {
+            entry.permits.release();
+            throw e;
+        }
+    }
+
+    private ClickHouseConnectionImpl acquireConnection(HostEntry entry) throws SQLException {
+        synchronized (entry) {
+            if (entry.connection == null || entry.connection.isClosed()) {
+                entry.connection = new ClickHouseConnectionImpl(CkService.getJdbcUrl(entry.host, poolKey.getDatabase()), properties);
+                createCount.increment();
+            } else {
+                reuseCount.increment();
+            }
+            entry.inUse.incrementAndGet();
+            entry.lastUsedAt = System.currentTimeMillis();
+            return entry.connection;
+        }
+    }
+
+    /**
+     * 在指定host上执行管理语句(如KILL QUERY).
+     * 使用独立连接，不占用查询并发配额，查询连接占满时也能执行.
+     *
+     * @param host host
+     * @param sql  管理语句
+     * @throws SQLException sql异常
+     */
+    public void executeAdmin(String host, String sql) throws SQLException {
+        HostEntry entry = hostEntries.get(host);
+        if (entry == null) {
+            throw new IllegalArgumentException("unknown clickhouse host: " + host);
+        }
+        ClickHouseConnectionImpl connection;
+        synchronized (entry) {
+            if (entry.adminConnection == null || entry.adminConnection.isClosed()) {
+                entry.adminConnection = new ClickHouseConnectionImpl(CkService.getJdbcUrl(entry.host, poolKey.getDatabase()), adminProperties);
+            }
+            connection = entry.adminConnection;
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet ignored = statement.executeQuery(sql)) {
+            log.debug("[ck-pool] execute admin sql on {}: {}", host, sql);
+        }
+    }
+
+    private void release(HostEntry entry, long latencyMillis, boolean failed) {
+        hostSelector.onComplete(entry.host, latencyMillis, failed);
+        synchronized (entry) {
+            entry.inUse.decrementAndGet();
+            entry.lastUsedAt = System.currentTimeMillis();
+            if (closed) {
+                closeIfIdle(entry, 0);
+            }
+        }
+        entry.permits.release();
+    }
+
+    /**
+     * 关闭空闲超时的连接，下次借出时重建.
+     */
+    public void evictIdle() {
+        hostEntries.values().forEach(entry -> {
+            synchronized (entry) {
+                if (closeIfIdle(entry, idleTimeoutMillis)) {
+                    evictCount.increment();
+                }
+            }
+        });
+    }
+
+    private boolean closeIfIdle(HostEntry entry, long idleMillis) {
+        if (entry.connection == null || entry.inUse.get() > 0 || System.currentTimeMillis() - entry.lastUsedAt < idleMillis) {
+            return false;
+        }
+        try {
+            entry.connection.close();
+        } catch (SQLException e) {
+            log.warn("close clickhouse connection error, host:{}", entry.host, e);
+        }
+        entry.connection = null;
+        return true;
+    }
+
+    /**
+     * 关闭连接池，使用中的连接在归还时关闭.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        hostEntries.values().forEach(entry -> {
+            synchronized (entry) {
+                closeIfIdle(entry, 0);
+                if (entry.adminConnection != null) {
+                    try {
+                        entry.adminConnection.close();
+                    } catch (SQLException e) {
+                        log.warn("close clickhouse admin connection error, host:{}", entry.host, e);
+                    }
+                    entry.adminConnection = null;
+                }
+            }
+        });
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long leases = leaseCount.sum();
+        result.put("hosts", hosts.size());
+        result.put("openConnections", hostEntries.values().stream().filter(each -> each.connection != null).count());
+        result.put("inUse", hostEntries.values().stream().mapToInt(each -> each.inUse.get()).sum());
+        result.put("maxConnectionsPerHost", maxConnectionsPerHost);
+        result.put("leaseCount", leases);
+        result.put("createCount", createCount.sum());
+        result.put("evictCount", evictCount.sum());
+        // 借出时复用已有ck连接对象的比例，不是http keep-alive连接的复用率
+        result.put("leaseReuseRate", leases == 0 ? 0D : (double) reuseCount.sum() / leases);
+        result.put("waitMillisTotal", waitMillis.sum());
+        result.put("waitMillisAvg", leases == 0 ? 0D : (double) waitMillis.sum() / leases);
+        result.put("waitTimeoutCount", waitTimeoutCount.sum());
+        result.put("hostStats", hostSelector.metrics(this::getInflight));
+        return result;
+    }
+
+    /**
+     * 连接池key.
+     */
+    @Data
+    @AllArgsConstructor
+    public static class PoolKey {
+
+        private String url;
+
+        private String database;
+
+        private String user;
+
+        private String pass;
+
+        @Override
+        public String toString() {
+            return String.format("%s/%s@%s", url, database, user);
+        }
+    }
+
+    private static class HostEntry {
+
+        private final String host;
+
+        private final Semaphore permits;
+
+        private final AtomicInteger inUse = new AtomicInteger();
+
+        private volatile ClickHouseConnectionImpl connection;
+
+        private ClickHouseConnectionImpl adminConnection;
+
+        private volatile long lastUsedAt = System.currentTimeMillis();
+
+        HostEntry(String host, int maxConnectionsPerHost) {
+            this.host = host;
+            this.permits = new Semaphore(maxConnectionsPerHost, true);
+        }
+    }
+
+    /**
+     * 连接租约，close时归还而非关闭底层连接.
+     */
+    public static class Lease implements AutoCloseable {
+
+        private final CkConnectionPool pool;
+
+        private final HostEntry entry;
+
+        @Getter
+        private final ClickHouseConnectionImpl connection;
+
+        private final long leaseTime = System.currentTimeMillis();
+
+        private boolean failed;
+
+        private boolean released;
+
+        private Lease(CkConnectionPool pool, HostEntry entry, ClickHouseConnectionImpl connection) {
+            this.pool = pool;
+            this.entry = entry;
+            this.connection = connection;
+        }
+
+        public String getHost() {
+            return entry.host;
+        }
+
+        /**
+         * 标记因host问题(网络、超时、过载)失败，用于host摘除.
+         */
+        public void markFailed() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                pool.release(entry, System.currentTimeMillis() - leaseTime, failed);
+            }
+        }
+    }
+}
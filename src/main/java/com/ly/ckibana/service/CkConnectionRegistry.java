@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.exception.DataSourceEmptyException;
+import com.ly.ckibana.model.property.CkProperty;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ck连接池注册中心，按(url, database, 账号)复用连接池，配置变更时重建.
+ */
+@Slf4j
+@Service
+public class CkConnectionRegistry implements MetricsProvider {
+
+    private final Map<CkConnectionPool.PoolKey, CkConnectionPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * 获取连接池，不存在时创建.
+     *
+     * @param ckProperty ck配置
+     * @param database   数据库
+     * @return 连接池
+     */
+    public CkConnectionPool getPool(CkProperty ckProperty, String database) {
+        if (ckProperty == null) {
+            throw new DataSourceEmptyException("clickhouse数据源为空，请检查配置proxy.ck");
+        }
+        CkConnectionPool.PoolKey poolKey = new CkConnectionPool.PoolKey(ckProperty.getUrl(), database, ckProperty.getUser(), ckProperty.getPass());
+        return pools.computeIfAbsent(poolKey, key -> {
+            log.info("[ck-pool] create connection pool {}", key);
+            return new CkConnectionPool(key, ckProperty);
+        });
+    }
+
+    /**
+     * ck配置变更，关闭所有连接池，后续请求按新配置重建.
+     */
+    public void rebuild() {
+        List<CkConnectionPool> oldPools = new ArrayList<>(pools.values());
+        pools.clear();
+        oldPools.forEach(each -> {
+            log.info("[ck-pool] close connection pool {}", each.getPoolKey());
+            each.close();
+        });
+    }
+
+    /**
+     * 释放各连接池中空闲超时的连接.
+     */
+    public void evictIdle() {
+        pools.values().forEach(CkConnectionPool::evictIdle);
+    }
+
+    @Override
+    public String metricsName() {
+        return "ckConnectionPool";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        pools.forEach((key, pool) -> result.put(key.toString(), pool.metrics()));
+        return result;
+    }
+}
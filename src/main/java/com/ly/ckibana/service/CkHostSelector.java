@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+/**
+ * ck副本选择器.
+ * 按host统计EWMA耗时、错误率，结合执行中的查询数，随机取两个健康host选择代价较低者(power of two choices).
+ * 连续失败的host暂时摘除，到期后放行一个探测查询，成功则恢复，失败则加倍摘除时长.
+ */
+@Slf4j
+public class CkHostSelector {
+
+    private static final double LATENCY_ALPHA = 0.2;
+
+    private static final double ERROR_ALPHA = 0.1;
+
+    private static final double MIN_SUCCESS_RATE = 0.1;
+
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private final List<HostStats> hostStats;
+
+    private final Map<String, HostStats> hostStatsMap = new LinkedHashMap<>();
+
+    private final int ejectFailures;
+
+    private final long ejectBackoffMillis;
+
+    private final long ejectMaxBackoffMillis;
+
+    private final LongAdder probeCount = new LongAdder();
+
+    public CkHostSelector(List<String> hosts, int ejectFailures, long ejectBackoffMillis, long ejectMaxBackoffMillis) {
+        this.hostStats = hosts.stream().map(HostStats::new).collect(Collectors.toList());
+        this.hostStats.forEach(each -> hostStatsMap.put(each.host, each));
+        this.ejectFailures = Math.max(1, ejectFailures);
+        this.ejectBackoffMillis = Math.max(0, ejectBackoffMillis);
+        this.ejectMaxBackoffMillis = Math.max(this.ejectBackoffMillis, ejectMaxBackoffMillis);
+    }
+
+    /**
+     * 选择host.
+     *
+     * @param inflight 各host执行中的查询数
+     * @return host
+     */
+    public String select(ToIntFunction<String> inflight) {
+        long now = System.currentTimeMillis();
+        List<HostStats> healthy = new ArrayList<>(hostStats.size());
+        for (HostStats each : hostStats) {
+            if (!each.ejected) {
+                healthy.add(each);
+            } else if (now >= each.ejectedUntil && each.tryStartProbe()) {
+                probeCount.increment();
+                log.info("[ck-host] probe ejected host {}", each.host);
+                return each.host;
+            }
+        }
+        if (healthy.isEmpty()) {
+            // 全部被摘除时选择最早到期的host，避免完全不可用
+            return hostStats.stream().min(Comparator.comparingLong(each -> each.ejectedUntil)).orElseThrow().host;
+        }
+        if (healthy.size() == 1) {
+            return healthy.get(0).host;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(healthy.size());
+        int second = random.nextInt(healthy.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        HostStats firstHost = healthy.get(first);
+        HostStats secondHost = healthy.get(second);
+        return firstHost.cost(inflight.applyAsInt(firstHost.host)) <= secondHost.cost(inflight.applyAsInt(secondHost.host))
+                ? firstHost.host : secondHost.host;
+    }
+
+    /**
+     * 记录一次查询结果.
+     *
+     * @param host          host
+     * @param latencyMillis 耗时
+     * @param failed        是否因host问题失败
+     */
+    public void onComplete(String host, long latencyMillis, boolean failed) {
+        HostStats stats = hostStatsMap.get(host);
+        if (stats == null) {
+            return;
+        }
+        synchronized (stats) {
+            stats.probing = false;
+            if (failed) {
+                stats.errorRate += ERROR_ALPHA * (1 - stats.errorRate);
+                stats.consecutiveFailures++;
+                stats.failureCount++;
+                if (stats.ejected || stats.consecutiveFailures >= ejectFailures) {
+                    eject(stats);
+                }
+            } else {
+                stats.latencyMillis = stats.successCount == 0 ? latencyMillis : stats.latencyMillis + LATENCY_ALPHA * (latencyMillis - stats.latencyMillis);
+                stats.errorRate *= 1 - ERROR_ALPHA;
+                stats.consecutiveFailures = 0;
+                stats.successCount++;
+                if (stats.ejected) {
+                    stats.ejected = false;
+                    stats.ejections = 0;
+                    log.info("[ck-host] host {} recovered", host);
+                }
+            }
+        }
+    }
+
+    /**
+     * 选中后未能发出查询(如等待连接超时)，不计入统计，仅释放探测名额.
+     *
+     * @param host host
+     */
+    public void onAbort(String host) {
+        HostStats stats = hostStatsMap.get(host);
+        if (stats != null) {
+            synchronized (stats) {
+                stats.probing = false;
+            }
+        }
+    }
+
+    private void eject(HostStats stats) {
+        long backoff = Math.min(ejectMaxBackoffMillis, ejectBackoffMillis << Math.min(stats.ejections, MAX_BACKOFF_SHIFT));
+        stats.ejections++;
+        stats.ejectCount++;
+        stats.ejected = true;
+        stats.ejectedUntil = System.currentTimeMillis() + backoff;
+        log.warn("[ck-host] eject host {} for {}ms, consecutive failures:{}", stats.host, backoff, stats.consecutiveFailures);
+    }
+
+    /**
+     * host是否处于摘除状态.
+     *
+     * @param host host
+     * @return 是否摘除
+     */
+    public boolean isEjected(String host) {
+        HostStats stats = hostStatsMap.get(host);
+        return stats != null && stats.ejected;
+    }
+
+    public Map<String, Object> metrics(ToIntFunction<String> inflight) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("probeCount", probeCount.sum());
+        for (HostStats each : hostStats) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            synchronized (each) {
+                item.put("latencyMillis", Math.round(each.latencyMillis));
+                item.put("errorRate", each.errorRate);
+                item.put("inflight", inflight.applyAsInt(each.host));
+                item.put("ejected", each.ejected);
+                item.put("ejectCount", each.ejectCount);
+                item.put("successCount", each.successCount);
+                item.put("failureCount", each.failureCount);
+            }
+            result.put(each.host, item);
+        }
+        return result;
+    }
+
+    private static class HostStats {
+
+        private final String host;
+
+        private volatile double latencyMillis;
+
+        private volatile double errorRate;
+
+        private volatile boolean ejected;
+
+        private volatile long ejectedUntil;
+
+        private boolean probing;
+
+        private int consecutiveFailures;
+
+        private int ejections;
+
+        private long ejectCount;
+
+        private long successCount;
+
+        private long failureCount;
+
+        HostStats(String host) {
+            this.host = host;
+        }
+
+        synchronized boolean tryStartProbe() {
+            if (probing || !ejected) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        /**
+         * 选择代价:耗时越高、执行中越多、错误率越高代价越大.
+         */
+        double cost(int inflight) {
+            return (latencyMillis + 1) * (inflight + 1) / Math.max(MIN_SUCCESS_RATE, 1 - errorRate);
+        }
+    }
+}
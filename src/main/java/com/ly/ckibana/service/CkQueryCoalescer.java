@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 相同查询合并执行(single flight).
+ * 同一时刻相同key的查询只有第一个(leader)真正执行，其余调用方等待并共享其结果.
+ * 等待超时、超过单key等待上限或leader被取消时，调用方自行执行.
+ */
+@Slf4j
+@Service
+public class CkQueryCoalescer implements MetricsProvider {
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder leaderCount = new LongAdder();
+
+    private final LongAdder savedCount = new LongAdder();
+
+    private final LongAdder overflowCount = new LongAdder();
+
+    private final LongAdder timeoutCount = new LongAdder();
+
+    private final LongAdder fallbackCount = new LongAdder();
+
+    /**
+     * 执行查询，相同key的并发查询合并为一次.
+     *
+     * @param key           查询key
+     * @param maxWaiters    单key最多等待的调用方数量
+     * @param maxWaitMillis 等待leader结果的最长时间，单位ms
+     * @param loader        查询
+     * @return 查询结果，多个调用方共享，不可修改
+     * @throws Exception 查询异常
+     */
+    public List<JSONObject> execute(String key, int maxWaiters, long maxWaitMillis, Callable<List<JSONObject>> loader) throws Exception {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            return lead(key, flight, loader);
+        }
+        if (existing.waiters.incrementAndGet() > maxWaiters) {
+            existing.waiters.decrementAndGet();
+            overflowCount.increment();
+            return loader.call();
+        }
+        try {
+            List<JSONObject> result = existing.future.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+            savedCount.increment();
+            return result;
+        } catch (TimeoutException e) {
+            timeoutCount.increment();
+            log.warn("[query-coalesce] wait leader timeout({}ms), execute by self", maxWaitMillis);
+            return loader.call();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof QueryCancelledException) {
+                fallbackCount.increment();
+                return loader.call();
+            }
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException("等待相同查询结果时被中断");
+        } finally {
+            existing.waiters.decrementAndGet();
+        }
+    }
+
+    private List<JSONObject> lead(String key, Flight flight, Callable<List<JSONObject>> loader) throws Exception {
+        leaderCount.increment();
+        try {
+            List<JSONObject> result = loader.call();
+            flight.future.complete(result);
+            return result;
+        } catch (Exception e) {
+            flight.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    @Override
+    public String metricsName() {
+        return "ckQueryCoalesce";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("inflight", flights.size());
+        result.put("waiting", flights.values().stream().mapToInt(each -> each.waiters.get()).sum());
+        result.put("leaderCount", leaderCount.sum());
+        result.put("savedCount", savedCount.sum());
+        result.put("overflowCount", overflowCount.sum());
+        result.put("timeoutCount", timeoutCount.sum());
+        result.put("fallbackCount", fallbackCount.sum());
+        return result;
+    }
+
+    private static class Flight {
+
+        private final CompletableFuture<List<JSONObject>> future = new CompletableFuture<>();
+
+        private final AtomicInteger waiters = new AtomicInteger();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个http请求内发出的ck查询集合，请求取消时据此kill正在执行的查询.
+ */
+public class CkQueryScope {
+
+    @Getter
+    private final String requestId;
+
+    private final Map<String, RunningQuery> runningQueries = new ConcurrentHashMap<>();
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    @Getter
+    private volatile String cancelReason;
+
+    public CkQueryScope(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    int nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * 标记取消.
+     *
+     * @param reason 取消原因
+     * @return 是否首次取消
+     */
+    synchronized boolean markCancelled(String reason) {
+        if (cancelReason != null) {
+            return false;
+        }
+        cancelReason = reason;
+        return true;
+    }
+
+    void add(RunningQuery runningQuery) {
+        runningQueries.put(runningQuery.getQueryId(), runningQuery);
+    }
+
+    void remove(String queryId) {
+        runningQueries.remove(queryId);
+    }
+
+    Map<String, RunningQuery> getRunningQueries() {
+        return runningQueries;
+    }
+
+    /**
+     * 执行中的ck查询.
+     */
+    @Getter
+    @AllArgsConstructor
+    static class RunningQuery {
+
+        private final String queryId;
+
+        private final CkConnectionPool pool;
+
+        private final String host;
+
+        private final long startTime;
+    }
+}
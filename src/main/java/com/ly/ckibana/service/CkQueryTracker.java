@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.google.common.hash.Hashing;
+import com.ly.ckibana.configure.thread.ThreadPoolConfigurer;
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 跟踪每个http请求发出的ck查询.
+ * 客户端中断或超过代理截止时间时，通过KILL QUERY终止仍在执行的查询，释放ck资源.
+ */
+@Slf4j
+@Service
+public class CkQueryTracker implements MetricsProvider {
+
+    private static final String QUERY_ID_PREFIX = "ckibana";
+
+    private static final String SYSTEM_REQUEST_ID = "system";
+
+    private final AtomicLong requestSequence = new AtomicLong();
+
+    private final Set<CkQueryScope> scopes = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder cancelledRequests = new LongAdder();
+
+    private final LongAdder cancelledQueries = new LongAdder();
+
+    private final LongAdder killFailures = new LongAdder();
+
+    private final LongAdder reclaimedMillis = new LongAdder();
+
+    @Resource
+    private ThreadPoolConfigurer threadPoolConfigurer;
+
+    /**
+     * 为http请求创建查询范围.
+     *
+     * @return CkQueryScope
+     */
+    public CkQueryScope openScope() {
+        CkQueryScope scope = new CkQueryScope(Long.toString(System.currentTimeMillis(), 36) + "-" + requestSequence.incrementAndGet());
+        scopes.add(scope);
+        return scope;
+    }
+
+    /**
+     * 请求结束，取消仍在执行的查询.
+     *
+     * @param scope 查询范围
+     */
+    public void closeScope(CkQueryScope scope) {
+        if (scope == null) {
+            return;
+        }
+        if (!scope.getRunningQueries().isEmpty()) {
+            cancel(scope, "request finished");
+        }
+        scopes.remove(scope);
+    }
+
+    /**
+     * 生成query_id:请求id + sql摘要 + 序号，同一请求内相同sql不会冲突.
+     *
+     * @param scope 查询范围，可为null
+     * @param sql   sql
+     * @return query_id
+     */
+    public String buildQueryId(CkQueryScope scope, String sql) {
+        String sqlHash = Hashing.murmur3_32().hashString(sql, StandardCharsets.UTF_8).toString();
+        if (scope == null) {
+            return String.join("-", QUERY_ID_PREFIX, SYSTEM_REQUEST_ID, sqlHash, Long.toString(requestSequence.incrementAndGet()));
+        }
+        return String.join("-", QUERY_ID_PREFIX, scope.getRequestId(), sqlHash, Integer.toString(scope.nextSequence()));
+    }
+
+    /**
+     * 登记执行中的查询.
+     *
+     * @param scope   查询范围，可为null
+     * @param queryId query_id
+     * @param pool    连接池
+     * @param host    执行查询的host
+     * @return 登记，查询结束后close
+     */
+    public Registration register(CkQueryScope scope, String queryId, CkConnectionPool pool, String host) {
+        if (scope == null) {
+            return () -> {
+            };
+        }
+        scope.add(new CkQueryScope.RunningQuery(queryId, pool, host, System.currentTimeMillis()));
+        if (scope.isCancelled()) {
+            scope.remove(queryId);
+            throw new QueryCancelledException(scope.getCancelReason());
+        }
+        return () -> scope.remove(queryId);
+    }
+
+    /**
+     * 取消请求内所有执行中的查询，在对应host上异步执行KILL QUERY.
+     *
+     * @param scope  查询范围
+     * @param reason 取消原因
+     */
+    public void cancel(CkQueryScope scope, String reason) {
+        if (scope == null || !scope.markCancelled(reason)) {
+            return;
+        }
+        List<CkQueryScope.RunningQuery> runningQueries = new ArrayList<>(scope.getRunningQueries().values());
+        if (runningQueries.isEmpty()) {
+            return;
+        }
+        cancelledRequests.increment();
+        log.warn("[query-cancel] request:{}, reason:{}, running queries:{}", scope.getRequestId(), reason, runningQueries.size());
+        ExecutorService executor = threadPoolConfigurer.getCommonExecutor();
+        for (CkQueryScope.RunningQuery each : runningQueries) {
+            if (executor == null) {
+                kill(each);
+            } else {
+                executor.submit(() -> kill(each));
+            }
+        }
+    }
+
+    private void kill(CkQueryScope.RunningQuery runningQuery) {
+        long elapsed = System.currentTimeMillis() - runningQuery.getStartTime();
+        try {
+            runningQuery.getPool().executeAdmin(runningQuery.getHost(), String.format("KILL QUERY WHERE query_id = '%s' ASYNC", runningQuery.getQueryId()));
+            cancelledQueries.increment();
+            reclaimedMillis.add(Math.max(0, CkService.SOCKET_TIMEOUT - elapsed));
+            log.info("[query-cancel] killed query_id:{}, host:{}, elapsed:{}ms", runningQuery.getQueryId(), runningQuery.getHost(), elapsed);
+        } catch (Exception e) {
+            killFailures.increment();
+            log.warn("[query-cancel] kill query error, query_id:{}, host:{}", runningQuery.getQueryId(), runningQuery.getHost(), e);
+        }
+    }
+
+    @Override
+    public String metricsName() {
+        return "ckQueryCancel";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("runningQueries", scopes.stream().mapToInt(each -> each.getRunningQueries().size()).sum());
+        result.put("cancelledRequests", cancelledRequests.sum());
+        result.put("cancelledQueries", cancelledQueries.sum());
+        result.put("killFailures", killFailures.sum());
+        // 被kill的查询原本最多还能运行到SOCKET_TIMEOUT，按此上限估算回收的执行时间
+        result.put("reclaimedMillis", reclaimedMillis.sum());
+        return result;
+    }
+
+    /**
+     * 查询登记，查询结束后close.
+     */
+    @FunctionalInterface
+    public interface Registration extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
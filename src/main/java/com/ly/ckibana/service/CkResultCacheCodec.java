@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONB;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 结果缓存编解码.
+ * v1格式：按列组织(列名只存一份)，重复较多的字符串列做字典编码，JSONB序列化后deflate压缩，base64存储，带版本前缀.
+ * 兼容旧版本直接存储的JSON数组.
+ */
+public final class CkResultCacheCodec {
+
+    private static final String PREFIX_V1 = "ckc1:";
+
+    private static final String SIZE = "s";
+
+    private static final String COLUMNS = "c";
+
+    private static final String ROWS = "r";
+
+    private static final String NAME = "n";
+
+    private static final String VALUES = "v";
+
+    private static final String DICT = "d";
+
+    private static final String INDEXES = "i";
+
+    private CkResultCacheCodec() {
+    }
+
+    /**
+     * 编码.
+     *
+     * @param rows 结果
+     * @return 编码后的字符串
+     */
+    public static String encode(List<JSONObject> rows) {
+        JSONObject payload = new JSONObject();
+        payload.put(SIZE, rows.size());
+        Set<String> columns = rows.isEmpty() ? Set.of() : rows.get(0).keySet();
+        if (rows.stream().allMatch(each -> each.keySet().equals(columns))) {
+            JSONArray encodedColumns = new JSONArray(columns.size());
+            columns.forEach(column -> encodedColumns.add(encodeColumn(column, rows)));
+            payload.put(COLUMNS, encodedColumns);
+        } else {
+            // 各行列不一致时按行存储
+            payload.put(ROWS, rows);
+        }
+        return PREFIX_V1 + Base64.getEncoder().encodeToString(deflate(JSONB.toBytes(payload)));
+    }
+
+    private static JSONObject encodeColumn(String column, List<JSONObject> rows) {
+        JSONObject result = JSONObject.of(NAME, column);
+        List<Object> values = new ArrayList<>(rows.size());
+        boolean allString = true;
+        for (JSONObject row : rows) {
+            Object value = row.get(column);
+            values.add(value);
+            allString &= value == null || value instanceof String;
+        }
+        if (allString) {
+            Map<Object, Integer> dict = new HashMap<>();
+            int[] indexes = new int[values.size()];
+            for (int i = 0; i < values.size(); i++) {
+                Object value = values.get(i);
+                indexes[i] = value == null ? -1 : dict.computeIfAbsent(value, key -> dict.size());
+            }
+            if (dict.size() * 2 <= values.size()) {
+                Object[] dictValues = new Object[dict.size()];
+                dict.forEach((value, index) -> dictValues[index] = value);
+                result.put(DICT, dictValues);
+                result.put(INDEXES, indexes);
+                return result;
+            }
+        }
+        result.put(VALUES, values);
+        return result;
+    }
+
+    /**
+     * 解码.
+     *
+     * @param value 编码后的字符串
+     * @return 结果，无法识别的格式返回null
+     */
+    public static List<JSONObject> decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.startsWith(PREFIX_V1)) {
+            return decodeV1(inflate(Base64.getDecoder().decode(value.substring(PREFIX_V1.length()))));
+        }
+        if (value.startsWith("[")) {
+            return JSON.parseArray(value).toJavaList(JSONObject.class);
+        }
+        return null;
+    }
+
+    private static List<JSONObject> decodeV1(byte[] bytes) {
+        JSONObject payload = JSONB.parseObject(bytes);
+        if (payload.containsKey(ROWS)) {
+            return payload.getJSONArray(ROWS).toJavaList(JSONObject.class);
+        }
+        int size = payload.getIntValue(SIZE);
+        List<JSONObject> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new JSONObject());
+        }
+        JSONArray columns = payload.getJSONArray(COLUMNS);
+        for (int c = 0; c < columns.size(); c++) {
+            JSONObject column = columns.getJSONObject(c);
+            String name = column.getString(NAME);
+            if (column.containsKey(DICT)) {
+                JSONArray dict = column.getJSONArray(DICT);
+                JSONArray indexes = column.getJSONArray(INDEXES);
+                for (int i = 0; i < size; i++) {
+                    int index = indexes.getIntValue(i);
+                    result.get(i).put(name, index < 0 ? null : dict.get(index));
+                }
+            } else {
+                JSONArray values = column.getJSONArray(VALUES);
+                for (int i = 0; i < size; i++) {
+                    result.get(i).put(name, values.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        try (InflaterInputStream input = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            return input.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -16,10 +16,14 @@
 package com.ly.ckibana.service;
 
 import com.alibaba.fastjson2.JSONObject;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.ly.ckibana.configure.config.ProxyConfigLoader;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.constants.SqlConstants;
-import com.ly.ckibana.model.property.KibanaProperty;
+import com.ly.ckibana.model.compute.Range;
 import com.ly.ckibana.model.property.MetadataConfigProperty;
 import com.ly.ckibana.model.property.QueryProperty;
 import com.ly.ckibana.model.request.RequestContext;
@@ -31,20 +35,41 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
 
 /**
  * 缓存服务.
+ * 两级缓存：本地W-TinyLFU缓存(按单元格数加权淘汰、写入后过期)在前，es缓存索引在后，es命中后回填本地.
+ * 写入es为异步write-behind：有界队列+批量_bulk，同一key在队列中只保留一份，队列满时丢弃.
+ * es中的结果由CkResultCacheCodec压缩编码，超过cacheMaxEncodedBytes的结果不写入es.
+ * 缓存时长按查询时间范围区分：已不再变化的历史数据使用长ttl，涉及近期数据的使用短ttl.
+ * es缓存按天写入索引，读取时查询ttl覆盖的各天索引.
  */
 @Slf4j
 @Service
 @Data
-public class CkResultCacheService {
+public class CkResultCacheService implements MetricsProvider {
+
+    private static final int WRITE_BATCH_SIZE = 100;
+
+    private static final long SECONDS_PER_DAY = 86400;
+
+    /**
+     * es缓存读取失败后暂停读取的时长，单位ms.
+     */
+    private static final long READ_FAILURE_BACKOFF_MILLIS = 30000;
 
     private String indexName = Constants.ConfigFile.CACHE_INDEX_NAME;
 
@@ -52,6 +77,49 @@ public class CkResultCacheService {
 
     private Integer majorVersion;
 
+    private volatile LocalCache localCache;
+
+    private final LongAdder esHitCount = new LongAdder();
+
+    private final LongAdder esMissCount = new LongAdder();
+
+    private final LongAdder expiredCount = new LongAdder();
+
+    private final LongAdder staleCount = new LongAdder();
+
+    private final LongAdder prefetchCount = new LongAdder();
+
+    private final LongAdder prefetchKeyCount = new LongAdder();
+
+    private final LongAdder prefetchHitCount = new LongAdder();
+
+    /**
+     * es缓存读取失败后，在此时间前不再读取es，按未命中处理.
+     */
+    private volatile long readSuspendedUntil;
+
+    private final LongAdder readSkipCount = new LongAdder();
+
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder writeCount = new LongAdder();
+
+    private final LongAdder writeDedupCount = new LongAdder();
+
+    private final LongAdder writeDropCount = new LongAdder();
+
+    private final LongAdder writeFailCount = new LongAdder();
+
+    private final LongAdder writeOversizeCount = new LongAdder();
+
+    private final LongAdder encodedBytes = new LongAdder();
+
+    private final LongAdder decodeCount = new LongAdder();
+
+    private final LongAdder decodeNanos = new LongAdder();
+
+    private LinkedBlockingQueue<PendingWrite> writeQueue;
+
     @Resource
     private MetadataConfigProperty metadataConfigProperty;
 
@@ -63,53 +131,464 @@ public class CkResultCacheService {
         if (!proxyConfigLoader.isUtEnv()) {
             requestContext = RestUtils.createRequestContext(metadataConfigProperty.getHosts(), metadataConfigProperty.getHeaders());
             majorVersion = proxyConfigLoader.getMajorVersion();
+            writeQueue = new LinkedBlockingQueue<>(Math.max(1, proxyConfigLoader.getKibanaProperty().getQuery().getCacheWriteQueueSize()));
         }
 
     }
 
-    public void put(String key, List<JSONObject> value) {
-        if (key.contains(SqlConstants.SYSTEM_TABLE) || !proxyConfigLoader.getKibanaProperty().getQuery().isUseCache()) {
+    /**
+     * 是否需要缓存该查询.
+     *
+     * @param key sql
+     * @return 是否缓存
+     */
+    public boolean isCacheable(String key) {
+        return !key.contains(SqlConstants.SYSTEM_TABLE) && proxyConfigLoader.getKibanaProperty().getQuery().isUseCache();
+    }
+
+    /**
+     * 按查询的时间范围计算缓存时长.
+     * 结束时间早于(当前时间-数据写入延迟)的范围视为不再变化，使用长ttl；涉及近期数据的使用短ttl.
+     *
+     * @param timeRange 时间范围，可为null
+     * @return ttl，单位ms，0表示不缓存
+     */
+    public long resolveTtlMillis(Range timeRange) {
+        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        long ttlSeconds = isImmutable(timeRange) ? queryProperty.getCacheHistoricalTtlSeconds() : queryProperty.getCacheRecentTtlSeconds();
+        return Math.max(0, ttlSeconds) * 1000;
+    }
+
+    /**
+     * 时间范围内的数据是否已不再变化.
+     *
+     * @param timeRange 时间范围，可为null
+     * @return boolean
+     */
+    public boolean isImmutable(Range timeRange) {
+        return timeRange != null && timeRange.getHigh() instanceof Long high
+                && high < System.currentTimeMillis() - proxyConfigLoader.getKibanaProperty().getQuery().getCacheIngestionLagMillis();
+    }
+
+    /**
+     * 写入缓存，本地立即生效，es异步写入.
+     *
+     * @param key       sql
+     * @param value     结果
+     * @param ttlMillis 缓存时长，不大于0时不缓存
+     */
+    public void put(String key, List<JSONObject> value, long ttlMillis) {
+        if (!isCacheable(key) || ttlMillis <= 0) {
             return;
         }
-        if (!containsKey(key)) {
-            synchronized (this) {
-                if (!containsKey(key)) {
-                    long startTime = System.currentTimeMillis();
-                    long cost = Duration.between(Instant.ofEpochMilli(startTime), Instant.ofEpochMilli(System.currentTimeMillis())).toMillis();
-                    EsClientUtil.saveOne(requestContext.getProxyConfig().getRestClient(), Utils.getIndexName(indexName, Constants.DATE_FORMAT_DEFAULT),
-                            Utils.toUuid(key), buildBulkBody(key, value), majorVersion);
-                    log.info("[cache-add][{}ms] key={}, uuid={}", cost, key, Utils.toUuid(key));
-                }
+        long now = System.currentTimeMillis();
+        CacheEntry entry = new CacheEntry(value, now, now + ttlMillis);
+        Cache<String, CacheEntry> cache = getLocalCache();
+        if (cache != null && cache.asMap().putIfAbsent(key, entry) != null) {
+            return;
+        }
+        if (writeQueue == null) {
+            return;
+        }
+        if (!pendingKeys.add(key)) {
+            writeDedupCount.increment();
+            return;
+        }
+        if (!writeQueue.offer(new PendingWrite(key, entry))) {
+            pendingKeys.remove(key);
+            writeDropCount.increment();
+            log.warn("[cache-add] write queue is full, drop key={}", key);
+        }
+    }
+
+    /**
+     * 后台批量写入es缓存索引，常驻运行.
+     */
+    public void asyncWriteBehind() {
+        if (proxyConfigLoader.isUtEnv()) {
+            return;
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                flushWriteQueue(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 从写入队列取出一批写入es，队列为空时最多等待pollMillis.
+     *
+     * @param pollMillis 等待时间，单位ms
+     * @return 取出的数量
+     * @throws InterruptedException 等待被中断
+     */
+    int flushWriteQueue(long pollMillis) throws InterruptedException {
+        PendingWrite first = writeQueue.poll(pollMillis, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return 0;
+        }
+        List<PendingWrite> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+        batch.add(first);
+        writeQueue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+        try {
+            writeBatch(batch);
+        } catch (Exception e) {
+            writeFailCount.add(batch.size());
+            log.error("[cache-add] write cache to es error", e);
+        } finally {
+            batch.forEach(each -> pendingKeys.remove(each.key));
+        }
+        return batch.size();
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        long startTime = System.currentTimeMillis();
+        long maxEncodedBytes = proxyConfigLoader.getKibanaProperty().getQuery().getCacheMaxEncodedBytes();
+        List<Map<String, Object>> dataList = new ArrayList<>(batch.size());
+        for (PendingWrite each : batch) {
+            String value = CkResultCacheCodec.encode(each.entry.rows);
+            if (maxEncodedBytes > 0 && value.length() > maxEncodedBytes) {
+                writeOversizeCount.increment();
+                continue;
             }
+            encodedBytes.add(value.length());
+            dataList.add(buildBulkBody(each.key, value, each.entry));
         }
+        if (dataList.isEmpty()) {
+            return;
+        }
+        String response = saveBatch(Utils.getIndexName(indexName, Constants.DATE_FORMAT_DEFAULT), dataList);
+        if (response == null || response.contains("\"errors\":true")) {
+            writeFailCount.add(dataList.size());
+        } else {
+            writeCount.add(dataList.size());
+        }
+        log.info("[cache-add][{}ms] batch size={}", System.currentTimeMillis() - startTime, dataList.size());
     }
 
+    /**
+     * 查询缓存，依次读本地、es，es命中后回填本地.
+     * 本地缓存的行被多个请求共享，返回浅拷贝，调用方可修改.
+     *
+     * @param key sql
+     * @return 缓存的结果，未命中时为null
+     */
     public List<JSONObject> get(String key) {
-        JSONObject sourceObj = EsClientUtil.getSource(requestContext.getProxyConfig().getRestClient(), Utils.getIndexName(indexName, Constants.DATE_FORMAT_DEFAULT), key);
-        if (sourceObj != null) {
-            return sourceObj.getJSONArray("value").toJavaList(JSONObject.class);
+        return get(key, writtenAt -> false);
+    }
+
+    /**
+     * 查询缓存，写入时间被判定为过期的结果视为未命中并失效.
+     *
+     * @param key     sql
+     * @param isStale 按缓存写入时间(ms)判断是否过期
+     * @return 缓存的结果，未命中时为null
+     */
+    public List<JSONObject> get(String key, LongPredicate isStale) {
+        if (!isCacheable(key)) {
+            return null;
+        }
+        Cache<String, CacheEntry> cache = getLocalCache();
+        CacheEntry entry = cache == null ? null : cache.getIfPresent(key);
+        if (entry == null) {
+            entry = getFromEs(key);
+            if (entry == null) {
+                esMissCount.increment();
+                return null;
+            }
+            esHitCount.increment();
+            if (cache != null) {
+                cache.put(key, entry);
+            }
+        }
+        if (isStale.test(entry.writtenAt)) {
+            staleCount.increment();
+            if (cache != null) {
+                cache.invalidate(key);
+            }
+            return null;
+        }
+        return entry.rows.stream().map(JSONObject::new).toList();
+    }
+
+    /**
+     * 批量预取es缓存到本地缓存，一次_mget，之后的get直接命中本地.
+     * 未开启本地缓存时不预取.
+     *
+     * @param keys sql
+     * @return 命中数量
+     */
+    public int prefetch(Collection<String> keys) {
+        Cache<String, CacheEntry> cache = getLocalCache();
+        if (cache == null || requestContext == null) {
+            return 0;
+        }
+        List<String> missingKeys = keys.stream().filter(this::isCacheable).distinct().filter(key -> !cache.asMap().containsKey(key)).toList();
+        if (missingKeys.isEmpty()) {
+            return 0;
+        }
+        long startTime = System.currentTimeMillis();
+        if (isReadSuspended(startTime)) {
+            return 0;
+        }
+        Map<String, List<JSONObject>> sources = readSources(missingKeys);
+        int hits = 0;
+        for (Map.Entry<String, List<JSONObject>> each : sources.entrySet()) {
+            CacheEntry entry = toCacheEntry(each.getValue());
+            if (entry != null) {
+                cache.asMap().putIfAbsent(each.getKey(), entry);
+                hits++;
+            }
+        }
+        prefetchCount.increment();
+        prefetchKeyCount.add(missingKeys.size());
+        prefetchHitCount.add(hits);
+        log.info("[cache-mget][{}ms] batch size={}, hit={}", System.currentTimeMillis() - startTime, missingKeys.size(), hits);
+        return hits;
+    }
+
+    String saveBatch(String index, List<Map<String, Object>> dataList) {
+        return EsClientUtil.saveBatch(requestContext.getProxyConfig().getRestClient(), index, dataList, majorVersion);
+    }
+
+    Map<String, List<JSONObject>> mgetSources(List<String> indexNames, Collection<String> keys) throws Exception {
+        return EsClientUtil.mgetSources(requestContext.getProxyConfig().getRestClient(), indexNames, keys);
+    }
+
+    /**
+     * 可能存有未过期缓存的按天索引，从当天起向前覆盖最长的ttl.
+     * 写入只写当天索引，前一天写入的长ttl缓存跨天后仍需从前一天的索引读取.
+     *
+     * @param today 当天
+     * @return 索引，由新到旧
+     */
+    List<String> readIndexNames(LocalDate today) {
+        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        long maxTtlSeconds = Math.max(queryProperty.getCacheHistoricalTtlSeconds(), queryProperty.getCacheRecentTtlSeconds());
+        long days = Math.max(1, (maxTtlSeconds + SECONDS_PER_DAY - 1) / SECONDS_PER_DAY);
+        List<String> result = new ArrayList<>();
+        for (long i = 0; i <= days; i++) {
+            result.add(Utils.getIndexName(indexName, Constants.DATE_FORMAT_DEFAULT, today.minusDays(i)));
+        }
+        return result;
+    }
+
+    private CacheEntry getFromEs(String key) {
+        if (isReadSuspended(System.currentTimeMillis())) {
+            return null;
+        }
+        List<JSONObject> sources = readSources(List.of(key)).get(key);
+        return sources == null ? null : toCacheEntry(sources);
+    }
+
+    /**
+     * 从es批量读取缓存.读取失败时暂停读取一段时间，期间按未命中处理，避免每个请求都先等待一次失败的_mget.
+     *
+     * @param keys sql
+     * @return key-各索引中的_source
+     */
+    private Map<String, List<JSONObject>> readSources(Collection<String> keys) {
+        try {
+            return mgetSources(readIndexNames(LocalDate.now()), keys);
+        } catch (Exception e) {
+            readSuspendedUntil = System.currentTimeMillis() + READ_FAILURE_BACKOFF_MILLIS;
+            log.warn("[cache-mget] read es cache error, skip reading es cache for {}ms, error:{}", READ_FAILURE_BACKOFF_MILLIS, e.getMessage());
+            return Map.of();
+        }
+    }
+
+    private boolean isReadSuspended(long now) {
+        if (now < readSuspendedUntil) {
+            readSkipCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 取最新的未过期缓存.
+     */
+    private CacheEntry toCacheEntry(List<JSONObject> sources) {
+        for (JSONObject each : sources) {
+            CacheEntry entry = toCacheEntry(each);
+            if (entry != null) {
+                return entry;
+            }
         }
         return null;
     }
 
-    public boolean containsKey(String key) {
-        // 如果不使用缓存，则不进行查询
-        if (key.contains(SqlConstants.SYSTEM_TABLE) || !proxyConfigLoader.getKibanaProperty().getQuery().isUseCache()) {
-            return false;
+    private CacheEntry toCacheEntry(JSONObject sourceObj) {
+        long writtenAt = sourceObj.getLongValue("timestamp");
+        // 旧版本写入的缓存没有过期时间，按近期数据的ttl处理
+        long expireAt = sourceObj.containsKey("expireAt") ? sourceObj.getLongValue("expireAt")
+                : writtenAt + proxyConfigLoader.getKibanaProperty().getQuery().getCacheRecentTtlSeconds() * 1000;
+        if (expireAt <= System.currentTimeMillis()) {
+            expiredCount.increment();
+            return null;
+        }
+        long startTime = System.nanoTime();
+        List<JSONObject> rows = CkResultCacheCodec.decode(sourceObj.getString("value"));
+        decodeNanos.add(System.nanoTime() - startTime);
+        decodeCount.increment();
+        return rows == null ? null : new CacheEntry(rows, writtenAt, expireAt);
+    }
+
+    /**
+     * 获取本地缓存，配置变更后重建，未开启时为null.
+     */
+    private Cache<String, CacheEntry> getLocalCache() {
+        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        if (queryProperty.getLocalCacheMaxWeight() <= 0) {
+            return null;
+        }
+        LocalCache current = localCache;
+        if (current == null || !current.matches(queryProperty)) {
+            synchronized (this) {
+                current = localCache;
+                if (current == null || !current.matches(queryProperty)) {
+                    current = new LocalCache(queryProperty.getLocalCacheMaxWeight(), queryProperty.getLocalCacheTtlSeconds());
+                    localCache = current;
+                    log.info("[cache-local] build local cache, maxWeight:{}, ttl:{}s", current.maxWeight, current.ttlSeconds);
+                }
+            }
         }
-        Boolean useCache = Optional.ofNullable(proxyConfigLoader.getKibanaProperty())
-                .map(KibanaProperty::getQuery)
-                .map(QueryProperty::isUseCache)
-                .orElse(false);
-        return useCache && get(key) != null;
+        return current.cache;
     }
 
-    private Map<String, Object> buildBulkBody(String key, List<JSONObject> value) {
-        Map<String, Object> map = new HashMap<>(3);
+    private Map<String, Object> buildBulkBody(String key, String value, CacheEntry entry) {
+        Map<String, Object> map = new HashMap<>(8);
+        map.put("id", Utils.toUuid(key));
         map.put("key", key);
-        map.put("value", value.toString());
-        map.put("timestamp", System.currentTimeMillis());
+        map.put("value", value);
+        map.put("timestamp", entry.writtenAt);
+        map.put("expireAt", entry.expireAt);
         return map;
     }
 
+    @Override
+    public String metricsName() {
+        return "ckResultCache";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        LocalCache current = localCache;
+        CacheStats stats = current == null ? CacheStats.empty() : current.cache.stats();
+        long esHits = esHitCount.sum();
+        long esRequests = esHits + esMissCount.sum();
+        long requests = stats.requestCount();
+        result.put("localSize", current == null ? 0 : current.cache.estimatedSize());
+        result.put("localWeight", current == null ? 0 : current.cache.policy().eviction().map(each -> each.weightedSize().orElse(0)).orElse(0L));
+        result.put("localHitCount", stats.hitCount());
+        result.put("localHitRate", stats.hitRate());
+        result.put("localEvictionCount", stats.evictionCount());
+        result.put("esHitCount", esHits);
+        result.put("esHitRate", esRequests == 0 ? 0D : (double) esHits / esRequests);
+        result.put("hitRate", requests == 0 ? 0D : (double) (stats.hitCount() + esHits) / requests);
+        result.put("esExpiredCount", expiredCount.sum());
+        result.put("staleCount", staleCount.sum());
+        long prefetchKeys = prefetchKeyCount.sum();
+        result.put("prefetchCount", prefetchCount.sum());
+        result.put("prefetchKeyCount", prefetchKeys);
+        result.put("prefetchHitRate", prefetchKeys == 0 ? 0D : (double) prefetchHitCount.sum() / prefetchKeys);
+        result.put("readSkipCount", readSkipCount.sum());
+        result.put("writeQueueSize", writeQueue == null ? 0 : writeQueue.size());
+        result.put("writeCount", writeCount.sum());
+        result.put("writeDedupCount", writeDedupCount.sum());
+        result.put("writeDropCount", writeDropCount.sum());
+        result.put("writeFailCount", writeFailCount.sum());
+        long writes = writeCount.sum() + writeFailCount.sum();
+        long decodes = decodeCount.sum();
+        result.put("writeOversizeCount", writeOversizeCount.sum());
+        result.put("encodedBytesTotal", encodedBytes.sum());
+        result.put("encodedBytesAvg", writes == 0 ? 0D : (double) encodedBytes.sum() / writes);
+        result.put("decodeCount", decodes);
+        result.put("decodeMillisAvg", decodes == 0 ? 0D : decodeNanos.sum() / 1e6 / decodes);
+        return result;
+    }
+
+    /**
+     * 待写入es的缓存.
+     */
+    private static class PendingWrite {
+
+        private final String key;
+
+        private final CacheEntry entry;
+
+        PendingWrite(String key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * 缓存的结果及其写入、过期时间.
+     */
+    private static class CacheEntry {
+
+        private final List<JSONObject> rows;
+
+        private final long writtenAt;
+
+        private final long expireAt;
+
+        CacheEntry(List<JSONObject> rows, long writtenAt, long expireAt) {
+            this.rows = rows;
+            this.writtenAt = writtenAt;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 本地缓存及其配置.
+     */
+    private static class LocalCache {
+
+        private final long maxWeight;
+
+        private final long ttlSeconds;
+
+        private final Cache<String, CacheEntry> cache;
+
+        LocalCache(long maxWeight, long ttlSeconds) {
+            this.maxWeight = maxWeight;
+            this.ttlSeconds = ttlSeconds;
+            // 单个结果超过总容量的1/10时权重记为容量上限，写入后立即被淘汰，避免大结果挤出大量热点
+            this.cache = Caffeine.newBuilder()
+                    .maximumWeight(maxWeight)
+                    .weigher((String key, CacheEntry value) -> {
+                        long weight = 1 + value.rows.stream().mapToLong(JSONObject::size).sum();
+                        return (int) Math.min(Integer.MAX_VALUE, weight > maxWeight / 10 ? maxWeight : weight);
+                    })
+                    .expireAfter(new Expiry<String, CacheEntry>() {
+                        @Override
+                        public long expireAfterCreate(String key, CacheEntry value, long currentTime) {
+                            // 本地最多保留ttlSeconds，且不超过结果本身的过期时间
+                            long remainMillis = Math.min(value.expireAt - System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(Math.max(1, ttlSeconds)));
+                            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainMillis));
+                        }
+
+                        @Override
+                        public long expireAfterUpdate(String key, CacheEntry value, long currentTime, long currentDuration) {
+                            return expireAfterCreate(key, value, currentTime);
+                        }
+
+                        @Override
+                        public long expireAfterRead(String key, CacheEntry value, long currentTime, long currentDuration) {
+                            return currentDuration;
+                        }
+                    })
+                    .recordStats()
+                    .build();
+        }
+
+        boolean matches(QueryProperty queryProperty) {
+            return maxWeight == queryProperty.getLocalCacheMaxWeight() && ttlSeconds == queryProperty.getLocalCacheTtlSeconds();
+        }
+    }
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.response.CkRow;
+
+/**
+ * ck查询结果的逐行消费者，行数据到达后即转换为hits或buckets，避免整体物化.
+ */
+@FunctionalInterface
+public interface CkRowConsumer {
+
+    /**
+     * 消费一行结果.
+     *
+     * @param row 行数据，仅在回调内有效，需持有时调用toJSONObject
+     * @throws Exception 异常
+     */
+    void accept(CkRow row) throws Exception;
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 全局ck表结构缓存，key为database.table，value为列名-类型.
+ * 由CkService定期从system.columns批量刷新，未命中时按表加载，出现未知字段时失效.
+ */
+@Slf4j
+@Service
+public class CkSchemaCache implements MetricsProvider {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> lastRefreshTimes = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder invalidateCount = new LongAdder();
+
+    private final LongAdder evictCount = new LongAdder();
+
+    private final LongAdder refreshCount = new LongAdder();
+
+    private final LongAdder refreshFailCount = new LongAdder();
+
+    /**
+     * 获取表结构.
+     *
+     * @param database  数据库
+     * @param table     表
+     * @param ttlMillis 过期时间
+     * @return 列名-类型，未命中或已过期时返回null
+     */
+    public Map<String, String> get(String database, String table, long ttlMillis) {
+        Entry entry = entries.get(buildKey(database, table));
+        if (entry == null || System.currentTimeMillis() - entry.loadedAt > ttlMillis) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return entry.columns;
+    }
+
+    /**
+     * 缓存单表结构，超过上限时淘汰最早加载的表.
+     *
+     * @param database  数据库
+     * @param table     表
+     * @param columns   列名-类型
+     * @param maxTables 最多缓存的表数量
+     * @return 缓存的只读列名-类型
+     */
+    public Map<String, String> put(String database, String table, Map<String, String> columns, int maxTables) {
+        Entry entry = new Entry(Collections.unmodifiableMap(new HashMap<>(columns)), System.currentTimeMillis());
+        String key = buildKey(database, table);
+        if (!entries.containsKey(key)) {
+            evictIfFull(maxTables);
+        }
+        entries.put(key, entry);
+        return entry.columns;
+    }
+
+    /**
+     * 用批量加载的结果替换数据库下的表结构，已删除的表一并移除.
+     *
+     * @param database  数据库
+     * @param tables    表-列名-类型
+     * @param maxTables 最多缓存的表数量
+     */
+    public void putAll(String database, Map<String, Map<String, String>> tables, int maxTables) {
+        String prefix = buildKey(database, "");
+        entries.keySet().removeIf(key -> key.startsWith(prefix) && !tables.containsKey(key.substring(prefix.length())));
+        tables.forEach((table, columns) -> {
+            if (entries.containsKey(buildKey(database, table)) || entries.size() < maxTables) {
+                put(database, table, columns, maxTables);
+            }
+        });
+        refreshCount.increment();
+    }
+
+    /**
+     * 使表结构失效，下次访问时重新加载.
+     *
+     * @param database 数据库
+     * @param table    表
+     */
+    public void invalidate(String database, String table) {
+        if (entries.remove(buildKey(database, table)) != null) {
+            invalidateCount.increment();
+            log.info("[schema-cache] invalidate {}.{}", database, table);
+        }
+    }
+
+    /**
+     * 距上次批量刷新超过间隔且当前没有刷新任务时，占用刷新名额.
+     *
+     * @param database        数据库
+     * @param intervalMillis  刷新间隔
+     * @return 是否需要刷新，为true时调用方刷新后需调用finishRefresh
+     */
+    public boolean tryStartRefresh(String database, long intervalMillis) {
+        AtomicLong lastRefreshTime = lastRefreshTimes.computeIfAbsent(database, key -> new AtomicLong());
+        if (System.currentTimeMillis() - lastRefreshTime.get() < intervalMillis || !refreshing.compareAndSet(false, true)) {
+            return false;
+        }
+        lastRefreshTime.set(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * 批量刷新结束.
+     *
+     * @param success 是否成功
+     */
+    public void finishRefresh(boolean success) {
+        if (!success) {
+            refreshFailCount.increment();
+        }
+        refreshing.set(false);
+    }
+
+    private void evictIfFull(int maxTables) {
+        while (entries.size() >= Math.max(1, maxTables)) {
+            entries.entrySet().stream().min(Comparator.comparingLong(each -> each.getValue().loadedAt))
+                    .ifPresent(oldest -> {
+                        if (entries.remove(oldest.getKey()) != null) {
+                            evictCount.increment();
+                        }
+                    });
+        }
+    }
+
+    private String buildKey(String database, String table) {
+        return database + "." + table;
+    }
+
+    @Override
+    public String metricsName() {
+        return "ckSchemaCache";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        result.put("size", entries.size());
+        result.put("hitCount", hits);
+        result.put("missCount", missCount.sum());
+        result.put("hitRate", total == 0 ? 0D : (double) hits / total);
+        result.put("invalidateCount", invalidateCount.sum());
+        result.put("evictCount", evictCount.sum());
+        result.put("refreshCount", refreshCount.sum());
+        result.put("refreshFailCount", refreshFailCount.sum());
+        return result;
+    }
+
+    private static class Entry {
+
+        private final Map<String, String> columns;
+
+        private final long loadedAt;
+
+        Entry(Map<String, String> columns, long loadedAt) {
+            this.columns = columns;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -16,44 +16,61 @@
 package com.ly.ckibana.service;
 
 import com.alibaba.fastjson2.JSONObject;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.ly.ckibana.configure.config.ProxyConfigLoader;
+import com.ly.ckibana.configure.thread.ThreadPoolConfigurer;
+import com.ly.ckibana.constants.SqlConstants;
+import com.ly.ckibana.model.compute.Range;
 import com.ly.ckibana.model.compute.indexpattern.IndexPattern;
+import com.ly.ckibana.model.enums.CkQueryKind;
 import com.ly.ckibana.model.exception.BlackSqlException;
 import com.ly.ckibana.model.exception.CKNotSupportException;
 import com.ly.ckibana.model.exception.CkSQLException;
+import com.ly.ckibana.model.exception.CkSqlUnsupportedException;
 import com.ly.ckibana.model.exception.DataSourceEmptyException;
+import com.ly.ckibana.model.exception.QueryCancelledException;
 import com.ly.ckibana.model.exception.ResourceExceedException;
 import com.ly.ckibana.model.exception.TooManySimultaneousException;
 import com.ly.ckibana.model.exception.UnKnownFieldException;
 import com.ly.ckibana.model.property.CkProperty;
+import com.ly.ckibana.model.property.QueryProperty;
+import com.ly.ckibana.model.property.QuerySettingsProfile;
 import com.ly.ckibana.model.request.CkRequestContext;
 import com.ly.ckibana.model.request.ProxyConfig;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.util.JSONUtils;
 import com.ly.ckibana.util.ProxyUtils;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.stereotype.Service;
-import ru.yandex.clickhouse.BalancedClickhouseDataSource;
-import ru.yandex.clickhouse.ClickHouseConnection;
-import ru.yandex.clickhouse.ClickHouseConnectionImpl;
+import ru.yandex.clickhouse.ClickHouseStatement;
 import ru.yandex.clickhouse.except.ClickHouseErrorCode;
 import ru.yandex.clickhouse.except.ClickHouseException;
-import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.settings.ClickHouseQueryParam;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryInputStream;
 
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Duration;
 import java.time.Instant;
-import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -69,6 +86,19 @@ public class CkService {
 
     public static final int SLOW_THREAD = 10000;
 
+    private static final String PARTS_MODIFIED_SQL = "SELECT toUInt64(toUnixTimestamp(max(modification_time))) FROM system.parts "
+            + "WHERE database = '%s' AND table = '%s' AND active AND (max_time >= toDateTime(%d) OR max_time = toDateTime(0))";
+
+    private static final int PARTS_CHECK_INTERVAL_SECONDS = 10;
+
+    /**
+     * 表part变更时间的短期缓存，避免每次命中缓存都查询system.parts.
+     */
+    private final Cache<String, Long> partsModifiedCache = Caffeine.newBuilder()
+            .expireAfterWrite(PARTS_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            .maximumSize(10000)
+            .build();
+
     @Resource
     private ProxyConfigLoader proxyConfigLoader;
 
@@ -81,62 +111,55 @@ public class CkService {
     @Resource
     private SqlMonitorService sqlMonitorService;
 
+    @Resource
+    private CkConnectionRegistry ckConnectionRegistry;
+
+    @Resource
+    private CkQueryTracker ckQueryTracker;
+
+    @Resource
+    private CkConcurrencyLimiter ckConcurrencyLimiter;
+
+    @Resource
+    private CkSchemaCache ckSchemaCache;
+
+    @Resource
+    private CkQueryCoalescer ckQueryCoalescer;
+
+    @Resource
+    private ThreadPoolConfigurer threadPoolConfigurer;
+
     public static String getJdbcUrl(String urlTemplate, String database) {
         return String.format("jdbc:clickhouse://%s/%s", urlTemplate, database);
     }
 
-    public static BalancedClickhouseDataSource initDatasource(CkProperty ckProperty) {
-        ClickHouseProperties props = new ClickHouseProperties();
-        props.setUseServerTimeZone(false);
-        props.setUseTimeZone("Asia/Shanghai");
-        props.setSocketTimeout(SOCKET_TIMEOUT);
-        props.setConnectionTimeout(CONNECTION_TIMEOUT);
-        props.setUser(ckProperty.getUser());
-        props.setPassword(ckProperty.getPass());
-        String jdbcUrl = String.format("jdbc:clickhouse://%s/%s", ckProperty.getUrl(), ckProperty.getDefaultCkDatabase());
-        return new BalancedClickhouseDataSource(jdbcUrl, props);
-    }
-
     /**
-     * 获取jdbc,不同集群获取的地址不同.
+     * 获取索引模式所在库的连接池,不同集群获取的地址不同.
      *
      * @param indexPattern 索引模式
-     * @return jdbc地址
+     * @return 连接池
      */
-    public String getJdbcUrl(IndexPattern indexPattern) {
-        if (proxyConfigLoader.getKibanaProperty().getProxy().getCk() == null) {
-            throw new DataSourceEmptyException("clickhouse数据源为空，请检查配置proxy.ck");
-        }
-        String ckUrl = proxyConfigLoader.getKibanaProperty().getProxy().getCk().getUrl();
-        //基于不同集群，用于读数据的ck
-        return getJdbcUrl(ckUrl, indexPattern.getDatabase());
+    private CkConnectionPool getPool(IndexPattern indexPattern) {
+        return ckConnectionRegistry.getPool(proxyConfigLoader.getKibanaProperty().getProxy().getCk(), indexPattern.getDatabase());
     }
 
-    public ClickHouseConnectionImpl getLimitedConnection(String jdbcUrl) throws SQLException {
-        return getConnection(jdbcUrl);
+    private CkConnectionPool getPool(ProxyConfig proxyConfig) {
+        String ckDatabase = proxyConfig.getCkDatabase();
+        if (ckDatabase == null) {
+            throw new DataSourceEmptyException("clickhouse数据源为空，请检查配置proxy.ck");
+        }
+        return ckConnectionRegistry.getPool(proxyConfig.getKibanaItemProperty().getCk(), ckDatabase);
     }
 
     /**
-     * 获取ck连接.
+     * 获取ck集群的所有jdbc地址.
      *
-     * @param jdbcUrl jdbc地址
-     * @return ck连接
-     * @throws SQLException sql异常
+     * @param proxyConfig 代理配置
+     * @return jdbc地址
      */
-    private ClickHouseConnectionImpl getConnection(String jdbcUrl) throws SQLException {
-        CkProperty ckProperty = proxyConfigLoader.getKibanaProperty().getProxy().getCk();
-        if (ckProperty == null) {
-            throw new DataSourceEmptyException("clickhouse数据源为空，请检查配置proxy.ck");
-        }
-        ClickHouseProperties props = new ClickHouseProperties();
-        props.setUseServerTimeZone(false);
-        props.setUseTimeZone(ZoneId.systemDefault().getId());
-        props.setSocketTimeout(SOCKET_TIMEOUT);
-        props.setConnectionTimeout(CONNECTION_TIMEOUT);
-        props.setUser(ckProperty.getUser());
-        props.setPassword(ckProperty.getPass());
-        BalancedClickhouseDataSource dataSource = new BalancedClickhouseDataSource(jdbcUrl, props);
-        return (ClickHouseConnectionImpl) dataSource.getConnection();
+    public List<String> getJdbcUrls(ProxyConfig proxyConfig) {
+        CkConnectionPool pool = getPool(proxyConfig);
+        return pool.getHosts().stream().map(host -> getJdbcUrl(host, pool.getPoolKey().getDatabase())).collect(Collectors.toList());
     }
 
     public List<String> queryTables(ProxyConfig proxyConfig, String tableName) throws Exception {
@@ -176,11 +199,11 @@ public class CkService {
         return Pair.of(tables.stream().map(each -> each.getString("name")).collect(Collectors.toList()), sql);
     }
 
-    public Map<String, String> queryColumns(BalancedClickhouseDataSource clickhouseDataSource, String table) throws Exception {
+    public Map<String, String> queryColumns(ProxyConfig proxyConfig, String table) throws Exception {
         Map<String, String> result = new HashMap<>();
         String sql = String.format("desc `%s`", table);
-        try (ClickHouseConnection connection = clickhouseDataSource.getConnection()) {
-            ResultSet results = query(connection, sql);
+        try (CkConnectionPool.Lease lease = getPool(proxyConfig).lease();
+             ResultSet results = query(lease, sql, ckQueryTracker.buildQueryId(null, sql), Collections.emptyMap())) {
             ResultSetMetaData metaData = results.getMetaData();
             while (results.next()) {
                 Map<String, String> columnMap = new HashMap<>();
@@ -193,21 +216,211 @@ public class CkService {
         }
     }
 
-    private List<JSONObject> queryData(CkRequestContext ckRequestContext, String sql) throws Exception {
-        String jdbcUrl = getJdbcUrl(ckRequestContext.getIndexPattern());
-        try (ClickHouseConnectionImpl connection = getLimitedConnection(jdbcUrl)) {
-            return formatObjectResult(query(connection, sql));
+    /**
+     * 查询表结构，优先读全局缓存，未命中时desc单表并写入缓存.
+     * 距上次批量刷新超过间隔时，异步从system.columns刷新整个库的表结构.
+     *
+     * @param proxyConfig 代理配置
+     * @param table       表
+     * @return 列名-类型，只读
+     * @throws Exception 异常
+     */
+    public Map<String, String> getTableColumns(ProxyConfig proxyConfig, String table) throws Exception {
+        QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        if (queryProperty.getSchemaCacheTtlMillis() <= 0) {
+            return queryColumns(proxyConfig, table);
+        }
+        String database = proxyConfig.getCkDatabase();
+        refreshSchemaCacheAsync(proxyConfig, queryProperty);
+        Map<String, String> columns = ckSchemaCache.get(database, table, queryProperty.getSchemaCacheTtlMillis());
+        if (columns == null) {
+            columns = ckSchemaCache.put(database, table, queryColumns(proxyConfig, table), queryProperty.getSchemaCacheMaxTables());
+        }
+        return columns;
+    }
+
+    /**
+     * 使表结构缓存失效.
+     *
+     * @param proxyConfig 代理配置
+     * @param table       表
+     */
+    public void invalidateTableColumns(ProxyConfig proxyConfig, String table) {
+        ckSchemaCache.invalidate(proxyConfig.getCkDatabase(), table);
+    }
+
+    private void refreshSchemaCacheAsync(ProxyConfig proxyConfig, QueryProperty queryProperty) {
+        String database = proxyConfig.getCkDatabase();
+        ExecutorService executor = threadPoolConfigurer.getCommonExecutor();
+        if (database == null || executor == null || !ckSchemaCache.tryStartRefresh(database, queryProperty.getSchemaRefreshIntervalMillis())) {
+            return;
+        }
+        try {
+            executor.submit(() -> {
+                boolean success = false;
+                try {
+                    ckSchemaCache.putAll(database, queryDatabaseColumns(proxyConfig), queryProperty.getSchemaCacheMaxTables());
+                    success = true;
+                } catch (Exception e) {
+                    log.warn("[schema-cache] refresh columns of database {} error", database, e);
+                } finally {
+                    ckSchemaCache.finishRefresh(success);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ckSchemaCache.finishRefresh(false);
+        }
+    }
+
+    /**
+     * 从system.columns批量查询库下所有表的结构.
+     */
+    private Map<String, Map<String, String>> queryDatabaseColumns(ProxyConfig proxyConfig) throws Exception {
+        Map<String, Map<String, String>> result = new HashMap<>();
+        String sql = String.format("SELECT table, name, type FROM system.columns WHERE database = '%s'", proxyConfig.getCkDatabase());
+        try (CkConnectionPool.Lease lease = getPool(proxyConfig).lease();
+             ResultSet results = query(lease, sql, ckQueryTracker.buildQueryId(null, sql), Collections.emptyMap())) {
+            while (results.next()) {
+                result.computeIfAbsent(results.getString("table"), key -> new HashMap<>()).put(results.getString("name"), results.getString("type"));
+            }
+        }
+        return result;
+    }
+
+    private List<JSONObject> queryData(CkRequestContext ckRequestContext, CkQueryKind queryKind, String sql) throws Exception {
+        List<JSONObject> result = new ArrayList<>();
+        queryData(ckRequestContext, queryKind, sql, row -> result.add(row.toJSONObject()));
+        return result;
+    }
+
+    /**
+     * 查询ck数据，按proxy.ck.resultFormat选择jdbc或RowBinary列式解码.
+     * RowBinary遇到不支持的列类型时回退jdbc.执行前需获取并发许可.
+     */
+    private void queryData(CkRequestContext ckRequestContext, CkQueryKind queryKind, String sql, CkRowConsumer rowConsumer) throws Exception {
+        CkRowConsumer limitedConsumer = buildRowLimitConsumer(rowConsumer);
+        Map<String, String> settings = resolveQuerySettings(ckRequestContext.getIndexPattern(), queryKind);
+        CkQueryScope queryScope = ckRequestContext.getQueryScope();
+        String queryId = ckQueryTracker.buildQueryId(queryScope, sql);
+        CkConnectionPool pool = getPool(ckRequestContext.getIndexPattern());
+        try (CkConcurrencyLimiter.Permit permit = ckConcurrencyLimiter.acquire(proxyConfigLoader.getKibanaProperty().getQuery().getConcurrencyLimit())) {
+            try (CkConnectionPool.Lease lease = pool.lease();
+                 CkQueryTracker.Registration ignored = ckQueryTracker.register(queryScope, queryId, pool, lease.getHost())) {
+                // 读取结果也在execute中，读取时的网络错误同样标记host失败
+                if (!isRowBinaryFormat() || !queryDataByRowBinary(lease, sql, queryId, settings, limitedConsumer)) {
+                    execute(lease, sql, () -> {
+                        ClickHouseStatement statement = lease.getConnection().createStatement();
+                        try (ResultSet resultSet = statement.executeQuery(sql, Map.of(ClickHouseQueryParam.QUERY_ID, queryId), null, settings)) {
+                            consumeResult(resultSet, limitedConsumer);
+                        }
+                        return null;
+                    });
+                }
+                permit.onSuccess();
+            } catch (TooManySimultaneousException e) {
+                permit.onDropped();
+                throw e;
+            } catch (UnKnownFieldException e) {
+                ckSchemaCache.invalidate(ckRequestContext.getIndexPattern().getDatabase(), ckRequestContext.getTableName());
+                throw e;
+            }
         }
     }
 
     private List<JSONObject> queryData(ProxyConfig proxyConfig, String sql) throws Exception {
-        try (ClickHouseConnection connection = proxyConfig.getCkDatasource().getConnection()) {
-            return formatObjectResult(query(connection, sql));
+        List<JSONObject> result = new ArrayList<>();
+        try (CkConnectionPool.Lease lease = getPool(proxyConfig).lease();
+             ResultSet resultSet = query(lease, sql, ckQueryTracker.buildQueryId(null, sql), Collections.emptyMap())) {
+            consumeResult(resultSet, buildRowLimitConsumer(row -> result.add(row.toJSONObject())));
+        }
+        return result;
+    }
+
+    /**
+     * 按索引模式和查询类型合并匹配的settings profile，后匹配的覆盖先匹配的同名setting.
+     *
+     * @param indexPattern 索引模式
+     * @param queryKind    查询类型
+     * @return 附加到查询上的ck settings
+     */
+    Map<String, String> resolveQuerySettings(IndexPattern indexPattern, CkQueryKind queryKind) {
+        List<QuerySettingsProfile> profiles = proxyConfigLoader.getKibanaProperty().getQuery().getSettingsProfiles();
+        if (CollectionUtils.isEmpty(profiles) || queryKind == null) {
+            return Collections.emptyMap();
+        }
+        String uiIndex = indexPattern == null ? null : indexPattern.getUiIndex();
+        Map<String, String> result = new HashMap<>();
+        for (QuerySettingsProfile profile : profiles) {
+            if (profile.getSettings() != null && profile.matches(uiIndex, queryKind)) {
+                result.putAll(profile.getSettings());
+            }
         }
+        return result;
+    }
+
+    private boolean isRowBinaryFormat() {
+        CkProperty ckProperty = proxyConfigLoader.getKibanaProperty().getProxy().getCk();
+        return ckProperty != null && CkProperty.RESULT_FORMAT_ROW_BINARY.equalsIgnoreCase(ckProperty.getResultFormat());
     }
 
-    public Pair<List<JSONObject>, Boolean> queryDataWithCacheAndStatus(CkRequestContext ckRequestContext, String sql) throws Exception {
-        Pair<List<JSONObject>, Boolean> resultAndStatus = Pair.of(new ArrayList<>(), false);
+    /**
+     * 以RowBinaryWithNamesAndTypes格式查询并列式解码.
+     *
+     * @return 是否已处理，列类型不支持时返回false
+     */
+    private boolean queryDataByRowBinary(CkConnectionPool.Lease lease, String sql, String queryId, Map<String, String> settings,
+                                         CkRowConsumer rowConsumer) throws Exception {
+        return execute(lease, sql, () -> {
+            try (ClickHouseRowBinaryInputStream input = lease.getConnection().createStatement()
+                    .executeQueryClickhouseRowBinaryStream(sql, Map.of(ClickHouseQueryParam.QUERY_ID, queryId), settings)) {
+                CkColumnarReader reader = CkColumnarReader.create(input, CkColumnarReader.DEFAULT_BLOCK_SIZE);
+                if (reader == null) {
+                    log.info("[query] rowBinary unsupported column type, fallback to jdbc, sql={}", sql);
+                    return false;
+                }
+                reader.read(rowConsumer);
+                return true;
+            }
+        });
+    }
+
+    public Pair<List<JSONObject>, Boolean> queryDataWithCacheAndStatus(CkRequestContext ckRequestContext, CkQueryKind queryKind, String sql) throws Exception {
+        List<JSONObject> result = new ArrayList<>();
+        boolean cached = queryDataWithCacheAndStatus(ckRequestContext, queryKind, sql, row -> result.add(row.toJSONObject()));
+        return Pair.of(result, cached);
+    }
+
+    /**
+     * 查询ck(优先读缓存)，结果逐行回调rowConsumer，不整体物化.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param queryKind        查询类型，用于匹配settings profile
+     * @param sql              sql
+     * @param rowConsumer      行消费者
+     * @return 是否命中缓存
+     * @throws Exception 异常
+     */
+    public boolean queryDataWithCacheAndStatus(CkRequestContext ckRequestContext, CkQueryKind queryKind, String sql, CkRowConsumer rowConsumer) throws Exception {
+        return queryDataWithStatus(ckRequestContext, queryKind, sql, rowConsumer, true);
+    }
+
+    /**
+     * 查询ck，不读写结果缓存，其余同queryDataWithCacheAndStatus(黑名单、合并执行、监控).
+     * 用于结果由调用方自行切分缓存的场景.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param queryKind        查询类型，用于匹配settings profile
+     * @param sql              sql
+     * @param rowConsumer      行消费者
+     * @throws Exception 异常
+     */
+    public void queryDataSkipCache(CkRequestContext ckRequestContext, CkQueryKind queryKind, String sql, CkRowConsumer rowConsumer) throws Exception {
+        queryDataWithStatus(ckRequestContext, queryKind, sql, rowConsumer, false);
+    }
+
+    private boolean queryDataWithStatus(CkRequestContext ckRequestContext, CkQueryKind queryKind, String sql, CkRowConsumer rowConsumer,
+                                        boolean useCache) throws Exception {
+        boolean cached = false;
         Exception exception = null;
 
         if (ckRequestContext.getTimeRange() != null && blackSqlService.isBlackSql(ckRequestContext.getTimeRange().getDiffMillSeconds(), ckRequestContext.getQuerySqlWithoutTimeRange())) {
@@ -216,12 +429,36 @@ public class CkService {
         long startTime = System.currentTimeMillis();
 
         try {
-            if (ckResultCacheService.containsKey(sql)) {
-                resultAndStatus = Pair.of(ckResultCacheService.get(sql), true);
+            List<JSONObject> cacheValue = useCache ? getCachedResult(ckRequestContext, ckRequestContext.getTimeRange(), sql) : null;
+            QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+            if (cacheValue != null) {
+                for (JSONObject row : cacheValue) {
+                    rowConsumer.accept(CkRow.of(row));
+                }
+                cached = true;
+            } else if (queryProperty.isCoalesceEnabled()) {
+                List<JSONObject> rows = ckQueryCoalescer.execute(ckRequestContext.getIndexPattern().getDatabase() + ":" + sql,
+                        queryProperty.getCoalesceMaxWaiters(), queryProperty.getCoalesceMaxWaitMillis(), () -> {
+                            List<JSONObject> result = queryData(ckRequestContext, queryKind, sql);
+                            if (useCache && ckResultCacheService.isCacheable(sql)) {
+                                ckResultCacheService.put(sql, result, ckResultCacheService.resolveTtlMillis(ckRequestContext.getTimeRange()));
+                            }
+                            return result;
+                        });
+                // 结果被合并的调用方共享，解析时会修改行，逐行浅拷贝
+                for (JSONObject row : rows) {
+                    rowConsumer.accept(CkRow.of(new JSONObject(row)));
+                }
+            } else if (useCache && ckResultCacheService.isCacheable(sql)) {
+                List<JSONObject> newCacheValue = new ArrayList<>();
+                // 解析时会修改行(如hits移除_extension)并持有为响应数据，缓存解析前的浅拷贝
+                queryData(ckRequestContext, queryKind, sql, row -> {
+                    newCacheValue.add(new JSONObject(row.toJSONObject()));
+                    rowConsumer.accept(row);
+                });
+                ckResultCacheService.put(sql, newCacheValue, ckResultCacheService.resolveTtlMillis(ckRequestContext.getTimeRange()));
             } else {
-                List<JSONObject> result = queryData(ckRequestContext, sql);
-                ckResultCacheService.put(sql, result);
-                resultAndStatus = Pair.of(result, false);
+                queryData(ckRequestContext, queryKind, sql, rowConsumer);
             }
         } catch (Exception e) {
             exception = e;
@@ -242,21 +479,65 @@ public class CkService {
         if (exception != null) {
             throw exception;
         }
-        return resultAndStatus;
+        return cached;
+    }
+
+    public List<JSONObject> queryDataWithoutCache(CkRequestContext ckRequestContext, CkQueryKind queryKind, String sql) throws Exception {
+        return queryData(ckRequestContext, queryKind, sql);
+    }
+
+    /**
+     * 读取结果缓存.
+     * 开启cacheValidateByParts时，历史数据的缓存需校验表在缓存写入后没有覆盖该时间范围的part变更(迟到数据、mutation、merge).
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param timeRange        查询的时间范围
+     * @param sql              sql
+     * @return 缓存的结果，未命中时为null
+     */
+    public List<JSONObject> getCachedResult(CkRequestContext ckRequestContext, Range timeRange, String sql) {
+        if (!proxyConfigLoader.getKibanaProperty().getQuery().isCacheValidateByParts() || !ckResultCacheService.isImmutable(timeRange)) {
+            return ckResultCacheService.get(sql);
+        }
+        return ckResultCacheService.get(sql, writtenAt -> isTableModifiedSince(ckRequestContext, timeRange, writtenAt));
     }
 
-    public List<JSONObject> queryDataWithoutCache(CkRequestContext ckRequestContext, String sql) throws Exception {
-        return queryData(ckRequestContext, sql);
+    private boolean isTableModifiedSince(CkRequestContext ckRequestContext, Range timeRange, long writtenAt) {
+        // 开始时间按分钟向下取整，扩大校验范围以复用校验结果
+        long lowSeconds = timeRange.getLow() instanceof Long low ? low / 1000 / 60 * 60 : 0;
+        String sql = String.format(PARTS_MODIFIED_SQL, ckRequestContext.getIndexPattern().getDatabase(), ckRequestContext.getTableName(), lowSeconds);
+        Long modifiedAt = partsModifiedCache.get(sql, key -> queryPartsModifiedAt(ckRequestContext.getIndexPattern(), key));
+        // modification_time精度为秒；校验失败时视为已变更
+        return modifiedAt == null || modifiedAt + 1000 > writtenAt;
+    }
+
+    private Long queryPartsModifiedAt(IndexPattern indexPattern, String sql) {
+        try (CkConnectionPool.Lease lease = getPool(indexPattern).lease();
+             ResultSet resultSet = query(lease, sql, ckQueryTracker.buildQueryId(null, sql), Collections.emptyMap())) {
+            return resultSet.next() ? resultSet.getLong(1) * 1000 : 0L;
+        } catch (Exception e) {
+            log.warn("[cache-validate] query parts modification time error, sql:{}", sql, e);
+            return null;
+        }
+    }
+
+    /**
+     * 查询ck,拦截不同报错.settings作为请求参数附加到本次查询.
+     */
+    private ResultSet query(CkConnectionPool.Lease lease, String sql, String queryId, Map<String, String> settings) throws Exception {
+        return execute(lease, sql, () -> {
+            ClickHouseStatement statement = lease.getConnection().createStatement();
+            return statement.executeQuery(sql, Map.of(ClickHouseQueryParam.QUERY_ID, queryId), null, settings);
+        });
     }
 
     /**
-     * 查询ck,拦截不同报错.
+     * 执行ck请求,记录慢查询并拦截不同报错.网络、连接类错误标记到租约，用于host摘除.
      */
-    private ResultSet query(ClickHouseConnection connection, String sql) throws Exception {
+    private <T> T execute(CkConnectionPool.Lease lease, String sql, SqlCall<T> sqlCall) throws Exception {
         try {
             long begin = System.currentTimeMillis();
-            Statement statement = connection.createStatement();
-            ResultSet result = statement.executeQuery(sql);
+            T result = sqlCall.call();
             long cost = System.currentTimeMillis() - begin;
             if (cost >= SLOW_THREAD) {
                 log.warn("[query][slowQuery][{}ms] sql={}", cost, sql);
@@ -266,6 +547,9 @@ public class CkService {
             return result;
         } catch (ClickHouseException ex) {
             log.error("[query] exception sql: {}", sql, ex);
+            if (isHostFailure(ex)) {
+                lease.markFailed();
+            }
             if (isResourceExceed(ex.getErrorCode())) {
                 throw new ResourceExceedException(ex.getMessage());
             } else if (ex.getErrorCode() == ClickHouseErrorCode.TOO_MUCH_SIMULTANEOUS_QUERIES.code) {
@@ -275,12 +559,19 @@ public class CkService {
                 field = field.replace("Code: 47, e.displayText() = DB::Exception: Missing columns:", "")
                         .replace("'", "").replace(" ", "");
                 throw new UnKnownFieldException(field);
+            } else if (ex.getErrorCode() == ClickHouseErrorCode.QUERY_WAS_CANCELLED.code) {
+                throw new QueryCancelledException(ex.getMessage());
             } else if (ex.getErrorCode() == ClickHouseErrorCode.UNKNOWN_TABLE.code) {
                 throw new CKNotSupportException(ex.getMessage());
+            } else if (isSqlUnsupported(ex.getErrorCode())) {
+                throw new CkSqlUnsupportedException(ex.getMessage());
             } else {
                 throw new CkSQLException(ex.getMessage());
             }
         } catch (Exception ex) {
+            if (isHostFailure(ex)) {
+                lease.markFailed();
+            }
             throw ex;
         }
     }
@@ -288,40 +579,130 @@ public class CkService {
     /**
      * 检查ck结果行是否超过配置.
      *
-     * @param rowCount 行数
+     * @param rowCount     行数
+     * @param maxResultRow 最大行数
      * @throws ResourceExceedException 资源超出异常。
      */
-    private void isResultRowCountExceed(Integer rowCount) throws ResourceExceedException {
-        if (rowCount >= proxyConfigLoader.getKibanaProperty().getQuery().getMaxResultRow()) {
-            throw new ResourceExceedException(String.format("超过代理配置maxResultRow %s", proxyConfigLoader.getKibanaProperty().getQuery().getMaxResultRow()));
+    private void isResultRowCountExceed(int rowCount, int maxResultRow) throws ResourceExceedException {
+        if (rowCount >= maxResultRow) {
+            throw new ResourceExceedException(String.format("超过代理配置maxResultRow %s", maxResultRow));
         }
     }
 
+    /**
+     * 是否为host问题导致的失败，仅网络、socket、连接和POCO错误.
+     * 查询级别的失败(如max_execution_time超时、ck过载拒绝)和取消查询导致的中断不计入.
+     *
+     * @param ex 异常
+     * @return boolean
+     */
+    static boolean isHostFailure(Throwable ex) {
+        for (Throwable each = ex; each != null; each = each.getCause() == each ? null : each.getCause()) {
+            if (each instanceof ClickHouseException clickHouseException) {
+                return isHostFailure(clickHouseException.getErrorCode());
+            }
+            if (each instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (each instanceof IOException && !(each instanceof InterruptedIOException)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHostFailure(int errorCode) {
+        return Arrays.asList(ClickHouseErrorCode.NETWORK_ERROR.code, ClickHouseErrorCode.SOCKET_TIMEOUT.code,
+                ClickHouseErrorCode.ALL_CONNECTION_TRIES_FAILED.code, ClickHouseErrorCode.POCO_EXCEPTION.code).contains(errorCode);
+    }
+
+    /**
+     * 是否为sql语法、函数、setting等不被当前ck版本支持导致的失败.
+     *
+     * @param errorCode ck错误码
+     * @return boolean
+     */
+    static boolean isSqlUnsupported(int errorCode) {
+        return Arrays.asList(ClickHouseErrorCode.SYNTAX_ERROR.code, ClickHouseErrorCode.UNKNOWN_FUNCTION.code,
+                ClickHouseErrorCode.UNKNOWN_AGGREGATE_FUNCTION.code, ClickHouseErrorCode.NOT_IMPLEMENTED.code,
+                ClickHouseErrorCode.UNSUPPORTED_METHOD.code, ClickHouseErrorCode.UNKNOWN_SETTING.code,
+                ClickHouseErrorCode.SUPPORT_IS_DISABLED.code, ClickHouseErrorCode.ILLEGAL_TYPE_OF_ARGUMENT.code,
+                ClickHouseErrorCode.NUMBER_OF_ARGUMENTS_DOESNT_MATCH.code, ClickHouseErrorCode.ILLEGAL_AGGREGATION.code,
+                ClickHouseErrorCode.NOT_AN_AGGREGATE.code, ClickHouseErrorCode.NO_COMMON_TYPE.code,
+                ClickHouseErrorCode.INCORRECT_RESULT_OF_SCALAR_SUBQUERY.code).contains(errorCode);
+    }
+
     private boolean isResourceExceed(int errorCode) {
         return Arrays.asList(ClickHouseErrorCode.MEMORY_LIMIT_EXCEEDED.code, ClickHouseErrorCode.TOO_MUCH_BYTES.code,
                 ClickHouseErrorCode.TOO_MANY_ROWS_OR_BYTES.code, ClickHouseErrorCode.QUOTA_EXPIRED.code).contains(errorCode);
     }
 
     /**
-     * 将ck数据封装为list格式返回.
+     * 包装rowConsumer，超过maxResultRow时中断.
      */
-    private List<JSONObject> formatObjectResult(ResultSet resultSet) throws SQLException, ResourceExceedException {
-        List<JSONObject> result = new ArrayList<>();
+    private CkRowConsumer buildRowLimitConsumer(CkRowConsumer rowConsumer) {
+        int maxResultRow = proxyConfigLoader.getKibanaProperty().getQuery().getMaxResultRow();
+        AtomicInteger rowCount = new AtomicInteger();
+        return row -> {
+            isResultRowCountExceed(rowCount.incrementAndGet(), maxResultRow);
+            rowConsumer.accept(row);
+        };
+    }
+
+    /**
+     * 将jdbc结果逐行转换后交给rowConsumer.
+     * 列名和取值方式只解析一次，按列类型选择取值器.
+     */
+    static void consumeResult(ResultSet resultSet, CkRowConsumer rowConsumer) throws Exception {
         ResultSetMetaData metaData = resultSet.getMetaData();
         int columnCount = metaData.getColumnCount();
+        String[] columnNames = new String[columnCount];
+        ColumnExtractor[] extractors = new ColumnExtractor[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columnNames[i] = metaData.getColumnName(i + 1);
+            extractors[i] = buildColumnExtractor(metaData.getColumnTypeName(i + 1), i + 1);
+        }
         while (resultSet.next()) {
-            JSONObject rowData = new JSONObject();
-            for (int i = 1; i <= columnCount; i++) {
-                if (ProxyUtils.isArrayType(metaData.getColumnTypeName(i))) {
-                    rowData.put(metaData.getColumnName(i), JSONUtils.convert(resultSet.getArray(i).getArray(), List.class));
-                } else {
-                    rowData.put(metaData.getColumnName(i), resultSet.getObject(i));
-                }
+            JSONObject rowData = new JSONObject(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                rowData.put(columnNames[i], extractors[i].extract(resultSet));
             }
-            result.add(rowData);
-            isResultRowCountExceed(result.size());
+            rowConsumer.accept(CkRow.of(rowData));
         }
-        return result;
     }
 
+    private static ColumnExtractor buildColumnExtractor(String columnType, int columnIndex) {
+        if (ProxyUtils.isArrayType(columnType)) {
+            return resultSet -> JSONUtils.convert(resultSet.getArray(columnIndex).getArray(), List.class);
+        }
+        if (ProxyUtils.isString(columnType)) {
+            return resultSet -> resultSet.getString(columnIndex);
+        }
+        String baseType = ProxyUtils.parseCkBaseType(columnType);
+        if (SqlConstants.TYPE_INT64.equals(baseType)) {
+            return resultSet -> resultSet.getObject(columnIndex, Long.class);
+        }
+        if (SqlConstants.TYPE_FLOAT64.equals(baseType)) {
+            return resultSet -> resultSet.getObject(columnIndex, Double.class);
+        }
+        return resultSet -> resultSet.getObject(columnIndex);
+    }
+
+    /**
+     * 单列取值器.
+     */
+    @FunctionalInterface
+    private interface ColumnExtractor {
+
+        Object extract(ResultSet resultSet) throws SQLException;
+    }
+
+    /**
+     * ck请求.
+     */
+    @FunctionalInterface
+    private interface SqlCall<T> {
+
+        T call() throws Exception;
+    }
 }
@@ -34,10 +34,12 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Cancellable;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,11 +49,14 @@ import org.springframework.util.CollectionUtils;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
@@ -103,13 +108,76 @@ public class EsClientUtil {
         return doRequest(restClient, method, uri, headers, params, requestBody, null);
     }
 
-    private static Response performRequest(RestClient readClient, String method, String uri, HttpEntity entity, Header[] basicHeaders, Map<String, String> params) throws Exception {
+    /**
+     * 异步发起es请求，不阻塞调用线程，不透传响应头.
+     * 连接重置时按同步请求的规则延迟重试，返回的future被取消时中止进行中的请求.
+     *
+     * @return 响应体
+     */
+    public static CompletableFuture<String> doRequestAsync(RestClient restClient, String method, String uri, Header[] headers, Map<String, String> params,
+                                                           String requestBody) {
+        HttpEntity entity = null;
+        if (!StringUtils.isEmpty(requestBody)) {
+            entity = new NStringEntity(requestBody, StandardCharsets.UTF_8);
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        performRequestAsync(restClient, buildRequest(method, uri, entity, headers, params), 1, result);
+        return result;
+    }
+
+    private static void performRequestAsync(RestClient restClient, Request request, int attempt, CompletableFuture<String> result) {
+        if (result.isDone()) {
+            return;
+        }
+        Cancellable cancellable = restClient.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                completeWithBody(result, response);
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                if (ex instanceof ResponseException responseException) {
+                    completeWithBody(result, responseException.getResponse());
+                    return;
+                }
+                if (attempt < MAX_RETRIES && ex.getMessage() != null && DEFAULT_RETRY_ERROR_MESSAGE.contains(ex.getMessage())) {
+                    log.warn("[retrying] uri: {}, retry times: {}/{}, reason: {}", request.getEndpoint(), attempt, MAX_RETRIES, ex.getMessage());
+                    CompletableFuture.delayedExecutor(RETRY_DELAY_MS, TimeUnit.MILLISECONDS)
+                            .execute(() -> performRequestAsync(restClient, request, attempt + 1, result));
+                    return;
+                }
+                log.error("performRequestAsync error, uri={}, params={}", request.getEndpoint(), JSONUtils.serialize(request.getParameters()), ex);
+                result.completeExceptionally(ex);
+            }
+        });
+        result.whenComplete((body, ex) -> {
+            if (result.isCancelled()) {
+                cancellable.cancel();
+            }
+        });
+    }
+
+    private static void completeWithBody(CompletableFuture<String> result, Response response) {
+        try {
+            result.complete(response.getEntity() == null ? "" : IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static Request buildRequest(String method, String uri, HttpEntity entity, Header[] basicHeaders, Map<String, String> params) {
         Request request = new Request(method, uri);
         request.setEntity(entity);
         request.setOptions(buildRequestOptions(basicHeaders));
         if (params != null) {
             request.addParameters(params);
         }
+        return request;
+    }
+
+    private static Response performRequest(RestClient readClient, String method, String uri, HttpEntity entity, Header[] basicHeaders, Map<String, String> params) throws Exception {
+        Request request = buildRequest(method, uri, entity, basicHeaders, params);
         return retry(() -> {
             try {
                 return readClient.performRequest(request);
@@ -299,6 +367,38 @@ public class EsClientUtil {
         return null;
     }
 
+    /**
+     * 按key在多个索引中批量获取文档_source，一次_mget，不存在的索引不影响其他索引.
+     *
+     * @param restClient restClient
+     * @param indexNames 索引
+     * @param keys       key，文档id为key的uuid
+     * @return key-各索引中的_source，按indexNames的顺序，未找到的key不包含
+     * @throws Exception 请求es失败
+     */
+    public static Map<String, List<JSONObject>> mgetSources(RestClient restClient, List<String> indexNames, Collection<String> keys) throws Exception {
+        Map<String, String> keyById = new HashMap<>(keys.size() * 2);
+        keys.forEach(key -> keyById.put(Utils.toUuid(key), key));
+        List<Map<String, String>> docs = new ArrayList<>(indexNames.size() * keyById.size());
+        for (String indexName : indexNames) {
+            keyById.keySet().forEach(id -> docs.add(Map.of("_index", indexName, "_id", id)));
+        }
+        Map<String, List<JSONObject>> result = new HashMap<>(keys.size() * 2);
+        String response = doRequest(restClient, HttpMethod.POST.name(), "/_mget", BASE_HEADER, null, JSON.toJSONString(Map.of("docs", docs)));
+        if (StringUtils.isEmpty(response)) {
+            return result;
+        }
+        JSONArray responseDocs = JSONObject.parseObject(response).getJSONArray("docs");
+        for (int i = 0; responseDocs != null && i < responseDocs.size(); i++) {
+            JSONObject doc = responseDocs.getJSONObject(i);
+            String key = keyById.get(doc.getString("_id"));
+            if (key != null && doc.getBooleanValue("found")) {
+                result.computeIfAbsent(key, k -> new ArrayList<>(indexNames.size())).add(doc.getJSONObject("_source"));
+            }
+        }
+        return result;
+    }
+
     public static String deleteSource(RestClient restClient, String indexName, String id) {
         String response = "";
         try {
@@ -362,40 +462,57 @@ public class EsClientUtil {
      * 获取kibana元数据，每个indexpattern的时间字段名称，用于msearch查询
      *
      * @param restClient proxy request client
-     * @return 元数据
+     * @param headers    元数据查询附加的请求头
+     * @param title      indexpattern名称，为null时查询全部
+     * @return 元数据，indexpattern名称-时间字段
+     * @throws Exception 查询异常
      */
-    public static Map<String, String> getIndexPatternMeta(RestClient restClient, Map<String, String> headers) {
-        Map<String, String> result = new HashMap<>();
-        try {
-            Header[] queryHeaders;
-            if (!CollectionUtils.isEmpty(headers)) {
-                queryHeaders = new Header[headers.size() + 1];
-                int index = 0;
-                for (Map.Entry<String, String> item : headers.entrySet()) {
-                    queryHeaders[++index] = new BasicHeader(item.getKey(), item.getValue());
-                }
-                queryHeaders[0] = new BasicHeader("Content-Type", "application/json");
-            } else {
-                queryHeaders = BASE_HEADER;
+    public static Map<String, String> queryIndexPatternMeta(RestClient restClient, Map<String, String> headers, String title) throws Exception {
+        Header[] queryHeaders;
+        if (!CollectionUtils.isEmpty(headers)) {
+            queryHeaders = new Header[headers.size() + 1];
+            int index = 0;
+            for (Map.Entry<String, String> item : headers.entrySet()) {
+                queryHeaders[++index] = new BasicHeader(item.getKey(), item.getValue());
             }
+            queryHeaders[0] = new BasicHeader("Content-Type", "application/json");
+        } else {
+            queryHeaders = BASE_HEADER;
+        }
+
+        String titleFilter = title == null ? "" : ",{\"match_phrase\":{\"index-pattern.title\":" + JSON.toJSONString(title) + "}}";
+        String query = "{\"size\":10000,\"seq_no_primary_term\":true,\"query\":{\"bool\":{\"filter\":[{\"bool\":{\"should\":"
+                       + "[{\"bool\":{\"must\":[{\"term\":{\"type\":\"index-pattern\"}}],\"must_not\":[{\"exists\":{\"field\":\"namespace\"}}]}}],\"minimum_should_match\":1}}"
+                       + titleFilter + "]}}}";
+        String responseBody = doRequest(restClient,
+                HttpMethod.POST.name(), "/" + Constants.KIBANA_META_INDEX + "/_search?ignore_unavailable=true",
+                queryHeaders, null, query);
+        return parseIndexPatternMeta(responseBody, title);
+    }
 
-            String query = "{\"size\":10000,\"seq_no_primary_term\":true,\"query\":{\"bool\":{\"filter\":[{\"bool\":{\"should\":"
-                           + "[{\"bool\":{\"must\":[{\"term\":{\"type\":\"index-pattern\"}}],\"must_not\":[{\"exists\":{\"field\":\"namespace\"}}]}}],\"minimum_should_match\":1}}]}}}";
-            String responseBody = doRequest(restClient,
-                    HttpMethod.POST.name(), "/" + Constants.KIBANA_META_INDEX + "/_search?ignore_unavailable=true",
-                    queryHeaders, null, query);
-            JSONObject responseObj = JSONObject.parse(responseBody);
-            if (responseObj.containsKey(Constants.HIT) && responseObj.getJSONObject(Constants.HIT).containsKey(Constants.HIT)) {
-                JSONArray array = responseObj.getJSONObject(Constants.HIT).getJSONArray(Constants.HIT);
-                for (int i = 0; i < array.size(); i++) {
-                    JSONObject item = array.getJSONObject(i).getJSONObject(Constants.SOURCE).getJSONObject(Constants.INDEX_PATTERN);
-                    String key = item.getString("title");
-                    String timeField = item.getString("timeFieldName");
-                    result.put(key, timeField);
+    /**
+     * 解析indexpattern查询结果.超时或部分分片失败的结果不完整，按失败处理，避免用不完整的结果替换缓存.
+     *
+     * @param responseBody 查询结果
+     * @param title        indexpattern名称，为null时为全部
+     * @return indexpattern名称-时间字段
+     */
+    static Map<String, String> parseIndexPatternMeta(String responseBody, String title) {
+        JSONObject responseObj = JSONObject.parse(responseBody);
+        if (responseObj == null || responseObj.getBooleanValue("timed_out")
+                || responseObj.containsKey("_shards") && responseObj.getJSONObject("_shards").getIntValue("failed") > 0) {
+            throw new IllegalStateException("incomplete index pattern response: " + StringUtils.abbreviate(responseBody, 200));
+        }
+        Map<String, String> result = new HashMap<>();
+        if (responseObj.containsKey(Constants.HIT) && responseObj.getJSONObject(Constants.HIT).containsKey(Constants.HIT)) {
+            JSONArray array = responseObj.getJSONObject(Constants.HIT).getJSONArray(Constants.HIT);
+            for (int i = 0; i < array.size(); i++) {
+                JSONObject item = array.getJSONObject(i).getJSONObject(Constants.SOURCE).getJSONObject(Constants.INDEX_PATTERN);
+                String key = item.getString("title");
+                if (title == null || title.equals(key)) {
+                    result.put(key, item.getString("timeFieldName"));
                 }
             }
-        } catch (Exception ex) {
-            log.error("getIndexPatternEsMeta", ex);
         }
         return result;
     }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.configure.config.ProxyConfigLoader;
+import com.ly.ckibana.model.property.MetadataConfigProperty;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.RestClient;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * kibana indexpattern元数据缓存.
+ * 后台定期全量加载indexpattern的时间字段，以不可变快照整体替换；快照中不存在的indexpattern单独查询后追加.
+ */
+@Slf4j
+@Service
+public class IndexPatternMetaService implements MetricsProvider {
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder refreshCount = new LongAdder();
+
+    private final LongAdder refreshFailCount = new LongAdder();
+
+    @Resource
+    private ProxyConfigLoader proxyConfigLoader;
+
+    @Resource
+    private MetadataConfigProperty metadataConfigProperty;
+
+    /**
+     * 获取indexpattern的时间字段.
+     *
+     * @param restClient es client
+     * @param title      indexpattern名称
+     * @return 时间字段，未设置或不存在时为null
+     */
+    public String getTimeField(RestClient restClient, String title) {
+        Snapshot current = snapshot.get();
+        if (current == null) {
+            current = refresh(restClient);
+        }
+        if (current != null && current.timeFields.containsKey(title)) {
+            hitCount.increment();
+            return current.timeFields.get(title);
+        }
+        missCount.increment();
+        return lookup(restClient, title);
+    }
+
+    /**
+     * 快照中不存在时单独查询，结果追加到快照.查询失败时不记录，下次请求重新查询.
+     */
+    private String lookup(RestClient restClient, String title) {
+        try {
+            Map<String, String> result = queryTimeFields(restClient, title);
+            // 不存在的indexpattern同样记入快照，直到下次全量刷新
+            snapshot.updateAndGet(current -> current == null ? null : current.with(title, result.get(title)));
+            return result.get(title);
+        } catch (Exception e) {
+            log.warn("[index-pattern-meta] lookup {} error:{}", title, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 距上次全量加载超过间隔时刷新，由定时任务调用.刷新失败时保留旧快照.
+     */
+    public void refreshIfStale() {
+        if (proxyConfigLoader.getConfig() == null) {
+            return;
+        }
+        Snapshot current = snapshot.get();
+        long intervalMillis = proxyConfigLoader.getKibanaProperty().getQuery().getIndexPatternMetaRefreshMillis();
+        if (current == null || System.currentTimeMillis() - current.loadedAt >= intervalMillis) {
+            refresh(proxyConfigLoader.getConfig().getRestClient());
+        }
+    }
+
+    /**
+     * 全量加载并替换快照，失败时保留旧快照.
+     *
+     * @param restClient es client
+     * @return 当前快照
+     */
+    public Snapshot refresh(RestClient restClient) {
+        long begin = System.currentTimeMillis();
+        try {
+            Map<String, String> timeFields = queryTimeFields(restClient, null);
+            long cost = System.currentTimeMillis() - begin;
+            Snapshot newSnapshot = new Snapshot(Collections.unmodifiableMap(timeFields), System.currentTimeMillis(), cost);
+            snapshot.set(newSnapshot);
+            refreshCount.increment();
+            log.debug("[index-pattern-meta] refreshed {} index patterns, cost {}ms", timeFields.size(), cost);
+            return newSnapshot;
+        } catch (Exception e) {
+            refreshFailCount.increment();
+            log.warn("[index-pattern-meta] refresh error, keep last snapshot, error:{}", e.getMessage());
+            return snapshot.get();
+        }
+    }
+
+    /**
+     * 从es查询indexpattern的时间字段.
+     *
+     * @param restClient es client
+     * @param title      indexpattern名称，为null时查询全部
+     * @return indexpattern名称-时间字段
+     * @throws Exception 异常
+     */
+    Map<String, String> queryTimeFields(RestClient restClient, String title) throws Exception {
+        return EsClientUtil.queryIndexPatternMeta(restClient, metadataConfigProperty.getHeaders(), title);
+    }
+
+    @Override
+    public String metricsName() {
+        return "indexPatternMeta";
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        Snapshot current = snapshot.get();
+        result.put("size", current == null ? 0 : current.timeFields.size());
+        result.put("stalenessMillis", current == null ? -1 : System.currentTimeMillis() - current.loadedAt);
+        result.put("lastRefreshCostMillis", current == null ? -1 : current.costMillis);
+        result.put("refreshCount", refreshCount.sum());
+        result.put("refreshFailCount", refreshFailCount.sum());
+        result.put("hitCount", hitCount.sum());
+        result.put("missCount", missCount.sum());
+        return result;
+    }
+
+    /**
+     * 元数据快照，indexpattern名称-时间字段.
+     */
+    public static class Snapshot {
+
+        private final Map<String, String> timeFields;
+
+        private final long loadedAt;
+
+        private final long costMillis;
+
+        Snapshot(Map<String, String> timeFields, long loadedAt, long costMillis) {
+            this.timeFields = timeFields;
+            this.loadedAt = loadedAt;
+            this.costMillis = costMillis;
+        }
+
+        Snapshot with(String title, String timeField) {
+            Map<String, String> newTimeFields = new HashMap<>(timeFields);
+            newTimeFields.put(title, timeField);
+            return new Snapshot(Collections.unmodifiableMap(newTimeFields), loadedAt, costMillis);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import java.util.Map;
+
+/**
+ * 运行指标提供者，由/proxy/_metrics统一输出.
+ */
+public interface MetricsProvider {
+
+    /**
+     * 指标分组名称.
+     *
+     * @return 名称
+     */
+    String metricsName();
+
+    /**
+     * 当前指标快照.
+     *
+     * @return 指标名->指标值
+     */
+    Map<String, Object> metrics();
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+
+/**
+ * 带缓冲的RowBinary小端读取器.
+ * 驱动的ClickHouseRowBinaryInputStream逐字节读取底层流，这里取出其底层流按块读取，取不到时退化为逐字节读取.
+ */
+@Slf4j
+class RowBinaryInput {
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private static final Field RAW_STREAM_FIELD = findRawStreamField();
+
+    private final InputStream input;
+
+    private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    RowBinaryInput(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * 从驱动的RowBinary流构建读取器，列头已由驱动读取.
+     *
+     * @param stream 驱动的RowBinary流
+     * @return RowBinaryInput
+     */
+    static RowBinaryInput of(ClickHouseRowBinaryInputStream stream) {
+        if (RAW_STREAM_FIELD != null) {
+            try {
+                return new RowBinaryInput((InputStream) RAW_STREAM_FIELD.get(stream));
+            } catch (IllegalAccessException e) {
+                log.warn("read raw stream of ClickHouseRowBinaryInputStream error", e);
+            }
+        }
+        return new RowBinaryInput(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return stream.readByte();
+                } catch (EOFException e) {
+                    return -1;
+                }
+            }
+        });
+    }
+
+    private static Field findRawStreamField() {
+        try {
+            Field field = ClickHouseRowBinaryInputStream.class.getDeclaredField("in");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("ClickHouseRowBinaryInputStream raw stream not accessible, fallback to byte reading", e);
+            return null;
+        }
+    }
+
+    /**
+     * 是否还有数据.
+     *
+     * @return 是否还有数据
+     * @throws IOException io异常
+     */
+    boolean hasRemaining() throws IOException {
+        return position < limit || fill() > 0;
+    }
+
+    private int fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * 保证缓冲区中至少有length字节可读.
+     *
+     * @param length 字节数
+     * @return 当前读取位置
+     * @throws IOException 数据不足时抛出EOFException
+     */
+    int require(int length) throws IOException {
+        if (limit - position < length) {
+            if (buffer.length < length) {
+                byte[] newBuffer = new byte[Math.max(length, buffer.length * 2)];
+                System.arraycopy(buffer, position, newBuffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+                buffer = newBuffer;
+            }
+            while (limit - position < length) {
+                if (fill() < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+        return position;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * 跳过length字节，配合require读取原始字节.
+     *
+     * @param length 字节数
+     */
+    void skip(int length) {
+        position += length;
+    }
+
+    int readUInt8() throws IOException {
+        int offset = require(1);
+        position++;
+        return buffer[offset] & 0xFF;
+    }
+
+    int readInt16() throws IOException {
+        int offset = require(2);
+        position += 2;
+        return (short) ((buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    int readInt32() throws IOException {
+        int offset = require(4);
+        position += 4;
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8 | (buffer[offset + 2] & 0xFF) << 16 | (buffer[offset + 3] & 0xFF) << 24;
+    }
+
+    long readInt64() throws IOException {
+        int offset = require(8);
+        position += 8;
+        long result = 0;
+        for (int i = 7; i >= 0; i--) {
+            result = result << 8 | (buffer[offset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    float readFloat32() throws IOException {
+        return Float.intBitsToFloat(readInt32());
+    }
+
+    double readFloat64() throws IOException {
+        return Double.longBitsToDouble(readInt64());
+    }
+
+    int readLeb128() throws IOException {
+        int result = 0;
+        int shift = 0;
+        int current;
+        do {
+            current = readUInt8();
+            result |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * 读取小端补码表示的大整数.
+     *
+     * @param length 字节数
+     * @return BigInteger
+     * @throws IOException io异常
+     */
+    BigInteger readBigInteger(int length) throws IOException {
+        int offset = require(length);
+        position += length;
+        byte[] bigEndian = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bigEndian[i] = buffer[offset + length - 1 - i];
+        }
+        return new BigInteger(bigEndian);
+    }
+}
@@ -15,7 +15,6 @@
  */
 package com.ly.ckibana.strategy.aggs;
 
-import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.constants.SqlConstants;
 import com.ly.ckibana.model.compute.Range;
@@ -27,14 +26,20 @@ import com.ly.ckibana.model.enums.AggType;
 import com.ly.ckibana.model.request.CkRequest;
 import com.ly.ckibana.model.request.CkRequestContext;
 import com.ly.ckibana.model.request.CkRequestContext.SampleParam;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
 import com.ly.ckibana.util.ProxyUtils;
+import com.ly.ckibana.util.SqlUtils;
 import lombok.Data;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -147,7 +152,7 @@ public class Aggregation {
      * @param obj obj
      * @return bucket
      */
-    public Bucket buildResultBucket(JSONObject obj) {
+    public Bucket buildResultBucket(CkRow obj) {
         return null;
     }
 
@@ -158,6 +163,17 @@ public class Aggregation {
      * @return CkRequest
      */
     public CkRequest buildCkRequest(CkRequestContext ckRequestContext) {
+        return buildCkRequest(ckRequestContext, false);
+    }
+
+    /**
+     * 解析用于拼接ck sql的各部分sql part.
+     *
+     * @param ckRequestContext ckRequestContext
+     * @param peerGroupingSets 同层aggs是否按GROUPING SETS一次查询
+     * @return CkRequest
+     */
+    public CkRequest buildCkRequest(CkRequestContext ckRequestContext, boolean peerGroupingSets) {
         CkRequest result = ProxyUtils.buildCkRequest(ckRequestContext);
         buildGroupSql(result);
         buildOrderBySql(result);
@@ -168,14 +184,132 @@ public class Aggregation {
         if (StringUtils.isEmpty(result.getLimit()) && ckRequestContext.getMaxResultRow() > 0) {
             result.limit(ckRequestContext.getMaxResultRow());
         }
+        appendSubTermsLimitBy(result, ckRequestContext);
+        if (peerGroupingSets) {
+            buildPeerGroupingSets(result);
+        }
+        return result;
+    }
+
+    /**
+     * 同层aggs按GROUPING SETS分组，每个agg(含子agg)的分组列为一个分组集合，避免各agg分组列的笛卡尔积.
+     * 结果行通过grouping()值区分所属agg，排序条件仅作用于所属agg的行，各agg的grouping()值记录在ckRequest中.
+     *
+     * @param ckRequest ckRequest
+     */
+    private void buildPeerGroupingSets(CkRequest ckRequest) {
+        List<Aggregation> aggs = new ArrayList<>();
+        aggs.add(this);
+        if (CollectionUtils.isNotEmpty(getPeerAggs())) {
+            aggs.addAll(getPeerAggs());
+        }
+        List<String> allGroupColumns = collectGroupBy().stream().distinct().toList();
+        if (aggs.size() < 2 || allGroupColumns.isEmpty() || allGroupColumns.size() > SqlConstants.MAX_GROUPING_COLUMNS) {
+            return;
+        }
+        Map<Set<String>, List<String>> groupingSets = new LinkedHashMap<>();
+        aggs.forEach(each -> groupingSets.putIfAbsent(new HashSet<>(each.collectOwnGroupBy()), each.collectOwnGroupBy()));
+        if (groupingSets.size() < 2) {
+            return;
+        }
+        List<String> orders = new ArrayList<>();
+        Map<String, Long> masks = new LinkedHashMap<>();
+        for (Aggregation each : aggs) {
+            long mask = SqlUtils.getGroupingMask(allGroupColumns, each.collectOwnGroupBy());
+            masks.put(each.getStaticsId(), mask);
+            each.collectOwnOrders().forEach(order -> orders.add(buildGroupingSetOrder(order, mask)));
+        }
+        ckRequest.appendSelect(SqlUtils.getColumnAsAliasString(String.format("grouping(%s)", String.join(",", allGroupColumns)),
+                SqlConstants.GROUPING_SET_NAME));
+        ckRequest.setGroup(String.format(SqlConstants.GROUPING_SETS_TEMPLATE,
+                groupingSets.values().stream().map(each -> "(" + String.join(",", each) + ")").collect(Collectors.joining(","))));
+        ckRequest.setSorting(null);
+        ckRequest.orderBy(String.join(",", orders));
+        ckRequest.setSettings(SqlConstants.GROUPING_STANDARD_SETTINGS);
+        ckRequest.setGroupingSetMasks(masks);
+    }
+
+    private String buildGroupingSetOrder(String order, long mask) {
+        int index = order.trim().lastIndexOf(' ');
+        String column = index < 0 ? order.trim() : order.trim().substring(0, index);
+        String direction = index < 0 ? StringUtils.EMPTY : order.trim().substring(index);
+        return String.format("if(%s = %d, %s, NULL)%s", SqlUtils.escape(SqlConstants.GROUPING_SET_NAME), mask, column, direction);
+    }
 
+    /**
+     * 当前agg及其子agg的分组列，不含同层aggs.
+     *
+     * @return List
+     */
+    private List<String> collectOwnGroupBy() {
+        List<String> result = new ArrayList<>(buildGroupBySql());
+        if (CollectionUtils.isNotEmpty(getSubAggs()) && !isIgnoreSubAggCondition()) {
+            for (Aggregation each : getSubAggs()) {
+                result.addAll(each.collectGroupBy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 当前agg及其子agg的排序，不含同层aggs.
+     *
+     * @return List
+     */
+    private List<String> collectOwnOrders() {
+        List<String> result = new ArrayList<>(buildOrdersBySql());
+        if (CollectionUtils.isNotEmpty(getSubAggs()) && !isIgnoreSubAggCondition()) {
+            for (Aggregation each : getSubAggs()) {
+                result.addAll(each.collectorOrders());
+            }
+        }
         return result;
     }
+
+    /**
+     * 子agg为terms时，按当前agg的分组列LIMIT n BY，每个当前bucket只返回需展示的terms行.
+     * 截取前的terms总文档数按当前agg的分组列开窗计算，用于sum_other_doc_count.
+     *
+     * @param ckRequest        ckRequest
+     * @param ckRequestContext ckRequestContext
+     */
+    private void appendSubTermsLimitBy(CkRequest ckRequest, CkRequestContext ckRequestContext) {
+        if (!ckRequestContext.isTermsTopNPushdown()) {
+            return;
+        }
+        TermsAggStrategy subTerms = getLimitBySubTerms();
+        String defaultLimit = ckRequestContext.getMaxResultRow() > 0 ? String.format(SqlConstants.LIMIT_TEMPLATE, ckRequestContext.getMaxResultRow()) : null;
+        if (subTerms == null || StringUtils.isNotBlank(ckRequest.getLimit()) && !ckRequest.getLimit().equals(defaultLimit)) {
+            return;
+        }
+        String partition = String.join(",", buildGroupBySql());
+        ckRequest.appendSelect(subTerms.buildTotalCountSql(partition));
+        ckRequest.setLimit(String.format("LIMIT %d BY %s %s", subTerms.getSize(), partition, StringUtils.defaultString(ckRequest.getLimit())).trim());
+    }
+
+    /**
+     * 可按当前agg分组列LIMIT BY的子terms：当前agg仅按自身分组列排序，且只有一个产生分组的子agg，为叶子层terms.
+     *
+     * @return 子terms，不支持时返回null
+     */
+    private TermsAggStrategy getLimitBySubTerms() {
+        List<String> groupBy = buildGroupBySql();
+        if (groupBy.isEmpty() || CollectionUtils.isNotEmpty(getPeerAggs()) || CollectionUtils.isEmpty(getSubAggs()) || isIgnoreSubAggCondition()
+                || !buildOrdersBySql().stream().allMatch(order -> groupBy.stream().anyMatch(order::startsWith))) {
+            return null;
+        }
+        List<Aggregation> groupedSubAggs = getSubAggs().stream().filter(each -> CollectionUtils.isNotEmpty(each.collectGroupBy())).toList();
+        if (groupedSubAggs.size() != 1 || !(groupedSubAggs.get(0) instanceof TermsAggStrategy subTerms) || !subTerms.isTopNPushdownSupported()
+                || subTerms.collectGroupBy().size() != 1 || subTerms.isIgnoreSubAggCondition()) {
+            return null;
+        }
+        return subTerms;
+    }
     
     /**
      * 获取采样率.
      */
-    private double getSample(SampleParam sampleParam) {
+    public double getSample(SampleParam sampleParam) {
         double sample = Constants.DEFAULT_NO_SAMPLE;
         if (sampleParam != null && sampleParam.getSampleTotalCount() > sampleParam.getSampleCountMaxThreshold()) {
             sample = Math.max(0.01, Double.parseDouble(String.format("%.5f", sampleParam.getSampleCountMaxThreshold() * 1.00 / sampleParam.getSampleTotalCount())));
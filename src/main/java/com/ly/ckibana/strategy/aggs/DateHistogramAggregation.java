@@ -15,7 +15,6 @@
  */
 package com.ly.ckibana.strategy.aggs;
 
-import com.alibaba.fastjson2.JSONObject;
 import com.google.common.collect.Lists;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.constants.SqlConstants;
@@ -24,6 +23,7 @@ import com.ly.ckibana.model.compute.aggregation.AggsParam;
 import com.ly.ckibana.model.compute.aggregation.Interval;
 import com.ly.ckibana.model.compute.aggregation.bucket.DateHistogramBucket;
 import com.ly.ckibana.model.enums.AggType;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.CountSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.FieldSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
@@ -87,7 +87,7 @@ public class DateHistogramAggregation extends Aggregation {
     }
 
     @Override
-    public DateHistogramBucket buildResultBucket(JSONObject obj) {
+    public DateHistogramBucket buildResultBucket(CkRow obj) {
         DateHistogramBucket result = new DateHistogramBucket();
         long key = getInterval() * obj.getLongValue(queryFieldName());
         long docCount = obj.getLongValue(queryAggCountName());
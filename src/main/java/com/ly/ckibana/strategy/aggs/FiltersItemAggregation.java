@@ -15,7 +15,6 @@
  */
 package com.ly.ckibana.strategy.aggs;
 
-import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.model.compute.Range;
 import com.ly.ckibana.model.compute.aggregation.AggsParam;
 import com.ly.ckibana.model.compute.aggregation.bucket.FilterInnerBucket;
@@ -23,6 +22,7 @@ import com.ly.ckibana.model.enums.AggBucketsName;
 import com.ly.ckibana.model.enums.AggType;
 import com.ly.ckibana.model.request.CkRequest;
 import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.CountSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
 import lombok.Data;
@@ -62,7 +62,7 @@ public class FiltersItemAggregation extends Aggregation {
     }
 
     @Override
-    public FilterInnerBucket buildResultBucket(JSONObject obj) {
+    public FilterInnerBucket buildResultBucket(CkRow obj) {
         FilterInnerBucket result = new FilterInnerBucket();
         result.setKey(queryFieldName());
         result.setDocCount(obj.getLong(queryAggCountName()));
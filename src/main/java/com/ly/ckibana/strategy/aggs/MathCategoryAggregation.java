@@ -15,7 +15,7 @@
  */
 package com.ly.ckibana.strategy.aggs;
 
-import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.FieldSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
 import com.ly.ckibana.model.compute.aggregation.AggsParam;
@@ -59,7 +59,7 @@ public class MathCategoryAggregation extends Aggregation {
     }
 
     @Override
-    public MathBucket buildResultBucket(JSONObject obj) {
+    public MathBucket buildResultBucket(CkRow obj) {
         MathBucket result = new MathBucket();
         result.setKey(queryFieldName());
         result.setValue(new BigDecimal(obj.getString(queryFieldName())));
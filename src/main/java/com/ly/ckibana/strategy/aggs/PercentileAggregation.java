@@ -15,7 +15,6 @@
  */
 package com.ly.ckibana.strategy.aggs;
 
-import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.constants.SqlConstants;
 import com.ly.ckibana.model.compute.Range;
@@ -23,6 +22,7 @@ import com.ly.ckibana.model.compute.aggregation.AggsParam;
 import com.ly.ckibana.model.compute.aggregation.bucket.PercentilesBucket;
 import com.ly.ckibana.model.compute.aggregation.bucket.PercentilesItemBucket;
 import com.ly.ckibana.model.enums.AggType;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.CountSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.FieldSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
@@ -78,7 +78,7 @@ public class PercentileAggregation extends Aggregation {
     }
 
     @Override
-    public PercentilesBucket buildResultBucket(JSONObject obj) {
+    public PercentilesBucket buildResultBucket(CkRow obj) {
         Long count = obj.getLongValue(queryAggCountName());
         PercentilesBucket result = new PercentilesBucket();
         List<PercentilesItemBucket> items = new ArrayList<>();
@@ -15,7 +15,6 @@
  */
 package com.ly.ckibana.strategy.aggs;
 
-import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.constants.Constants;
 import com.ly.ckibana.constants.SqlConstants;
 import com.ly.ckibana.model.compute.Range;
@@ -23,6 +22,7 @@ import com.ly.ckibana.model.compute.aggregation.AggsParam;
 import com.ly.ckibana.model.compute.aggregation.bucket.PercentilesRankBucket;
 import com.ly.ckibana.model.compute.aggregation.bucket.PercentilesRankItemBucket;
 import com.ly.ckibana.model.enums.AggType;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.CountSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
 import com.ly.ckibana.util.SqlUtils;
@@ -78,7 +78,7 @@ public class PercentileRanksAggregation extends Aggregation {
     }
 
     @Override
-    public PercentilesRankBucket buildResultBucket(JSONObject obj) {
+    public PercentilesRankBucket buildResultBucket(CkRow obj) {
         long count = obj.getLongValue(queryAggCountName());
         PercentilesRankBucket result = new PercentilesRankBucket();
         List<PercentilesRankItemBucket> items = new ArrayList<>(names.size());
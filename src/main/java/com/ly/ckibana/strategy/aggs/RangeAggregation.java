@@ -27,6 +27,7 @@ import com.ly.ckibana.model.compute.aggregation.bucket.RangeItemBucket;
 import com.ly.ckibana.model.enums.AggType;
 import com.ly.ckibana.model.request.CkRequest;
 import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.CountSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
 import com.ly.ckibana.util.ProxyUtils;
@@ -115,7 +116,7 @@ public class RangeAggregation extends Aggregation {
     }
 
     @Override
-    public RangeBucket buildResultBucket(JSONObject obj) {
+    public RangeBucket buildResultBucket(CkRow obj) {
         RangeBucket result = new RangeBucket();
         result.setItems(new ArrayList<>());
         result.setDocCount(0L);
@@ -127,7 +128,7 @@ public class RangeAggregation extends Aggregation {
         return result;
     }
 
-    private RangeItemBucket getResultBucketItem(String rangeKey, JSONObject obj) {
+    private RangeItemBucket getResultBucketItem(String rangeKey, CkRow obj) {
         String from = rangeKey.split(Constants.RANGE_SPLIT)[0];
         String to = rangeKey.split(Constants.RANGE_SPLIT)[1];
         RangeItemBucket result = new RangeItemBucket();
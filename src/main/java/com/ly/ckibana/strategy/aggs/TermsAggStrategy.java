@@ -22,10 +22,12 @@ import com.ly.ckibana.constants.SqlConstants;
 import com.ly.ckibana.model.compute.Range;
 import com.ly.ckibana.model.compute.aggregation.AggsParam;
 import com.ly.ckibana.model.compute.aggregation.bucket.TermsBucket;
+import com.ly.ckibana.model.enums.AggCategory;
 import com.ly.ckibana.model.enums.AggType;
 import com.ly.ckibana.model.enums.TermsAggOrderType;
 import com.ly.ckibana.model.request.CkRequest;
 import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.model.response.CkRow;
 import com.ly.ckibana.strategy.aggs.converter.CountSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.FieldSqlConverter;
 import com.ly.ckibana.strategy.aggs.converter.SqlConverter;
@@ -50,6 +52,7 @@ import java.util.Map;
 public final class TermsAggStrategy extends Aggregation {
     public static final String CK_STRING_DEFAULT_VALUE = "''";
     public static final int CK_NUMBER_DEFAULT_VALUE = 0;
+    private static final String TOTAL_COUNT_NAME = "_ckTotalCount";
     private TermsAggOrderType orderType;
 
     private String order;
@@ -102,18 +105,111 @@ public final class TermsAggStrategy extends Aggregation {
     }
 
     @Override
-    public CkRequest buildCkRequest(CkRequestContext ckRequestContext) {
-        CkRequest result = super.buildCkRequest(ckRequestContext);
+    public CkRequest buildCkRequest(CkRequestContext ckRequestContext, boolean peerGroupingSets) {
+        CkRequest result = super.buildCkRequest(ckRequestContext, peerGroupingSets);
         if (getSize() == null) {
             setSize(10);
         }
+        //同层aggs按GROUPING SETS查询时，各agg的行在同一结果中，size在内存截取
+        if (result.isPeerGroupingSets()) {
+            return result;
+        }
         //若子aggs的有额外group by条件，size条件失效
         if (isSubAggGroupByEmpty()) {
             result.limit(getSize());
+            if (ckRequestContext.isTermsTopNPushdown() && getOrderByMetricAgg() != null) {
+                result.appendSelect(buildTotalCountSql(StringUtils.EMPTY));
+            }
+        } else if (ckRequestContext.isTermsTopNPushdown() && isTopNPushdownSupported()) {
+            appendTopNConditions(result, ckRequestContext);
         }
         return result;
     }
 
+    /**
+     * 子aggs有额外group by条件时，在ck中先取按count、key或子agg指标排序的前size个terms，只查询这些terms的行.
+     * 子terms单独查询时当前查询仅按当前字段分组，直接limit.
+     * 截取前的总文档数用于sum_other_doc_count，子terms单独查询时在当前查询开窗计算，否则在取前size个terms的子查询中开窗计算.
+     *
+     * @param ckRequest        ckRequest
+     * @param ckRequestContext ckRequestContext
+     */
+    private void appendTopNConditions(CkRequest ckRequest, CkRequestContext ckRequestContext) {
+        if (isIgnoreSubAggCondition()) {
+            ckRequest.appendSelect(buildTotalCountSql(StringUtils.EMPTY));
+            ckRequest.limit(getSize());
+            return;
+        }
+        CkRequest termsCount = ProxyUtils.buildCkRequest(ckRequestContext);
+        double sample = getSample(ckRequestContext.getSampleParam());
+        termsCount.initSelect(buildRealSelectSql(sample, buildSelectSqlConvertors(ckRequestContext.getTimeRange())));
+        termsCount.setSample(ckRequest.getSample());
+        termsCount.setWhere(ckRequest.getWhere());
+        termsCount.initGroupBy(SqlUtils.escape(queryFieldName()));
+        // 开窗在limit前计算，得到截取前的总文档数
+        termsCount.appendSelect(buildTotalCountSql(StringUtils.EMPTY));
+        Aggregation orderByMetricAgg = getOrderByMetricAgg();
+        if (orderByMetricAgg != null) {
+            termsCount.appendSelect(buildRealSelectSql(sample, orderByMetricAgg.buildSelectSqlConvertors(ckRequestContext.getTimeRange())));
+        }
+        termsCount.orderBy(order);
+        termsCount.limit(getSize());
+        // 前size个terms和总文档数取自同一标量子查询，ck对相同的标量子查询只执行一次
+        String topTerms = String.format("(SELECT tuple(groupArray(%s), any(%s)) FROM (%s))", SqlUtils.escape(queryFieldName()),
+                SqlUtils.escape(queryAggTotalCountName()), termsCount.buildToStr());
+        ckRequest.appendSelect(SqlUtils.getColumnAsAliasString(String.format("tupleElement(%s, 2)", topTerms), queryAggTotalCountName()));
+        ckRequest.appendWhere(String.format("has(tupleElement(%s, 1), %s)", topTerms, ProxyUtils.getFieldSqlPart(getField())));
+    }
+
+    /**
+     * 是否可以在ck中截取前size个terms.支持按count、key或单值math子agg排序，且未设置missing.
+     *
+     * @return boolean
+     */
+    public boolean isTopNPushdownSupported() {
+        boolean orderByCountOrKey = TermsAggOrderType.ALPHABETICAL.equals(orderType)
+                || TermsAggOrderType.METRIC_COUNT.equals(orderType) && order.startsWith(SqlUtils.escape(queryAggCountName()));
+        boolean orderByMetric = getOrderByMetricAgg() != null && !isIgnoreSubAggCondition();
+        return (orderByCountOrKey || orderByMetric) && getSize() != null && getSize() > 0 && StringUtils.isBlank(missing) && CollectionUtils.isEmpty(getPeerAggs());
+    }
+
+    /**
+     * 排序依据的子agg，仅支持avg,max,min,sum等单值math类子agg.
+     *
+     * @return 子agg，非按子agg指标排序时返回null
+     */
+    private Aggregation getOrderByMetricAgg() {
+        if (!TermsAggOrderType.METRIC_CUSTOM.equals(orderType) || CollectionUtils.isEmpty(getSubAggs())
+                || orderBySubAggIndex < 0 || orderBySubAggIndex >= getSubAggs().size()) {
+            return null;
+        }
+        Aggregation subAgg = getSubAggs().get(orderBySubAggIndex);
+        if (!AggCategory.MATH.equals(subAgg.getAggCategory()) || !order.startsWith(SqlUtils.escape(subAgg.queryFieldName()))) {
+            return null;
+        }
+        return subAgg;
+    }
+
+    /**
+     * 截取前按partition分区的总文档数.
+     *
+     * @param partition 分区列，为空时为全部行
+     * @return sql
+     */
+    public String buildTotalCountSql(String partition) {
+        String window = StringUtils.isBlank(partition) ? "" : String.format("PARTITION BY %s", partition);
+        return SqlUtils.getColumnAsAliasString(String.format("sum(%s) OVER (%s)", SqlUtils.escape(queryAggCountName()), window), queryAggTotalCountName());
+    }
+
+    /**
+     * 截取前总文档数列的别名.
+     *
+     * @return alias
+     */
+    public String queryAggTotalCountName() {
+        return getAggName() + SqlConstants.QUERY_NAME_SEPARATOR + TOTAL_COUNT_NAME;
+    }
+
     /**
      * 判断子aggs产生的group by条件是否为空.
      *
@@ -124,7 +220,7 @@ public final class TermsAggStrategy extends Aggregation {
     }
 
     @Override
-    public TermsBucket buildResultBucket(JSONObject obj) {
+    public TermsBucket buildResultBucket(CkRow obj) {
         TermsBucket result = new TermsBucket();
         Object termValue = obj.get(queryFieldName());
         boolean stringBlankValueCheck = ProxyUtils.isString(getFieldType()) && StringUtils.isBlank(termValue.toString());
@@ -135,6 +231,7 @@ public final class TermsAggStrategy extends Aggregation {
         }
         result.setKey(termValue);
         result.setDocCount(obj.getLongValue(queryAggCountName()));
+        result.getComputeData().setTotalDocCount(obj.getLong(queryAggTotalCountName()));
         return result;
     }
 
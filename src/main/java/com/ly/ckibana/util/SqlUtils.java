@@ -21,6 +21,7 @@ import com.ly.ckibana.model.enums.IPType;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.Arrays;
+import java.util.Collection;
 
 public class SqlUtils {
 
@@ -167,6 +168,22 @@ public class SqlUtils {
         return getFunctionString(function, String.format(expression, values));
     }
 
+    /**
+     * 分组集合对应的grouping()位掩码.
+     * 按标准语义计算：参数从高位到低位排列，不在当前分组集合中的列为1.
+     *
+     * @param allGroupColumns grouping()的全部参数
+     * @param groupColumns    当前分组集合的列
+     * @return 位掩码
+     */
+    public static long getGroupingMask(Collection<String> allGroupColumns, Collection<String> groupColumns) {
+        long result = 0;
+        for (String each : allGroupColumns) {
+            result = (result << 1) | (groupColumns.contains(each) ? 0 : 1);
+        }
+        return result;
+    }
+
     /**
      * get alias sql string.
      * [A as 'B']
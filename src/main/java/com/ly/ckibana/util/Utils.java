@@ -127,7 +127,18 @@ public class Utils {
      * @return String
      */
     public static String getIndexName(String indexName, String datePattern) {
-        return String.format("%s-%s", indexName, LocalDate.now().format(DateTimeFormatter.ofPattern(datePattern)));
+        return getIndexName(indexName, datePattern, LocalDate.now());
+    }
+
+    /**
+     * 获取指定日期的索引名称.
+     * @param indexName indexName
+     * @param datePattern datePattern
+     * @param date date
+     * @return String
+     */
+    public static String getIndexName(String indexName, String datePattern, LocalDate date) {
+        return String.format("%s-%s", indexName, date.format(DateTimeFormatter.ofPattern(datePattern)));
     }
     
     /**
@@ -23,8 +23,10 @@ import com.ly.ckibana.model.enums.AggType;
 import com.ly.ckibana.model.property.KibanaProperty;
 import com.ly.ckibana.model.property.QueryProperty;
 import com.ly.ckibana.model.request.CkRequestContext;
+import com.ly.ckibana.parser.AggResultParserHelper;
 import com.ly.ckibana.parser.HitsResultParser;
 import com.ly.ckibana.parser.MsearchParamParser;
+import com.ly.ckibana.parser.ResultParser;
 import com.ly.ckibana.strategy.aggs.Aggregation;
 import com.ly.ckibana.strategy.aggs.FiltersAggregation;
 import lombok.extern.slf4j.Slf4j;
@@ -71,6 +73,10 @@ public class CommonTest {
     private ProxyConfigLoader proxyConfigLoader;
     @Resource
     private HitsResultParser hitsResultParser;
+    @Resource
+    private AggResultParserHelper aggResultParserHelper;
+    @Resource
+    private ResultParser resultParser;
 
     /**
      * 获取测试用例别名
@@ -109,6 +115,128 @@ public class CommonTest {
         }
     }
 
+    /**
+     * 开启terms在ck中截取前size个terms时，解析得到的sql，并与期望值比对
+     *
+     * @param testName
+     * @param searchQueryJson
+     * @param expectedSqlJson
+     */
+    public void doTopNPushdownTest(String testName, String searchQueryJson, String expectedSqlJson) {
+        try {
+            proxyConfigLoader.setKibanaProperty(JSONObject.parseObject(kibanaPropertyJson, KibanaProperty.class));
+            proxyConfigLoader.getKibanaProperty().getQuery().setTermsTopNPushdownEnabled(true);
+            List<String> expectedSqlList = JSONObject.parseObject(expectedSqlJson, List.class);
+            List<String> resultSqlList = convert2SqlList(searchQueryJson, Boolean.FALSE);
+            assertResult(testName, resultSqlList, expectedSqlList);
+        } catch (Exception e) {
+            log.error(DO_TEST, e);
+            Assert.assertTrue(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * 解析ck结果行，并将首个agg的buckets和sum_other_doc_count与期望值比对
+     *
+     * @param testName
+     * @param searchQueryJson
+     * @param termsTopNPushdown     是否在ck中截取前size个terms
+     * @param ckRows                ck结果行
+     * @param expectedBucketsJson   期望的buckets
+     * @param expectedOtherDocCount 期望的sum_other_doc_count
+     */
+    public void doOtherDocCountTest(String testName, String searchQueryJson, boolean termsTopNPushdown, List<JSONObject> ckRows,
+                                    String expectedBucketsJson, long expectedOtherDocCount) {
+        try {
+            proxyConfigLoader.setKibanaProperty(JSONObject.parseObject(kibanaPropertyJson, KibanaProperty.class));
+            proxyConfigLoader.getKibanaProperty().getQuery().setTermsTopNPushdownEnabled(termsTopNPushdown);
+            CkRequestContext ckRequestContext = testParseCkRequestContext(searchQueryJson, null);
+            Aggregation aggregation = ckRequestContext.getAggs().get(0);
+            aggregation.buildCkRequest(ckRequestContext);
+            Map<String, Object> result = resultParser.execute(aggregation, ckRows).getAggregations().get(aggregation.getAggName());
+            List<Object> keyAndDocCounts = ((List<?>) result.get("buckets")).stream().map(each -> {
+                JSONObject bucket = JSONObject.from(each);
+                return List.of(bucket.get("key"), bucket.get("doc_count"));
+            }).collect(Collectors.toList());
+            Assert.assertEquals(testName, expectedBucketsJson, JSONObject.toJSONString(keyAndDocCounts));
+            Assert.assertEquals(testName, expectedOtherDocCount, result.get("sum_other_doc_count"));
+        } catch (Exception e) {
+            log.error(DO_TEST, e);
+            Assert.assertTrue(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * 父agg为range且包含terms子agg时，解析子agg按父agg全部bucket一次查询的sql，并与期望值比对
+     *
+     * @param testName
+     * @param searchQueryJson
+     * @param expectedSqlJson
+     */
+    public void doSubAggTest(String testName, String searchQueryJson, String expectedSqlJson) {
+        try {
+            proxyConfigLoader.setKibanaProperty(JSONObject.parseObject(kibanaPropertyJson, KibanaProperty.class));
+            List<String> expectedSqlList = JSONObject.parseObject(expectedSqlJson, List.class);
+            CkRequestContext ckRequestContext = testParseCkRequestContext(searchQueryJson, null);
+            Aggregation parentAgg = ckRequestContext.getAggs().get(0);
+            Map<Object, String> parentWhereSqls = aggResultParserHelper.buildAppendWhereForSubAgg(parentAgg, null);
+            List<String> resultSqlList = new ArrayList<>();
+            for (Aggregation each : parentAgg.getSubAggs()) {
+                resultSqlList.add(aggResultParserHelper.getSubAggCkRequestByParentKeys(ckRequestContext, parentAgg, each, parentWhereSqls).buildToStr());
+            }
+            assertResult(testName, resultSqlList, expectedSqlList);
+        } catch (Exception e) {
+            log.error(DO_TEST, e);
+            Assert.assertTrue(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * filters聚合的全部filter一次查询时，解析得到的sql，并与期望值比对
+     *
+     * @param testName
+     * @param searchQueryJson
+     * @param expectedSqlJson
+     */
+    public void doFiltersOneQueryTest(String testName, String searchQueryJson, String expectedSqlJson) {
+        try {
+            proxyConfigLoader.setKibanaProperty(JSONObject.parseObject(kibanaPropertyJson, KibanaProperty.class));
+            List<String> expectedSqlList = JSONObject.parseObject(expectedSqlJson, List.class);
+            CkRequestContext ckRequestContext = testParseCkRequestContext(searchQueryJson, null);
+            FiltersAggregation filtersAgg = (FiltersAggregation) ckRequestContext.getAggs().get(0);
+            List<String> resultSqlList = List.of(aggResultParserHelper.getFiltersCkRequestInOneQuery(ckRequestContext, filtersAgg).buildToStr());
+            assertResult(testName, resultSqlList, expectedSqlList);
+        } catch (Exception e) {
+            log.error(DO_TEST, e);
+            Assert.assertTrue(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * 多个同层agg时，首个agg以其余agg为peer agg一次查询，解析得到的sql，并与期望值比对
+     *
+     * @param testName
+     * @param searchQueryJson
+     * @param expectedSqlJson
+     */
+    public void doPeerAggTest(String testName, String searchQueryJson, String expectedSqlJson) {
+        try {
+            proxyConfigLoader.setKibanaProperty(JSONObject.parseObject(kibanaPropertyJson, KibanaProperty.class));
+            List<String> expectedSqlList = JSONObject.parseObject(expectedSqlJson, List.class);
+            CkRequestContext ckRequestContext = testParseCkRequestContext(searchQueryJson, null);
+            List<Aggregation> aggs = ckRequestContext.getAggs();
+            Aggregation firstAgg = aggs.get(0);
+            firstAgg.setPeerAggs(new ArrayList<>(aggs.subList(1, aggs.size())));
+            List<String> resultSqlList = List.of(firstAgg.buildCkRequest(ckRequestContext, true).buildToStr());
+            assertResult(testName, resultSqlList, expectedSqlList);
+            //未开启GROUPING SETS时按各agg分组列的并集查询
+            Assert.assertFalse(firstAgg.buildCkRequest(ckRequestContext).isPeerGroupingSets());
+        } catch (Exception e) {
+            log.error(DO_TEST, e);
+            Assert.assertTrue(Boolean.FALSE);
+        }
+    }
+
     /**
      * 基于查询参数，解析获取异常。并与期望异常比对。比对一致通过，不一致则失败
      *
@@ -211,6 +339,7 @@ public class CommonTest {
         IndexPattern indexPattern = JSONObject.parseObject(indexPatternJson, IndexPattern.class);
         CkRequestContext ckRequestContext = new CkRequestContext("testIp", indexPattern, proxyConfigLoader.getKibanaProperty().getQuery().getMaxResultRow());
         QueryProperty queryProperty = proxyConfigLoader.getKibanaProperty().getQuery();
+        ckRequestContext.setTermsTopNPushdown(queryProperty.isTermsTopNPushdownEnabled());
         CkRequestContext.SampleParam sampleParam = new CkRequestContext.SampleParam(Constants.USE_SAMPLE_COUNT_THREASHOLD, queryProperty.getSampleCountMaxThreshold());
         ckRequestContext.setSampleParam(sampleParam);
         msearchParamParser.parseRequestBySearchQuery(tableColumnsCache, searchQuery
@@ -15,11 +15,14 @@
  */
 package com.ly.ckibana.converter;
 
+import com.alibaba.fastjson2.JSONObject;
 import com.ly.ckibana.CommonTest;
 import com.ly.ckibana.model.enums.AggCategory;
 import com.ly.ckibana.model.enums.AggType;
 import org.junit.Test;
 
+import java.util.List;
+
 /**
  * msearch agg测试
  *
@@ -31,9 +34,12 @@ public class CommonAggTest extends CommonTest {
     public static final String TEST_AGGS_FILTERS_AND_DATE_HISTOGRAM_AGG = getTestName(NAME_AGGREGATION, AggType.FILTERS.name(), AggType.DATE_HISTOGRAM.name());
     public static final String TEST_AGGS_DATE_HISTOGRAM_AGG = getTestName(NAME_AGGREGATION, AggType.DATE_HISTOGRAM.name());
     public static final String TEST_DEMO_TERMS_AGG = getTestName(NAME_AGGREGATION, AggType.TERMS.name());
+    public static final String TEST_DEMO_TERMS_AND_DATE_HISTOGRAM_AGG = getTestName(NAME_AGGREGATION, AggType.TERMS.name(), AggType.DATE_HISTOGRAM.name());
+    public static final String TEST_DEMO_PEER_TERMS_AND_DATE_HISTOGRAM_AGG = getTestName(NAME_AGGREGATION, "PEER", AggType.TERMS.name(), AggType.DATE_HISTOGRAM.name());
     public static final String TEST_DEMO_MATH_AND_PERCENTILE_DATE_HISTOGRAM_AGG = getTestName(NAME_AGGREGATION, AggType.DATE_HISTOGRAM.name(), AggCategory.MATH.name(), AggType.PERCENTILE_RANKS.name(), AggType.PERCENTILES.name());
     public static final String TEST_DEMO_MATH_AND_PERCENTILE_AGG = getTestName(NAME_AGGREGATION, AggCategory.MATH.name(), AggType.PERCENTILE_RANKS.name(), AggType.PERCENTILES.name());
     public static final String TEST_DEMO_RANGE_NUMBER_AGG = getTestName(NAME_AGGREGATION, AggType.RANGE.name());
+    public static final String TEST_DEMO_RANGE_AND_TERMS_AGG = getTestName(NAME_AGGREGATION, AggType.RANGE.name(), AggType.TERMS.name());
     public static final String TEST_DEMO_CARDINALITY_AGG = getTestName(NAME_AGGREGATION, AggType.CARDINALITY.name());
 
     /**
@@ -49,6 +55,18 @@ public class CommonAggTest extends CommonTest {
         doTest(TEST_AGGS_FILTERS_AND_DATE_HISTOGRAM_AGG, query, Boolean.FALSE, expectedSqls);
     }
 
+    /**
+     * AggType.FILTERS AggType.DATE_HISTOGRAM 全部filter一次查询
+     */
+    @Test
+    public void testFiltersAndDateHistogramAggInOneQuery() {
+        String query = "{\"aggs\":{\"2\":{\"filters\":{\"filters\":{\"s1:\\\"s1value1\\\"\":{\"query_string\":{\"query\":\"s1:\\\"s1value1\\\"\",\"analyze_wildcard\":true,\"default_field\":\"*\"}},\"s2:\\\"s1value2\\\"\":{\"query_string\":{\"query\":\"s2:\\\"s1value2\\\"\",\"analyze_wildcard\":true,\"default_field\":\"*\"}}}},\"aggs\":{\"3\":{\"date_histogram\":{\"field\":\"@timestampDateTime\",\"interval\":\"30s\",\"time_zone\":\"Asia/Shanghai\",\"min_doc_count\":1}}}}},\"size\":0,\"_source\":{\"excludes\":[]},\"stored_fields\":[\"*\"],\"script_fields\":{},\"docvalue_fields\":[{\"field\":\"@timestampDateTime\",\"format\":\"date_time\"}],\"query\":{\"bool\":{\"must\":[{\"match_all\":{}},{\"match_all\":{}},{\"range\":{\"@timestampDateTime\":{\"gte\":1697890656331,\"lte\":1697891556331,\"format\":\"epoch_millis\"}}}],\"filter\":[],\"should\":[],\"must_not\":[]}},\"timeout\":\"120000ms\"}";
+        String expectedSqls = "[\n" +
+                "                \"SELECT toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `3_@timestampDateTime`,count(1) as `3__ckCount`,count(1) as `2__ckCount`, arrayJoin(arrayFilter(x -> x > 0, [if(( (  `s1` like '%s1value1%' ) ), 1, 0),if(( (  `s2` like '%s1value2%' ) ), 2, 0)])) as `2_filter_index` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891550000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890650000/1000,3)  ) AND (( (  `s1` like '%s1value1%' ) ) OR ( (  `s2` like '%s1value2%' ) )) GROUP BY `3_@timestampDateTime`,`2_filter_index` ORDER BY `3_@timestampDateTime` asc LIMIT 30000\"\n" +
+                "            ]";
+        doFiltersOneQueryTest(TEST_AGGS_FILTERS_AND_DATE_HISTOGRAM_AGG, query, expectedSqls);
+    }
+
     /**
      * AggType.DATE_HISTOGRAM
      */
@@ -74,6 +92,62 @@ public class CommonAggTest extends CommonTest {
         doTest(TEST_DEMO_TERMS_AGG, query, Boolean.FALSE, expectedSqls);
     }
 
+    /**
+     * AggType.TERMS AggType.DATE_HISTOGRAM
+     */
+    @Test
+    public void testTermsAndDateHistogramAgg() {
+        String query = "{\"aggs\":{\"2\":{\"terms\":{\"field\":\"s1\",\"size\":10,\"order\":{\"_count\":\"desc\"}},\"aggs\":{\"3\":{\"date_histogram\":{\"field\":\"@timestampDateTime\",\"interval\":\"30s\",\"time_zone\":\"Asia/Shanghai\",\"min_doc_count\":1}}}}},\"size\":0,\"_source\":{\"excludes\":[]},\"stored_fields\":[\"*\"],\"script_fields\":{},\"docvalue_fields\":[{\"field\":\"@timestampDateTime\",\"format\":\"date_time\"}],\"query\":{\"bool\":{\"must\":[{\"match_all\":{}},{\"match_all\":{}},{\"range\":{\"@timestampDateTime\":{\"gte\":1697891206239,\"lte\":1697892106239,\"format\":\"epoch_millis\"}}}],\"filter\":[],\"should\":[],\"must_not\":[]}},\"timeout\":\"120000ms\"}";
+        String expectedSqls = "[\n" +
+                "                \"SELECT toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `3_@timestampDateTime`,count(1) as `3__ckCount`,`s1` as `2_s1`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697892100000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697891200000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1`,`3_@timestampDateTime` ORDER BY `2__ckCount` desc,`3_@timestampDateTime` asc LIMIT 30000\"\n" +
+                "            ]";
+        doTest(TEST_DEMO_TERMS_AND_DATE_HISTOGRAM_AGG, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = "[\n" +
+                "                \"SELECT toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `3_@timestampDateTime`,count(1) as `3__ckCount`,`s1` as `2_s1`,count(1) as `2__ckCount`, tupleElement((SELECT tuple(groupArray(`2_s1`), any(`2__ckTotalCount`)) FROM (SELECT `s1` as `2_s1`,count(1) as `2__ckCount`, sum(`2__ckCount`) OVER () as `2__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697892100000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697891200000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1` ORDER BY `2__ckCount` desc LIMIT 10)), 2) as `2__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697892100000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697891200000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) AND (has(tupleElement((SELECT tuple(groupArray(`2_s1`), any(`2__ckTotalCount`)) FROM (SELECT `s1` as `2_s1`,count(1) as `2__ckCount`, sum(`2__ckCount`) OVER () as `2__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697892100000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697891200000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1` ORDER BY `2__ckCount` desc LIMIT 10)), 1), `s1`)) GROUP BY `2_s1`,`3_@timestampDateTime` ORDER BY `2__ckCount` desc,`3_@timestampDateTime` asc LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AND_DATE_HISTOGRAM_AGG, query, expectedTopNSqls);
+    }
+
+    /**
+     * AggType.TERMS AggType.DATE_HISTOGRAM 顶层terms的sum_other_doc_count
+     * 默认查询全部terms，与之前一样为0；在ck中截取前size个terms时，按截取前的总文档数计算
+     */
+    @Test
+    public void testTermsAndDateHistogramAggOtherDocCount() {
+        String query = "{\"aggs\":{\"2\":{\"terms\":{\"field\":\"s1\",\"size\":2,\"order\":{\"_count\":\"desc\"}},\"aggs\":{\"3\":{\"date_histogram\":{\"field\":\"@timestampDateTime\",\"interval\":\"30s\",\"time_zone\":\"Asia/Shanghai\",\"min_doc_count\":1}}}}},\"size\":0,\"query\":{\"bool\":{\"must\":[{\"range\":{\"@timestampDateTime\":{\"gte\":1697891206239,\"lte\":1697892106239,\"format\":\"epoch_millis\"}}}]}}}";
+        String expectedBuckets = "[[\"a\",8],[\"b\",4]]";
+        List<JSONObject> allTermsRows = List.of(termsAndDateHistogramRow("a", 56596374, 5, null), termsAndDateHistogramRow("a", 56596375, 3, null),
+                termsAndDateHistogramRow("b", 56596374, 4, null), termsAndDateHistogramRow("c", 56596374, 1, null));
+        doOtherDocCountTest(TEST_DEMO_TERMS_AND_DATE_HISTOGRAM_AGG, query, false, allTermsRows, expectedBuckets, 0);
+        List<JSONObject> topNRows = List.of(termsAndDateHistogramRow("a", 56596374, 5, 13L), termsAndDateHistogramRow("a", 56596375, 3, 13L),
+                termsAndDateHistogramRow("b", 56596374, 4, 13L));
+        doOtherDocCountTest(TEST_DEMO_TERMS_AND_DATE_HISTOGRAM_AGG, query, true, topNRows, expectedBuckets, 1);
+    }
+
+    private JSONObject termsAndDateHistogramRow(String term, long time, long count, Long totalCount) {
+        JSONObject result = new JSONObject();
+        result.put("3_@timestampDateTime", time);
+        result.put("3__ckCount", count);
+        result.put("2_s1", term);
+        result.put("2__ckCount", count);
+        if (totalCount != null) {
+            result.put("2__ckTotalCount", totalCount);
+        }
+        return result;
+    }
+
+    /**
+     * 同层AggType.TERMS AggType.TERMS AggType.DATE_HISTOGRAM，GROUPING SETS一次查询
+     */
+    @Test
+    public void testPeerTermsAndDateHistogramAgg() {
+        String query = "{\"aggs\":{\"2\":{\"terms\":{\"field\":\"s1\",\"size\":10,\"order\":{\"_count\":\"desc\"}}},\"3\":{\"terms\":{\"field\":\"s2\",\"size\":5,\"order\":{\"_key\":\"asc\"}}},\"4\":{\"date_histogram\":{\"field\":\"@timestampDateTime\",\"interval\":\"30s\",\"time_zone\":\"Asia/Shanghai\",\"min_doc_count\":1}}},\"size\":0,\"_source\":{\"excludes\":[]},\"stored_fields\":[\"*\"],\"script_fields\":{},\"docvalue_fields\":[{\"field\":\"@timestampDateTime\",\"format\":\"date_time\"}],\"query\":{\"bool\":{\"must\":[{\"match_all\":{}},{\"match_all\":{}},{\"range\":{\"@timestampDateTime\":{\"gte\":1697891206239,\"lte\":1697892106239,\"format\":\"epoch_millis\"}}}],\"filter\":[],\"should\":[],\"must_not\":[]}},\"timeout\":\"120000ms\"}";
+        String expectedSqls = "[\n" +
+                "                \"SELECT `s2` as `3_s2`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `4_@timestampDateTime`,count(1) as `4__ckCount`,`s1` as `2_s1`,count(1) as `2__ckCount`, grouping(`2_s1`,`3_s2`,`4_@timestampDateTime`) as `__grouping_set` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697892100000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697891200000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) AND (`3_s2` is not null AND `3_s2` != '' ) GROUP BY GROUPING SETS ((`2_s1`),(`3_s2`),(`4_@timestampDateTime`)) ORDER BY if(`__grouping_set` = 3, `2__ckCount`, NULL) desc,if(`__grouping_set` = 5, `s2`, NULL) asc,if(`__grouping_set` = 6, `4_@timestampDateTime`, NULL) asc LIMIT 30000 SETTINGS force_grouping_standard_compatibility = 1\"\n" +
+                "            ]";
+        doPeerAggTest(TEST_DEMO_PEER_TERMS_AND_DATE_HISTOGRAM_AGG, query, expectedSqls);
+    }
+
     /**
      * AggCategory.AVG
      * AggCategory.MIN
@@ -124,6 +198,18 @@ public class CommonAggTest extends CommonTest {
         doTest(TEST_DEMO_RANGE_NUMBER_AGG, query, Boolean.FALSE, expectedSqls);
     }
 
+    /**
+     * AggType.RANGE AggType.TERMS
+     */
+    @Test
+    public void testRangeAndTermsAgg() {
+        String query = "{\"aggs\":{\"2\":{\"range\":{\"field\":\"i1\",\"ranges\":[{\"from\":0,\"to\":1000},{\"from\":1000,\"to\":2000}],\"keyed\":true},\"aggs\":{\"3\":{\"terms\":{\"field\":\"s1\",\"size\":5,\"order\":{\"_count\":\"desc\"}}}}}},\"size\":0,\"_source\":{\"excludes\":[]},\"stored_fields\":[\"*\"],\"script_fields\":{},\"docvalue_fields\":[{\"field\":\"@timestampDateTime\",\"format\":\"date_time\"}],\"query\":{\"bool\":{\"must\":[{\"match_all\":{}},{\"match_all\":{}},{\"range\":{\"@timestampDateTime\":{\"gte\":1697891642926,\"lte\":1697892542926,\"format\":\"epoch_millis\"}}}],\"filter\":[],\"should\":[],\"must_not\":[]}},\"timeout\":\"120000ms\"}";
+        String expectedSqls = "[\n" +
+                "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`, multiIf((  i1 < 1000  AND  i1 >= 0  ),'0-1000',(  i1 < 2000  AND  i1 >= 1000  ),'1000-2000','') as `2_parent_key` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697892540000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697891640000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) AND (((  i1 < 1000  AND  i1 >= 0  )) OR ((  i1 < 2000  AND  i1 >= 1000  ))) GROUP BY `3_s1`,`2_parent_key` ORDER BY `3__ckCount` desc LIMIT 5 BY `2_parent_key` LIMIT 30000\"\n" +
+                "            ]";
+        doSubAggTest(TEST_DEMO_RANGE_AND_TERMS_AGG, query, expectedSqls);
+    }
+
     /**
      * AggType.CARDINALITY
      */
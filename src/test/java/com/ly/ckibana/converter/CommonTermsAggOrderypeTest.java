@@ -35,6 +35,7 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
     public static final String TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_ASC_BASE_ON_DATE_HISTOGRAM = getTestName(NAME_AGGREGATION,AggType.TERMS.name(),AggType.DATE_HISTOGRAM.name(),TermsAggOrderType.METRIC_CUSTOM.name(), " asc");
     public static final String TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_DESC_BASE_ON_DATE_HISTOGRAM = getTestName(NAME_AGGREGATION,AggType.TERMS.name(),AggType.DATE_HISTOGRAM.name(),TermsAggOrderType.ALPHABETICAL.name(), " desc");
     public static final String TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_ASC_BASE_ON_DATE_HISTOGRAM = getTestName(NAME_AGGREGATION,AggType.TERMS.name(),AggType.DATE_HISTOGRAM.name(),TermsAggOrderType.ALPHABETICAL.name(), " asc");
+    public static final String TEST_DEMO_DATE_HISTOGRAM_BASE_ON_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_DESC = getTestName(NAME_AGGREGATION,AggType.TERMS.name(),TermsAggOrderType.METRIC_CUSTOM.name(),AggType.DATE_HISTOGRAM.name(), " desc");
     public static final String TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_DESC_PIE= getTestName(NAME_AGGREGATION,AggType.TERMS.name(),TermsAggOrderType.METRIC_CUSTOM.name(), " desc");
 
     /**
@@ -48,6 +49,10 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
                 "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697890980000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890080000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`3__ckCount` desc LIMIT 30000\"\n" +
                 "            ]";
         doTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_COUNT_DESC_BASE_ON_DATE_HISTOGRAM, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = "[\n" +
+                "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount`, sum(`3__ckCount`) OVER (PARTITION BY `2_@timestampDateTime`) as `3__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697890980000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890080000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`3__ckCount` desc LIMIT 5 BY `2_@timestampDateTime` LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_COUNT_DESC_BASE_ON_DATE_HISTOGRAM, query, expectedTopNSqls);
     }
 
     /**
@@ -60,6 +65,10 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
                 "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891080000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890180000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`3__ckCount` asc LIMIT 30000\"\n" +
                 "            ]";
         doTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_COUNT_ASC_BASE_ON_DATE_HISTOGRAM, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = "[\n" +
+                "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount`, sum(`3__ckCount`) OVER (PARTITION BY `2_@timestampDateTime`) as `3__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891080000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890180000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`3__ckCount` asc LIMIT 5 BY `2_@timestampDateTime` LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_COUNT_ASC_BASE_ON_DATE_HISTOGRAM, query, expectedTopNSqls);
     }
 
     /**
@@ -72,6 +81,10 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
                 "                \"SELECT avg(`i1`) as `1_i1`,`s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`1_i1` desc LIMIT 30000\"\n" +
                 "            ]";
         doTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_DESC_BASE_ON_DATE_HISTOGRAM, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = " [\n" +
+                "                \"SELECT avg(`i1`) as `1_i1`,`s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount`, sum(`3__ckCount`) OVER (PARTITION BY `2_@timestampDateTime`) as `3__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`1_i1` desc LIMIT 5 BY `2_@timestampDateTime` LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_DESC_BASE_ON_DATE_HISTOGRAM, query, expectedTopNSqls);
     }
 
     /**
@@ -84,6 +97,10 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
                 "                \"SELECT avg(`i1`) as `1_i1`,`s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`1_i1` asc LIMIT 30000\"\n" +
                 "            ]";
         doTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_ASC_BASE_ON_DATE_HISTOGRAM, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = " [\n" +
+                "                \"SELECT avg(`i1`) as `1_i1`,`s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount`, sum(`3__ckCount`) OVER (PARTITION BY `2_@timestampDateTime`) as `3__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`1_i1` asc LIMIT 5 BY `2_@timestampDateTime` LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_ASC_BASE_ON_DATE_HISTOGRAM, query, expectedTopNSqls);
     }
     /**
      * TermsAggOrderType.ALPHABETICAL desc 时序图
@@ -95,6 +112,10 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
                 "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697769920000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697769020000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`s1` desc LIMIT 30000\"\n" +
                 "            ]";
         doTest(TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_DESC_BASE_ON_DATE_HISTOGRAM, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = "[\n" +
+                "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount`, sum(`3__ckCount`) OVER (PARTITION BY `2_@timestampDateTime`) as `3__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697769920000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697769020000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`s1` desc LIMIT 5 BY `2_@timestampDateTime` LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_DESC_BASE_ON_DATE_HISTOGRAM, query, expectedTopNSqls);
     }
     /**
      * TermsAggOrderType.ALPHABETICAL asc 时序图
@@ -106,6 +127,10 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
                 "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891280000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890380000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`s1` asc LIMIT 30000\"\n" +
                 "            ]";
         doTest(TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_ASC_BASE_ON_DATE_HISTOGRAM, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = "[\n" +
+                "                \"SELECT `s1` as `3_s1`,count(1) as `3__ckCount`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `2_@timestampDateTime`,count(1) as `2__ckCount`, sum(`3__ckCount`) OVER (PARTITION BY `2_@timestampDateTime`) as `3__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891280000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890380000/1000,3)  ) AND (`3_s1` is not null AND `3_s1` != '' ) GROUP BY `2_@timestampDateTime`,`3_s1` ORDER BY `2_@timestampDateTime` asc,`s1` asc LIMIT 5 BY `2_@timestampDateTime` LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_ASC_BASE_ON_DATE_HISTOGRAM, query, expectedTopNSqls);
     }
     /**
      * TermsAggOrderType.ALPHABETICAL desc 饼图
@@ -117,5 +142,25 @@ public class CommonTermsAggOrderypeTest extends CommonTest {
                 "                \"SELECT SUM(`i1`) as `1_i1`,`s1` as `2_s1`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1699447360000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1699446460000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1` ORDER BY `1_i1` desc LIMIT 5\"\n" +
                 "            ]";
         doTest(TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_ASC_BASE_ON_DATE_HISTOGRAM, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = "[\n" +
+                "                \"SELECT SUM(`i1`) as `1_i1`,`s1` as `2_s1`,count(1) as `2__ckCount`, sum(`2__ckCount`) OVER () as `2__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1699447360000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1699446460000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1` ORDER BY `1_i1` desc LIMIT 5\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_TERMS_AGG_ORDER_BY_ALPHABETICAL_ASC_BASE_ON_DATE_HISTOGRAM, query, expectedTopNSqls);
+    }
+
+    /**
+     * TermsAggOrderType.METRIC_CUSTOM.name() desc 按terms拆分的时序图
+     */
+    @Test
+    public void testDateHistogramBaseOnTermsAggOrderTypeMetricCustomDesc() {
+        String query = "{\"aggs\":{\"2\":{\"terms\":{\"field\":\"s1\",\"size\":5,\"order\":{\"1\":\"desc\"}},\"aggs\":{\"1\":{\"avg\":{\"field\":\"i1\"}},\"3\":{\"date_histogram\":{\"field\":\"@timestampDateTime\",\"interval\":\"30s\",\"time_zone\":\"Asia/Shanghai\",\"min_doc_count\":1}}}}},\"size\":0,\"_source\":{\"excludes\":[]},\"stored_fields\":[\"*\"],\"script_fields\":{},\"docvalue_fields\":[{\"field\":\"@timestampDateTime\",\"format\":\"date_time\"}],\"query\":{\"bool\":{\"must\":[{\"match_all\":{}},{\"match_all\":{}},{\"range\":{\"@timestampDateTime\":{\"gte\":1697890248187,\"lte\":1697891148187,\"format\":\"epoch_millis\"}}}],\"filter\":[],\"should\":[],\"must_not\":[]}},\"timeout\":\"120000ms\"}";
+        String expectedSqls = "[\n" +
+                "                \"SELECT avg(`i1`) as `1_i1`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `3_@timestampDateTime`,count(1) as `3__ckCount`,`s1` as `2_s1`,count(1) as `2__ckCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1`,`3_@timestampDateTime` ORDER BY `1_i1` desc,`3_@timestampDateTime` asc LIMIT 30000\"\n" +
+                "            ]";
+        doTest(TEST_DEMO_DATE_HISTOGRAM_BASE_ON_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_DESC, query, Boolean.FALSE, expectedSqls);
+        String expectedTopNSqls = "[\n" +
+                "                \"SELECT avg(`i1`) as `1_i1`,toInt64((toUnixTimestamp64Milli(`@timestampDateTime`)) / 30000) as `3_@timestampDateTime`,count(1) as `3__ckCount`,`s1` as `2_s1`,count(1) as `2__ckCount`, tupleElement((SELECT tuple(groupArray(`2_s1`), any(`2__ckTotalCount`)) FROM (SELECT `s1` as `2_s1`,count(1) as `2__ckCount`, sum(`2__ckCount`) OVER () as `2__ckTotalCount`, avg(`i1`) as `1_i1` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1` ORDER BY `1_i1` desc LIMIT 5)), 2) as `2__ckTotalCount` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) AND (has(tupleElement((SELECT tuple(groupArray(`2_s1`), any(`2__ckTotalCount`)) FROM (SELECT `s1` as `2_s1`,count(1) as `2__ckCount`, sum(`2__ckCount`) OVER () as `2__ckTotalCount`, avg(`i1`) as `1_i1` FROM `table1_all` PREWHERE (  `@timestampDateTime` <= toDateTime64(1697891140000/1000,3)  AND  `@timestampDateTime` >= toDateTime64(1697890240000/1000,3)  ) AND (`2_s1` is not null AND `2_s1` != '' ) GROUP BY `2_s1` ORDER BY `1_i1` desc LIMIT 5)), 1), `s1`)) GROUP BY `2_s1`,`3_@timestampDateTime` ORDER BY `1_i1` desc,`3_@timestampDateTime` asc LIMIT 30000\"\n" +
+                "            ]";
+        doTopNPushdownTest(TEST_DEMO_DATE_HISTOGRAM_BASE_ON_TERMS_AGG_ORDER_BY_METRIC_CUSTOM_DESC, query, expectedTopNSqls);
     }
 }
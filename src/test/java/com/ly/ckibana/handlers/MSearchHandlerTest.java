@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.handlers;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.model.exception.ConcurrencyLimitExceededException;
+import com.ly.ckibana.model.response.Response;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * msearch响应合并测试.
+ */
+public class MSearchHandlerTest {
+
+    /**
+     * es的响应按子查询位置放回，与ck的响应交错时保持原顺序.
+     */
+    @Test
+    public void fillEsResponsesTest() {
+        Response ckResponse = new Response();
+        Response[] responses = {null, ckResponse, null};
+        MSearchHandler.fillEsResponses(responses, List.of(0, 2), "{\"responses\":[{\"took\":1,\"status\":200},{\"took\":2,\"status\":200}]}");
+        Assert.assertEquals(1, responses[0].getTook());
+        Assert.assertSame(ckResponse, responses[1]);
+        Assert.assertEquals(2, responses[2].getTook());
+    }
+
+    /**
+     * es整体报错时各es子查询返回错误，不影响ck的响应.
+     */
+    @Test
+    public void fillEsErrorResponsesTest() {
+        Response ckResponse = new Response();
+        Response[] responses = {ckResponse, null, null};
+        MSearchHandler.fillEsResponses(responses, List.of(1, 2), "{\"error\":{\"type\":\"illegal_argument_exception\"},\"status\":400}");
+        Assert.assertSame(ckResponse, responses[0]);
+        Assert.assertTrue(((JSONObject) JSONObject.from(responses[1].getError())).getString("message").contains("illegal_argument_exception"));
+        Assert.assertNotNull(responses[2].getError());
+
+        MSearchHandler.fillEsResponses(responses, List.of(1), "");
+        Assert.assertEquals("es响应为空", JSONObject.from(responses[1].getError()).getString("message"));
+    }
+
+    /**
+     * 响应已提交后报错，未完成的子查询返回各自的error，无message的异常返回异常类名.
+     */
+    @Test
+    public void fillErrorResponsesTest() {
+        Response ckResponse = new Response();
+        Response[] responses = {ckResponse, null};
+        MSearchHandler.fillErrorResponses(responses, new ExecutionException(new ConcurrencyLimitExceededException("wait 100ms")));
+        Assert.assertSame(ckResponse, responses[0]);
+        Assert.assertEquals("查询排队超时,请稍后重试", JSONObject.from(responses[1].getError()).getString("message"));
+
+        responses[1] = null;
+        MSearchHandler.fillErrorResponses(responses, new NullPointerException());
+        Assert.assertEquals("NullPointerException", JSONObject.from(responses[1].getError()).getString("message"));
+    }
+
+    /**
+     * es请求失败时取消未完成的ck查询，es成功或被取消时不影响ck查询.
+     */
+    @Test
+    public void cancelOnEsFailureTest() {
+        AtomicInteger killed = new AtomicInteger();
+        FutureTask<Response> ckFuture = new FutureTask<>(Response::new);
+        CompletableFuture<String> esResponse = new CompletableFuture<>();
+        MSearchHandler.cancelOnEsFailure(esResponse, List.of(ckFuture), killed::incrementAndGet);
+        esResponse.complete("{}");
+        Assert.assertFalse(ckFuture.isCancelled());
+
+        esResponse = new CompletableFuture<>();
+        MSearchHandler.cancelOnEsFailure(esResponse, List.of(ckFuture), killed::incrementAndGet);
+        esResponse.cancel(true);
+        Assert.assertFalse(ckFuture.isCancelled());
+        Assert.assertEquals(0, killed.get());
+
+        esResponse = new CompletableFuture<>();
+        MSearchHandler.cancelOnEsFailure(esResponse, List.of(ckFuture), killed::incrementAndGet);
+        esResponse.completeExceptionally(new IOException("connection reset"));
+        Assert.assertTrue(ckFuture.isCancelled());
+        Assert.assertEquals(1, killed.get());
+    }
+}
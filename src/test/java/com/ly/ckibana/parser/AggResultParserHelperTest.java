@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.parser;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * agg结果解析辅助方法测试.
+ */
+public class AggResultParserHelperTest {
+
+    /**
+     * 仅字符串和整数父字段可按key拆分子agg结果.
+     */
+    @Test
+    public void exactKeyTypeTest() {
+        Assert.assertTrue(AggResultParserHelper.isExactKeyType("String"));
+        Assert.assertTrue(AggResultParserHelper.isExactKeyType("LowCardinality(String)"));
+        Assert.assertTrue(AggResultParserHelper.isExactKeyType("Nullable(Int64)"));
+        Assert.assertTrue(AggResultParserHelper.isExactKeyType("UInt32"));
+        Assert.assertFalse(AggResultParserHelper.isExactKeyType("UInt64"));
+        Assert.assertFalse(AggResultParserHelper.isExactKeyType("Float64"));
+        Assert.assertFalse(AggResultParserHelper.isExactKeyType("Decimal(18, 2)"));
+        Assert.assertFalse(AggResultParserHelper.isExactKeyType("DateTime64(3)"));
+        Assert.assertFalse(AggResultParserHelper.isExactKeyType("Array(String)"));
+        Assert.assertFalse(AggResultParserHelper.isExactKeyType(null));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.parser;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * date_histogram时间切片测试.
+ */
+public class DateHistogramChunkHelperTest {
+
+    /**
+     * 切分为头部不完整段、稳定的完整切片和尾部未稳定段.
+     */
+    @Test
+    public void splitTest() {
+        List<DateHistogramChunkHelper.Segment> segments = DateHistogramChunkHelper.split(50, true, 420, true, 100, 350);
+        Assert.assertEquals(List.of(
+                new DateHistogramChunkHelper.Segment(50, true, 100, false, false),
+                new DateHistogramChunkHelper.Segment(100, true, 200, false, true),
+                new DateHistogramChunkHelper.Segment(200, true, 300, false, true),
+                new DateHistogramChunkHelper.Segment(300, true, 420, true, false)), segments);
+
+        segments = DateHistogramChunkHelper.split(100, true, 300, false, 100, 1000);
+        Assert.assertEquals(List.of(
+                new DateHistogramChunkHelper.Segment(100, true, 200, false, true),
+                new DateHistogramChunkHelper.Segment(200, true, 300, false, true)), segments);
+    }
+
+    /**
+     * 没有稳定的完整切片时不切分.
+     */
+    @Test
+    public void splitWithoutStableChunkTest() {
+        Assert.assertTrue(DateHistogramChunkHelper.split(50, true, 420, true, 100, 150).isEmpty());
+        Assert.assertTrue(DateHistogramChunkHelper.split(50, true, 180, true, 100, 1000).isEmpty());
+    }
+}
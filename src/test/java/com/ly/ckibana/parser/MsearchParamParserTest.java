@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.parser;
+
+import com.ly.ckibana.model.property.KibanaItemProperty;
+import com.ly.ckibana.model.request.ProxyConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * msearch子查询并发解析测试.
+ */
+public class MsearchParamParserTest {
+
+    /**
+     * 并发解析时后提交的先完成，结果仍按原顺序返回.
+     */
+    @Test
+    public void invokeAllKeepOrderTest() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            CountDownLatch lastDone = new CountDownLatch(1);
+            List<String> finished = new ArrayList<>();
+            List<Callable<String>> tasks = List.of(
+                    () -> {
+                        lastDone.await(5, TimeUnit.SECONDS);
+                        return record(finished, "first");
+                    },
+                    () -> {
+                        lastDone.await(5, TimeUnit.SECONDS);
+                        return record(finished, "second");
+                    },
+                    () -> {
+                        String result = record(finished, "third");
+                        lastDone.countDown();
+                        return result;
+                    });
+            Assert.assertEquals(List.of("first", "second", "third"), MsearchParamParser.invokeAll(tasks, executor));
+            Assert.assertEquals("third", finished.get(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 线程池拒绝或不存在时在当前线程执行.
+     */
+    @Test
+    public void invokeAllFallbackTest() {
+        ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>());
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            String caller = Thread.currentThread().getName();
+            List<Callable<String>> tasks = List.of(
+                    () -> {
+                        release.await(5, TimeUnit.SECONDS);
+                        return "pooled";
+                    },
+                    () -> {
+                        release.countDown();
+                        return Thread.currentThread().getName();
+                    });
+            Assert.assertEquals(List.of("pooled", caller), MsearchParamParser.invokeAll(tasks, executor));
+            Assert.assertEquals(List.of(caller, caller), MsearchParamParser.invokeAll(List.of(() -> Thread.currentThread().getName(),
+                    () -> Thread.currentThread().getName()), null));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 任一子查询抛出非预期异常时整体失败.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void invokeAllFailTest() {
+        List<Callable<String>> tasks = List.of(() -> "ok", () -> {
+            throw new IllegalArgumentException("bad");
+        });
+        MsearchParamParser.invokeAll(tasks, null);
+    }
+
+    /**
+     * 直连es的子查询按原顺序转发并记录位置，其余按位置返回索引.
+     */
+    @Test
+    public void splitByIndexTest() {
+        KibanaItemProperty kibanaItemProperty = new KibanaItemProperty();
+        kibanaItemProperty.setWhiteIndexList(List.of("ck_table"));
+        String[] lines = {
+            "{\"index\":\"es_index\"}", "{\"size\":1}",
+            "{\"index\":\"ck_table\"}", "{\"size\":2}",
+            "{}", "{\"size\":3}",
+            "{\"index\":\"other_index\"}", "{\"size\":4}"
+        };
+        StringBuilder subEsRequest = new StringBuilder();
+        List<Integer> esPositions = new ArrayList<>();
+        Map<Integer, String> ckIndexes = MsearchParamParser.splitByIndex(ProxyConfig.builder().kibanaItemProperty(kibanaItemProperty).build(), "ck_table", lines, subEsRequest, esPositions);
+        Assert.assertEquals(Map.of(1, "ck_table", 2, "ck_table"), ckIndexes);
+        Assert.assertEquals(List.of(0, 3), esPositions);
+        Assert.assertEquals(String.join(System.lineSeparator(), lines[0], lines[1], lines[6], lines[7], ""), subEsRequest.toString());
+    }
+
+    private static synchronized String record(List<String> finished, String value) {
+        finished.add(value);
+        return value;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.parser;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.model.exception.CkSqlUnsupportedException;
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import com.ly.ckibana.model.request.CkRequest;
+import com.ly.ckibana.model.request.CkRequestContext;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * msearch面板合并测试.
+ */
+public class PanelFusionPlannerTest {
+
+    /**
+     * 分组列不同的面板使用GROUPING SETS合并，结果按grouping()拆回各面板并按原排序返回.
+     */
+    @Test
+    public void fuseByGroupingSetsTest() {
+        PanelFusionPlanner.Candidate histogram = candidate(Map.of("2_ts", "toStartOfMinute(ts) as `2_ts`", "2_count", "count(1) as `2_count`"),
+                List.of("2_ts"), List.of(Pair.of("2_ts", false)));
+        PanelFusionPlanner.Candidate metric = candidate(Map.of("1_sum", "sum(`bytes`) as `1_sum`"), List.of(), List.of());
+        List<List<PanelFusionPlanner.Candidate>> batches = PanelFusionPlanner.partition(List.of(histogram, metric), 8);
+        Assert.assertEquals(1, batches.size());
+
+        List<FusedAggQuery.Panel> panels = PanelFusionPlanner.fuse(batches.get(0));
+        String sql = panels.get(0).getQuery().getSql();
+        Assert.assertTrue(sql.contains("grouping(`2_ts`) as `__grouping_set`"));
+        Assert.assertTrue(sql.contains("GROUP BY GROUPING SETS ((`2_ts`),())"));
+        Assert.assertTrue(sql.endsWith("LIMIT 100 SETTINGS force_grouping_standard_compatibility = 1"));
+
+        List<JSONObject> rows = List.of(
+                row("2_ts", 120L, "2_count", 3L, "1_sum", 0L, "__grouping_set", 0L),
+                row("2_ts", 60L, "2_count", 2L, "1_sum", 0L, "__grouping_set", 0L),
+                row("2_ts", 0L, "2_count", 5L, "1_sum", 42L, "__grouping_set", 1L));
+        List<JSONObject> histogramRows = panels.get(0).extract(rows);
+        Assert.assertEquals(2, histogramRows.size());
+        Assert.assertEquals(60L, histogramRows.get(0).getLongValue("2_ts"));
+        Assert.assertFalse(histogramRows.get(0).containsKey("1_sum"));
+        List<JSONObject> metricRows = panels.get(1).extract(rows);
+        Assert.assertEquals(1, metricRows.size());
+        Assert.assertEquals(42L, metricRows.get(0).getLongValue("1_sum"));
+    }
+
+    /**
+     * 同名别名不同表达式的面板不合并，分组列相同时直接GROUP BY.
+     */
+    @Test
+    public void partitionByAliasConflictTest() {
+        PanelFusionPlanner.Candidate minute = candidate(Map.of("2_ts", "toStartOfMinute(ts) as `2_ts`"), List.of("2_ts"), List.of());
+        PanelFusionPlanner.Candidate hour = candidate(Map.of("2_ts", "toStartOfHour(ts) as `2_ts`"), List.of("2_ts"), List.of());
+        PanelFusionPlanner.Candidate minuteSum = candidate(Map.of("2_ts", "toStartOfMinute(ts) as `2_ts`", "3_sum", "sum(`bytes`) as `3_sum`"),
+                List.of("2_ts"), List.of());
+        List<List<PanelFusionPlanner.Candidate>> batches = PanelFusionPlanner.partition(List.of(minute, hour, minuteSum), 8);
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(List.of(minute, minuteSum), batches.get(0));
+
+        List<FusedAggQuery.Panel> panels = PanelFusionPlanner.fuse(batches.get(0));
+        Assert.assertEquals("SELECT toStartOfMinute(ts) as `2_ts`,sum(`bytes`) as `3_sum` FROM `t` PREWHERE ts > 0 GROUP BY `2_ts` LIMIT 100",
+                panels.get(0).getQuery().getSql());
+        Assert.assertNull(panels.get(1).getGroupingMask());
+    }
+
+    /**
+     * 合并查询只执行一次，失败时各面板得到同一异常，等待超过deadline时按取消处理.
+     */
+    @Test
+    public void loadOnceTest() throws Exception {
+        FusedAggQuery failed = new FusedAggQuery("SELECT 1", 2);
+        AtomicInteger calls = new AtomicInteger();
+        Callable<Pair<List<JSONObject>, Boolean>> loader = () -> {
+            calls.incrementAndGet();
+            throw new CkSqlUnsupportedException("Unknown function grouping");
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                failed.load(loader, Long.MAX_VALUE);
+                Assert.fail();
+            } catch (CkSqlUnsupportedException e) {
+                Assert.assertEquals(1, calls.get());
+            }
+        }
+
+        FusedAggQuery fused = new FusedAggQuery("SELECT 1", 2);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread(() -> {
+            try {
+                fused.load(() -> {
+                    loading.countDown();
+                    release.await();
+                    return Pair.of(List.of(), false);
+                }, Long.MAX_VALUE);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        leader.start();
+        loading.await();
+        try {
+            fused.load(() -> Pair.of(List.of(), true), System.currentTimeMillis() + 50);
+            Assert.fail();
+        } catch (QueryCancelledException e) {
+            Assert.assertTrue(e.getMessage().contains("超时"));
+        }
+        release.countDown();
+        leader.join();
+        Assert.assertFalse(fused.load(() -> Pair.of(List.of(), true), Long.MAX_VALUE).getRight());
+    }
+
+    /**
+     * ck不支持合并查询的集群在有效期内不再合并.
+     */
+    @Test
+    public void unsupportedVerdictTest() {
+        PanelFusionPlanner planner = new PanelFusionPlanner();
+        Assert.assertFalse(planner.isUnsupported("ck1/db", 0));
+        Assert.assertTrue(planner.markUnsupported("ck1/db", 0));
+        Assert.assertFalse(planner.markUnsupported("ck1/db", 1));
+        Assert.assertTrue(planner.isUnsupported("ck1/db", PanelFusionPlanner.UNSUPPORTED_TTL_MILLIS - 1));
+        Assert.assertFalse(planner.isUnsupported("ck2/db", 1));
+        Assert.assertFalse(planner.isUnsupported("ck1/db", PanelFusionPlanner.UNSUPPORTED_TTL_MILLIS + 1));
+        Assert.assertTrue(planner.markUnsupported("ck1/db", PanelFusionPlanner.UNSUPPORTED_TTL_MILLIS + 1));
+    }
+
+    private PanelFusionPlanner.Candidate candidate(Map<String, String> selects, List<String> groupColumns, List<Pair<String, Boolean>> orders) {
+        CkRequest ckRequest = new CkRequest();
+        ckRequest.setTable("`t`");
+        ckRequest.setWhere("PREWHERE ts > 0");
+        ckRequest.limit(100);
+        Map<String, String> orderedSelects = new LinkedHashMap<>();
+        selects.keySet().stream().sorted().forEach(each -> orderedSelects.put(each, selects.get(each)));
+        return new PanelFusionPlanner.Candidate(new CkRequestContext(), "t", ckRequest, orderedSelects, groupColumns, orders);
+    }
+
+    private JSONObject row(Object... values) {
+        JSONObject result = new JSONObject();
+        for (int i = 0; i < values.length; i += 2) {
+            result.put((String) values[i], values[i + 1]);
+        }
+        return result;
+    }
+}
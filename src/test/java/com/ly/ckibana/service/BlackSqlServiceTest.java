@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ * sql黑名单测试.
+ */
+public class BlackSqlServiceTest {
+
+    /**
+     * 归一化忽略字面量和空白差异.
+     */
+    @Test
+    public void normalizeSqlTest() {
+        String sql = "SELECT count(1) FROM t1 WHERE  `code` = 'a\\'b' AND cost > 10.5 AND field2 = 3";
+        Assert.assertEquals("SELECT count(?) FROM t1 WHERE `code` = ? AND cost > ? AND field2 = ?", BlackSqlService.normalizeSql(sql));
+        Assert.assertEquals(BlackSqlService.normalizeSql("a = 'x' AND b = 1"), BlackSqlService.normalizeSql("a = 'yy'  AND b = 22"));
+    }
+
+    /**
+     * 读取较早的es结果不覆盖之后的本地增删，超过es可见延迟后以es为准.
+     */
+    @Test
+    public void refreshKeepLocalChangesTest() {
+        BlackSqlService blackSqlService = new BlackSqlService();
+        long readAt = System.currentTimeMillis();
+        blackSqlService.applyRefresh(Map.of("removed", "0_sql2"), readAt);
+        blackSqlService.updateSnapshot("added", "0_sql1");
+        blackSqlService.updateSnapshot("removed", null);
+
+        blackSqlService.applyRefresh(Map.of("removed", "0_sql2"), readAt);
+        Assert.assertTrue(blackSqlService.isBlackSql(0, "sql1"));
+        Assert.assertEquals(1, blackSqlService.metrics().get("size"));
+
+        blackSqlService.applyRefresh(Map.of("other", "0_sql3"), readAt + 60000);
+        Assert.assertTrue(blackSqlService.isBlackSql(0, "sql3"));
+        Assert.assertEquals(1, blackSqlService.metrics().get("size"));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.response.CkRow;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * RowBinary列式解码测试.
+ */
+public class CkColumnarReaderTest {
+
+    private static ClickHouseRowBinaryInputStream toStream(byte[] bytes) throws IOException {
+        return new ClickHouseRowBinaryInputStream(new ByteArrayInputStream(bytes), TimeZone.getDefault(), new ClickHouseProperties(), true);
+    }
+
+    /**
+     * 多个块间的取值与jdbc类型一致.
+     */
+    @Test
+    public void readAcrossBlocksTest() throws Exception {
+        RowBinaryWriter writer = new RowBinaryWriter().header(Arrays.asList("key", "doc_count", "avg", "tags", "time"),
+                Arrays.asList("LowCardinality(String)", "UInt64", "Nullable(Float64)", "Array(String)", "DateTime64(3)"));
+        for (int i = 0; i < 5; i++) {
+            writer.writeString("key" + i % 2).writeInt64(i * 10L);
+            if (i == 3) {
+                writer.writeNull(true);
+            } else {
+                writer.writeNull(false).writeFloat64(i + 0.5);
+            }
+            writer.writeLeb128(2).writeString("a").writeString("b" + i);
+            writer.writeInt64(1700000000123L + i);
+        }
+        CkColumnarReader reader = CkColumnarReader.create(toStream(writer.toByteArray()), 2);
+        Assert.assertNotNull(reader);
+        List<String> rows = new ArrayList<>();
+        reader.read(row -> {
+            int index = rows.size();
+            Assert.assertEquals("key" + index % 2, row.get("key"));
+            Assert.assertEquals(BigInteger.valueOf(index * 10L), row.get("doc_count"));
+            Assert.assertEquals(index * 10L, row.getLongValue("doc_count"));
+            if (index == 3) {
+                Assert.assertNull(row.get("avg"));
+                Assert.assertNull(row.getString("avg"));
+                Assert.assertEquals(0L, row.getLongValue("avg"));
+            } else {
+                Assert.assertEquals(Double.valueOf(index + 0.5), row.get("avg"));
+                Assert.assertEquals(Double.toString(index + 0.5), row.getString("avg"));
+            }
+            Assert.assertEquals(Arrays.asList("a", "b" + index), row.get("tags"));
+            Assert.assertEquals(new Timestamp(1700000000123L + index), row.get("time"));
+            Assert.assertNull(row.get("unknown"));
+            rows.add(row.toJSONObject().toJSONString());
+        });
+        Assert.assertEquals(5, rows.size());
+    }
+
+    /**
+     * 游标行转换为独立JSONObject后不受块复用影响.
+     */
+    @Test
+    public void toJSONObjectTest() throws Exception {
+        RowBinaryWriter writer = new RowBinaryWriter().header(Collections.singletonList("key"), Collections.singletonList("String"));
+        writer.writeString("a").writeString("b").writeString("c");
+        CkColumnarReader reader = CkColumnarReader.create(toStream(writer.toByteArray()), 1);
+        List<CkRow> rows = new ArrayList<>();
+        reader.read(row -> rows.add(CkRow.of(row.toJSONObject())));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(rows.get(0).getString("key"), rows.get(1).getString("key"), rows.get(2).getString("key")));
+    }
+
+    /**
+     * 不支持的列类型返回null，由调用方回退jdbc.
+     */
+    @Test
+    public void unsupportedTypeTest() throws Exception {
+        RowBinaryWriter writer = new RowBinaryWriter().header(Arrays.asList("id", "attrs"), Arrays.asList("UUID", "Map(String, String)"));
+        Assert.assertNull(CkColumnarReader.create(toStream(writer.toByteArray()), CkColumnarReader.DEFAULT_BLOCK_SIZE));
+    }
+}
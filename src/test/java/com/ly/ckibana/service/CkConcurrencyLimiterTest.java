@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.exception.ConcurrencyLimitExceededException;
+import com.ly.ckibana.model.property.ConcurrencyLimitProperty;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * ck查询自适应并发限制测试.
+ */
+public class CkConcurrencyLimiterTest {
+
+    private final CkConcurrencyLimiter ckConcurrencyLimiter = new CkConcurrencyLimiter();
+
+    private ConcurrencyLimitProperty buildProperty(int initialLimit) {
+        ConcurrencyLimitProperty property = new ConcurrencyLimitProperty();
+        property.setEnabled(true);
+        property.setInitialLimit(initialLimit);
+        property.setMinLimit(1);
+        property.setQueueTimeoutMillis(50);
+        return property;
+    }
+
+    /**
+     * 超过并发上限的查询排队，超时后拒绝，许可归还后可继续执行.
+     */
+    @Test
+    public void queueTimeoutTest() {
+        ConcurrencyLimitProperty property = buildProperty(1);
+        CkConcurrencyLimiter.Permit permit = ckConcurrencyLimiter.acquire(property);
+        Assert.assertThrows(ConcurrencyLimitExceededException.class, () -> ckConcurrencyLimiter.acquire(property));
+        permit.close();
+        ckConcurrencyLimiter.acquire(property).close();
+        Assert.assertEquals(0, ckConcurrencyLimiter.metrics().get("inflight"));
+        Assert.assertEquals(1L, ckConcurrencyLimiter.metrics().get("rejectedCount"));
+    }
+
+    /**
+     * ck拒绝后下调并发上限，关闭时不限制.
+     */
+    @Test
+    public void droppedTest() {
+        ConcurrencyLimitProperty property = buildProperty(20);
+        try (CkConcurrencyLimiter.Permit permit = ckConcurrencyLimiter.acquire(property)) {
+            permit.onDropped();
+        }
+        Assert.assertEquals(18, ckConcurrencyLimiter.getLimit());
+
+        property.setEnabled(false);
+        ckConcurrencyLimiter.acquire(property).close();
+        Assert.assertEquals(1L, ckConcurrencyLimiter.metrics().get("admittedCount"));
+    }
+}
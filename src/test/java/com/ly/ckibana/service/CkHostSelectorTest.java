@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.clickhouse.except.ClickHouseErrorCode;
+import ru.yandex.clickhouse.except.ClickHouseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * ck副本选择测试.
+ */
+public class CkHostSelectorTest {
+
+    /**
+     * 两个host时总是选择耗时较低的.
+     */
+    @Test
+    public void selectFasterHostTest() {
+        CkHostSelector selector = new CkHostSelector(List.of("fast", "slow"), 3, 1000, 10000);
+        selector.onComplete("fast", 10, false);
+        selector.onComplete("slow", 500, false);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("fast", selector.select(host -> 0));
+        }
+        Assert.assertEquals("slow", selector.select(host -> "fast".equals(host) ? 100 : 0));
+    }
+
+    /**
+     * 连续失败后摘除，到期后放行一个探测查询，成功后恢复.
+     */
+    @Test
+    public void ejectAndProbeTest() throws InterruptedException {
+        CkHostSelector selector = new CkHostSelector(List.of("bad", "good"), 2, 50, 1000);
+        selector.onComplete("bad", 10, true);
+        Assert.assertFalse(selector.isEjected("bad"));
+        selector.onComplete("bad", 10, true);
+        Assert.assertTrue(selector.isEjected("bad"));
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("good", selector.select(host -> 0));
+        }
+
+        Thread.sleep(60);
+        Assert.assertEquals("bad", selector.select(host -> 0));
+        Assert.assertEquals("good", selector.select(host -> 0));
+        selector.onComplete("bad", 10, false);
+        Assert.assertFalse(selector.isEjected("bad"));
+    }
+
+    /**
+     * 只有网络、连接类错误计入host失败，查询超时、ck过载和消费异常不计入.
+     */
+    @Test
+    public void hostFailureTest() {
+        Assert.assertTrue(CkService.isHostFailure(new ClickHouseException(ClickHouseErrorCode.NETWORK_ERROR.code, new IOException("reset"), "host", 8123)));
+        Assert.assertTrue(CkService.isHostFailure(new SQLException("read error", new SocketTimeoutException("timeout"))));
+        Assert.assertTrue(CkService.isHostFailure(new ConnectException("refused")));
+        Assert.assertFalse(CkService.isHostFailure(new ClickHouseException(ClickHouseErrorCode.TIMEOUT_EXCEEDED.code, new RuntimeException("timeout"), "host", 8123)));
+        Assert.assertFalse(CkService.isHostFailure(new ClickHouseException(ClickHouseErrorCode.TOO_MUCH_SIMULTANEOUS_QUERIES.code, new RuntimeException("busy"), "host", 8123)));
+        Assert.assertFalse(CkService.isHostFailure(new InterruptedIOException("cancelled")));
+        Assert.assertFalse(CkService.isHostFailure(new IllegalStateException("parse error")));
+    }
+}
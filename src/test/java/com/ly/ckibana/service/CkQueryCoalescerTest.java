@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 相同查询合并执行测试.
+ */
+public class CkQueryCoalescerTest {
+
+    private final CkQueryCoalescer ckQueryCoalescer = new CkQueryCoalescer();
+
+    /**
+     * 并发的相同查询只执行一次，等待方共享结果.
+     */
+    @Test
+    public void coalesceTest() throws Exception {
+        AtomicInteger executeCount = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<JSONObject>>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> ckQueryCoalescer.execute("sql", 10, 10000, () -> {
+                executeCount.incrementAndGet();
+                started.countDown();
+                release.await();
+                return List.of(new JSONObject());
+            })));
+            started.await();
+            for (int i = 0; i < 3; i++) {
+                futures.add(executor.submit(() -> ckQueryCoalescer.execute("sql", 10, 10000, () -> {
+                    executeCount.incrementAndGet();
+                    return List.of();
+                })));
+            }
+            while ((int) ckQueryCoalescer.metrics().get("waiting") < 3) {
+                TimeUnit.MILLISECONDS.sleep(5);
+            }
+            release.countDown();
+            for (Future<List<JSONObject>> future : futures) {
+                Assert.assertEquals(1, future.get().size());
+            }
+            Assert.assertEquals(1, executeCount.get());
+            Assert.assertEquals(3L, ckQueryCoalescer.metrics().get("savedCount"));
+            Assert.assertEquals(0, ckQueryCoalescer.metrics().get("inflight"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 超过等待上限、等待超时或leader被取消时自行执行.
+     */
+    @Test
+    public void fallbackTest() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<JSONObject>> leader = executor.submit(() -> ckQueryCoalescer.execute("sql", 0, 10000, () -> {
+                started.countDown();
+                release.await();
+                throw new QueryCancelledException("cancel");
+            }));
+            started.await();
+            Assert.assertTrue(ckQueryCoalescer.execute("sql", 0, 10000, List::of).isEmpty());
+            Assert.assertTrue(ckQueryCoalescer.execute("sql", 1, 10, List::of).isEmpty());
+            Assert.assertEquals(1L, ckQueryCoalescer.metrics().get("overflowCount"));
+            Assert.assertEquals(1L, ckQueryCoalescer.metrics().get("timeoutCount"));
+            release.countDown();
+            try {
+                leader.get();
+                Assert.fail();
+            } catch (Exception e) {
+                Assert.assertTrue(e.getCause() instanceof QueryCancelledException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
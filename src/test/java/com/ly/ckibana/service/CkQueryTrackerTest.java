@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.exception.QueryCancelledException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * ck查询取消跟踪测试.
+ */
+public class CkQueryTrackerTest {
+
+    private final CkQueryTracker ckQueryTracker = new CkQueryTracker();
+
+    /**
+     * 同一请求内相同sql的query_id不冲突，且包含请求id.
+     */
+    @Test
+    public void buildQueryIdTest() {
+        CkQueryScope scope = ckQueryTracker.openScope();
+        String first = ckQueryTracker.buildQueryId(scope, "SELECT 1");
+        String second = ckQueryTracker.buildQueryId(scope, "SELECT 1");
+        Assert.assertNotEquals(first, second);
+        Assert.assertTrue(first.startsWith("ckibana-" + scope.getRequestId() + "-"));
+        Assert.assertEquals(first.substring(0, first.lastIndexOf('-')), second.substring(0, second.lastIndexOf('-')));
+        ckQueryTracker.closeScope(scope);
+    }
+
+    /**
+     * 请求取消后不再发出新的查询.
+     */
+    @Test
+    public void registerAfterCancelTest() {
+        CkQueryScope scope = ckQueryTracker.openScope();
+        ckQueryTracker.register(scope, "q1", null, "host").close();
+        ckQueryTracker.cancel(scope, "client aborted");
+        Assert.assertTrue(scope.isCancelled());
+        Assert.assertThrows(QueryCancelledException.class, () -> ckQueryTracker.register(scope, "q2", null, "host"));
+        Assert.assertTrue(scope.getRunningQueries().isEmpty());
+        ckQueryTracker.closeScope(scope);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 结果缓存编解码测试.
+ */
+public class CkResultCacheCodecTest {
+
+    /**
+     * 列式(含字典编码列)和按行两种格式编解码一致.
+     */
+    @Test
+    public void encodeAndDecodeTest() {
+        List<JSONObject> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            JSONObject row = new JSONObject();
+            row.put("host", "host" + i % 3);
+            row.put("count", (long) i);
+            row.put("msg", i % 10 == 0 ? null : "msg" + i);
+            rows.add(row);
+        }
+        String encoded = CkResultCacheCodec.encode(rows);
+        Assert.assertTrue(encoded.length() < rows.toString().length());
+        Assert.assertEquals(rows, CkResultCacheCodec.decode(encoded));
+
+        List<JSONObject> mixedRows = List.of(JSONObject.of("a", 1), JSONObject.of("b", "x"));
+        Assert.assertEquals(mixedRows, CkResultCacheCodec.decode(CkResultCacheCodec.encode(mixedRows)));
+        Assert.assertEquals(List.of(), CkResultCacheCodec.decode(CkResultCacheCodec.encode(List.of())));
+    }
+
+    /**
+     * 兼容旧版本的JSON格式，无法识别的格式视为未命中.
+     */
+    @Test
+    public void decodeLegacyTest() {
+        Assert.assertEquals(List.of(JSONObject.of("a", 1)), CkResultCacheCodec.decode("[{\"a\":1}]"));
+        Assert.assertNull(CkResultCacheCodec.decode("ckc9:xxx"));
+    }
+}
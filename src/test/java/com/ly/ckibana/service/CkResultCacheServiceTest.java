@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.ly.ckibana.configure.config.ProxyConfigLoader;
+import com.ly.ckibana.model.compute.Range;
+import com.ly.ckibana.model.property.KibanaProperty;
+import com.ly.ckibana.model.property.QueryProperty;
+import com.ly.ckibana.model.request.RequestContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 结果缓存测试.
+ */
+public class CkResultCacheServiceTest {
+
+    private final List<List<Map<String, Object>>> savedBatches = new ArrayList<>();
+
+    private String saveResponse = "{\"errors\":false}";
+
+    private final Map<String, Map<String, JSONObject>> esSources = new HashMap<>();
+
+    private final List<List<String>> mgetIndexNames = new ArrayList<>();
+
+    private RuntimeException mgetError;
+
+    private final CkResultCacheService cacheService = new CkResultCacheService() {
+        @Override
+        String saveBatch(String index, List<Map<String, Object>> dataList) {
+            savedBatches.add(dataList);
+            return saveResponse;
+        }
+
+        @Override
+        Map<String, List<JSONObject>> mgetSources(List<String> indexNames, Collection<String> keys) {
+            mgetIndexNames.add(indexNames);
+            if (mgetError != null) {
+                throw mgetError;
+            }
+            Map<String, List<JSONObject>> result = new HashMap<>();
+            for (String index : indexNames) {
+                esSources.getOrDefault(index, Map.of()).forEach((key, source) -> {
+                    if (keys.contains(key)) {
+                        result.computeIfAbsent(key, k -> new ArrayList<>()).add(source);
+                    }
+                });
+            }
+            return result;
+        }
+    };
+
+    private QueryProperty queryProperty;
+
+    @Before
+    public void setUp() {
+        KibanaProperty kibanaProperty = new KibanaProperty();
+        queryProperty = kibanaProperty.getQuery();
+        queryProperty.setUseCache(true);
+        ProxyConfigLoader proxyConfigLoader = new ProxyConfigLoader();
+        proxyConfigLoader.setKibanaProperty(kibanaProperty);
+        cacheService.setProxyConfigLoader(proxyConfigLoader);
+        cacheService.setWriteQueue(new LinkedBlockingQueue<>(2));
+    }
+
+    /**
+     * 同一key在队列中只保留一份，写入后可再次入队.
+     */
+    @Test
+    public void writeBehindDedupTest() throws InterruptedException {
+        queryProperty.setLocalCacheMaxWeight(0);
+        cacheService.put("sql1", rows(1), 60000);
+        cacheService.put("sql1", rows(2), 60000);
+        cacheService.put("sql2", rows(3), 60000);
+        Assert.assertEquals(1L, cacheService.metrics().get("writeDedupCount"));
+        Assert.assertEquals(2, cacheService.getWriteQueue().size());
+
+        Assert.assertEquals(2, cacheService.flushWriteQueue(0));
+        Assert.assertEquals(1, savedBatches.size());
+        Assert.assertEquals(List.of("sql1", "sql2"), savedBatches.get(0).stream().map(each -> each.get("key")).toList());
+        Assert.assertEquals(2L, cacheService.metrics().get("writeCount"));
+        Assert.assertEquals(0, cacheService.flushWriteQueue(0));
+
+        cacheService.put("sql1", rows(1), 60000);
+        Assert.assertEquals(1, cacheService.getWriteQueue().size());
+    }
+
+    /**
+     * 本地缓存已有的key不重复写入es.
+     */
+    @Test
+    public void localCacheSkipWriteTest() {
+        cacheService.put("sql1", rows(1), 60000);
+        cacheService.put("sql1", rows(2), 60000);
+        Assert.assertEquals(1, cacheService.getWriteQueue().size());
+        Assert.assertEquals(0L, cacheService.metrics().get("writeDedupCount"));
+    }
+
+    /**
+     * 队列满时丢弃，写入失败计数后释放key.
+     */
+    @Test
+    public void writeBehindDropAndFailTest() throws InterruptedException {
+        queryProperty.setLocalCacheMaxWeight(0);
+        cacheService.put("sql1", rows(1), 60000);
+        cacheService.put("sql2", rows(1), 60000);
+        cacheService.put("sql3", rows(1), 60000);
+        Assert.assertEquals(1L, cacheService.metrics().get("writeDropCount"));
+
+        saveResponse = "{\"errors\":true}";
+        Assert.assertEquals(2, cacheService.flushWriteQueue(0));
+        Assert.assertEquals(2L, cacheService.metrics().get("writeFailCount"));
+        cacheService.put("sql1", rows(1), 60000);
+        cacheService.put("sql3", rows(1), 60000);
+        Assert.assertEquals(2, cacheService.getWriteQueue().size());
+    }
+
+    /**
+     * 不缓存的结果和超过编码大小上限的结果不写入es.
+     */
+    @Test
+    public void skipWriteTest() throws InterruptedException {
+        queryProperty.setLocalCacheMaxWeight(0);
+        cacheService.put("sql1", rows(1), 0);
+        Assert.assertEquals(0, cacheService.getWriteQueue().size());
+
+        queryProperty.setCacheMaxEncodedBytes(1);
+        cacheService.put("sql2", rows(1), 60000);
+        Assert.assertEquals(1, cacheService.flushWriteQueue(0));
+        Assert.assertTrue(savedBatches.isEmpty());
+        Assert.assertEquals(1L, cacheService.metrics().get("writeOversizeCount"));
+    }
+
+    /**
+     * 结束时间早于(当前时间-写入延迟)的范围使用长ttl，其余使用短ttl.
+     */
+    @Test
+    public void ttlSplitTest() {
+        long now = System.currentTimeMillis();
+        long lag = queryProperty.getCacheIngestionLagMillis();
+        Range historical = new Range("ts", "DateTime64", now - lag - 10000, now - lag - 20000);
+        Range recent = new Range("ts", "DateTime64", now - lag + 10000, now - lag - 20000);
+        Assert.assertTrue(cacheService.isImmutable(historical));
+        Assert.assertFalse(cacheService.isImmutable(recent));
+        Assert.assertFalse(cacheService.isImmutable(null));
+        Assert.assertFalse(cacheService.isImmutable(new Range("ts", "DateTime64", "now", null)));
+        Assert.assertEquals(86400000L, cacheService.resolveTtlMillis(historical));
+        Assert.assertEquals(60000L, cacheService.resolveTtlMillis(recent));
+        Assert.assertEquals(60000L, cacheService.resolveTtlMillis(null));
+
+        queryProperty.setCacheRecentTtlSeconds(0);
+        Assert.assertEquals(0L, cacheService.resolveTtlMillis(recent));
+    }
+
+    /**
+     * 读取的按天索引覆盖最长ttl.
+     */
+    @Test
+    public void readIndexNamesTest() {
+        LocalDate today = LocalDate.of(2026, 1, 1);
+        Assert.assertEquals(List.of("proxy-cache-2026-01-01", "proxy-cache-2025-12-31"), cacheService.readIndexNames(today));
+        queryProperty.setCacheHistoricalTtlSeconds(86401);
+        Assert.assertEquals(3, cacheService.readIndexNames(today).size());
+    }
+
+    /**
+     * 前一天写入、未过期的缓存跨天后仍可命中，过期的视为未命中.
+     */
+    @Test
+    public void readPreviousDayIndexTest() {
+        queryProperty.setLocalCacheMaxWeight(0);
+        long now = System.currentTimeMillis();
+        List<String> indexNames = cacheService.readIndexNames(LocalDate.now());
+        esSources.put(indexNames.get(1), Map.of("sql1", source(rows(1), now - 3600000, now + 3600000),
+                "sql2", source(rows(2), now - 7200000, now - 1)));
+        esSources.put(indexNames.get(0), Map.of("sql1", source(rows(3), now - 1000, now - 1)));
+
+        Assert.assertEquals(rows(1), cacheService.get("sql1"));
+        Assert.assertNull(cacheService.get("sql2"));
+        Assert.assertEquals(List.of(indexNames, indexNames), mgetIndexNames);
+        Assert.assertEquals(2L, cacheService.metrics().get("esExpiredCount"));
+    }
+
+    /**
+     * 一次_mget预取本地缺失的key，之后的get直接命中本地.
+     */
+    @Test
+    public void prefetchTest() {
+        cacheService.setRequestContext(new RequestContext());
+        long now = System.currentTimeMillis();
+        List<String> indexNames = cacheService.readIndexNames(LocalDate.now());
+        esSources.put(indexNames.get(0), Map.of("sql1", source(rows(1), now, now + 60000), "sql2", source(rows(2), now, now + 60000)));
+        cacheService.put("sql3", rows(3), 60000);
+
+        Assert.assertEquals(2, cacheService.prefetch(List.of("sql1", "sql2", "sql2", "sql3", "sql4", "select 1 from system.tables")));
+        Assert.assertEquals(1, mgetIndexNames.size());
+        Assert.assertEquals(rows(1), cacheService.get("sql1"));
+        Assert.assertEquals(rows(2), cacheService.get("sql2"));
+        Assert.assertEquals(rows(3), cacheService.get("sql3"));
+        Assert.assertEquals(1, mgetIndexNames.size());
+        Assert.assertEquals(2D / 3, (double) cacheService.metrics().get("prefetchHitRate"), 0.0001);
+
+        // 全部已在本地时不再请求es
+        Assert.assertEquals(0, cacheService.prefetch(List.of("sql1", "sql2")));
+        Assert.assertEquals(1, mgetIndexNames.size());
+    }
+
+    /**
+     * 未开启本地缓存时不预取.
+     */
+    @Test
+    public void prefetchWithoutLocalCacheTest() {
+        cacheService.setRequestContext(new RequestContext());
+        queryProperty.setLocalCacheMaxWeight(0);
+        Assert.assertEquals(0, cacheService.prefetch(List.of("sql1")));
+        Assert.assertTrue(mgetIndexNames.isEmpty());
+    }
+
+    /**
+     * es读取失败后暂停读取，期间预取和读取都不再请求es，按未命中处理.
+     */
+    @Test
+    public void readSuspendedAfterFailureTest() {
+        cacheService.setRequestContext(new RequestContext());
+        mgetError = new IllegalStateException("es unavailable");
+        Assert.assertEquals(0, cacheService.prefetch(List.of("sql1", "sql2")));
+        Assert.assertEquals(1, mgetIndexNames.size());
+
+        mgetError = null;
+        Assert.assertEquals(0, cacheService.prefetch(List.of("sql1", "sql2")));
+        Assert.assertNull(cacheService.get("sql1"));
+        Assert.assertEquals(1, mgetIndexNames.size());
+        Assert.assertEquals(2L, cacheService.metrics().get("readSkipCount"));
+
+        cacheService.setReadSuspendedUntil(0);
+        Assert.assertNull(cacheService.get("sql1"));
+        Assert.assertEquals(2, mgetIndexNames.size());
+    }
+
+    private static JSONObject source(List<JSONObject> rows, long writtenAt, long expireAt) {
+        JSONObject result = new JSONObject();
+        result.put("value", CkResultCacheCodec.encode(rows));
+        result.put("timestamp", writtenAt);
+        result.put("expireAt", expireAt);
+        return result;
+    }
+
+    private static List<JSONObject> rows(int value) {
+        JSONObject row = new JSONObject();
+        row.put("count", value);
+        return List.of(row);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import com.ly.ckibana.model.response.CkRow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.yandex.clickhouse.response.ClickHouseResultSet;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+import ru.yandex.clickhouse.util.ClickHouseRowBinaryInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * jdbc(TabSeparated + getObject)与RowBinary列式解码的性能对比.
+ * 模拟terms + date_histogram + avg聚合结果，按bucket解析方式读取每行.
+ * 运行: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.ly.ckibana.service.CkResultDecodeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CkResultDecodeBenchmark {
+
+    private static final String[] NAMES = {"host", "minute", "doc_count", "avg_cost"};
+
+    private static final String[] TYPES = {"String", "Int64", "UInt64", "Float64"};
+
+    @Param({"10000", "100000"})
+    private int rows;
+
+    private byte[] tabSeparated;
+
+    private byte[] rowBinary;
+
+    private final ClickHouseProperties properties = new ClickHouseProperties();
+
+    @Setup
+    public void setup() {
+        StringBuilder tsv = new StringBuilder();
+        tsv.append(String.join("\t", NAMES)).append('\n').append(String.join("\t", TYPES)).append('\n');
+        RowBinaryWriter writer = new RowBinaryWriter().header(Arrays.asList(NAMES), Arrays.asList(TYPES));
+        for (int i = 0; i < rows; i++) {
+            String host = "host-" + i % 200;
+            long minute = 28000000L + i / 200;
+            long docCount = i % 1000;
+            double avgCost = i * 0.37;
+            tsv.append(host).append('\t').append(minute).append('\t').append(docCount).append('\t').append(avgCost).append('\n');
+            writer.writeString(host).writeInt64(minute).writeInt64(docCount).writeFloat64(avgCost);
+        }
+        tabSeparated = tsv.toString().getBytes(StandardCharsets.UTF_8);
+        rowBinary = writer.toByteArray();
+    }
+
+    private static void consume(CkRow row, Blackhole blackhole) {
+        blackhole.consume(row.get("host").toString());
+        blackhole.consume(row.getLongValue("minute"));
+        blackhole.consume(row.getLongValue("doc_count"));
+        blackhole.consume(row.getString("avg_cost"));
+    }
+
+    @Benchmark
+    public void jdbc(Blackhole blackhole) throws Exception {
+        try (ResultSet resultSet = new ClickHouseResultSet(new ByteArrayInputStream(tabSeparated), 65536, "default", "t", false,
+                null, TimeZone.getDefault(), properties)) {
+            CkService.consumeResult(resultSet, row -> consume(row, blackhole));
+        }
+    }
+
+    @Benchmark
+    public void rowBinary(Blackhole blackhole) throws Exception {
+        try (ClickHouseRowBinaryInputStream input = new ClickHouseRowBinaryInputStream(new ByteArrayInputStream(rowBinary),
+                TimeZone.getDefault(), properties, true)) {
+            CkColumnarReader.create(input, CkColumnarReader.DEFAULT_BLOCK_SIZE).read(row -> consume(row, blackhole));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(CkResultDecodeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ * 全局表结构缓存测试.
+ */
+public class CkSchemaCacheTest {
+
+    private final CkSchemaCache ckSchemaCache = new CkSchemaCache();
+
+    /**
+     * 命中、过期、失效与数量上限.
+     */
+    @Test
+    public void getAndEvictTest() {
+        ckSchemaCache.put("db", "t1", Map.of("a", "String"), 2);
+        Assert.assertEquals(Map.of("a", "String"), ckSchemaCache.get("db", "t1", 60000));
+        Assert.assertNull(ckSchemaCache.get("db", "t1", -1));
+
+        ckSchemaCache.put("db", "t2", Map.of("b", "UInt8"), 2);
+        ckSchemaCache.put("db", "t3", Map.of("c", "Int64"), 2);
+        Assert.assertEquals(2, ckSchemaCache.metrics().get("size"));
+        Assert.assertEquals(1L, ckSchemaCache.metrics().get("evictCount"));
+
+        ckSchemaCache.invalidate("db", "t3");
+        Assert.assertNull(ckSchemaCache.get("db", "t3", 60000));
+    }
+
+    /**
+     * 批量刷新替换库下的表结构，移除已删除的表，不影响其他库.
+     */
+    @Test
+    public void putAllTest() {
+        ckSchemaCache.put("db", "dropped", Map.of("a", "String"), 10);
+        ckSchemaCache.put("other", "t1", Map.of("a", "String"), 10);
+        ckSchemaCache.putAll("db", Map.of("t1", Map.of("a", "String", "b", "UInt8")), 10);
+        Assert.assertNull(ckSchemaCache.get("db", "dropped", 60000));
+        Assert.assertEquals(2, ckSchemaCache.get("db", "t1", 60000).size());
+        Assert.assertNotNull(ckSchemaCache.get("other", "t1", 60000));
+    }
+}
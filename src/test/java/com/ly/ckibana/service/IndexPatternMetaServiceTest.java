@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import org.elasticsearch.client.RestClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * indexpattern元数据缓存测试.
+ */
+public class IndexPatternMetaServiceTest {
+
+    private final Map<String, String> esTimeFields = new HashMap<>();
+
+    private final List<String> queries = new ArrayList<>();
+
+    private boolean esFailed;
+
+    private final IndexPatternMetaService indexPatternMetaService = new IndexPatternMetaService() {
+        @Override
+        Map<String, String> queryTimeFields(RestClient restClient, String title) throws Exception {
+            queries.add(String.valueOf(title));
+            if (esFailed) {
+                throw new IllegalStateException("es unavailable");
+            }
+            Map<String, String> result = new HashMap<>(esTimeFields);
+            if (title != null) {
+                result.keySet().retainAll(List.of(title));
+            }
+            return result;
+        }
+    };
+
+    /**
+     * 首次查询全量加载，之后从快照命中.
+     */
+    @Test
+    public void snapshotHitTest() {
+        esTimeFields.put("logs-*", "@timestamp");
+        Assert.assertEquals("@timestamp", indexPatternMetaService.getTimeField(null, "logs-*"));
+        Assert.assertEquals("@timestamp", indexPatternMetaService.getTimeField(null, "logs-*"));
+        Assert.assertEquals(List.of("null"), queries);
+        Assert.assertEquals(2L, indexPatternMetaService.metrics().get("hitCount"));
+    }
+
+    /**
+     * 快照外的indexpattern单独查询后追加，不存在的indexpattern记为null直到下次全量刷新.
+     */
+    @Test
+    public void missAndNotExistTest() {
+        indexPatternMetaService.refresh(null);
+        esTimeFields.put("new-*", "ts");
+        Assert.assertEquals("ts", indexPatternMetaService.getTimeField(null, "new-*"));
+        Assert.assertEquals("ts", indexPatternMetaService.getTimeField(null, "new-*"));
+        Assert.assertNull(indexPatternMetaService.getTimeField(null, "absent-*"));
+        Assert.assertNull(indexPatternMetaService.getTimeField(null, "absent-*"));
+        Assert.assertEquals(List.of("null", "new-*", "absent-*"), queries);
+
+        // 全量刷新后不存在的记录被移除，之后创建的indexpattern可以查到
+        esTimeFields.put("absent-*", "ts2");
+        indexPatternMetaService.refresh(null);
+        Assert.assertEquals("ts2", indexPatternMetaService.getTimeField(null, "absent-*"));
+        Assert.assertEquals(List.of("null", "new-*", "absent-*", "null"), queries);
+    }
+
+    /**
+     * 全量刷新失败时保留旧快照.
+     */
+    @Test
+    public void refreshFailKeepSnapshotTest() {
+        esTimeFields.put("logs-*", "@timestamp");
+        indexPatternMetaService.refresh(null);
+        esFailed = true;
+        indexPatternMetaService.refresh(null);
+        Assert.assertEquals("@timestamp", indexPatternMetaService.getTimeField(null, "logs-*"));
+        Assert.assertEquals(1L, indexPatternMetaService.metrics().get("refreshFailCount"));
+        Assert.assertNull(indexPatternMetaService.getTimeField(null, "other-*"));
+    }
+
+    /**
+     * 单独查询失败时不记入快照，es恢复后重新查询.
+     */
+    @Test
+    public void lookupFailNotRecordedTest() {
+        indexPatternMetaService.refresh(null);
+        esTimeFields.put("new-*", "ts");
+        esFailed = true;
+        Assert.assertNull(indexPatternMetaService.getTimeField(null, "new-*"));
+        esFailed = false;
+        Assert.assertEquals("ts", indexPatternMetaService.getTimeField(null, "new-*"));
+        Assert.assertEquals(List.of("null", "new-*", "new-*"), queries);
+    }
+
+    /**
+     * 超时或部分分片失败的查询结果按失败处理.
+     */
+    @Test
+    public void incompleteResponseTest() {
+        String hits = "\"hits\":{\"hits\":[{\"_source\":{\"index-pattern\":{\"title\":\"logs-*\",\"timeFieldName\":\"@timestamp\"}}}]}";
+        Assert.assertEquals(Map.of("logs-*", "@timestamp"),
+                EsClientUtil.parseIndexPatternMeta("{\"timed_out\":false,\"_shards\":{\"failed\":0}," + hits + "}", null));
+        Assert.assertThrows(IllegalStateException.class,
+                () -> EsClientUtil.parseIndexPatternMeta("{\"timed_out\":true,\"_shards\":{\"failed\":0}," + hits + "}", null));
+        Assert.assertThrows(IllegalStateException.class,
+                () -> EsClientUtil.parseIndexPatternMeta("{\"timed_out\":false,\"_shards\":{\"failed\":1}," + hits + "}", null));
+        Assert.assertThrows(IllegalStateException.class, () -> EsClientUtil.parseIndexPatternMeta("", null));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2023 LY.com All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ly.ckibana.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 构造RowBinaryWithNamesAndTypes格式数据，用于解码测试.
+ */
+class RowBinaryWriter {
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    RowBinaryWriter header(List<String> names, List<String> types) {
+        writeLeb128(names.size());
+        names.forEach(this::writeString);
+        types.forEach(this::writeString);
+        return this;
+    }
+
+    RowBinaryWriter writeLeb128(int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            output.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        output.write(remaining);
+        return this;
+    }
+
+    RowBinaryWriter writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeLeb128(bytes.length);
+        output.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    RowBinaryWriter writeInt64(long value) {
+        for (int i = 0; i < 8; i++) {
+            output.write((int) (value >>> (i * 8)) & 0xFF);
+        }
+        return this;
+    }
+
+    RowBinaryWriter writeFloat64(double value) {
+        return writeInt64(Double.doubleToLongBits(value));
+    }
+
+    RowBinaryWriter writeNull(boolean isNull) {
+        output.write(isNull ? 1 : 0);
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return output.toByteArray();
+    }
+}